@@ -25,15 +25,23 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.core.AbstractAnalyzer;
 import spade.core.AbstractStorage;
+import spade.core.GraphStream;
 import spade.core.Kernel;
 import spade.core.Query;
 import spade.core.Settings;
 import spade.query.quickgrail.QuickGrailExecutor;
+import spade.utility.ArgumentFunctions;
 import spade.utility.HelperFunctions;
 
 /**
@@ -44,12 +52,20 @@ public class CommandLine extends AbstractAnalyzer{
 	private static final Logger logger = Logger.getLogger(CommandLine.class.getName());
 	private static final long millisWaitSocketClose = 100;
 
+	private static final String keyMaxConnections = "max_connections",
+			keyMaxConcurrentQueriesPerStorage = "max_concurrent_queries_per_storage",
+			keyMaxQueuedQueriesPerStorage = "max_queued_queries_per_storage",
+			keyQueryTimeoutSeconds = "query_timeout_seconds";
+
 	// Current state of the CommandLine analyzer
 	private volatile boolean shutdown = false;
 
 	// Globals
 	private ServerSocket queryServerListenerSocket = null;
 	private final List<QueryConnection> queryClientConnections = new ArrayList<QueryConnection>();
+	// One thread per connected query client. Bounded by the max connections
+	private ThreadPoolExecutor queryClientThreads = null;
+	private QueryScheduler queryScheduler = null;
 
 	private void addQueryClientConnection(QueryConnection queryConnection){
 		synchronized(queryClientConnections){
@@ -99,6 +115,33 @@ public class CommandLine extends AbstractAnalyzer{
 
 	@Override
 	public final boolean initializeConcreteAnalyzer(String arguments){
+		final String configFilePath = Settings.getDefaultConfigFilePath(this.getClass());
+		final int maxConnections;
+		try{
+			final Map<String, String> map = HelperFunctions.parseKeyValuePairsFrom(arguments, configFilePath, null);
+			maxConnections = ArgumentFunctions.mustParseInteger(keyMaxConnections, map);
+			if(maxConnections < 1){
+				throw new Exception("'" + keyMaxConnections + "' must be greater than 0");
+			}
+			final int queryTimeoutSeconds = ArgumentFunctions.mustParseInteger(keyQueryTimeoutSeconds, map);
+			if(queryTimeoutSeconds < 0){
+				throw new Exception("'" + keyQueryTimeoutSeconds + "' must not be negative");
+			}
+			this.queryScheduler = new QueryScheduler(
+					ArgumentFunctions.mustParseInteger(keyMaxConcurrentQueriesPerStorage, map),
+					ArgumentFunctions.mustParseInteger(keyMaxQueuedQueriesPerStorage, map),
+					TimeUnit.SECONDS.toMillis(queryTimeoutSeconds));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments and configuration file: '" + configFilePath + "'", e);
+			return false;
+		}
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		this.queryClientThreads = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), runnable -> new Thread(runnable,
+						this.getClass().getSimpleName() + "QueryClient-Thread-" + threadCount.incrementAndGet()));
+		this.queryClientThreads.allowCoreThreadTimeOut(true);
+		logger.log(Level.INFO, "Query server: " + keyMaxConnections + "=" + maxConnections + ", " + queryScheduler);
+
 		final int queryServerPort = Settings.getCommandLineQueryPort();
 		try{
 			this.queryServerListenerSocket = Kernel.createServerSocket(queryServerPort);
@@ -130,10 +173,15 @@ public class CommandLine extends AbstractAnalyzer{
 					Socket queryClientSocket = queryServerListenerSocket.accept();
 					try{
 						QueryConnection thisConnection = new QueryConnection(queryClientSocket, Kernel.getDefaultQueryStorage());
-						Thread connectionThread = new Thread(thisConnection);
-						connectionThread.start(); // Start
-						// Add to the list at the end
+						// Added before starting so that it is removed correctly even if it exits immediately
 						addQueryClientConnection(thisConnection);
+						try{
+							queryClientThreads.execute(thisConnection);
+						}catch(RejectedExecutionException ree){
+							logger.log(Level.WARNING, "Rejected query client. Already at max connections: "
+									+ queryClientThreads.getMaximumPoolSize());
+							thisConnection.reject("Too many query clients connected. Try again later");
+						}
 					}catch(Exception e){
 						logger.log(Level.SEVERE, "Failed setup for accepted query client socket", e);
 						closeClientSocket(queryClientSocket);
@@ -167,6 +215,12 @@ public class CommandLine extends AbstractAnalyzer{
 					queryConnection.shutdown();
 				}
 			}
+			if(queryClientThreads != null){
+				queryClientThreads.shutdownNow();
+			}
+			if(queryScheduler != null){
+				queryScheduler.shutdown();
+			}
 		}
 	}
 
@@ -179,6 +233,8 @@ public class CommandLine extends AbstractAnalyzer{
 		
 		private QuickGrailExecutor quickGrailExecutor = null;
 
+		private final QueryScheduler.Session querySession = queryScheduler.createSession();
+
 		private QueryConnection(Socket socket, AbstractStorage defaultStorageInKernel){
 			if(socket == null){
 				throw new IllegalArgumentException("NULL query client socket");
@@ -217,18 +273,50 @@ public class CommandLine extends AbstractAnalyzer{
 
 		@Override
 		public void writeToClient(Query query) throws Exception{
-			queryOutputWriter.writeObject(query);
+			if(query.isStreamGraphResult() && query.wasQuerySuccessful()
+					&& query.getResult() instanceof spade.core.Graph){
+				final spade.core.Graph graph = (spade.core.Graph)query.getResult();
+				query.querySucceeded(new GraphStream.Header(graph.vertexSet().size(), graph.edgeSet().size()));
+				queryOutputWriter.writeObject(query);
+				new GraphStream.Writer(queryOutputWriter, GraphStream.defaultBatchSize).writeGraph(graph);
+			}else{
+				queryOutputWriter.writeObject(query);
+			}
 			queryOutputWriter.flush();
+			// Otherwise the stream keeps a reference to every result written to it
+			queryOutputWriter.reset();
 		}
 
 		@Override
 		public Query executeQuery(Query query) throws Exception{
 			if(query != null){
-				query = quickGrailExecutor.execute(query);
+				final QuickGrailExecutor executor = quickGrailExecutor;
+				final Query finalQuery = query;
+				query = querySession.execute(getCurrentStorage(), () -> executor.execute(finalQuery));
 			}
 			return query;
 		}
 
+		@Override
+		public String getQueryStatsAsString(){
+			final List<String> lines = new ArrayList<String>();
+			lines.add("Query clients: " + queryClientConnections.size() + " connected, "
+					+ queryClientThreads.getMaximumPoolSize() + " max");
+			lines.addAll(queryScheduler.getStats());
+			return String.join(System.lineSeparator(), lines);
+		}
+
+		private void reject(final String message){
+			final Query query = new Query("<NULL>", "<NULL>", "<NULL>", "<NULL>");
+			query.queryFailed(message);
+			try{
+				writeToClient(query);
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to write rejection to query client", e);
+			}
+			shutdown();
+		}
+
 		@Override
 		public void doQueryingSetupForCurrentStorage() throws Exception{
 			quickGrailExecutor = new QuickGrailExecutor(getCurrentStorage().getQueryInstructionExecutor());
@@ -318,6 +406,7 @@ public class CommandLine extends AbstractAnalyzer{
 					"Control help:",
 					tab + "set storage <Storage class name>",
 					tab + "print storage",
+					tab + "print queries",
 					tab + "list [all | constraint | graph | env]",
 					tab + "reset workspace",
 					tab + "native '<Query to execute on the storage in single quotes>'",
@@ -383,6 +472,7 @@ public class CommandLine extends AbstractAnalyzer{
 		public synchronized void shutdown(){
 			if(!queryClientShutdown){
 				queryClientShutdown = true;
+				querySession.cancel();
 				try{
 					queryOutputWriter.close();
 				}catch(Exception e){
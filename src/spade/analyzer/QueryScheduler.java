@@ -0,0 +1,301 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.analyzer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spade.core.AbstractStorage;
+
+/**
+ * Admission control for queries executed by query clients.
+ *
+ * At most 'maxConcurrentQueriesPerStorage' queries execute against the same storage at the same time. Queries
+ * waiting for their turn are queued, and a query is rejected immediately if 'maxQueuedQueriesPerStorage' queries
+ * are already waiting. A query which has not finished in 'queryTimeoutMillis' (waiting included) is cancelled.
+ *
+ * Queries are executed on separate threads so that the client gets the answer at the timeout. A cancelled query
+ * keeps its slot till it actually stops so that the limit always reflects the load on the storage.
+ */
+public class QueryScheduler{
+
+	private static final class StorageQueue{
+		private final String storageName;
+		private final Semaphore permits;
+		private final AtomicInteger queued = new AtomicInteger(0);
+		private final AtomicInteger running = new AtomicInteger(0);
+		private final AtomicLong completed = new AtomicLong(0);
+		private final AtomicLong rejected = new AtomicLong(0);
+		private final AtomicLong timedOut = new AtomicLong(0);
+		private final AtomicLong cancelled = new AtomicLong(0);
+
+		private StorageQueue(final String storageName, final int permits){
+			this.storageName = storageName;
+			this.permits = new Semaphore(permits, true);
+		}
+
+		@Override
+		public String toString(){
+			return storageName + " [running=" + running.get() + ", queued=" + queued.get() + ", completed="
+					+ completed.get() + ", rejected=" + rejected.get() + ", timedOut=" + timedOut.get()
+					+ ", cancelled=" + cancelled.get() + "]";
+		}
+	}
+
+	private static final class Execution{
+		private final Future<?> future;
+		private final CountDownLatch finished;
+
+		private Execution(final Future<?> future, final CountDownLatch finished){
+			this.future = future;
+			this.finished = finished;
+		}
+	}
+
+	/**
+	 * Queries of one client. Executed one at a time since they share the state of the client.
+	 */
+	public final class Session{
+		private volatile Execution current = null;
+		private volatile boolean cancelled = false;
+
+		public final <T> T execute(final AbstractStorage storage, final Callable<T> task) throws Exception{
+			if(storage == null){
+				throw new IllegalArgumentException("NULL storage");
+			}
+			if(task == null){
+				throw new IllegalArgumentException("NULL task");
+			}
+			final long deadlineNanos = queryTimeoutMillis > 0
+					? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queryTimeoutMillis) : Long.MAX_VALUE;
+			final StorageQueue storageQueue = getStorageQueue(storage);
+			synchronized(this){
+				cancelled = false;
+				waitForPreviousExecution(storageQueue, deadlineNanos);
+				acquire(storageQueue, deadlineNanos);
+				final CountDownLatch finished = new CountDownLatch(1);
+				final AtomicBoolean started = new AtomicBoolean(false);
+				final AtomicBoolean released = new AtomicBoolean(false);
+				final Runnable release = () -> {
+					if(released.compareAndSet(false, true)){
+						storageQueue.running.decrementAndGet();
+						storageQueue.permits.release();
+						finished.countDown();
+					}
+				};
+				final FutureTask<T> future = new FutureTask<T>(() -> {
+					started.set(true);
+					try{
+						return task.call();
+					}finally{
+						release.run();
+					}
+				}){
+					@Override
+					protected void done(){
+						// Cancelled before it could start
+						if(!started.get()){
+							release.run();
+						}
+					}
+				};
+				try{
+					executionThreads.execute(future);
+				}catch(RuntimeException e){
+					release.run();
+					throw e;
+				}
+				current = new Execution(future, finished);
+				if(cancelled){
+					future.cancel(true);
+				}
+				return await(storageQueue, future, deadlineNanos);
+			}
+		}
+
+		/**
+		 * Cancels the query being executed (or waiting) if any
+		 */
+		public final void cancel(){
+			cancelled = true;
+			final Execution execution = current;
+			if(execution != null){
+				execution.future.cancel(true);
+			}
+		}
+
+		private void waitForPreviousExecution(final StorageQueue storageQueue, final long deadlineNanos)
+				throws Exception{
+			if(current != null){
+				// The previous query might have been cancelled but still be running against the client state
+				if(!current.finished.await(remainingNanos(deadlineNanos), TimeUnit.NANOSECONDS)){
+					storageQueue.timedOut.incrementAndGet();
+					throw new RuntimeException("Timed out waiting for the previous cancelled query to stop");
+				}
+				current = null;
+			}
+		}
+
+		private void acquire(final StorageQueue storageQueue, final long deadlineNanos) throws Exception{
+			if(!storageQueue.permits.tryAcquire()){
+				waitForPermit(storageQueue, deadlineNanos);
+			}
+			if(cancelled){
+				storageQueue.permits.release();
+				storageQueue.cancelled.incrementAndGet();
+				throw new RuntimeException("Query cancelled");
+			}
+			storageQueue.running.incrementAndGet();
+		}
+
+		private void waitForPermit(final StorageQueue storageQueue, final long deadlineNanos) throws Exception{
+			if(storageQueue.queued.incrementAndGet() > maxQueuedQueriesPerStorage){
+				storageQueue.queued.decrementAndGet();
+				storageQueue.rejected.incrementAndGet();
+				throw new RuntimeException("Too many queries waiting for storage '" + storageQueue.storageName
+						+ "'. Try again later");
+			}
+			try{
+				if(!storageQueue.permits.tryAcquire(remainingNanos(deadlineNanos), TimeUnit.NANOSECONDS)){
+					storageQueue.timedOut.incrementAndGet();
+					throw new RuntimeException("Query timed out after " + queryTimeoutMillis
+							+ " millis waiting for storage '" + storageQueue.storageName + "'");
+				}
+			}catch(InterruptedException e){
+				storageQueue.cancelled.incrementAndGet();
+				throw new RuntimeException("Query cancelled while waiting for storage '"
+						+ storageQueue.storageName + "'");
+			}finally{
+				storageQueue.queued.decrementAndGet();
+			}
+		}
+
+		private <T> T await(final StorageQueue storageQueue, final Future<T> future, final long deadlineNanos)
+				throws Exception{
+			try{
+				final T result = future.get(remainingNanos(deadlineNanos), TimeUnit.NANOSECONDS);
+				storageQueue.completed.incrementAndGet();
+				return result;
+			}catch(TimeoutException e){
+				future.cancel(true);
+				storageQueue.timedOut.incrementAndGet();
+				throw new RuntimeException("Query timed out after " + queryTimeoutMillis + " millis");
+			}catch(CancellationException | InterruptedException e){
+				future.cancel(true);
+				storageQueue.cancelled.incrementAndGet();
+				throw new RuntimeException("Query cancelled");
+			}catch(ExecutionException e){
+				storageQueue.completed.incrementAndGet();
+				final Throwable cause = e.getCause();
+				if(cause instanceof Exception){
+					throw (Exception)cause;
+				}
+				throw new RuntimeException("Query failed", cause);
+			}
+		}
+	}
+
+	private final int maxConcurrentQueriesPerStorage;
+	private final int maxQueuedQueriesPerStorage;
+	private final long queryTimeoutMillis;
+
+	private final Map<AbstractStorage, StorageQueue> storageQueues = new IdentityHashMap<AbstractStorage, StorageQueue>();
+
+	// Bounded by the number of permits for all storages (and cancelled queries which have not stopped yet)
+	private final ExecutorService executionThreads;
+
+	/**
+	 * @param queryTimeoutMillis 0 for no timeout
+	 */
+	public QueryScheduler(final int maxConcurrentQueriesPerStorage, final int maxQueuedQueriesPerStorage,
+			final long queryTimeoutMillis){
+		if(maxConcurrentQueriesPerStorage < 1){
+			throw new IllegalArgumentException(
+					"Max concurrent queries per storage must be greater than 0. Found: " + maxConcurrentQueriesPerStorage);
+		}
+		if(maxQueuedQueriesPerStorage < 0){
+			throw new IllegalArgumentException("Negative max queued queries per storage: " + maxQueuedQueriesPerStorage);
+		}
+		if(queryTimeoutMillis < 0){
+			throw new IllegalArgumentException("Negative query timeout: " + queryTimeoutMillis);
+		}
+		this.maxConcurrentQueriesPerStorage = maxConcurrentQueriesPerStorage;
+		this.maxQueuedQueriesPerStorage = maxQueuedQueriesPerStorage;
+		this.queryTimeoutMillis = queryTimeoutMillis;
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		this.executionThreads = Executors.newCachedThreadPool(runnable -> {
+			final Thread thread = new Thread(runnable, "QueryScheduler-execution-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public final Session createSession(){
+		return new Session();
+	}
+
+	private synchronized StorageQueue getStorageQueue(final AbstractStorage storage){
+		StorageQueue storageQueue = storageQueues.get(storage);
+		if(storageQueue == null){
+			storageQueue = new StorageQueue(storage.getClass().getSimpleName(), maxConcurrentQueriesPerStorage);
+			storageQueues.put(storage, storageQueue);
+		}
+		return storageQueue;
+	}
+
+	private static long remainingNanos(final long deadlineNanos){
+		return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, deadlineNanos - System.nanoTime());
+	}
+
+	public final synchronized List<String> getStats(){
+		final List<String> stats = new ArrayList<String>();
+		for(final StorageQueue storageQueue : storageQueues.values()){
+			stats.add(storageQueue.toString());
+		}
+		return stats;
+	}
+
+	public final void shutdown(){
+		executionThreads.shutdownNow();
+	}
+
+	@Override
+	public String toString(){
+		return "QueryScheduler [maxConcurrentQueriesPerStorage=" + maxConcurrentQueriesPerStorage
+				+ ", maxQueuedQueriesPerStorage=" + maxQueuedQueriesPerStorage + ", queryTimeoutMillis="
+				+ queryTimeoutMillis + "]";
+	}
+}
@@ -21,6 +21,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -44,7 +45,11 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.mutable.MutableBoolean;
 
 import jline.ConsoleReader;
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.GraphStream;
 import spade.core.Query;
 import spade.core.Settings;
 import spade.query.quickgrail.core.EnvironmentVariableManager;
@@ -494,6 +499,7 @@ public class CommandLine{
 
 			final String queryNonce = null; // Keep the nonce null to indicate that the query is local
 			Query spadeQuery = new Query(localHostName, localHostName, line, queryNonce);
+			spadeQuery.setStreamGraphResult(true);
 
 			clientOutputWriter.writeObject(spadeQuery);
 			clientOutputWriter.flush();
@@ -511,7 +517,14 @@ public class CommandLine{
 						if(spadeResult.getClass().equals(String.class)){
 							return String.valueOf(spadeResult);
 						}else{ // Other types
-							if(spadeResult instanceof spade.core.Graph){
+							if(spadeResult instanceof GraphStream.Header){
+								readGraphStream(clientInputReader, RESULT_EXPORT_PATH);
+								if(RESULT_EXPORT_PATH != null){
+									return "Output exported to file: " + RESULT_EXPORT_PATH;
+								}else{
+									return "Output exported to STDOUT";
+								}
+							}else if(spadeResult instanceof spade.core.Graph){
 								spade.core.Graph graph = (spade.core.Graph)spadeResult;
 								if(RESULT_EXPORT_PATH != null){
 									if(RESULT_EXPORT_PATH.toLowerCase().endsWith(".json")){
@@ -555,6 +568,56 @@ public class CommandLine{
 		}
 	}
 
+	/**
+	 * Writes the vertices and edges as they are received so that the whole graph is never in memory.
+	 * Written to STDOUT as JSON if the file path is null.
+	 * The graph stream is always read completely so that the connection can be used for the next query.
+	 */
+	private final static void readGraphStream(final ObjectInputStream clientInputReader, final String filePath)
+			throws Exception{
+		final GraphStream.Reader reader = new GraphStream.Reader(clientInputReader);
+		final AbstractStorage storage;
+		try{
+			if(filePath == null){
+				final boolean closeSystemOut = false;
+				storage = Graph.createExportStorage(SaveGraph.Format.kJson,
+						new BufferedWriter(new OutputStreamWriter(System.out)), closeSystemOut);
+			}else{
+				final SaveGraph.Format format = filePath.toLowerCase().endsWith(".json")
+						? SaveGraph.Format.kJson : SaveGraph.Format.kDot;
+				storage = Graph.createExportStorage(format, new BufferedWriter(new FileWriter(filePath)), true);
+			}
+		}catch(Exception e){
+			reader.readGraph(new GraphStream.Visitor(){
+				@Override
+				public void visitVertex(final AbstractVertex vertex){}
+
+				@Override
+				public void visitEdge(final AbstractEdge edge){}
+			});
+			throw e;
+		}
+		try{
+			reader.readGraph(new GraphStream.Visitor(){
+				@Override
+				public void visitVertex(final AbstractVertex vertex){
+					storage.putVertex(vertex);
+				}
+
+				@Override
+				public void visitEdge(final AbstractEdge edge){
+					storage.putEdge(edge);
+				}
+			});
+		}finally{
+			try{
+				storage.shutdown();
+			}catch(Exception e){
+				// ignore
+			}
+		}
+	}
+
 	private final static void writeToUser(final Graph graph){
 		if(graph != null){
 			try{
@@ -320,6 +320,15 @@ public abstract class AbstractAnalyzer{
 						}
 						safeWriteToClient(spadeQuery);
 						continue;
+					}else if(queryTokens.length == 2 && queryTokens[0].toLowerCase().equals("print")
+							&& queryTokens[1].toLowerCase().equals("queries")){
+						try{
+							spadeQuery.querySucceeded(getQueryStatsAsString());
+						}catch(Exception e){
+							spadeQuery.queryFailed(new RuntimeException("Failed to get query statistics: " + e.getMessage()));
+						}
+						safeWriteToClient(spadeQuery);
+						continue;
 					}else if(queryTokens[0].toLowerCase().equals("help")){
 						try{
 							HelpType helpType = null;
@@ -407,6 +416,10 @@ public abstract class AbstractAnalyzer{
 		public abstract String getQueryHelpTextAsString(HelpType type) throws Exception;
 		public abstract Query executeQuery(Query query) throws Exception;
 
+		public String getQueryStatsAsString() throws Exception{
+			return "Query statistics not available";
+		}
+
 		public abstract void shutdown();
 
 		public abstract boolean isShutdown();
@@ -16,7 +16,6 @@
  */
 package spade.core;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -27,6 +26,7 @@ import java.util.logging.Logger;
 import spade.utility.ABEGraph;
 import spade.utility.HelperFunctions;
 import spade.utility.RemoteSPADEQueryConnection;
+import spade.utility.RemoteSPADEQueryConnectionPool;
 
 /**
  * @author raza
@@ -81,50 +81,42 @@ public abstract class AbstractRemoteResolver{
 
 		@Override
 		public List<Query> call() throws Exception{
-			List<Query> queryResponses = new ArrayList<Query>();
-
-			try(RemoteSPADEQueryConnection connection = new RemoteSPADEQueryConnection(Kernel.getHostName(), remoteAddress, remotePort)){
-
-				connection.connect(Kernel.getClientSocketFactory(), 5*1000);
-				
-				connection.setStorage(storageName);
-				
-				for(Query query : queries){
-					final String newNonce = query.queryNonce == null ? String.valueOf(System.nanoTime()) : query.queryNonce;
-//					query.setQueryNonce(newNonce); API changed!
-					
-					query = connection.executeQuery(query);
-					
-					// Have the result.
-					// int vertexCount = 0, edgeCount = 0;;
-					boolean allVerified = true;
-					Set<spade.core.Graph> simpleGraphs = query.getAllResultsOfExactType(spade.core.Graph.class);
-					Set<ABEGraph> encyrpytedGraphs = query.getAllResultsOfExactType(ABEGraph.class);
-					Set<spade.core.Graph> allGraphs = new HashSet<spade.core.Graph>();
-					allGraphs.addAll(simpleGraphs);
-					allGraphs.addAll(encyrpytedGraphs);
-					
-					for(Graph allGraph : allGraphs){
-						// vertexCount += graph.vertexSet().size();
-						// edgeCount += graph.edgeSet().size();
-						boolean verified = allGraph.verifySignature(newNonce);
-						allVerified = allVerified && verified;
-						if(!verified){
-							logger.log(Level.WARNING, "Not able to verify signature of remote graph by host '"
-									+ allGraph.getHostName() + "'");
-						}
-					}
-
-					if(allVerified){
-						logger.log(Level.INFO, "Signatures of all remote graph verified successfully");
-						// TODO patching of the graph
-					}else{
-						logger.log(Level.WARNING, "Not able to verify signature of some remote graphs.");
+			final RemoteSPADEQueryConnectionPool pool = RemoteSPADEQueryConnectionPool.getDefault();
+			final RemoteSPADEQueryConnection connection = pool.borrow(remoteAddress, remotePort, storageName);
+			final List<Query> queryResponses;
+			try{
+				// All queries to the host are sent together
+				queryResponses = connection.executeQueries(queries);
+			}catch(Exception e){
+				pool.invalidate(connection);
+				throw e;
+			}
+			pool.release(connection);
+
+			for(final Query query : queryResponses){
+				// Have the result.
+				boolean allVerified = true;
+				Set<spade.core.Graph> simpleGraphs = query.getAllResultsOfExactType(spade.core.Graph.class);
+				Set<ABEGraph> encyrpytedGraphs = query.getAllResultsOfExactType(ABEGraph.class);
+				Set<spade.core.Graph> allGraphs = new HashSet<spade.core.Graph>();
+				allGraphs.addAll(simpleGraphs);
+				allGraphs.addAll(encyrpytedGraphs);
+
+				for(Graph allGraph : allGraphs){
+					boolean verified = allGraph.verifySignature(query.queryNonce);
+					allVerified = allVerified && verified;
+					if(!verified){
+						logger.log(Level.WARNING, "Not able to verify signature of remote graph by host '"
+								+ allGraph.getHostName() + "'");
 					}
+				}
 
-					queryResponses.add(query);
+				if(allVerified){
+					logger.log(Level.INFO, "Signatures of all remote graph verified successfully");
+					// TODO patching of the graph
+				}else{
+					logger.log(Level.WARNING, "Not able to verify signature of some remote graphs.");
 				}
-				
 			}
 
 			return queryResponses;
@@ -23,6 +23,7 @@ import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -72,6 +73,27 @@ public abstract class AbstractStorage
 		}
 	}
 	
+	// Incremented whenever put vertices/edges become visible to queries. Used to invalidate cached query results
+	private final AtomicLong epoch = new AtomicLong(0);
+
+	public final long getEpoch(){
+		return epoch.get();
+	}
+
+	// For storages which buffer writes or put vertices/edges without going through putVertex/putEdge.
+	// Must be called after the vertices/edges are visible to queries
+	protected final void incrementEpoch(){
+		epoch.incrementAndGet();
+	}
+
+	/**
+	 * True if stored vertices/edges are only visible to queries once the storage writes them out. Such storages
+	 * call incrementEpoch themselves at that point instead of the epoch being incremented on every put.
+	 */
+	protected boolean isBufferingWrites(){
+		return false;
+	}
+
 	public final AbstractScreen findScreen(final Class<? extends AbstractScreen> screenClass){
 		if(screenClass != null){
 			synchronized(screensLock){
@@ -87,45 +109,62 @@ public abstract class AbstractStorage
 		return null;
 	}
 
-	public final boolean putVertex(final AbstractVertex vertex){
-		boolean block = false;
+	/**
+	 * Returns true if {@link #putVertex} would not store the vertex because it is null or blocked by a screen
+	 */
+	public final boolean isVertexBlocked(final AbstractVertex vertex){
 		if(vertex == null){
-			block = true;
-		}else{
-			synchronized(screensLock){
-				for(final AbstractScreen screen : screens){
-					if(screen.blockVertex(vertex)){
-						block = true;
-						break;
-					}
+			return true;
+		}
+		synchronized(screensLock){
+			for(final AbstractScreen screen : screens){
+				if(screen.blockVertex(vertex)){
+					return true;
 				}
 			}
 		}
-		if(block){
+		return false;
+	}
+
+	public final boolean putVertex(final AbstractVertex vertex){
+		if(isVertexBlocked(vertex)){
 			return false;
 		}else{
-			return storeVertex(vertex);
+			final boolean stored = storeVertex(vertex);
+			// After storing so that a query which saw the old epoch cannot have missed this
+			if(!isBufferingWrites()){
+				epoch.incrementAndGet();
+			}
+			return stored;
 		}
 	}
 
-	public final boolean putEdge(final AbstractEdge edge){
-		boolean block = false;
+	/**
+	 * Returns true if {@link #putEdge} would not store the edge because it is null or blocked by a screen
+	 */
+	public final boolean isEdgeBlocked(final AbstractEdge edge){
 		if(edge == null){
-			block = true;
-		}else{
-			synchronized(screensLock){
-				for(final AbstractScreen screen : screens){
-					if(screen.blockEdge(edge)){
-						block = true;
-						break;
-					}
+			return true;
+		}
+		synchronized(screensLock){
+			for(final AbstractScreen screen : screens){
+				if(screen.blockEdge(edge)){
+					return true;
 				}
 			}
 		}
-		if(block){
+		return false;
+	}
+
+	public final boolean putEdge(final AbstractEdge edge){
+		if(isEdgeBlocked(edge)){
 			return false;
 		}else{
-			return storeEdge(edge);
+			final boolean stored = storeEdge(edge);
+			if(!isBufferingWrites()){
+				epoch.incrementAndGet();
+			}
+			return stored;
 		}
 	}
 
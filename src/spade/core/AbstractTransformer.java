@@ -46,6 +46,14 @@ public abstract class AbstractTransformer{
 
 	public abstract Graph transform(Graph graph, final ExecutionContext executionContext);
 
+	/**
+	 * True if the transformer looks at one edge (and its endpoints) at a time and drops vertices without edges.
+	 * Such a transformer gives the same result when it is called on the edges of a graph in batches.
+	 */
+	public boolean isEdgeLocal(){
+		return false;
+	}
+
 	public static String getAnnotationSafe(AbstractVertex vertex, String annotation){
 		if(vertex != null){
 			String value;
@@ -23,19 +23,25 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import spade.query.quickgrail.instruction.GetLineage.Direction;
 import spade.query.quickgrail.instruction.SaveGraph;
@@ -56,14 +62,31 @@ public class Graph implements Serializable{
 
 	private static final Logger logger = Logger.getLogger(Graph.class.getName());
 
+	private static final int signatureVersionMerkle = 1;
+	private static final String merkleDigestAlgorithm = "SHA-256";
+	// Expected number of hashes in a leaf
+	private static final int merkleLeafBoundaryModulus = 4096;
+	private static final byte[] merkleLeafPrefix = {0}, merkleNodePrefix = {1};
+	private static final byte merkleVertexTag = 'v', merkleEdgeTag = 'e';
+
 	private final Set<AbstractVertex> vertexSet = new LinkedHashSet<>();
-	private final Set<AbstractEdge> edgeSet = new LinkedHashSet<>();
+	private final ModificationCountingSet<AbstractEdge> edgeSet = new ModificationCountingSet<>();
+
+	/*
+	 * Edges by the hash of their child, and of their parent. Built lazily from the edge set and rebuilt on the next
+	 * use after the edge set is modified. Vertices must not be modified in place while in the graph (the sets would
+	 * be broken by that as well).
+	 */
+	private transient Map<String, List<AbstractEdge>> edgesByChildHash, edgesByParentHash;
+	private transient long indexedEdgeSetModificationCount;
 
 	/**
 	 * Fields for discrepancy check and query params
 	 */
 	private String hostName;
 	private byte[] signature;
+	// 0 for graphs signed over the elements in the order of the sets by older versions
+	private int signatureVersion = 0;
 	private String queryString;
 	/*
 	 * time at which this graph was constructed completely
@@ -183,12 +206,7 @@ public class Graph implements Serializable{
 			}
 			signature.initSign(privateKey, secureRandom);
 
-			for(AbstractVertex vertex : vertexSet()){
-				signature.update(vertex.bigHashCodeBytes());
-			}
-			for(AbstractEdge edge : edgeSet()){
-				signature.update(edge.bigHashCodeBytes());
-			}
+			signature.update(computeMerkleRoot());
 			if(getQueryString() != null){
 				signature.update(getQueryString().getBytes("UTF-8"));
 			}
@@ -198,6 +216,7 @@ public class Graph implements Serializable{
 
 			byte[] digitalSignature = signature.sign();
 			setSignature(digitalSignature);
+			signatureVersion = signatureVersionMerkle;
 
 			return true;
 		}catch(Exception ex){
@@ -218,11 +237,16 @@ public class Graph implements Serializable{
 				}
 				signature.initVerify(publicKey);
 
-				for(AbstractVertex vertex : vertexSet()){
-					signature.update(vertex.bigHashCodeBytes());
-				}
-				for(AbstractEdge edge : edgeSet()){
-					signature.update(edge.bigHashCodeBytes());
+				if(signatureVersion == signatureVersionMerkle){
+					signature.update(computeMerkleRoot());
+				}else{
+					// Graphs signed by older versions
+					for(AbstractVertex vertex : vertexSet()){
+						signature.update(vertex.bigHashCodeBytes());
+					}
+					for(AbstractEdge edge : edgeSet()){
+						signature.update(edge.bigHashCodeBytes());
+					}
 				}
 				if(getQueryString() != null){
 					signature.update(getQueryString().getBytes("UTF-8"));
@@ -241,6 +265,94 @@ public class Graph implements Serializable{
 		return false;
 	}
 
+	/**
+	 * Root of the Merkle tree over the element hashes of the graph.
+	 *
+	 * The vertex hashes and the edge hashes are sorted so that the root does not depend on the order of the sets
+	 * i.e. the same graph built by a union or a patch in a different order has the same root.
+	 * The sorted hashes are split into leaves at content-defined boundaries: a leaf ends after a hash whose value
+	 * modulo merkleLeafBoundaryModulus is zero. Adding or removing a hash therefore only changes the leaf it falls
+	 * in (or splits/joins that one leaf if it is a boundary) instead of shifting every following leaf. Leaves are
+	 * digested in parallel.
+	 */
+	public byte[] computeMerkleRoot() throws Exception{
+		final List<byte[]> nodes = new ArrayList<byte[]>();
+		nodes.addAll(computeMerkleLeaves(merkleVertexTag, vertexSet()));
+		nodes.addAll(computeMerkleLeaves(merkleEdgeTag, edgeSet()));
+		final MessageDigest digest = MessageDigest.getInstance(merkleDigestAlgorithm);
+		if(nodes.isEmpty()){
+			digest.update(merkleLeafPrefix);
+			return digest.digest();
+		}
+		List<byte[]> level = nodes;
+		while(level.size() > 1){
+			final List<byte[]> nextLevel = new ArrayList<byte[]>((level.size() + 1) / 2);
+			for(int i = 0; i < level.size(); i += 2){
+				if(i + 1 == level.size()){
+					nextLevel.add(level.get(i)); // Odd node is promoted as is
+				}else{
+					digest.update(merkleNodePrefix);
+					digest.update(level.get(i));
+					digest.update(level.get(i + 1));
+					nextLevel.add(digest.digest());
+				}
+			}
+			level = nextLevel;
+		}
+		return level.get(0);
+	}
+
+	private static List<byte[]> computeMerkleLeaves(final byte tag, final Set<? extends Object> elements){
+		final String[] hashes = new String[elements.size()];
+		int index = 0;
+		for(final Object element : elements){
+			if(element instanceof AbstractVertex){
+				hashes[index++] = ((AbstractVertex)element).bigHashCode();
+			}else{
+				hashes[index++] = ((AbstractEdge)element).bigHashCode();
+			}
+		}
+		Arrays.parallelSort(hashes);
+
+		final byte[][] hashBytes = new byte[hashes.length][];
+		// Exclusive end index of each leaf
+		final List<Integer> leafEnds = new ArrayList<Integer>();
+		for(int i = 0; i < hashes.length; i++){
+			hashBytes[i] = HashHelper.defaultInstance.convertHashHexStringToHashByteArray(hashes[i]);
+			if(isMerkleLeafBoundary(hashBytes[i]) || i == hashes.length - 1){
+				leafEnds.add(i + 1);
+			}
+		}
+
+		final IntStream leafIndices = IntStream.range(0, leafEnds.size());
+		// Digesting is cheap for small graphs. Not worth the scheduling.
+		final IntStream maybeParallelLeafIndices = leafEnds.size() > 1 ? leafIndices.parallel() : leafIndices;
+		return maybeParallelLeafIndices.mapToObj(leafIndex -> {
+			final MessageDigest digest;
+			try{
+				digest = MessageDigest.getInstance(merkleDigestAlgorithm);
+			}catch(NoSuchAlgorithmException e){
+				throw new RuntimeException("Missing digest algorithm: " + merkleDigestAlgorithm, e);
+			}
+			digest.update(merkleLeafPrefix);
+			digest.update(tag);
+			final int start = leafIndex == 0 ? 0 : leafEnds.get(leafIndex - 1);
+			final int end = leafEnds.get(leafIndex);
+			for(int i = start; i < end; i++){
+				digest.update(hashBytes[i]);
+			}
+			return digest.digest();
+		}).collect(Collectors.toList());
+	}
+
+	private static boolean isMerkleLeafBoundary(final byte[] hash){
+		if(hash.length < 2){
+			return true;
+		}
+		final int lowBits = ((hash[hash.length - 2] & 0xff) << 8) | (hash[hash.length - 1] & 0xff);
+		return lowBits % merkleLeafBoundaryModulus == 0;
+	}
+
 	public Graph copy(){
 		Graph newGraph = new Graph();
 		for(AbstractVertex vertex : this.vertexSet){
@@ -361,13 +473,84 @@ public class Graph implements Serializable{
 		this.edgeSet().removeAll(graph.edgeSet());
 	}
 
+	/**
+	 * Set which counts the modifications made to it (through any of its methods or iterators)
+	 */
+	private static final class ModificationCountingSet<T> extends LinkedHashSet<T>{
+		private static final long serialVersionUID = -1497436183311316375L;
+
+		private transient long modificationCount = 0;
+
+		@Override
+		public boolean add(final T element){
+			final boolean added = super.add(element);
+			if(added){
+				modificationCount++;
+			}
+			return added;
+		}
+
+		@Override
+		public boolean remove(final Object element){
+			final boolean removed = super.remove(element);
+			if(removed){
+				modificationCount++;
+			}
+			return removed;
+		}
+
+		@Override
+		public void clear(){
+			super.clear();
+			modificationCount++;
+		}
+
+		@Override
+		public Iterator<T> iterator(){
+			final Iterator<T> iterator = super.iterator();
+			return new Iterator<T>(){
+				@Override
+				public boolean hasNext(){
+					return iterator.hasNext();
+				}
+
+				@Override
+				public T next(){
+					return iterator.next();
+				}
+
+				@Override
+				public void remove(){
+					iterator.remove();
+					modificationCount++;
+				}
+			};
+		}
+	}
+
+	private void buildAdjacencyIndexIfNeeded(){
+		if(edgesByChildHash != null && indexedEdgeSetModificationCount == edgeSet.modificationCount){
+			return;
+		}
+		edgesByChildHash = new HashMap<String, List<AbstractEdge>>();
+		edgesByParentHash = new HashMap<String, List<AbstractEdge>>();
+		for(final AbstractEdge edge : edgeSet){
+			edgesByChildHash.computeIfAbsent(edge.getChildVertex().bigHashCode(), k -> new ArrayList<AbstractEdge>())
+					.add(edge);
+			edgesByParentHash.computeIfAbsent(edge.getParentVertex().bigHashCode(), k -> new ArrayList<AbstractEdge>())
+					.add(edge);
+		}
+		indexedEdgeSetModificationCount = edgeSet.modificationCount;
+	}
+
 	public Graph getParents(Set<AbstractVertex> childVertices){
+		buildAdjacencyIndexIfNeeded();
 		Graph result = new Graph();
-		for(AbstractEdge edge : edgeSet){
-			AbstractVertex edgeChildVertex = edge.getChildVertex();
-			for(AbstractVertex childVertex : childVertices){
-				if(childVertex.bigHashCode().equals(edgeChildVertex.bigHashCode())){
-					result.putVertex(edgeChildVertex);
+		for(AbstractVertex childVertex : childVertices){
+			final List<AbstractEdge> edges = edgesByChildHash.get(childVertex.bigHashCode());
+			if(edges != null){
+				for(AbstractEdge edge : edges){
+					result.putVertex(edge.getChildVertex());
 					result.putVertex(edge.getParentVertex());
 					result.putEdge(edge);
 				}
@@ -377,12 +560,13 @@ public class Graph implements Serializable{
 	}
 
 	public Graph getChildren(Set<AbstractVertex> parentVertices){
+		buildAdjacencyIndexIfNeeded();
 		Graph result = new Graph();
-		for(AbstractEdge edge : edgeSet){
-			AbstractVertex edgeParentVertex = edge.getParentVertex();
-			for(AbstractVertex parentVertex : parentVertices){
-				if(parentVertex.bigHashCode().equals(edgeParentVertex.bigHashCode())){
-					result.putVertex(edgeParentVertex);
+		for(AbstractVertex parentVertex : parentVertices){
+			final List<AbstractEdge> edges = edgesByParentHash.get(parentVertex.bigHashCode());
+			if(edges != null){
+				for(AbstractEdge edge : edges){
+					result.putVertex(edge.getParentVertex());
 					result.putVertex(edge.getChildVertex());
 					result.putEdge(edge);
 				}
@@ -439,10 +623,14 @@ public class Graph implements Serializable{
 						// new vertices (i.e. next level)
 						// Remove all the vertices which are already in the the result graph to avoid
 						// doing duplicate work
+						// Checked one by one so that the cost is in the size of the adjacent graph only
 						Set<AbstractVertex> nextLevelVertices = new HashSet<AbstractVertex>();
-						nextLevelVertices.addAll(adjacentGraph.vertexSet());
-						nextLevelVertices.removeAll(currentLevelVertices);
-						nextLevelVertices.removeAll(directionGraph.vertexSet());
+						for(AbstractVertex adjacentVertex : adjacentGraph.vertexSet()){
+							if(!currentLevelVertices.contains(adjacentVertex)
+									&& !directionGraph.vertexSet().contains(adjacentVertex)){
+								nextLevelVertices.add(adjacentVertex);
+							}
+						}
 
 						currentLevelVertices.clear();
 						currentLevelVertices.addAll(nextLevelVertices);
@@ -532,31 +720,7 @@ public class Graph implements Serializable{
 		}else if(format == null){
 			throw new RuntimeException("Cannot export to NULL format");
 		}else{
-			final AbstractStorage storage;
-			final boolean printHeader = true, printFooter = true;
-			
-			switch(format){
-				case kJson:
-					final boolean printRecordSeparator = true;
-					final JSON jsonStorage = new JSON();
-					jsonStorage.initializeUnsafe(
-							writer,  
-							printHeader, printFooter, printRecordSeparator,
-							System.lineSeparator(), closeWriter);
-					storage = jsonStorage;
-					break;
-				case kDot:
-					final Graphviz dotStorage = new Graphviz();
-					dotStorage.initializeUnsafe(
-							writer, 
-							DotConfiguration.getDefaultConfigFilePath(), 
-							printHeader, printFooter, System.lineSeparator(),
-							closeWriter);
-					storage = dotStorage;
-					break;
-				default: throw new RuntimeException("Unhandled graph export format: " + format);
-			}
-
+			final AbstractStorage storage = createExportStorage(format, writer, closeWriter);
 			try{
 				for(AbstractVertex vertex : graph.vertexSet()){
 					storage.putVertex(vertex);
@@ -577,4 +741,38 @@ public class Graph implements Serializable{
 		}
 	}
 
+	/**
+	 * Storage which writes the vertices and edges put into it to the writer in the given format.
+	 * The output is complete only after the storage is shut down.
+	 */
+	public static final AbstractStorage createExportStorage(final SaveGraph.Format format,
+			final BufferedWriter writer, final boolean closeWriter) throws Exception{
+		if(format == null){
+			throw new RuntimeException("Cannot export to NULL format");
+		}
+		final AbstractStorage storage;
+		final boolean printHeader = true, printFooter = true;
+		switch(format){
+			case kJson:
+				final boolean printRecordSeparator = true;
+				final JSON jsonStorage = new JSON();
+				jsonStorage.initializeUnsafe(
+						writer,  
+						printHeader, printFooter, printRecordSeparator,
+						System.lineSeparator(), closeWriter);
+				storage = jsonStorage;
+				break;
+			case kDot:
+				final Graphviz dotStorage = new Graphviz();
+				dotStorage.initializeUnsafe(
+						writer, 
+						DotConfiguration.getDefaultConfigFilePath(), 
+						printHeader, printFooter, System.lineSeparator(),
+						closeWriter);
+				storage = dotStorage;
+				break;
+			default: throw new RuntimeException("Unhandled graph export format: " + format);
+		}
+		return storage;
+	}
 }
@@ -0,0 +1,288 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunked binary transport of a graph result.
+ *
+ * The graph is written as a sequence of chunks after the query object. Each chunk starts with its type:
+ *
+ * KEYS: count, and the annotation keys which get the next ids in the dictionary
+ * VERTICES: count, and for each vertex its hash and annotations
+ * EDGES: count, and for each edge its hash, child hash, parent hash and annotations
+ * END: no content
+ *
+ * Annotations are written as count, and (key id, value) pairs. A KEYS chunk is always written before the first
+ * chunk which uses those keys. Strings are written as length prefixed UTF-8 bytes.
+ *
+ * The reader gets the vertices and edges one batch at a time so the graph is never completely in its memory.
+ */
+public class GraphStream{
+
+	public static final int defaultBatchSize = 4096;
+
+	private static final byte chunkKeys = 1, chunkVertices = 2, chunkEdges = 3, chunkEnd = 4;
+
+	/**
+	 * Sent as the result of the query in place of the graph. The chunks follow the query.
+	 */
+	public static final class Header implements Serializable{
+		private static final long serialVersionUID = 2473917309215536112L;
+
+		public final long vertexCount;
+		public final long edgeCount;
+
+		public Header(final long vertexCount, final long edgeCount){
+			this.vertexCount = vertexCount;
+			this.edgeCount = edgeCount;
+		}
+
+		@Override
+		public String toString(){
+			return "GraphStream.Header [vertexCount=" + vertexCount + ", edgeCount=" + edgeCount + "]";
+		}
+	}
+
+	public static interface Visitor{
+		public void visitVertex(final AbstractVertex vertex) throws Exception;
+
+		public void visitEdge(final AbstractEdge edge) throws Exception;
+	}
+
+	public static final class Writer{
+		private final DataOutput out;
+		private final int batchSize;
+		private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+
+		public Writer(final DataOutput out, final int batchSize){
+			if(out == null){
+				throw new IllegalArgumentException("NULL output");
+			}
+			if(batchSize < 1){
+				throw new IllegalArgumentException("Batch size must be greater than 0. Found: " + batchSize);
+			}
+			this.out = out;
+			this.batchSize = batchSize;
+		}
+
+		public final void writeGraph(final Graph graph) throws IOException{
+			final List<AbstractVertex> vertices = new ArrayList<AbstractVertex>(Math.min(batchSize, graph.vertexSet().size()));
+			for(final AbstractVertex vertex : graph.vertexSet()){
+				vertices.add(vertex);
+				if(vertices.size() == batchSize){
+					writeVertices(vertices);
+					vertices.clear();
+				}
+			}
+			if(!vertices.isEmpty()){
+				writeVertices(vertices);
+			}
+
+			final List<AbstractEdge> edges = new ArrayList<AbstractEdge>(Math.min(batchSize, graph.edgeSet().size()));
+			for(final AbstractEdge edge : graph.edgeSet()){
+				edges.add(edge);
+				if(edges.size() == batchSize){
+					writeEdges(edges);
+					edges.clear();
+				}
+			}
+			if(!edges.isEmpty()){
+				writeEdges(edges);
+			}
+
+			out.writeByte(chunkEnd);
+		}
+
+		private void writeVertices(final List<AbstractVertex> vertices) throws IOException{
+			final List<Map<String, String>> annotations = new ArrayList<Map<String, String>>(vertices.size());
+			for(final AbstractVertex vertex : vertices){
+				annotations.add(vertex.getCopyOfAnnotations());
+			}
+			writeNewKeys(annotations);
+			out.writeByte(chunkVertices);
+			out.writeInt(vertices.size());
+			for(int i = 0; i < vertices.size(); i++){
+				writeString(out, vertices.get(i).bigHashCode());
+				writeAnnotations(annotations.get(i));
+			}
+		}
+
+		private void writeEdges(final List<AbstractEdge> edges) throws IOException{
+			final List<Map<String, String>> annotations = new ArrayList<Map<String, String>>(edges.size());
+			for(final AbstractEdge edge : edges){
+				annotations.add(edge.getCopyOfAnnotations());
+			}
+			writeNewKeys(annotations);
+			out.writeByte(chunkEdges);
+			out.writeInt(edges.size());
+			for(int i = 0; i < edges.size(); i++){
+				final AbstractEdge edge = edges.get(i);
+				writeString(out, edge.bigHashCode());
+				writeString(out, edge.getChildVertex().bigHashCode());
+				writeString(out, edge.getParentVertex().bigHashCode());
+				writeAnnotations(annotations.get(i));
+			}
+		}
+
+		private void writeNewKeys(final List<Map<String, String>> annotationsList) throws IOException{
+			final List<String> newKeys = new ArrayList<String>();
+			for(final Map<String, String> annotations : annotationsList){
+				for(final String key : annotations.keySet()){
+					if(!keyIds.containsKey(key)){
+						keyIds.put(key, keyIds.size());
+						newKeys.add(key);
+					}
+				}
+			}
+			if(!newKeys.isEmpty()){
+				out.writeByte(chunkKeys);
+				out.writeInt(newKeys.size());
+				for(final String key : newKeys){
+					writeString(out, key);
+				}
+			}
+		}
+
+		private void writeAnnotations(final Map<String, String> annotations) throws IOException{
+			out.writeInt(annotations.size());
+			for(final Map.Entry<String, String> entry : annotations.entrySet()){
+				out.writeInt(keyIds.get(entry.getKey()));
+				writeString(out, entry.getValue());
+			}
+		}
+	}
+
+	public static final class Reader{
+		private final DataInput in;
+		private final List<String> keys = new ArrayList<String>();
+
+		public Reader(final DataInput in){
+			if(in == null){
+				throw new IllegalArgumentException("NULL input");
+			}
+			this.in = in;
+		}
+
+		/**
+		 * Reads all the chunks till the end of the graph.
+		 * Vertices and edges are reference vertices and edges. The endpoints of edges only have the hash.
+		 *
+		 * The stream is always read till the end, even if the visitor fails, so that the next query can be read.
+		 * The first failure of the visitor is thrown after that.
+		 */
+		public final void readGraph(final Visitor visitor) throws Exception{
+			Exception visitorException = null;
+			while(true){
+				final byte chunkType = in.readByte();
+				switch(chunkType){
+					case chunkKeys:{
+						final int count = in.readInt();
+						for(int i = 0; i < count; i++){
+							keys.add(readString(in));
+						}
+						break;
+					}
+					case chunkVertices:{
+						final int count = in.readInt();
+						for(int i = 0; i < count; i++){
+							final AbstractVertex vertex = new Vertex(readString(in));
+							readAnnotations(vertex);
+							if(visitorException == null){
+								try{
+									visitor.visitVertex(vertex);
+								}catch(Exception e){
+									visitorException = e;
+								}
+							}
+						}
+						break;
+					}
+					case chunkEdges:{
+						final int count = in.readInt();
+						for(int i = 0; i < count; i++){
+							final String hash = readString(in);
+							final AbstractVertex child = new Vertex(readString(in));
+							final AbstractVertex parent = new Vertex(readString(in));
+							final AbstractEdge edge = new Edge(hash, child, parent);
+							readAnnotations(edge);
+							if(visitorException == null){
+								try{
+									visitor.visitEdge(edge);
+								}catch(Exception e){
+									visitorException = e;
+								}
+							}
+						}
+						break;
+					}
+					case chunkEnd:{
+						if(visitorException != null){
+							throw visitorException;
+						}
+						return;
+					}
+					default: throw new IOException("Unexpected graph stream chunk type: " + chunkType);
+				}
+			}
+		}
+
+		private void readAnnotations(final Object element) throws IOException{
+			final int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				final int keyId = in.readInt();
+				if(keyId < 0 || keyId >= keys.size()){
+					throw new IOException("Undefined annotation key id in graph stream: " + keyId);
+				}
+				final String value = readString(in);
+				if(element instanceof AbstractVertex){
+					((AbstractVertex)element).addAnnotation(keys.get(keyId), value);
+				}else{
+					((AbstractEdge)element).addAnnotation(keys.get(keyId), value);
+				}
+			}
+		}
+	}
+
+	private static void writeString(final DataOutput out, final String string) throws IOException{
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final DataInput in) throws IOException{
+		final int length = in.readInt();
+		if(length < 0){
+			throw new IOException("Negative string length in graph stream: " + length);
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
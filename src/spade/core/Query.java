@@ -47,6 +47,9 @@ public class Query implements Serializable{
 
 	private List<Query> remoteSubqueries = new ArrayList<Query>();
 
+	// Set by clients which read graph results as a graph stream instead of a serialized graph
+	private boolean streamGraphResult = false;
+
 	// Only required for local transformation of queries
 	private final AbstractTransformer.ExecutionContext transformerExecutionContext = new AbstractTransformer.ExecutionContext();
 
@@ -85,6 +88,14 @@ public class Query implements Serializable{
 		this.result = graph;
 	}
 
+	public void setStreamGraphResult(final boolean streamGraphResult){
+		this.streamGraphResult = streamGraphResult;
+	}
+
+	public boolean isStreamGraphResult(){
+		return this.streamGraphResult;
+	}
+
 	public void addRemoteSubquery(Query subquery){
 		if(subquery != null){
 			remoteSubqueries.add(subquery);
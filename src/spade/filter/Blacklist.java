@@ -20,6 +20,8 @@
  
 package spade.filter;
 
+import java.util.HashMap;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -29,16 +31,29 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
+import spade.query.quickgrail.utility.PredicateCompiler;
 import spade.reporter.audit.OPMConstants;
 import spade.utility.FileUtility;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
 import spade.vertex.opm.Artifact;
 import spade.vertex.prov.Entity;
 
+/**
+ * Drops artifacts whose path matches the regexes in the config file, and the edges connected to them.
+ * 
+ * Arguments format (optional): predicate="<QuickGrail predicate>"
+ * 
+ * Vertices (of any type) which match the predicate are dropped too. For example: predicate="path like '/tmp/%'"
+ */
 public class Blacklist extends AbstractFilter{
 	
 	private static final Logger logger = Logger.getLogger(Blacklist.class.getName());
 	
+	private static final String keyPredicate = "predicate";
+	
 	private Pattern fileExclusionPattern;
+	private Predicate<AbstractVertex> vertexExclusionPredicate = null;
 	
 	public boolean initialize(String arguments){
 		
@@ -48,6 +63,16 @@ public class Blacklist extends AbstractFilter{
 			if(fileExclusionPattern == null){
 				throw new Exception("Regex read from file '"+filepath+"' cannot be null");
 			}
+			final Result<HashMap<String, String>> argumentsResult = HelperFunctions.parseKeysValuesInString(arguments == null ? "" : arguments);
+			if(argumentsResult.error){
+				throw new Exception("Invalid arguments: " + argumentsResult.toErrorString());
+			}
+			final String predicate = argumentsResult.result.get(keyPredicate);
+			if(predicate != null){
+				vertexExclusionPredicate = PredicateCompiler.compileVertexPredicate(
+						PredicateCompiler.parsePredicate(predicate));
+				logger.log(Level.INFO, "Arguments ["+keyPredicate+"="+predicate+"]");
+			}
 			return true;
 		}catch(Exception e){
 			logger.log(Level.WARNING, null, e);
@@ -56,6 +81,9 @@ public class Blacklist extends AbstractFilter{
 	}
 	
 	private boolean isVertexInExclusionPattern(AbstractVertex incomingVertex){
+		if(vertexExclusionPredicate != null && incomingVertex != null && vertexExclusionPredicate.test(incomingVertex)){
+			return true;
+		}
 		if(incomingVertex instanceof Artifact || incomingVertex instanceof Entity){
 			String path = incomingVertex.getAnnotation(OPMConstants.ARTIFACT_PATH);
 			if(path != null){
@@ -0,0 +1,251 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.filter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractFilter;
+import spade.core.AbstractVertex;
+import spade.reporter.audit.OPMConstants;
+import spade.utility.HelperFunctions;
+import spade.utility.LoadableField;
+import spade.utility.LoadableFieldHelper;
+
+/**
+ * Coalesces consecutive I/O edges (by 'operation') between the same two vertices into one edge per window.
+ *
+ * A run starts at the first I/O edge between two vertices and takes in the following edges with the same operation
+ * whose time is within 'windowMillis' of the first one. The run is put as its first edge with the total 'size', the
+ * number of edges in 'countKey', and the time of the last edge in 'endTimeKey'. A run of one edge is put unchanged.
+ *
+ * A run is put when:
+ * 1) Another edge between the same two vertices arrives which does not belong to it
+ * 2) The watermark (the greatest edge time seen) passes the end of its window
+ * 3) There are more than 'maxOpenRuns' runs (oldest first)
+ * 4) The filter is shut down
+ *
+ * Edges without a parseable 'time' (seconds) are passed on as is. Vertices are passed on as is.
+ */
+public class CoalesceIO extends AbstractFilter{
+
+	private static final Logger logger = Logger.getLogger(CoalesceIO.class.getName());
+
+	private static final String argNameOperations = "operations", argNameWindowMillis = "windowMillis",
+			argNameMaxOpenRuns = "maxOpenRuns", argNameCountKey = "countKey", argNameEndTimeKey = "endTimeKey";
+
+	@LoadableField(name=argNameOperations, optional=false, splitBy=",")
+	private String[] operationsArray = null;
+	@LoadableField(name=argNameWindowMillis, optional=false, min=1)
+	private long windowMillis = 0;
+	@LoadableField(name=argNameMaxOpenRuns, optional=false, min=1)
+	private int maxOpenRuns = 0;
+	@LoadableField(name=argNameCountKey, optional=false)
+	private String countKey = null;
+	@LoadableField(name=argNameEndTimeKey, optional=false)
+	private String endTimeKey = null;
+
+	private final Set<String> operations = new HashSet<String>();
+
+	private static final class Run{
+		private final AbstractEdge edge;
+		private final String operation;
+		private final long startMillis;
+		private long count = 1;
+		private long size = 0;
+		private boolean hasSize = false;
+		private String endTime;
+
+		private Run(final AbstractEdge edge, final String operation, final long startMillis){
+			this.edge = edge;
+			this.operation = operation;
+			this.startMillis = startMillis;
+			this.endTime = edge.getAnnotation(OPMConstants.EDGE_TIME);
+			addSize(edge);
+		}
+
+		private void add(final AbstractEdge edge){
+			count++;
+			endTime = edge.getAnnotation(OPMConstants.EDGE_TIME);
+			addSize(edge);
+		}
+
+		private void addSize(final AbstractEdge edge){
+			final String sizeString = edge.getAnnotation(OPMConstants.EDGE_SIZE);
+			if(sizeString != null){
+				try{
+					size += Long.parseLong(sizeString.trim());
+					hasSize = true;
+				}catch(NumberFormatException e){
+					// Not counted
+				}
+			}
+		}
+	}
+
+	// Open runs by child and parent hash. In the order the runs were started in
+	private final LinkedHashMap<String, Run> openRuns = new LinkedHashMap<String, Run>();
+	private long watermarkMillis = Long.MIN_VALUE;
+	private long edgesIn = 0, edgesOut = 0;
+
+	@Override
+	public boolean initialize(final String arguments){
+		try{
+			final Map<String, String> globalsMap = HelperFunctions.getGlobalsMapFromConfigAndArguments(getClass(),
+					arguments);
+			LoadableFieldHelper.loadAllLoadableFieldsFromMap(this, globalsMap);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to initialize arguments", e);
+			return false;
+		}
+		for(final String operation : operationsArray){
+			if(operation.trim().isEmpty()){
+				logger.log(Level.SEVERE, "Empty value for argument '" + argNameOperations + "' in array: "
+						+ Arrays.asList(operationsArray));
+				return false;
+			}
+			operations.add(operation.trim());
+		}
+		try{
+			logger.log(Level.INFO, "Arguments: " + LoadableFieldHelper.allLoadableFieldsToString(this));
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to log arguments", e);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean shutdown(){
+		putAllRuns();
+		logger.log(Level.INFO, "Edges [in=" + edgesIn + ", out=" + edgesOut + "]");
+		return true;
+	}
+
+	@Override
+	public void putVertex(final AbstractVertex incomingVertex){
+		putInNextFilter(incomingVertex);
+	}
+
+	@Override
+	public void putEdge(final AbstractEdge incomingEdge){
+		if(incomingEdge == null){
+			return;
+		}
+		edgesIn++;
+		final AbstractVertex child = incomingEdge.getChildVertex();
+		final AbstractVertex parent = incomingEdge.getParentVertex();
+		if(child == null || parent == null){
+			putEdgeInNextFilter(incomingEdge);
+			return;
+		}
+		final String key = child.bigHashCode() + parent.bigHashCode();
+		final String operation = incomingEdge.getAnnotation(OPMConstants.EDGE_OPERATION);
+		final Long timeMillis = parseTimeMillis(incomingEdge.getAnnotation(OPMConstants.EDGE_TIME));
+		final Run run = openRuns.get(key);
+
+		if(timeMillis != null && operation != null && operations.contains(operation)){
+			if(run != null && run.operation.equals(operation) && timeMillis >= run.startMillis
+					&& timeMillis - run.startMillis < windowMillis){
+				run.add(incomingEdge);
+			}else{
+				if(run != null){
+					openRuns.remove(key);
+					putRun(run);
+				}
+				openRuns.put(key, new Run(incomingEdge, operation, timeMillis));
+				if(openRuns.size() > maxOpenRuns){
+					final Iterator<Run> iterator = openRuns.values().iterator();
+					final Run oldestRun = iterator.next();
+					iterator.remove();
+					putRun(oldestRun);
+				}
+			}
+		}else{
+			// Runs are only of consecutive edges
+			if(run != null){
+				openRuns.remove(key);
+				putRun(run);
+			}
+			putEdgeInNextFilter(incomingEdge);
+		}
+
+		if(timeMillis != null && timeMillis > watermarkMillis){
+			watermarkMillis = timeMillis;
+			putRunsBeforeWatermark();
+		}
+	}
+
+	private void putRunsBeforeWatermark(){
+		final Iterator<Run> iterator = openRuns.values().iterator();
+		while(iterator.hasNext()){
+			final Run run = iterator.next();
+			if(run.startMillis + windowMillis > watermarkMillis){
+				break;
+			}
+			iterator.remove();
+			putRun(run);
+		}
+	}
+
+	private void putAllRuns(){
+		final Iterator<Run> iterator = openRuns.values().iterator();
+		while(iterator.hasNext()){
+			final Run run = iterator.next();
+			iterator.remove();
+			putRun(run);
+		}
+	}
+
+	private void putRun(final Run run){
+		if(run.count > 1){
+			run.edge.addAnnotation(countKey, String.valueOf(run.count));
+			if(run.hasSize){
+				run.edge.addAnnotation(OPMConstants.EDGE_SIZE, String.valueOf(run.size));
+			}
+			if(run.endTime != null){
+				run.edge.addAnnotation(endTimeKey, run.endTime);
+			}
+		}
+		putEdgeInNextFilter(run.edge);
+	}
+
+	private void putEdgeInNextFilter(final AbstractEdge edge){
+		edgesOut++;
+		putInNextFilter(edge);
+	}
+
+	private static Long parseTimeMillis(final String time){
+		if(time == null){
+			return null;
+		}
+		try{
+			return (long)(Double.parseDouble(time.trim()) * 1000);
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.filter;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractFilter;
+import spade.core.AbstractVertex;
+import spade.query.quickgrail.utility.PredicateCompiler;
+import spade.utility.HelperFunctions;
+import spade.utility.LoadableField;
+import spade.utility.LoadableFieldHelper;
+
+/**
+ * A standing QuickGrail query evaluated incrementally over the vertices and edges flowing through the filter chain.
+ *
+ * Arguments format: name=<query name> vertex="<QuickGrail predicate>" [direction=ancestors|descendants|both]
+ * [depth=<max lineage depth>] [output=<file>]
+ *
+ * Every vertex which matches the predicate is a match at depth 0. Edges are followed from the matched vertices (in
+ * the given direction) up to the given depth, and the edges and the vertices reached are matches too. Only edges
+ * which arrive after their endpoint has been reached are followed since the stream is never looked back at.
+ *
+ * Matches are pushed to the subscribers of the query (and written to the output file as JSON lines) by a separate
+ * thread so that the filter chain never waits for them. Matches are dropped if the subscribers fall behind by more
+ * than 'queueSize' matches. All vertices and edges are passed to the next filter unchanged.
+ */
+public class ContinuousQuery extends AbstractFilter{
+
+	private static final Logger logger = Logger.getLogger(ContinuousQuery.class.getName());
+
+	public static enum Direction{ ancestors, descendants, both }
+
+	public static final class Match{
+		public final String queryName;
+		public final int depth;
+		// Exactly one of vertex and edge is not null
+		public final AbstractVertex vertex;
+		public final AbstractEdge edge;
+
+		private Match(final String queryName, final int depth, final AbstractVertex vertex, final AbstractEdge edge){
+			this.queryName = queryName;
+			this.depth = depth;
+			this.vertex = vertex;
+			this.edge = edge;
+		}
+
+		public final JSONObject toJSON() throws Exception{
+			final JSONObject object = new JSONObject();
+			object.put("query", queryName);
+			object.put("depth", depth);
+			if(vertex != null){
+				final JSONObject vertexObject = new JSONObject();
+				vertexObject.put("hash", vertex.bigHashCode());
+				vertexObject.put("annotations", new JSONObject(vertex.getCopyOfAnnotations()));
+				object.put("vertex", vertexObject);
+			}else{
+				final JSONObject edgeObject = new JSONObject();
+				edgeObject.put("hash", edge.bigHashCode());
+				edgeObject.put("childHash", edge.getChildVertex().bigHashCode());
+				edgeObject.put("parentHash", edge.getParentVertex().bigHashCode());
+				edgeObject.put("annotations", new JSONObject(edge.getCopyOfAnnotations()));
+				object.put("edge", edgeObject);
+			}
+			return object;
+		}
+
+		@Override
+		public String toString(){
+			return "Match [queryName=" + queryName + ", depth=" + depth + ", vertex=" + vertex + ", edge=" + edge + "]";
+		}
+	}
+
+	public static interface Subscriber{
+		/**
+		 * Called on the dispatcher thread of the query. Must return quickly.
+		 */
+		public void onMatch(final Match match);
+	}
+
+	private static final Map<String, ContinuousQuery> queries = new ConcurrentHashMap<String, ContinuousQuery>();
+
+	/**
+	 * Returns false if there is no query with the name
+	 */
+	public static boolean subscribe(final String queryName, final Subscriber subscriber){
+		if(subscriber == null){
+			throw new IllegalArgumentException("NULL subscriber");
+		}
+		final ContinuousQuery query = queryName == null ? null : queries.get(queryName);
+		if(query == null){
+			return false;
+		}
+		query.subscribers.add(subscriber);
+		return true;
+	}
+
+	public static boolean unsubscribe(final String queryName, final Subscriber subscriber){
+		final ContinuousQuery query = queryName == null ? null : queries.get(queryName);
+		if(query == null){
+			return false;
+		}
+		return query.subscribers.remove(subscriber);
+	}
+
+	public static Set<String> getQueryNames(){
+		return new TreeSet<String>(queries.keySet());
+	}
+
+	private static final class LRUMap<K, V> extends LinkedHashMap<K, V>{
+		private static final long serialVersionUID = 6034816151752291480L;
+		private final int maxSize;
+
+		private LRUMap(final int maxSize){
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, V> eldest){
+			return size() > maxSize;
+		}
+	}
+
+	private static final String argNameName = "name", argNameVertex = "vertex", argNameDirection = "direction",
+			argNameDepth = "depth", argNameOutput = "output", argNameMaxReachedVertices = "maxReachedVertices",
+			argNameQueueSize = "queueSize";
+
+	@LoadableField(name=argNameName, optional=false)
+	private String queryName = null;
+	@LoadableField(name=argNameVertex, optional=false)
+	private String vertexPredicateText = null;
+	@LoadableField(name=argNameDirection, optional=true, literalSet={"ancestors", "descendants", "both"})
+	private String directionName = Direction.ancestors.name();
+	@LoadableField(name=argNameDepth, optional=true, min=0)
+	private int maxDepth = 0;
+	@LoadableField(name=argNameOutput, optional=true)
+	private String outputPath = null;
+	@LoadableField(name=argNameMaxReachedVertices, optional=true, min=1)
+	private int maxReachedVertices = 1000000;
+	@LoadableField(name=argNameQueueSize, optional=true, min=1)
+	private int queueSize = 100000;
+
+	private Direction direction;
+	private Predicate<AbstractVertex> vertexPredicate;
+	// Hash of the reached vertex to the least depth it was reached at
+	private LRUMap<String, Integer> reachedVertices;
+	private BlockingQueue<Match> matches;
+	// Guarded by outputLock since shutdown closes it while the dispatcher might still be writing
+	private BufferedWriter outputWriter = null;
+	private final Object outputLock = new Object();
+	private Thread dispatcherThread;
+	private volatile boolean running = false;
+
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final AtomicLong publishedCount = new AtomicLong(0), droppedCount = new AtomicLong(0);
+
+	@Override
+	public boolean initialize(final String arguments){
+		try{
+			final Map<String, String> globalsMap = HelperFunctions.getGlobalsMapFromConfigAndArguments(getClass(),
+					arguments);
+			LoadableFieldHelper.loadAllLoadableFieldsFromMap(this, globalsMap);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to initialize arguments", e);
+			return false;
+		}
+
+		direction = Direction.valueOf(directionName);
+		try{
+			vertexPredicate = PredicateCompiler.compileVertexPredicate(PredicateCompiler.parsePredicate(vertexPredicateText));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Invalid value for argument '" + argNameVertex + "': " + vertexPredicateText, e);
+			return false;
+		}
+
+		if(outputPath != null){
+			try{
+				outputWriter = new BufferedWriter(new FileWriter(outputPath, true));
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to open output file: " + outputPath, e);
+				return false;
+			}
+		}
+
+		if(queries.putIfAbsent(queryName, this) != null){
+			logger.log(Level.SEVERE, "A continuous query with the name '" + queryName + "' already exists");
+			closeOutput();
+			return false;
+		}
+
+		reachedVertices = new LRUMap<String, Integer>(maxReachedVertices);
+		matches = new ArrayBlockingQueue<Match>(queueSize);
+		running = true;
+		dispatcherThread = new Thread(this::dispatch, "ContinuousQuery-" + queryName);
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+
+		try{
+			logger.log(Level.INFO, "Arguments: " + LoadableFieldHelper.allLoadableFieldsToString(this));
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to log arguments", e);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean shutdown(){
+		queries.remove(queryName, this);
+		running = false;
+		if(dispatcherThread != null){
+			dispatcherThread.interrupt();
+			try{
+				dispatcherThread.join(5000);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeOutput();
+		logger.log(Level.INFO, "Continuous query '" + queryName + "' stopped. Matches [published=" + publishedCount.get()
+				+ ", dropped=" + droppedCount.get() + "]");
+		return true;
+	}
+
+	@Override
+	public void putVertex(final AbstractVertex incomingVertex){
+		if(incomingVertex != null && vertexPredicate.test(incomingVertex)){
+			final String hash = incomingVertex.bigHashCode();
+			final Integer existingDepth;
+			synchronized(reachedVertices){
+				existingDepth = reachedVertices.put(hash, 0);
+			}
+			if(existingDepth == null || existingDepth > 0){
+				publish(new Match(queryName, 0, incomingVertex, null));
+			}
+		}
+		putInNextFilter(incomingVertex);
+	}
+
+	@Override
+	public void putEdge(final AbstractEdge incomingEdge){
+		if(incomingEdge != null && maxDepth > 0){
+			// The edge is published once even if it is followed in both directions
+			boolean edgePublished = false;
+			if(direction != Direction.descendants){
+				edgePublished = follow(incomingEdge, incomingEdge.getChildVertex(), incomingEdge.getParentVertex(),
+						edgePublished);
+			}
+			if(direction != Direction.ancestors){
+				follow(incomingEdge, incomingEdge.getParentVertex(), incomingEdge.getChildVertex(), edgePublished);
+			}
+		}
+		putInNextFilter(incomingEdge);
+	}
+
+	/**
+	 * Returns true if the edge was followed (i.e. it was published unless 'edgePublished' was already true)
+	 */
+	private boolean follow(final AbstractEdge edge, final AbstractVertex from, final AbstractVertex to,
+			final boolean edgePublished){
+		final int depth;
+		final Integer existingDepth;
+		synchronized(reachedVertices){
+			final Integer fromDepth = reachedVertices.get(from.bigHashCode());
+			if(fromDepth == null || fromDepth >= maxDepth){
+				return false;
+			}
+			depth = fromDepth + 1;
+			final String toHash = to.bigHashCode();
+			existingDepth = reachedVertices.get(toHash);
+			if(existingDepth == null || existingDepth > depth){
+				reachedVertices.put(toHash, depth);
+			}
+		}
+		if(!edgePublished){
+			publish(new Match(queryName, depth, null, edge));
+		}
+		if(existingDepth == null){
+			publish(new Match(queryName, depth, to, null));
+		}
+		return true;
+	}
+
+	private void publish(final Match match){
+		if(!matches.offer(match)){
+			if(droppedCount.incrementAndGet() % 10000 == 1){
+				logger.log(Level.WARNING, "Continuous query '" + queryName + "' subscribers are falling behind. Dropped "
+						+ droppedCount.get() + " match(es)");
+			}
+		}
+	}
+
+	private void dispatch(){
+		final List<Match> batch = new ArrayList<Match>();
+		while(running || !matches.isEmpty()){
+			try{
+				if(matches.isEmpty()){
+					batch.add(matches.take());
+				}
+			}catch(InterruptedException e){
+				if(!running){
+					// Deliver whatever is left
+					continue;
+				}
+			}
+			matches.drainTo(batch);
+			for(final Match match : batch){
+				deliver(match);
+			}
+			publishedCount.addAndGet(batch.size());
+			batch.clear();
+			// Flushed once the queue is empty so that the file is never more than a batch behind
+			synchronized(outputLock){
+				if(outputWriter != null){
+					try{
+						outputWriter.flush();
+					}catch(Exception e){
+						logger.log(Level.WARNING, "Failed to flush output file: " + outputPath, e);
+					}
+				}
+			}
+		}
+	}
+
+	private void deliver(final Match match){
+		for(final Subscriber subscriber : subscribers){
+			try{
+				subscriber.onMatch(match);
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Subscriber of continuous query '" + queryName + "' failed", e);
+			}
+		}
+		synchronized(outputLock){
+			if(outputWriter != null){
+				try{
+					outputWriter.write(match.toJSON().toString());
+					outputWriter.newLine();
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to write match to output file: " + outputPath, e);
+				}
+			}
+		}
+	}
+
+	private void closeOutput(){
+		synchronized(outputLock){
+			if(outputWriter != null){
+				try{
+					outputWriter.close();
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to close output file: " + outputPath, e);
+				}
+				outputWriter = null;
+			}
+		}
+	}
+}
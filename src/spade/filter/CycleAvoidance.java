@@ -19,6 +19,7 @@
  */
 package spade.filter;
 
+import java.io.Serializable;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Level;
@@ -31,6 +32,7 @@ import spade.core.Edge;
 import spade.core.Settings;
 import spade.utility.ArgumentFunctions;
 import spade.utility.HelperFunctions;
+import spade.utility.map.external.FilterStateMap;
 
 // Source: https://www.usenix.org/legacy/event/fast09/tech/slides/muniswamy.pdf
 public class CycleAvoidance extends AbstractFilter{
@@ -39,13 +41,17 @@ public class CycleAvoidance extends AbstractFilter{
 
 	private static final String keyVersionAnnotationName = "versionAnnotationName",
 			keyInitialVersion = "initialVersion", keyKeepAllVertices = "keepAllVertices";
+	private static final String globalStateMapId = "CycleAvoidanceGlobalStateMap",
+			localStateMapId = "CycleAvoidanceLocalStateMap";
 
 	private String versionAnnotationName;
 	private long initialVersion;
 	private boolean keepAllVertices;
 
-	private final GlobalState globalState = new GlobalState();
-	private final LocalState localState = new LocalState();
+	// Vertex hash to the state of the vertex
+	private FilterStateMap<VertexState> globalState;
+	// Vertex hash to the versions of the parents of the vertex
+	private FilterStateMap<VertexParentState> localState;
 
 	@Override
 	public boolean initialize(final String arguments){
@@ -69,6 +75,14 @@ public class CycleAvoidance extends AbstractFilter{
 		this.versionAnnotationName = versionAnnotationName;
 		this.initialVersion = initialVersion;
 		this.keepAllVertices = keepAllVertices;
+		try{
+			this.globalState = FilterStateMap.create(this.getClass(), globalStateMapId, false);
+			this.localState = FilterStateMap.create(this.getClass(), localStateMapId, false);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to create state maps", e);
+			shutdown();
+			return false;
+		}
 		logger.log(Level.INFO,
 				"Arguments {" + keyVersionAnnotationName + "=" + this.versionAnnotationName + ", " + keyInitialVersion
 						+ "=" + this.initialVersion + ", " + keyKeepAllVertices + "=" + this.keepAllVertices
@@ -81,15 +95,28 @@ public class CycleAvoidance extends AbstractFilter{
 		if(vertex == null){
 			return;
 		}
-		final VertexState vertexState;
-		if(!globalState.contains(vertex)){
-			vertexState = globalState.add(vertex);
-		}else{
-			vertexState = globalState.getState(vertex);
+		final String hash = vertex.bigHashCode();
+		VertexState vertexState = globalState.get(hash);
+		if(vertexState == null){
+			vertexState = new VertexState(vertex.getCopyOfAnnotations(), initialVersion);
+			globalState.put(hash, vertexState);
 		}
 		if(keepAllVertices){
-			vertexState.putInNextFilterIfHasNotBeenPut();
+			putInNextFilterIfHasNotBeenPut(hash, vertexState);
+		}
+	}
+
+	@Override
+	public boolean shutdown(){
+		if(globalState != null){
+			globalState.close();
+			globalState = null;
+		}
+		if(localState != null){
+			localState.close();
+			localState = null;
 		}
+		return true;
 	}
 
 	@Override
@@ -109,25 +136,27 @@ public class CycleAvoidance extends AbstractFilter{
 		putVertex(childVertex);
 		putVertex(parentVertex);
 
-		final VertexParentState childParentState;
-		if(!localState.contains(childVertex)){
-			childParentState = localState.add(childVertex);
-		}else{
-			childParentState = localState.getState(childVertex);
+		final String childHash = childVertex.bigHashCode();
+		final String parentHash = parentVertex.bigHashCode();
+
+		VertexParentState childParentState = localState.get(childHash);
+		if(childParentState == null){
+			childParentState = new VertexParentState();
 		}
 
-		final VertexState childGlobalState = globalState.getState(childVertex);
-		final VertexState parentGlobalState =  globalState.getState(parentVertex);
-		final Long parentGlobalVersion = parentGlobalState.getCAVersion();
+		final VertexState childGlobalState = globalState.get(childHash);
+		final VertexState parentGlobalState = globalState.get(parentHash);
+		final long parentGlobalVersion = parentGlobalState.caVersion;
 
 		final boolean put;
 
-		if(!childParentState.hasParent(parentVertex)){
-			childParentState.addParent(parentVertex, parentGlobalVersion);
+		final Long parentLocalVersion = childParentState.parentVersions.get(parentHash);
+		if(parentLocalVersion == null){
+			childParentState.parentVersions.put(parentHash, parentGlobalVersion);
+			localState.put(childHash, childParentState);
 			childGlobalState.incrementCAVersion();
 			put = true;
 		}else{
-			final Long parentLocalVersion = childParentState.getParentVersion(parentVertex);
 			if(parentLocalVersion == parentGlobalVersion){
 				// discard because duplicate
 				put = false;
@@ -139,47 +168,44 @@ public class CycleAvoidance extends AbstractFilter{
 				put = true;
 			}
 		}
+		globalState.put(childHash, childGlobalState);
 
 		if(put){
-			final AbstractVertex caChildVertex = childGlobalState.putInNextFilterIfHasNotBeenPut();
-			final AbstractVertex caParentVertex = parentGlobalState.putInNextFilterIfHasNotBeenPut();
+			final AbstractVertex caChildVertex = putInNextFilterIfHasNotBeenPut(childHash, childGlobalState);
+			final AbstractVertex caParentVertex = putInNextFilterIfHasNotBeenPut(parentHash, parentGlobalState);
 			final AbstractEdge caEdge = new Edge(caChildVertex, caParentVertex);
 			caEdge.addAnnotations(edge.getCopyOfAnnotations());
 			putInNextFilter(caEdge);
 		}
 	}
 
-	private class GlobalState{
-		private final TreeMap<String, VertexState> vertices = new TreeMap<>();
-
-		private VertexState add(final AbstractVertex vertex){
-			final String hash = vertex.bigHashCode();
-			final Map<String, String> annotations = vertex.getCopyOfAnnotations();
-			final VertexState vertexState = new VertexState(annotations);
-			vertices.put(hash, vertexState);
-			return vertexState;
-		}
-
-		private VertexState getState(final AbstractVertex vertex){
-			return vertices.get(vertex.bigHashCode());
-		}
+	private AbstractVertex createVertexWithCurrentState(final VertexState vertexState){
+		final AbstractVertex vertex = new spade.core.Vertex();
+		vertex.addAnnotations(vertexState.annotations);
+		vertex.addAnnotation(versionAnnotationName, String.valueOf(vertexState.caVersion));
+		return vertex;
+	}
 
-		private boolean contains(final AbstractVertex vertex){
-			return getState(vertex) != null;
+	// Saves the state too since it might have been updated
+	private AbstractVertex putInNextFilterIfHasNotBeenPut(final String hash, final VertexState vertexState){
+		final AbstractVertex vertex = createVertexWithCurrentState(vertexState);
+		if(!vertexState.hasBeenPut){
+			putInNextFilter(vertex);
+			vertexState.hasBeenPut = true;
+			globalState.put(hash, vertexState);
 		}
+		return vertex;
 	}
 
-	private class VertexState{
+	private static class VertexState implements Serializable{
+		private static final long serialVersionUID = 1297441632087618923L;
 		private final TreeMap<String, String> annotations = new TreeMap<>();
-		private long caVersion = initialVersion;
+		private long caVersion;
 		private boolean hasBeenPut = false;
 
-		private VertexState(final Map<String, String> annotations){
+		private VertexState(final Map<String, String> annotations, final long initialVersion){
 			this.annotations.putAll(annotations);
-		}
-
-		private long getCAVersion(){
-			return caVersion;
+			this.caVersion = initialVersion;
 		}
 
 		private void incrementCAVersion(){
@@ -190,58 +216,11 @@ public class CycleAvoidance extends AbstractFilter{
 				hasBeenPut = false;
 			}
 		}
-
-		private AbstractVertex createVertexWithCurrentState(){
-			final AbstractVertex vertex = new spade.core.Vertex();
-			vertex.addAnnotations(this.annotations);
-			vertex.addAnnotation(versionAnnotationName, String.valueOf(caVersion));
-			return vertex;
-		}
-
-		private AbstractVertex putInNextFilterIfHasNotBeenPut(){
-			final AbstractVertex vertex = this.createVertexWithCurrentState();
-			if(!this.hasBeenPut){
-				putInNextFilter(vertex);
-				this.hasBeenPut = true;
-			}
-			return vertex;
-		}
 	}
 
-	private class VertexParentState{
+	private static class VertexParentState implements Serializable{
+		private static final long serialVersionUID = -2958310570342398514L;
 		private final TreeMap<String, Long> parentVersions = new TreeMap<>();
-
-		private boolean hasParent(final AbstractVertex parent){
-			return getParentVersion(parent) != null;
-		}
-
-		private Long getParentVersion(final AbstractVertex parent){
-			return parentVersions.get(parent.bigHashCode());
-		}
-
-		private void addParent(final AbstractVertex parent, final Long version){
-			final String parentHash = parent.bigHashCode();
-			parentVersions.put(parentHash, version);
-		}
-	}
-
-	private class LocalState{
-		private final TreeMap<String, VertexParentState> vertices = new TreeMap<>();
-
-		private VertexParentState getState(final AbstractVertex vertex){
-			return vertices.get(vertex.bigHashCode());
-		}
-
-		private boolean contains(final AbstractVertex vertex){
-			return getState(vertex) != null;
-		}
-
-		private VertexParentState add(final AbstractVertex vertex){
-			final String hash = vertex.bigHashCode();
-			final VertexParentState vertexParentState = new VertexParentState();
-			vertices.put(hash, vertexParentState);
-			return vertexParentState;
-		}
 	}
 
 }
@@ -20,27 +20,32 @@
  */
 package spade.filter;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.query.quickgrail.utility.PredicateCompiler;
+import spade.query.quickgrail.utility.QuickGrailPredicateTree.PredicateNode;
 import spade.utility.HelperFunctions;
+import spade.utility.Result;
 
 /**
  * A filter to drop annotations passed in arguments.
  * 
- * Arguments format: keys=name,version,epoch
+ * Arguments format: keys=name,version,epoch [predicate="<QuickGrail predicate>"]
  * 
- * Note 1: Filter relies on two things for successful use of Java Reflection API:
- * 1) The vertex objects passed have an empty constructor
- * 2) The edge objects passed have a constructor with source vertex and a destination vertex (in that order)
+ * If the predicate is given then the keys are only dropped from the vertices and edges which match it. For example:
+ * keys=environment predicate="type == 'Process'"
  * 
- * Note 2: Creating copy of passed vertices and edges instead of just removing the annotations from the existing ones
+ * Note: Creating copy of passed vertices and edges instead of just removing the annotations from the existing ones
  * because the passed vertices and edges might be in use by some other classes specifically the reporter that
  * generated them. In future, maybe shift the responsibility of creating a copy to Kernel before it sends out
  * the vertices and edges to filters.
@@ -50,6 +55,9 @@ public class DropKeys extends AbstractFilter{
 	private Logger logger = Logger.getLogger(this.getClass().getName());
 	
 	private Set<String> keysToDrop = new HashSet<String>(); 
+
+	private Predicate<AbstractVertex> vertexPredicate = null;
+	private Predicate<AbstractEdge> edgePredicate = null;
 	
 	public boolean initialize(String arguments){
 		
@@ -59,7 +67,12 @@ public class DropKeys extends AbstractFilter{
 			return false;
 		}else{
 				
-			Map<String, String> argsMap = HelperFunctions.parseKeyValPairs(arguments);
+			final Result<HashMap<String, String>> argsResult = HelperFunctions.parseKeysValuesInString(arguments);
+			if(argsResult.error){
+				logger.log(Level.WARNING, "Invalid arguments: " + argsResult.toErrorString());
+				return false;
+			}
+			Map<String, String> argsMap = argsResult.result;
 			
 			//Must have 'keys' argument
 			if(argsMap.get("keys") == null){
@@ -91,6 +104,18 @@ public class DropKeys extends AbstractFilter{
 					}
 				}
 			}
+
+			final String predicate = argsMap.get("predicate");
+			if(predicate != null){
+				try{
+					final PredicateNode predicateRoot = PredicateCompiler.parsePredicate(predicate);
+					vertexPredicate = PredicateCompiler.compileVertexPredicate(predicateRoot);
+					edgePredicate = PredicateCompiler.compileEdgePredicate(predicateRoot);
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Invalid 'predicate' argument", e);
+					return false;
+				}
+			}
 		}
 		
 		return true;
@@ -126,13 +151,16 @@ public class DropKeys extends AbstractFilter{
 	}
 	
 	/**
-	 * Creates copy of vertex using Reflection API and removes the given keys afterwards
+	 * Creates copy of vertex and removes the given keys afterwards
 	 * 
 	 * @param vertex vertex to create a copy of
 	 * @param dropAnnotations annotations to remove
-	 * @return copy of the vertex without the given annotations
+	 * @return copy of the vertex without the given annotations, or the vertex itself if it does not match the predicate
 	 */
 	private AbstractVertex createCopyWithoutKeys(AbstractVertex vertex, Set<String> dropAnnotations){
+		if(vertexPredicate != null && !vertexPredicate.test(vertex)){
+			return vertex;
+		}
 		try{
 			AbstractVertex vertexCopy = vertex.copyAsVertex();
 			for(String dropAnnotation : dropAnnotations){
@@ -146,12 +174,11 @@ public class DropKeys extends AbstractFilter{
 	}
 	
 	/**
-	 * Creates a deep copy of the edge (i.e. of source and destination vertices too) using Reflection API 
-	 * and removes the given keys afterwards
+	 * Creates a deep copy of the edge (i.e. of source and destination vertices too) and removes the given keys afterwards
 	 * 
 	 * @param edge edge to create a copy of
 	 * @param dropAnnotations annotations to remove
-	 * @return copy of the edge without the given annotations
+	 * @return copy of the edge without the given annotations, or the edge itself if nothing in it matches the predicate
 	 */
 	private AbstractEdge createCopyWithoutKeys(AbstractEdge edge, Set<String> dropAnnotations){
 		try{
@@ -163,11 +190,17 @@ public class DropKeys extends AbstractFilter{
 			if(destination == null){
 				throw new Exception("Failed to create copy of destination vertex");
 			}
-			AbstractEdge edgeCopy = edge.getClass().getConstructor(edge.getChildVertex().getClass(),
-					edge.getParentVertex().getClass()).newInstance(source, destination);
+			final boolean edgeMatches = edgePredicate == null || edgePredicate.test(edge);
+			if(!edgeMatches && source == edge.getChildVertex() && destination == edge.getParentVertex()){
+				return edge;
+			}
+			// Generic edge because the vertex copies are generic vertices (the 'type' annotation is kept)
+			AbstractEdge edgeCopy = new Edge(source, destination);
 			edgeCopy.addAnnotations(edge.getCopyOfAnnotations());
-			for(String dropAnnotation : dropAnnotations){
-				edgeCopy.removeAnnotation(dropAnnotation);
+			if(edgeMatches){
+				for(String dropAnnotation : dropAnnotations){
+					edgeCopy.removeAnnotation(dropAnnotation);
+				}
 			}
 			return edgeCopy;
 		}catch(Exception e){
@@ -19,7 +19,7 @@
  */
 package spade.filter;
 
-import java.util.HashMap;
+import java.io.Serializable;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
@@ -35,16 +35,18 @@ import spade.core.Vertex;
 import spade.utility.ArgumentFunctions;
 import spade.utility.HelperFunctions;
 import spade.utility.SkeletonGraph;
+import spade.utility.map.external.FilterStateMap;
 
 public class GraphFinesse extends AbstractFilter {
 
 	private static final Logger logger = Logger.getLogger(GraphFinesse.class.getName());
 
 	private static final String configKeyVersion = "annotation";
+	private static final String verticesStateMapId = "GraphFinesseStateMap";
 
 	private String versionAnnotationName;
 
-	private final Map<String, VertexState> verticesState = new HashMap<>();
+	private FilterStateMap<VertexState> verticesState;
 
 	private final SkeletonGraph skeletonGraph = new SkeletonGraph();
 
@@ -55,6 +57,7 @@ public class GraphFinesse extends AbstractFilter {
 					new String[]{Settings.getDefaultConfigFilePath(this.getClass())});
 			this.versionAnnotationName = ArgumentFunctions.mustParseNonEmptyString(configKeyVersion, map);
 			logger.log(Level.INFO, "Arguments [{0}={1}]", new Object[]{configKeyVersion, versionAnnotationName});
+			this.verticesState = FilterStateMap.create(this.getClass(), verticesStateMapId, false);
 			return true;
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to initialize filter", e);
@@ -73,6 +76,15 @@ public class GraphFinesse extends AbstractFilter {
 		}
 	}
 
+	@Override
+	public boolean shutdown(){
+		if(verticesState != null){
+			verticesState.close();
+			verticesState = null;
+		}
+		return true;
+	}
+
 	@Override
 	public void putEdge(final AbstractEdge edge){
 		if(edge == null){
@@ -93,22 +105,22 @@ public class GraphFinesse extends AbstractFilter {
 		if(!skeletonGraph.willCreateCycle(childHash, parentHash)){
 			final VertexState childState = verticesState.get(childHash);
 			final VertexState parentState = verticesState.get(parentHash);
-			putEdgeInNextFilter(edge, childState.putInNextFilter(), parentState.putInNextFilter());
+			putEdgeInNextFilter(edge, putInNextFilter(childHash, childState), putInNextFilter(parentHash, parentState));
 		}else{
 			if(Objects.equals(childHash, parentHash)){
 				// Self-loop special case since the hash i.e. childHash == parentHash and states
 				// are equal
 				final VertexState oneState = verticesState.get(childHash);
-				final AbstractVertex childCurrentVertex = oneState.putInNextFilter();
+				final AbstractVertex childCurrentVertex = putInNextFilter(childHash, oneState);
 				oneState.incrementVersion();
 				// Create after incrementing the version
-				final AbstractVertex parentCurrentVertex = oneState.putInNextFilter();
+				final AbstractVertex parentCurrentVertex = putInNextFilter(childHash, oneState);
 				putEdgeInNextFilter(edge, childCurrentVertex, parentCurrentVertex);
 			}else{
 				final VertexState childState = verticesState.get(childHash);
 				final VertexState parentState = verticesState.get(parentHash);
 				childState.incrementVersion();
-				putEdgeInNextFilter(edge, childState.putInNextFilter(), parentState.putInNextFilter());
+				putEdgeInNextFilter(edge, putInNextFilter(childHash, childState), putInNextFilter(parentHash, parentState));
 			}
 		}
 		skeletonGraph.putEdge(childHash, parentHash);
@@ -121,39 +133,39 @@ public class GraphFinesse extends AbstractFilter {
 		putInNextFilter(currentEdge);
 	}
 
-	private class VertexState{
+	private AbstractVertex createVertex(final VertexState vertexState){
+		final AbstractVertex vertex = new Vertex();
+		vertex.addAnnotations(vertexState.annotations);
+		vertex.addAnnotation(versionAnnotationName, String.valueOf(vertexState.version));
+		return vertex;
+	}
+
+	// Saves the state too since it might have been updated
+	private AbstractVertex putInNextFilter(final String vertexHash, final VertexState vertexState){
+		final AbstractVertex vertex = createVertex(vertexState);
+		if(!vertexState.hasBeenPut){
+			vertexState.hasBeenPut = true;
+			putInNextFilter(vertex);
+		}
+		verticesState.put(vertexHash, vertexState);
+		return vertex;
+	}
+
+	private static class VertexState implements Serializable{
+		private static final long serialVersionUID = -5265117096432165468L;
 		private final TreeMap<String, String> annotations = new TreeMap<>();
 		private boolean hasBeenPut;
 		private long version;
-		private AbstractVertex vertex;
 
 		private VertexState(final AbstractVertex vertex){
 			this.annotations.putAll(vertex.getCopyOfAnnotations());
 			this.hasBeenPut = false;
 			this.version = 0;
-			this.vertex = createVertex();
-		}
-
-		private AbstractVertex createVertex(){
-			final AbstractVertex vertex = new Vertex();
-			vertex.addAnnotations(this.annotations);
-			vertex.addAnnotation(GraphFinesse.this.versionAnnotationName, String.valueOf(version));
-			return vertex;
 		}
 
 		private void incrementVersion(){
 			this.hasBeenPut = false;
 			this.version++;
-			this.vertex = createVertex();
-		}
-
-		private AbstractVertex putInNextFilter(){
-			if(hasBeenPut){
-				return this.vertex;
-			}
-			this.hasBeenPut = true;
-			GraphFinesse.this.putInNextFilter(this.vertex);
-			return this.vertex;
 		}
 	}
 }
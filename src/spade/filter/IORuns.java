@@ -19,23 +19,25 @@
  */
 package spade.filter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.core.HashHelper;
 import spade.edge.opm.Used;
 import spade.edge.opm.WasGeneratedBy;
 import spade.utility.HelperFunctions;
 import spade.utility.LoadableField;
 import spade.utility.LoadableFieldHelper;
+import spade.utility.map.external.FilterStateMap;
 import spade.vertex.opm.Artifact;
 
 /**
@@ -53,25 +55,42 @@ import spade.vertex.opm.Artifact;
  * 
  * The filter is applied to only those artifacts which contain all the above-mentioned annotations specified in arguments
  * as 'key'.
+ * 
+ * The reads and writes seen so far are kept in the external maps 'IORunsReadsMap' and 'IORunsWritesMap' defined in
+ * the config file.
+ * 
+ * Artifacts are held back till their first read/write edge arrives so that the artifacts of merged reads/writes are
+ * not passed on. Artifacts which have been held back for 'pendingWindowMillis' (if greater than 0) are passed on
+ * anyway.
  */
 public class IORuns extends AbstractFilter {
 
 	private static final Logger logger = Logger.getLogger(IORuns.class.getName());
 	
-	private static final String argNameArtifactKey = "key";
+	private static final String argNameArtifactKey = "key", argNamePendingWindowMillis = "pendingWindowMillis";
+	private static final String readsMapId = "IORunsReadsMap", writesMapId = "IORunsWritesMap";
 	
 	@LoadableField(name=argNameArtifactKey, optional=false, splitBy=",")
 	private final String[] artifactsKeysArray = null;
 	
-    private final Map<String, HashSet<String>> writes;
-    private final Map<String, HashSet<String>> reads;
-    private final Queue<AbstractVertex> vertexBuffer;
+	@LoadableField(name=argNamePendingWindowMillis, optional=true, min=0)
+	private long pendingWindowMillis = 0;
+	
+    private static final class PendingVertex {
+        private final AbstractVertex vertex;
+        private final long pendingSinceMillis;
 
-    public IORuns() {
-        writes = new HashMap<>();
-        reads = new HashMap<>();
-        vertexBuffer = new LinkedList<>();
+        private PendingVertex(AbstractVertex vertex, long pendingSinceMillis) {
+            this.vertex = vertex;
+            this.pendingSinceMillis = pendingSinceMillis;
+        }
     }
+
+    // Artifact key hash to the process hashes
+    private FilterStateMap<HashSet<String>> writes;
+    private FilterStateMap<HashSet<String>> reads;
+    // Artifacts held back by vertex hash. In the order they arrived in
+    private final LinkedHashMap<String, PendingVertex> pendingVertices = new LinkedHashMap<>();
     
     private boolean printGlobals(){
 		try{
@@ -93,6 +112,9 @@ public class IORuns extends AbstractFilter {
 			return false;
 		}
 		
+		// Arguments of the state maps are read by the state maps
+		globalsMap.keySet().removeIf(key -> key.startsWith(readsMapId + ".") || key.startsWith(writesMapId + "."));
+		
 		try{
 			LoadableFieldHelper.loadAllLoadableFieldsFromMap(this, globalsMap);
 		}catch(Exception e){
@@ -119,9 +141,27 @@ public class IORuns extends AbstractFilter {
     public boolean initialize(String arguments){
     	if(!initGlobals(arguments)){
 			return false;
-		}else{
-			return true;
 		}
+    	try{
+    		reads = FilterStateMap.create(this.getClass(), readsMapId);
+    		writes = FilterStateMap.create(this.getClass(), writesMapId);
+    		return true;
+    	}catch(Exception e){
+    		logger.log(Level.SEVERE, "Failed to create state maps", e);
+    		closeStateMaps();
+    		return false;
+    	}
+    }
+    
+    private void closeStateMaps(){
+    	if(reads != null){
+    		reads.close();
+    		reads = null;
+    	}
+    	if(writes != null){
+    		writes.close();
+    		writes = null;
+    	}
     }
     
     private boolean artifactContainsAllArtifactKeys(AbstractVertex artifact){
@@ -133,18 +173,42 @@ public class IORuns extends AbstractFilter {
     	return true;
     }
     
-    private String getArtifactKeysValues(AbstractVertex vertex){
-    	String value = "";
+    /**
+     * Hash of the values of the artifact keys. Values are length prefixed so that different values can't collide.
+     */
+    private String getArtifactKeysHash(AbstractVertex vertex){
+    	final StringBuilder value = new StringBuilder();
     	for(String key : artifactsKeysArray){
-    		value += vertex.getAnnotation(key) + ",";
+    		final String annotation = vertex.getAnnotation(key);
+    		value.append(annotation.getBytes(StandardCharsets.UTF_8).length).append(':').append(annotation);
+    	}
+    	return HashHelper.defaultInstance.hashToHexString(value.toString());
+    }
+    
+    private void passExpiredPendingVertices(){
+    	if(pendingWindowMillis <= 0 || pendingVertices.isEmpty()){
+    		return;
+    	}
+    	final long nowMillis = System.currentTimeMillis();
+    	final Iterator<PendingVertex> iterator = pendingVertices.values().iterator();
+    	while(iterator.hasNext()){
+    		final PendingVertex pendingVertex = iterator.next();
+    		if(nowMillis - pendingVertex.pendingSinceMillis < pendingWindowMillis){
+    			break;
+    		}
+    		iterator.remove();
+    		putInNextFilter(pendingVertex.vertex);
     	}
-    	return value;
     }
     
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
+        passExpiredPendingVertices();
         if ((incomingVertex instanceof Artifact) && artifactContainsAllArtifactKeys(incomingVertex)) {
-            vertexBuffer.add(incomingVertex);
+            final String vertexHash = incomingVertex.bigHashCode();
+            if (!pendingVertices.containsKey(vertexHash)) {
+                pendingVertices.put(vertexHash, new PendingVertex(incomingVertex, System.currentTimeMillis()));
+            }
         } else {
             putInNextFilter(incomingVertex);
         }
@@ -152,53 +216,54 @@ public class IORuns extends AbstractFilter {
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
+        passExpiredPendingVertices();
         if ((incomingEdge instanceof Used) && artifactContainsAllArtifactKeys(incomingEdge.getParentVertex())) {
             Used usedEdge = (Used) incomingEdge;
-            String fileVertexHash = getArtifactKeysValues(usedEdge.getParentVertex());
-            String processVertexHash = Integer.toString(usedEdge.getChildVertex().hashCode());
-            if (!reads.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = new HashSet<>();
+            String fileVertexHash = getArtifactKeysHash(usedEdge.getParentVertex());
+            String processVertexHash = usedEdge.getChildVertex().bigHashCode();
+            pendingVertices.remove(usedEdge.getParentVertex().bigHashCode());
+            HashSet<String> tempSet = reads.get(fileVertexHash);
+            if (tempSet == null) {
+                tempSet = new HashSet<>();
                 tempSet.add(processVertexHash);
                 reads.put(fileVertexHash, tempSet);
             } else {
-                HashSet<String> tempSet = reads.get(fileVertexHash);
                 if (tempSet.contains(processVertexHash)) {
-                    vertexBuffer.remove(usedEdge.getParentVertex());
                     return;
                 } else {
                     tempSet.add(processVertexHash);
+                    reads.put(fileVertexHash, tempSet);
                 }
             }
-            vertexBuffer.remove(usedEdge.getParentVertex());
             putInNextFilter(usedEdge.getParentVertex());
             putInNextFilter(usedEdge);
-            if (writes.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = writes.get(fileVertexHash);
-                tempSet.remove(processVertexHash);
+            HashSet<String> otherSet = writes.get(fileVertexHash);
+            if (otherSet != null && otherSet.remove(processVertexHash)) {
+                writes.put(fileVertexHash, otherSet);
             }
         } else if ((incomingEdge instanceof WasGeneratedBy) && artifactContainsAllArtifactKeys(incomingEdge.getChildVertex())){
             WasGeneratedBy wgb = (WasGeneratedBy) incomingEdge;
-            String fileVertexHash = getArtifactKeysValues(wgb.getChildVertex());
-            String processVertexHash = Integer.toString(wgb.getParentVertex().hashCode());
-            if (!writes.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = new HashSet<>();
+            String fileVertexHash = getArtifactKeysHash(wgb.getChildVertex());
+            String processVertexHash = wgb.getParentVertex().bigHashCode();
+            pendingVertices.remove(wgb.getChildVertex().bigHashCode());
+            HashSet<String> tempSet = writes.get(fileVertexHash);
+            if (tempSet == null) {
+                tempSet = new HashSet<>();
                 tempSet.add(processVertexHash);
                 writes.put(fileVertexHash, tempSet);
             } else {
-                HashSet<String> tempSet = writes.get(fileVertexHash);
                 if (tempSet.contains(processVertexHash)) {
-                    vertexBuffer.remove(wgb.getChildVertex());
                     return;
                 } else {
                     tempSet.add(processVertexHash);
+                    writes.put(fileVertexHash, tempSet);
                 }
             }
-            vertexBuffer.remove(wgb.getChildVertex());
             putInNextFilter(wgb.getChildVertex());
             putInNextFilter(wgb);
-            if (reads.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = reads.get(fileVertexHash);
-                tempSet.remove(processVertexHash);
+            HashSet<String> otherSet = reads.get(fileVertexHash);
+            if (otherSet != null && otherSet.remove(processVertexHash)) {
+                reads.put(fileVertexHash, otherSet);
             }
         } else {
             putInNextFilter(incomingEdge);
@@ -207,6 +272,11 @@ public class IORuns extends AbstractFilter {
 
     @Override
     public boolean shutdown() {
+        if (!pendingVertices.isEmpty()) {
+            logger.log(Level.INFO, "Artifacts without any read/write edge not passed on: " + pendingVertices.size());
+            pendingVertices.clear();
+        }
+        closeStateMaps();
         return true;
     }
 }
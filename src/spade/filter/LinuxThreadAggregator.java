@@ -19,42 +19,80 @@
  */
 package spade.filter;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.edge.opm.Used;
 import spade.edge.opm.WasGeneratedBy;
+import spade.utility.map.external.FilterStateMap;
 import spade.vertex.opm.Artifact;
 import spade.vertex.opm.Process;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
 public class LinuxThreadAggregator extends AbstractFilter {
 
-    Set<AbstractVertex> processes = new HashSet<>();
-    Map<String, AbstractVertex> aggregates = new HashMap<>();
+    private static final Logger logger = Logger.getLogger(LinuxThreadAggregator.class.getName());
+
+    private static final String processesMapId = "LinuxThreadAggregatorProcessesMap",
+            groupsMapId = "LinuxThreadAggregatorGroupsMap";
+
+    // Hashes of the processes seen
+    private FilterStateMap<Boolean> processes;
+    // Thread group ids whose aggregate has been put
+    private FilterStateMap<Boolean> aggregates;
+
+    @Override
+    public boolean initialize(String arguments) {
+        try {
+            processes = FilterStateMap.create(this.getClass(), processesMapId);
+            aggregates = FilterStateMap.create(this.getClass(), groupsMapId);
+            return true;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to create state maps", e);
+            shutdown();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean shutdown() {
+        if (processes != null) {
+            processes.close();
+            processes = null;
+        }
+        if (aggregates != null) {
+            aggregates.close();
+            aggregates = null;
+        }
+        return true;
+    }
+
+    private Artifact createAggregate(String tgid) {
+        Artifact aggregate = new Artifact();
+        aggregate.addAnnotation("location", "threadgroup:[" + tgid + "]");
+        return aggregate;
+    }
 
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
         putInNextFilter(incomingVertex);
         if (incomingVertex.type().equalsIgnoreCase("Process")) {
-            String tgid = incomingVertex.getAnnotation("tgid");
-            if (!processes.contains(incomingVertex)) {
-                if (!aggregates.containsKey(tgid)) {
-                    Artifact aggregate = new Artifact();
-                    aggregate.addAnnotation("location", "threadgroup:[" + tgid + "]");
+            String tgid = String.valueOf(incomingVertex.getAnnotation("tgid"));
+            String processHash = incomingVertex.bigHashCode();
+            if (!processes.contains(processHash)) {
+                // Same annotations as the one put before (if any) so the same vertex
+                Artifact aggregate = createAggregate(tgid);
+                if (!aggregates.contains(tgid)) {
                     putInNextFilter(aggregate);
-                    aggregates.put(tgid, aggregate);
+                    aggregates.put(tgid, Boolean.TRUE);
                 }
-                Artifact aggregate = (Artifact) aggregates.get(tgid);
                 AbstractEdge r = new Used((Process) incomingVertex, aggregate);
                 AbstractEdge e = new WasGeneratedBy(aggregate, (Process) incomingVertex);
                 putInNextFilter(r);
                 putInNextFilter(e);
-                processes.add(incomingVertex);
+                processes.put(processHash, Boolean.TRUE);
             }
         }
     }
@@ -19,7 +19,7 @@
  */
 package spade.filter;
 
-import java.util.HashMap;
+import java.io.Serializable;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,6 +31,7 @@ import spade.core.Edge;
 import spade.core.Settings;
 import spade.utility.ArgumentFunctions;
 import spade.utility.HelperFunctions;
+import spade.utility.map.external.FilterStateMap;
 
 public class VersionOnWrite extends AbstractFilter{
 
@@ -38,12 +39,13 @@ public class VersionOnWrite extends AbstractFilter{
 
 	private static final String keyVersionAnnotationName = "versionAnnotationName",
 			keyInitialVersion = "initialVersion", keyEdgeAnnoKey = "edgeAnnoKey", keyEdgeAnnoValue = "edgeAnnoValue";
+	private static final String verticesStateMapId = "VersionOnWriteStateMap";
 
 	private String versionAnnotationName;
 	private long initialVersion;
 	private String edgeAnnoKey, edgeAnnoValue;
 
-	private Map<String, VertexState> verticesState = new HashMap<String, VertexState>();
+	private FilterStateMap<VertexState> verticesState;
 
 	@Override
 	public boolean initialize(final String arguments){
@@ -68,6 +70,12 @@ public class VersionOnWrite extends AbstractFilter{
 		this.initialVersion = initialVersion;
 		this.edgeAnnoKey = edgeAnnoKey;
 		this.edgeAnnoValue = edgeAnnoValue;
+		try{
+			this.verticesState = FilterStateMap.create(this.getClass(), verticesStateMapId, false);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to create vertices state map", e);
+			return false;
+		}
 		logger.log(Level.INFO,
 				"Arguments {" + keyVersionAnnotationName + "=" + this.versionAnnotationName + ", " + keyInitialVersion
 						+ "=" + this.initialVersion + ", " + keyEdgeAnnoKey + "=" + this.edgeAnnoKey + ", "
@@ -81,11 +89,39 @@ public class VersionOnWrite extends AbstractFilter{
 		if(vertex == null){
 			return;
 		}
-		final String hash = vertex.bigHashCode();
-		if(verticesState.get(hash) == null){
-			verticesState.put(hash, new VertexState());
+		putInNextFilterIfHasNotBeenPut(vertex, getVertexState(vertex));
+	}
+
+	@Override
+	public boolean shutdown(){
+		if(verticesState != null){
+			verticesState.close();
+			verticesState = null;
+		}
+		return true;
+	}
+
+	private VertexState getVertexState(final AbstractVertex vertex){
+		final VertexState vertexState = verticesState.get(vertex.bigHashCode());
+		return vertexState == null ? new VertexState(initialVersion) : vertexState;
+	}
+
+	private AbstractVertex createVertexWithCurrentState(final AbstractVertex vertex, final VertexState vertexState){
+		final AbstractVertex vertexCopy = new spade.core.Vertex();
+		vertexCopy.addAnnotations(vertex.getCopyOfAnnotations());
+		vertexCopy.addAnnotation(versionAnnotationName, String.valueOf(vertexState.vowVersion));
+		return vertexCopy;
+	}
+
+	// Saves the state too since it might have been updated
+	private AbstractVertex putInNextFilterIfHasNotBeenPut(final AbstractVertex vertex, final VertexState vertexState){
+		final AbstractVertex vertexCopy = createVertexWithCurrentState(vertex, vertexState);
+		if(!vertexState.hasBeenPut){
+			putInNextFilter(vertexCopy);
+			vertexState.hasBeenPut = true;
 		}
-		verticesState.get(hash).putInNextFilterIfHasNotBeenPut(vertex);
+		verticesState.put(vertex.bigHashCode(), vertexState);
+		return vertexCopy;
 	}
 
 	private void addVowInfoToEdge(final AbstractEdge edge){
@@ -107,22 +143,22 @@ public class VersionOnWrite extends AbstractFilter{
 		putVertex(parentVertex);
 
 		if(childVertex.equals(parentVertex)){
-			final VertexState childState = verticesState.get(childVertex.bigHashCode());
-			final AbstractVertex childVertexCurrentState = childState.putInNextFilterIfHasNotBeenPut(childVertex);
+			final VertexState childState = getVertexState(childVertex);
+			final AbstractVertex childVertexCurrentState = putInNextFilterIfHasNotBeenPut(childVertex, childState);
 			childState.incrementVOWVersion();
-			final AbstractVertex childVertexNewState = childState.putInNextFilterIfHasNotBeenPut(childVertex);
+			final AbstractVertex childVertexNewState = putInNextFilterIfHasNotBeenPut(childVertex, childState);
 			final AbstractEdge childStateChangeAndCopyEdge = new Edge(childVertexNewState, childVertexCurrentState);
 			childStateChangeAndCopyEdge.addAnnotations(edge.getCopyOfAnnotations());
 			addVowInfoToEdge(childStateChangeAndCopyEdge);
 			putInNextFilter(childStateChangeAndCopyEdge);
 		}else{
-			final VertexState childState = verticesState.get(childVertex.bigHashCode());
-			final AbstractVertex childVertexCurrentState = childState.putInNextFilterIfHasNotBeenPut(childVertex);
+			final VertexState childState = getVertexState(childVertex);
+			final AbstractVertex childVertexCurrentState = putInNextFilterIfHasNotBeenPut(childVertex, childState);
 			childState.incrementVOWVersion();
-			final AbstractVertex childVertexNewState = childState.putInNextFilterIfHasNotBeenPut(childVertex);
+			final AbstractVertex childVertexNewState = putInNextFilterIfHasNotBeenPut(childVertex, childState);
 
-			final VertexState parentState = verticesState.get(parentVertex.bigHashCode());
-			final AbstractVertex parentVertexCurrentState = parentState.putInNextFilterIfHasNotBeenPut(parentVertex);
+			final VertexState parentState = getVertexState(parentVertex);
+			final AbstractVertex parentVertexCurrentState = putInNextFilterIfHasNotBeenPut(parentVertex, parentState);
 			final AbstractEdge edgeCopy = new Edge(childVertexNewState, parentVertexCurrentState);
 			edgeCopy.addAnnotations(edge.getCopyOfAnnotations());
 			putInNextFilter(edgeCopy);
@@ -134,12 +170,13 @@ public class VersionOnWrite extends AbstractFilter{
 		}
 	}
 
-	private class VertexState{
-		private long vowVersion = initialVersion;
+	private static class VertexState implements Serializable{
+		private static final long serialVersionUID = 3914577325052962427L;
+		private long vowVersion;
 		private boolean hasBeenPut = false;
 
-		private long getVOWVersion(){
-			return vowVersion;
+		private VertexState(final long initialVersion){
+			this.vowVersion = initialVersion;
 		}
 
 		private void incrementVOWVersion(){
@@ -150,21 +187,5 @@ public class VersionOnWrite extends AbstractFilter{
 				hasBeenPut = false;
 			}
 		}
-
-		private AbstractVertex createVertexWithCurrentState(final AbstractVertex vertex){
-			final AbstractVertex vertexCopy = new spade.core.Vertex();
-			vertexCopy.addAnnotations(vertex.getCopyOfAnnotations());
-			vertexCopy.addAnnotation(versionAnnotationName, String.valueOf(getVOWVersion()));
-			return vertexCopy;
-		}
-
-		private AbstractVertex putInNextFilterIfHasNotBeenPut(final AbstractVertex vertex){
-			final AbstractVertex vertexCopy = createVertexWithCurrentState(vertex);
-			if(!this.hasBeenPut){
-				putInNextFilter(vertexCopy);
-				this.hasBeenPut = true;
-			}
-			return vertexCopy;
-		}
 	}
 }
@@ -19,7 +19,10 @@
  */
 package spade.filter;
 
+import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -57,7 +60,8 @@ public class WindowsFeatures extends AbstractFilter{
 		, keyInceptionTime = "inceptionTime"
 		, keyTaintedParentWeight = "taintedParentWeight"
 		, keyPatternTime = "patternTime"
-		, keyPatternDateTime = "patternDateTime";
+		, keyPatternDateTime = "patternDateTime"
+		, keyExportInterval = "exportInterval";
 
 	private final Set<String> maliciousProcessNames = new HashSet<>();
 	private String filePathProcessFeatures, filePathArtifactFeatures;
@@ -66,6 +70,9 @@ public class WindowsFeatures extends AbstractFilter{
 	private DateTimeFormatter timeFormatter;
 	private DateTimeFormatter dateTimeFormatter;
 	private GraphFeatures graphFeatures;
+	// Features are written only at shutdown if 0
+	private long exportIntervalMillis;
+	private long nextExportMillis;
 
 	@Override
 	public boolean initialize(final String arguments){
@@ -80,9 +87,14 @@ public class WindowsFeatures extends AbstractFilter{
 			final double taintedParentWeight = ArgumentFunctions.mustParseDouble(keyTaintedParentWeight, map);
 			final DateTimeFormatter timeFormatter = ArgumentFunctions.mustParseJavaDateTimeFormat(keyPatternTime, map);
 			final DateTimeFormatter dateTimeFormatter = ArgumentFunctions.mustParseJavaDateTimeFormat(keyPatternDateTime, map);
+			final long exportInterval = map.containsKey(keyExportInterval)
+					? ArgumentFunctions.mustParseLong(keyExportInterval, map) : 0;
+			if(exportInterval < 0){
+				throw new Exception("'" + keyExportInterval + "' must not be negative");
+			}
 
 			return initialize(filePathProcessFeatures, filePathArtifactFeatures, maliciousProcessNames, 
-					inceptionTime, taintedParentWeight, timeFormatter, dateTimeFormatter);
+					inceptionTime, taintedParentWeight, timeFormatter, dateTimeFormatter, exportInterval);
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to add filter", e);
 			return false;
@@ -93,6 +105,18 @@ public class WindowsFeatures extends AbstractFilter{
 			final List<String> maliciousProcessNames,
 			final double inceptionTime, final double taintedParentWeight, final DateTimeFormatter timeFormatter,
 			final DateTimeFormatter dateTimeFormatter){
+		return initialize(filePathProcessFeatures, filePathArtifactFeatures, maliciousProcessNames, inceptionTime,
+				taintedParentWeight, timeFormatter, dateTimeFormatter, 0);
+	}
+
+	/**
+	 * @param exportIntervalSeconds Interval at which the feature files are rewritten with the features so far. 0 to
+	 * write only at shutdown
+	 */
+	public boolean initialize(final String filePathProcessFeatures, final String filePathArtifactFeatures,
+			final List<String> maliciousProcessNames,
+			final double inceptionTime, final double taintedParentWeight, final DateTimeFormatter timeFormatter,
+			final DateTimeFormatter dateTimeFormatter, final long exportIntervalSeconds){
 		this.filePathArtifactFeatures = filePathArtifactFeatures;
 		this.filePathProcessFeatures = filePathProcessFeatures;
 		this.maliciousProcessNames.addAll(maliciousProcessNames);
@@ -100,6 +124,8 @@ public class WindowsFeatures extends AbstractFilter{
 		this.taintedParentWeight = taintedParentWeight;
 		this.timeFormatter = timeFormatter;
 		this.dateTimeFormatter = dateTimeFormatter;
+		this.exportIntervalMillis = exportIntervalSeconds * 1000;
+		this.nextExportMillis = System.currentTimeMillis() + this.exportIntervalMillis;
 
 		this.graphFeatures = new GraphFeatures(this.maliciousProcessNames, this.inceptionTime, this.taintedParentWeight,
 				this.timeFormatter, this.dateTimeFormatter);
@@ -111,48 +137,92 @@ public class WindowsFeatures extends AbstractFilter{
 				+ ", " + keyInceptionTime + "=" + inceptionTime
 				+ ", " + keyInceptionTime + "=" + taintedParentWeight
 				+ ", " + keyPatternTime + "=" + timeFormatter + ", " + keyPatternDateTime + "=" + dateTimeFormatter
+				+ ", " + keyExportInterval + "=" + exportIntervalSeconds
 				+ "}");
 		return true;
 	}
 
 	@Override
 	public boolean shutdown(){
-		try(final CSVFormatWriter writer = new CSVFormatWriter(new FileOutputStream(filePathProcessFeatures))){
-			final ProcessFeatureGetterSet processFeatureSet = new ProcessFeatureGetterSet();
-			final TreeSet<String> processFeatureNames = processFeatureSet.getNames();
-			writer.writeLine(processFeatureNames); // header
-
-			final TreeSet<ProcessIdentifier> processIdentifiers = graphFeatures.getProcessIdentifiers();
-			for(final ProcessIdentifier processIdentifier : processIdentifiers){
-				final List<Object> processFeatureValues = new ArrayList<Object>();
-				for(final String processFeatureName : processFeatureNames){
-					final Object processFeatureValue = processFeatureSet.get(processFeatureName, graphFeatures, processIdentifier);
-					processFeatureValues.add(processFeatureValue);
+		writeFeatures();
+		return true;
+	}
+
+	/*
+	 * Each file is written to a temporary file first and then moved in place so that a reader of the file never sees
+	 * a partially written export. A temporary file that failed to be written is deleted instead.
+	 */
+	private void writeFeatures(){
+		final File processFeaturesTempFile = new File(filePathProcessFeatures + ".tmp");
+		try{
+			try(final CSVFormatWriter writer = new CSVFormatWriter(new FileOutputStream(processFeaturesTempFile))){
+				final ProcessFeatureGetterSet processFeatureSet = new ProcessFeatureGetterSet();
+				final TreeSet<String> processFeatureNames = processFeatureSet.getNames();
+				writer.writeLine(processFeatureNames); // header
+
+				final TreeSet<ProcessIdentifier> processIdentifiers = graphFeatures.getProcessIdentifiers();
+				final List<Object> processFeatureValues = new ArrayList<Object>(processFeatureNames.size());
+				for(final ProcessIdentifier processIdentifier : processIdentifiers){
+					processFeatureValues.clear();
+					for(final String processFeatureName : processFeatureNames){
+						final Object processFeatureValue = processFeatureSet.get(processFeatureName, graphFeatures, processIdentifier);
+						processFeatureValues.add(processFeatureValue);
+					}
+					writer.writeLine(processFeatureValues);
 				}
-				writer.writeLine(processFeatureValues);
 			}
+			moveInPlace(processFeaturesTempFile, filePathProcessFeatures);
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to write process features file", e);
+			processFeaturesTempFile.delete();
 		}
 
-		try(final CSVFormatWriter writer = new CSVFormatWriter(new FileOutputStream(filePathArtifactFeatures))){
-			final ArtifactFeatureGetterSet artifactFeatureSet = new ArtifactFeatureGetterSet();
-			final TreeSet<String> artifactFeatureNames = artifactFeatureSet.getNames();
-			writer.writeLine(artifactFeatureNames); // header
-
-			final TreeSet<ArtifactIdentifier> artifactIdentifiers = graphFeatures.getArtifactIdentifiers();
-			for(final ArtifactIdentifier artifactIdentifier : artifactIdentifiers){
-				final List<Object> artifactFeatureValues = new ArrayList<Object>();
-				for(final String artifactFeatureName : artifactFeatureNames){
-					final Object artifactFeatureValue = artifactFeatureSet.get(artifactFeatureName, graphFeatures, artifactIdentifier);
-					artifactFeatureValues.add(artifactFeatureValue);
+		final File artifactFeaturesTempFile = new File(filePathArtifactFeatures + ".tmp");
+		try{
+			try(final CSVFormatWriter writer = new CSVFormatWriter(new FileOutputStream(artifactFeaturesTempFile))){
+				final ArtifactFeatureGetterSet artifactFeatureSet = new ArtifactFeatureGetterSet();
+				final TreeSet<String> artifactFeatureNames = artifactFeatureSet.getNames();
+				writer.writeLine(artifactFeatureNames); // header
+
+				final TreeSet<ArtifactIdentifier> artifactIdentifiers = graphFeatures.getArtifactIdentifiers();
+				final List<Object> artifactFeatureValues = new ArrayList<Object>(artifactFeatureNames.size());
+				for(final ArtifactIdentifier artifactIdentifier : artifactIdentifiers){
+					artifactFeatureValues.clear();
+					for(final String artifactFeatureName : artifactFeatureNames){
+						final Object artifactFeatureValue = artifactFeatureSet.get(artifactFeatureName, graphFeatures, artifactIdentifier);
+						artifactFeatureValues.add(artifactFeatureValue);
+					}
+					writer.writeLine(artifactFeatureValues);
 				}
-				writer.writeLine(artifactFeatureValues);
 			}
+			moveInPlace(artifactFeaturesTempFile, filePathArtifactFeatures);
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to write artifact features file", e);
+			artifactFeaturesTempFile.delete();
+		}
+	}
+
+	private void moveInPlace(final File tempFile, final String filePath){
+		if(!tempFile.exists()){
+			return;
+		}
+		try{
+			Files.move(tempFile.toPath(), new File(filePath).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to move '" + tempFile + "' to '" + filePath + "'", e);
+		}
+	}
+
+	// Called on the filter thread so that the features do not change while being written
+	private void exportIfDue(){
+		if(exportIntervalMillis > 0){
+			final long now = System.currentTimeMillis();
+			if(now >= nextExportMillis){
+				writeFeatures();
+				nextExportMillis = now + exportIntervalMillis;
+			}
 		}
-		return true;
 	}
 
 	@Override
@@ -163,6 +233,7 @@ public class WindowsFeatures extends AbstractFilter{
 		}catch(Exception e){
 			logger.log(Level.WARNING, "Failed to update vertex features", e);
 		}
+		exportIfDue();
 	}
 
 	@Override
@@ -173,6 +244,7 @@ public class WindowsFeatures extends AbstractFilter{
 		}catch(Exception e){
 			logger.log(Level.WARNING, "Failed to update edge features", e);
 		}
+		exportIfDue();
 	}
 
 }
@@ -22,14 +22,28 @@ package spade.query.quickgrail;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import spade.core.AbstractTransformer;
 import spade.core.Query;
 import spade.core.Settings;
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.Program;
+import spade.query.quickgrail.core.QueryCache;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
 import spade.query.quickgrail.core.QuickGrailQueryResolver;
 import spade.query.quickgrail.parser.DSLParserWrapper;
@@ -44,11 +58,19 @@ public class QuickGrailExecutor{
 
 	private final Logger logger = Logger.getLogger(this.getClass().getName());
 
-	private final String keyDebug = "debug";
+	private final String keyDebug = "debug", keyParallelism = "parallelism", keyParseCacheSize = "parseCacheSize",
+			keyResultCacheSize = "resultCacheSize", keyResultCacheBytes = "resultCacheBytes";
 	private boolean debug;
+	// Maximum number of instructions executed at the same time. Only used if the instruction executor supports it
+	private int parallelism;
 
 	private final QueryInstructionExecutor instructionExecutor;
 
+	private final QueryCache queryCache;
+
+	// Shared by the executors of all the clients. Idle threads exit so that no threads are kept between queries
+	private static ThreadPoolExecutor instructionThreadPool = null;
+
 	public QuickGrailExecutor(final QueryInstructionExecutor instructionExecutor) throws Exception{
 		this.instructionExecutor = instructionExecutor;
 		if(this.instructionExecutor == null){
@@ -62,6 +84,14 @@ public class QuickGrailExecutor{
 		try{
 			final Map<String, String> map = FileUtility.readConfigFileAsKeyValueMap(configFile, "=");
 			debug = ArgumentFunctions.mustParseBoolean(keyDebug, map);
+			parallelism = ArgumentFunctions.mustParseInteger(keyParallelism, map);
+			if(parallelism < 1){
+				throw new Exception("'" + keyParallelism + "' must be greater than 0");
+			}
+			queryCache = QueryCache.getStorageCache(this.instructionExecutor.getStorage(),
+					ArgumentFunctions.mustParseInteger(keyParseCacheSize, map),
+					ArgumentFunctions.mustParseInteger(keyResultCacheSize, map),
+					ArgumentFunctions.mustParseLong(keyResultCacheBytes, map));
 		}catch(Exception e){
 			throw new Exception("Failed to parse configuration file: '" + configFile + "'", e);
 		}
@@ -69,9 +99,26 @@ public class QuickGrailExecutor{
 
 	public Query execute(Query query){
 		try{
-			final DSLParserWrapper parserWrapper = new DSLParserWrapper();
+			ParseProgram parseProgram = queryCache.getParseProgram(query.query);
+			if(parseProgram == null){
+				final DSLParserWrapper parserWrapper = new DSLParserWrapper();
+				parseProgram = parserWrapper.fromText(query.query);
+				queryCache.putParseProgram(query.query, parseProgram);
+			}
 
-			final ParseProgram parseProgram = parserWrapper.fromText(query.query);
+			// Read before resolution since resolution changes the symbols, and before execution so that an ingest
+			// during execution invalidates the result
+			final long storageEpoch = instructionExecutor.getStorage().getEpoch();
+			final String resultKey = QueryCache.getResultKey(query.query, instructionExecutor.getQueryEnvironment());
+			final Serializable cachedResult = queryCache.getResult(resultKey, storageEpoch,
+					query.getTransformerExecutionContext());
+			if(cachedResult != null){
+				if(debug){
+					logger.log(Level.INFO, "Result from cache (" + queryCache.getStatsString() + ")");
+				}
+				query.querySucceeded(cachedResult);
+				return query;
+			}
 
 			final QuickGrailQueryResolver resolver = new QuickGrailQueryResolver();
 			final Program program = resolver.resolveProgram(parseProgram, instructionExecutor.getQueryEnvironment());
@@ -82,20 +129,15 @@ public class QuickGrailExecutor{
 			}
 
 			try{
-				final int instructionsSize = program.getInstructionsSize();
-				for(int i = 0; i < instructionsSize; i++){
-					final Instruction<? extends Serializable> instruction = program.getInstruction(i);
-					try{
-						instruction.updateTransformerExecutionContext(instructionExecutor,
-								query.getTransformerExecutionContext());
-						final Serializable instructionResult = instruction.execute(instructionExecutor);
-						instruction.setResult(instructionResult);
-						instruction.postExecute(instructionExecutor);
-					}catch(Exception e){
-						throw e;
+				if(parallelism > 1 && program.getInstructionsSize() > 1
+						&& instructionExecutor.supportsConcurrentInstructions()){
+					executeConcurrently(program, query.getTransformerExecutionContext());
+				}else{
+					final int instructionsSize = program.getInstructionsSize();
+					for(int i = 0; i < instructionsSize; i++){
+						executeInstruction(program, i, query.getTransformerExecutionContext());
 					}
 				}
-
 			}finally{
 				instructionExecutor.getQueryEnvironment().doGarbageCollection();
 			}
@@ -109,6 +151,11 @@ public class QuickGrailExecutor{
 					result = lastInstructionResult;
 				}
 			}
+			// Programs which change the symbols (i.e. assignments) are not cached since they are not repeatable
+			if(QueryCache.isCacheable(program) && resultKey.equals(
+					QueryCache.getResultKey(query.query, instructionExecutor.getQueryEnvironment()))){
+				queryCache.putResult(resultKey, storageEpoch, result, query.getTransformerExecutionContext());
+			}
 			query.querySucceeded(result);
 
 			return query;
@@ -127,4 +174,102 @@ public class QuickGrailExecutor{
 		}
 	}
 
+	private void executeInstruction(final Program program, final int index,
+			final AbstractTransformer.ExecutionContext transformerExecutionContext){
+		final Instruction<? extends Serializable> instruction = program.getInstruction(index);
+		final long startNanos = System.nanoTime();
+		instruction.updateTransformerExecutionContext(instructionExecutor, transformerExecutionContext);
+		final Serializable instructionResult = instruction.execute(instructionExecutor);
+		instruction.setResult(instructionResult);
+		instruction.postExecute(instructionExecutor);
+		if(debug){
+			logger.log(Level.INFO, "Instruction[" + index + "] " + instruction.getLabel() + " took "
+					+ String.format("%.3f", (System.nanoTime() - startNanos) / 1000000.0) + " ms");
+		}
+	}
+
+	private static synchronized ExecutorService getInstructionThreadPool(final int parallelism){
+		if(instructionThreadPool == null){
+			final AtomicInteger threadCount = new AtomicInteger(0);
+			instructionThreadPool = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), runnable -> {
+						final Thread thread = new Thread(runnable, "QuickGrail-instruction-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			instructionThreadPool.allowCoreThreadTimeOut(true);
+		}else if(instructionThreadPool.getMaximumPoolSize() != parallelism){
+			// Parallelism was reconfigured. The queue is unbounded so the core size is the number of threads used.
+			if(parallelism > instructionThreadPool.getMaximumPoolSize()){
+				instructionThreadPool.setMaximumPoolSize(parallelism);
+				instructionThreadPool.setCorePoolSize(parallelism);
+			}else{
+				instructionThreadPool.setCorePoolSize(parallelism);
+				instructionThreadPool.setMaximumPoolSize(parallelism);
+			}
+		}
+		return instructionThreadPool;
+	}
+
+	/*
+	 * Executes each instruction as soon as all the instructions it depends on have finished.
+	 * On failure, no new instruction is started and the first failure is thrown after the running ones finish.
+	 */
+	private void executeConcurrently(final Program program,
+			final AbstractTransformer.ExecutionContext transformerExecutionContext) throws Exception{
+		final int instructionsSize = program.getInstructionsSize();
+		final List<List<Integer>> dependencies = program.getDependencies();
+
+		final int[] pendingDependencies = new int[instructionsSize];
+		final List<List<Integer>> dependents = new ArrayList<List<Integer>>();
+		for(int i = 0; i < instructionsSize; i++){
+			dependents.add(new ArrayList<Integer>());
+		}
+		final ArrayDeque<Integer> ready = new ArrayDeque<Integer>();
+		for(int i = 0; i < instructionsSize; i++){
+			pendingDependencies[i] = dependencies.get(i).size();
+			for(final Integer dependency : dependencies.get(i)){
+				dependents.get(dependency).add(i);
+			}
+			if(pendingDependencies[i] == 0){
+				ready.add(i);
+			}
+		}
+
+		final CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(
+				getInstructionThreadPool(parallelism));
+		int running = 0;
+		Exception failure = null;
+		while(true){
+			while(failure == null && !ready.isEmpty()){
+				final int index = ready.poll();
+				completionService.submit(() -> {
+					executeInstruction(program, index, transformerExecutionContext);
+					return index;
+				});
+				running++;
+			}
+			if(running == 0){
+				break;
+			}
+			final Future<Integer> future = completionService.take();
+			running--;
+			try{
+				final int index = future.get();
+				for(final Integer dependent : dependents.get(index)){
+					if(--pendingDependencies[dependent] == 0){
+						ready.add(dependent);
+					}
+				}
+			}catch(ExecutionException e){
+				if(failure == null){
+					final Throwable cause = e.getCause();
+					failure = (cause instanceof Exception) ? (Exception)cause : new RuntimeException(cause);
+				}
+			}
+		}
+		if(failure != null){
+			throw failure;
+		}
+	}
 }
@@ -19,7 +19,13 @@
  */
 package spade.query.quickgrail.core;
 
-public abstract class BatchIterator{
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over a result which is read in batches of at most 'batchSize' elements.
+ * Must be closed to release any resources held by the cursor.
+ */
+public abstract class BatchIterator<T> implements AutoCloseable{
 
 	public final int batchSize;
 
@@ -27,7 +33,33 @@ public abstract class BatchIterator{
 		this.batchSize = batchSize;
 	}
 
-	public abstract Object nextBatch();
+	public abstract T nextBatch();
 
 	public abstract boolean hasNextBatch();
-}
\ No newline at end of file
+
+	@Override
+	public void close(){}
+
+	/**
+	 * Iterator for a result which is already completely in memory
+	 */
+	public static <T> BatchIterator<T> singleBatch(final T batch){
+		return new BatchIterator<T>(Integer.MAX_VALUE){
+			private boolean consumed = false;
+
+			@Override
+			public T nextBatch(){
+				if(consumed){
+					throw new NoSuchElementException();
+				}
+				consumed = true;
+				return batch;
+			}
+
+			@Override
+			public boolean hasNextBatch(){
+				return !consumed;
+			}
+		};
+	}
+}
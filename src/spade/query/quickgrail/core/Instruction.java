@@ -20,8 +20,12 @@
 package spade.query.quickgrail.core;
 
 import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
 
 import spade.core.AbstractTransformer;
+import spade.query.quickgrail.entities.Graph;
+import spade.query.quickgrail.entities.GraphMetadata;
 import spade.query.quickgrail.utility.TreeStringSerializable;
 
 /**
@@ -53,4 +57,38 @@ public abstract class Instruction<R extends Serializable>extends TreeStringSeria
 		// Nothing
 	}
 
+	/**
+	 * Names of the graphs, metadata, and other shared state that the instruction reads or writes.
+	 * Instructions which share a name are executed in program order. The rest can be executed concurrently.
+	 * 
+	 * NULL means that the instruction must be executed after all previous and before all following instructions.
+	 */
+	public Set<String> getDependencyNames(){
+		return null;
+	}
+
+	/**
+	 * The subset of {@link #getDependencyNames()} that the instruction writes. Instructions which only read a name
+	 * can be executed concurrently with each other, but not with one that writes it.
+	 * 
+	 * NULL means that all of them are written.
+	 */
+	public Set<String> getWrittenDependencyNames(){
+		return null;
+	}
+
+	protected static final Set<String> toDependencyNames(final Object... objects){
+		final Set<String> names = new HashSet<String>();
+		for(final Object object : objects){
+			if(object instanceof Graph){
+				names.add(((Graph)object).name);
+			}else if(object instanceof GraphMetadata){
+				names.add(((GraphMetadata)object).name);
+			}else if(object instanceof String){
+				names.add((String)object);
+			}
+		}
+		return names;
+	}
+
 }
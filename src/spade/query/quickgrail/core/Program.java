@@ -21,7 +21,9 @@ package spade.query.quickgrail.core;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import spade.query.quickgrail.utility.TreeStringSerializable;
 
@@ -49,6 +51,41 @@ public class Program extends TreeStringSerializable{
 		return instructions.size();
 	}
 
+	/**
+	 * Returns the indices of the instructions that each instruction must wait for.
+	 * 
+	 * Two instructions depend on each other if they share a dependency name which at least one of them writes, or if
+	 * either one of them has no dependency names. Reads of the base graph can therefore run concurrently, but stay
+	 * ordered after (and before) any instruction that writes it. Instructions without any dependency between them
+	 * can be executed concurrently.
+	 */
+	public final List<List<Integer>> getDependencies(){
+		final List<Set<String>> names = new ArrayList<Set<String>>();
+		final List<Set<String>> writtenNames = new ArrayList<Set<String>>();
+		for(final Instruction<? extends Serializable> instruction : instructions){
+			final Set<String> instructionNames = instruction.getDependencyNames();
+			final Set<String> instructionWrittenNames = instruction.getWrittenDependencyNames();
+			names.add(instructionNames);
+			writtenNames.add(instructionWrittenNames == null ? instructionNames : instructionWrittenNames);
+		}
+
+		final List<List<Integer>> dependencies = new ArrayList<List<Integer>>();
+		for(int i = 0; i < names.size(); i++){
+			final Set<String> namesI = names.get(i);
+			final List<Integer> dependenciesI = new ArrayList<Integer>();
+			for(int j = 0; j < i; j++){
+				final Set<String> namesJ = names.get(j);
+				if(namesI == null || namesJ == null
+						|| !Collections.disjoint(writtenNames.get(i), namesJ)
+						|| !Collections.disjoint(namesI, writtenNames.get(j))){
+					dependenciesI.add(j);
+				}
+			}
+			dependencies.add(dependenciesI);
+		}
+		return dependencies;
+	}
+
 	@Override
 	public String getLabel(){
 		return "Program";
@@ -0,0 +1,297 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.quickgrail.core;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import spade.core.AbstractStorage;
+import spade.core.AbstractTransformer;
+import spade.query.quickgrail.entities.Graph;
+import spade.query.quickgrail.instruction.CollapseEdge;
+import spade.query.quickgrail.instruction.CreateEmptyGraph;
+import spade.query.quickgrail.instruction.CreateEmptyGraphMetadata;
+import spade.query.quickgrail.instruction.DescribeGraph;
+import spade.query.quickgrail.instruction.DistinctifyGraph;
+import spade.query.quickgrail.instruction.ExportGraph;
+import spade.query.quickgrail.instruction.GetAdjacentVertex;
+import spade.query.quickgrail.instruction.GetEdge;
+import spade.query.quickgrail.instruction.GetEdgeEndpoint;
+import spade.query.quickgrail.instruction.GetGraphStatistic;
+import spade.query.quickgrail.instruction.GetLineage;
+import spade.query.quickgrail.instruction.GetLink;
+import spade.query.quickgrail.instruction.GetMatch;
+import spade.query.quickgrail.instruction.GetPath;
+import spade.query.quickgrail.instruction.GetPathLengths;
+import spade.query.quickgrail.instruction.GetShortestPath;
+import spade.query.quickgrail.instruction.GetSimplePath;
+import spade.query.quickgrail.instruction.GetSubgraph;
+import spade.query.quickgrail.instruction.GetSubset;
+import spade.query.quickgrail.instruction.GetVertex;
+import spade.query.quickgrail.instruction.GetWhereAnnotationsExist;
+import spade.query.quickgrail.instruction.IntersectGraph;
+import spade.query.quickgrail.instruction.LimitGraph;
+import spade.query.quickgrail.instruction.RemoteVariableOperation;
+import spade.query.quickgrail.instruction.SubtractGraph;
+import spade.query.quickgrail.instruction.UnionGraph;
+import spade.query.quickgrail.parser.ParseProgram;
+import spade.utility.Serializable2ByteArrayConverter;
+
+/**
+ * Bounded (least recently used) caches for QuickGrail queries. One cache per storage, shared by all its clients.
+ *
+ * Parse trees are cached by query text since parsing does not depend on any state.
+ * Resolved programs are not cached because resolution allocates fresh graph variables and binds symbols.
+ *
+ * Results are cached only for programs which do not change any state and whose result depends only on the
+ * storage contents and the current symbols. The key is the query text plus the symbols and environment variables,
+ * and an entry is only valid for the storage epoch it was computed in. Results are bounded by count and by their
+ * total serialized size, and a result larger than the total size is not cached.
+ */
+public class QueryCache{
+
+	// Instructions which neither change the environment nor contact remote hosts
+	private static final Set<Class<?>> cacheableInstructionClasses = new HashSet<Class<?>>(Arrays.asList(
+			CollapseEdge.class, CreateEmptyGraph.class, CreateEmptyGraphMetadata.class, DescribeGraph.class,
+			DistinctifyGraph.class, ExportGraph.class, GetAdjacentVertex.class, GetEdge.class, GetEdgeEndpoint.class,
+			GetGraphStatistic.Count.class, GetGraphStatistic.Histogram.class, GetGraphStatistic.Mean.class,
+			GetGraphStatistic.StandardDeviation.class, GetGraphStatistic.Distribution.class, GetLineage.class,
+			GetLink.class, GetMatch.class, GetPath.class, GetPathLengths.class, GetShortestPath.class,
+			GetSimplePath.class, GetSubgraph.class, GetSubset.class, GetVertex.class, GetWhereAnnotationsExist.class,
+			IntersectGraph.class, LimitGraph.class, SubtractGraph.class, UnionGraph.class,
+			RemoteVariableOperation.Copy.class, RemoteVariableOperation.Intersect.class,
+			RemoteVariableOperation.Subtract.class));
+
+	private static final class Result{
+		private final long epoch;
+		// Serialized so that every hit gets its own copy which can be modified (e.g. by transformers)
+		private final byte[] value;
+		private final spade.core.Graph transformerSourceGraph;
+		private final Integer transformerMaxDepth;
+		private final GetLineage.Direction transformerDirection;
+
+		private Result(final long epoch, final byte[] value,
+				final AbstractTransformer.ExecutionContext transformerExecutionContext){
+			this.epoch = epoch;
+			this.value = value;
+			this.transformerSourceGraph = transformerExecutionContext.getSourceGraph();
+			this.transformerMaxDepth = transformerExecutionContext.getMaxDepth();
+			this.transformerDirection = transformerExecutionContext.getDirection();
+		}
+	}
+
+	private static final class LRUMap<K, V> extends LinkedHashMap<K, V>{
+		private static final long serialVersionUID = -4510296617460497137L;
+		private final int maxSize;
+
+		private LRUMap(final int maxSize){
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, V> eldest){
+			return size() > maxSize;
+		}
+	}
+
+	private static final Map<AbstractStorage, QueryCache> storageCaches = new WeakHashMap<AbstractStorage, QueryCache>();
+
+	private final Serializable2ByteArrayConverter<Serializable> converter = new Serializable2ByteArrayConverter<Serializable>();
+
+	private final int parseCacheSize, resultCacheSize;
+	private final long resultCacheBytes;
+	private final LRUMap<String, ParseProgram> parsePrograms;
+	// Access ordered. Evicted manually since eviction depends on the size of the values too
+	private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+	private long resultBytes = 0;
+
+	private long hits = 0, misses = 0;
+
+	/**
+	 * A size of 0 disables the respective cache
+	 */
+	public QueryCache(final int parseCacheSize, final int resultCacheSize, final long resultCacheBytes){
+		if(parseCacheSize < 0){
+			throw new IllegalArgumentException("Negative parse cache size: " + parseCacheSize);
+		}
+		if(resultCacheSize < 0){
+			throw new IllegalArgumentException("Negative result cache size: " + resultCacheSize);
+		}
+		if(resultCacheBytes < 0){
+			throw new IllegalArgumentException("Negative result cache bytes: " + resultCacheBytes);
+		}
+		this.parseCacheSize = parseCacheSize;
+		this.resultCacheSize = resultCacheSize;
+		this.resultCacheBytes = resultCacheBytes;
+		this.parsePrograms = new LRUMap<String, ParseProgram>(Math.max(1, parseCacheSize));
+	}
+
+	/**
+	 * Returns the cache of the storage. The sizes are only used if the storage does not have a cache yet.
+	 */
+	public static synchronized QueryCache getStorageCache(final AbstractStorage storage, final int parseCacheSize,
+			final int resultCacheSize, final long resultCacheBytes){
+		QueryCache queryCache = storageCaches.get(storage);
+		if(queryCache == null){
+			queryCache = new QueryCache(parseCacheSize, resultCacheSize, resultCacheBytes);
+			storageCaches.put(storage, queryCache);
+		}
+		return queryCache;
+	}
+
+	public final synchronized ParseProgram getParseProgram(final String queryText){
+		return parseCacheSize == 0 ? null : parsePrograms.get(queryText);
+	}
+
+	public final synchronized void putParseProgram(final String queryText, final ParseProgram parseProgram){
+		if(parseCacheSize > 0){
+			parsePrograms.put(queryText, parseProgram);
+		}
+	}
+
+	/**
+	 * Key for the result of the query text under the current state of the environment
+	 */
+	public static String getResultKey(final String queryText, final AbstractQueryEnvironment env){
+		final Map<String, Object> environmentVariables = new TreeMap<String, Object>();
+		for(final EnvironmentVariable environmentVariable : env.getEnvVarManager().getAll()){
+			environmentVariables.put(environmentVariable.name, environmentVariable.getValue());
+		}
+		// Remotes of a graph can change without the symbol being reassigned
+		final Map<String, String> graphSymbols = new TreeMap<String, String>();
+		for(final String symbol : env.getCurrentGraphSymbolsStringMap().keySet()){
+			final Graph graph = env.getGraphSymbol(symbol);
+			graphSymbols.put(symbol, graph.name + graph.getRemotes());
+		}
+		return queryText + "\n" + graphSymbols + "\n"
+				+ new TreeMap<String, String>(env.getCurrentMetadataSymbolsStringMap()) + "\n"
+				+ new TreeMap<String, String>(env.getCurrentPredicateSymbolsStringMap()) + "\n"
+				+ environmentVariables;
+	}
+
+	public static boolean isCacheable(final Program program){
+		for(int i = 0; i < program.getInstructionsSize(); i++){
+			final Instruction<? extends Serializable> instruction = program.getInstruction(i);
+			if(!cacheableInstructionClasses.contains(instruction.getClass())){
+				return false;
+			}
+			// Results of remote graphs are fetched from remote hosts
+			final Graph graph;
+			if(instruction instanceof ExportGraph){
+				graph = ((ExportGraph)instruction).targetGraph;
+			}else if(instruction instanceof GetGraphStatistic.Count){
+				graph = ((GetGraphStatistic.Count)instruction).graph;
+			}else{
+				graph = null;
+			}
+			if(graph != null && !graph.getRemotes().isEmpty()){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns NULL if not present or computed in a different storage epoch.
+	 * On success, the transformer execution context is updated the same way as the cached execution did.
+	 */
+	public final synchronized Serializable getResult(final String resultKey, final long epoch,
+			final AbstractTransformer.ExecutionContext transformerExecutionContext){
+		if(resultCacheSize == 0 || resultCacheBytes == 0){
+			return null;
+		}
+		final Result result = results.get(resultKey);
+		if(result == null || result.epoch != epoch){
+			if(result != null){
+				removeResult(resultKey);
+			}
+			misses++;
+			return null;
+		}
+		final Serializable value;
+		try{
+			value = converter.deserialize(result.value);
+		}catch(Exception e){
+			throw new RuntimeException("Failed to deserialize cached result", e);
+		}
+		hits++;
+		transformerExecutionContext.setSourceGraph(result.transformerSourceGraph);
+		transformerExecutionContext.setMaxDepth(result.transformerMaxDepth);
+		transformerExecutionContext.setDirection(result.transformerDirection);
+		return value;
+	}
+
+	public final synchronized void putResult(final String resultKey, final long epoch, final Serializable value,
+			final AbstractTransformer.ExecutionContext transformerExecutionContext){
+		if(resultCacheSize > 0 && resultCacheBytes > 0 && value != null){
+			final byte[] serializedValue;
+			try{
+				serializedValue = converter.serialize(value);
+			}catch(Exception e){
+				throw new RuntimeException("Failed to serialize result for caching", e);
+			}
+			removeResult(resultKey);
+			if(serializedValue.length > resultCacheBytes){
+				return;
+			}
+			results.put(resultKey, new Result(epoch, serializedValue, transformerExecutionContext));
+			resultBytes += serializedValue.length;
+			final Iterator<Result> eldest = results.values().iterator();
+			while(results.size() > resultCacheSize || resultBytes > resultCacheBytes){
+				resultBytes -= eldest.next().value.length;
+				eldest.remove();
+			}
+		}
+	}
+
+	private void removeResult(final String resultKey){
+		final Result result = results.remove(resultKey);
+		if(result != null){
+			resultBytes -= result.value.length;
+		}
+	}
+
+	public final synchronized void clear(){
+		parsePrograms.clear();
+		results.clear();
+		resultBytes = 0;
+	}
+
+	public final synchronized long getHits(){
+		return hits;
+	}
+
+	public final synchronized long getMisses(){
+		return misses;
+	}
+
+	public final synchronized String getStatsString(){
+		return "parsed=" + parsePrograms.size() + ", results=" + results.size() + ", resultBytes=" + resultBytes
+				+ ", hits=" + hits + ", misses=" + misses;
+	}
+}
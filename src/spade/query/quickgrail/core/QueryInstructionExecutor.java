@@ -19,6 +19,8 @@
  */
 package spade.query.quickgrail.core;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -36,6 +38,7 @@ import spade.core.AbstractTransformer;
 import spade.core.AbstractTransformer.ArgumentName;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
+import spade.core.GraphStream;
 import spade.core.Kernel;
 import spade.core.Vertex;
 import spade.query.quickgrail.core.EnvironmentVariableManager.Name;
@@ -63,6 +66,8 @@ public abstract class QueryInstructionExecutor{
 
 	private static final Logger logger = Logger.getLogger(QueryInstructionExecutor.class.getName());
 
+	public static final int exportBatchSize = 10000;
+
 	private final DiscrepancyDetector discrepancyDetector;
 
 	public QueryInstructionExecutor(){
@@ -81,6 +86,13 @@ public abstract class QueryInstructionExecutor{
 
 	public abstract AbstractStorage getStorage();
 
+	/**
+	 * True if instructions which do not depend on each other can be executed concurrently by this executor
+	 */
+	public boolean supportsConcurrentInstructions(){
+		return false;
+	}
+
 	public abstract void collapseEdge(final Graph targetGraph, final Graph sourceGraph, final ArrayList<String> fields);
 
 	public abstract void createEmptyGraph(final Graph graph);
@@ -99,10 +111,10 @@ public abstract class QueryInstructionExecutor{
 
 	public abstract ResultTable evaluateQuery(final String nativeQuery);
 
-	public final spade.core.Graph exportGraph(final Graph targetGraph, final boolean force){
-		final GraphStatistic.Count count = getGraphCount(targetGraph);
-		long verticesAndEdges = count.getVertices() + count.getEdges();
+	private void checkExportLimit(final Graph targetGraph, final boolean force){
 		if(!force){
+			final GraphStatistic.Count count = getGraphCount(targetGraph);
+			long verticesAndEdges = count.getVertices() + count.getEdges();
 			final int exportLimit = (int)getQueryEnvironment().getEnvVarManager().get(Name.exportLimit).getValue();
 			if(verticesAndEdges > exportLimit){
 				throw new RuntimeException(
@@ -110,38 +122,86 @@ public abstract class QueryInstructionExecutor{
 								+ verticesAndEdges + "'. " + "Please use 'dump all ...' to force the print.");
 			}
 		}
-		final Map<String, Map<String, String>> queriedVerticesMap = exportVertices(targetGraph);
+	}
+
+	public final spade.core.Graph exportGraph(final Graph targetGraph, final boolean force){
+		checkExportLimit(targetGraph, force);
+		final spade.core.Graph resultGraph = new spade.core.Graph();
 		final Map<String, AbstractVertex> verticesMap = new HashMap<String, AbstractVertex>();
-		for(Map.Entry<String, Map<String, String>> entry : queriedVerticesMap.entrySet()){
-			AbstractVertex vertex = new Vertex(entry.getKey()); // always create reference vertices
-			vertex.addAnnotations(entry.getValue());
-			verticesMap.put(entry.getKey(), vertex);
-		}
-
-		final Set<QueriedEdge> queriedEdges = exportEdges(targetGraph);
-		final Set<AbstractEdge> edges = new HashSet<AbstractEdge>();
-		for(final QueriedEdge queriedEdge : queriedEdges){
-			AbstractVertex child = verticesMap.get(queriedEdge.childHash);
-			AbstractVertex parent = verticesMap.get(queriedEdge.parentHash);
-			if(child == null){
-				child = new Vertex(queriedEdge.childHash);
-				// verticesMap.put(queriedEdge.childHash, child);
-			}
-			if(parent == null){
-				parent = new Vertex(queriedEdge.parentHash);
-				// verticesMap.put(queriedEdge.parentHash, parent);
-			}
-			final AbstractEdge edge = new Edge(queriedEdge.edgeHash, child, parent);
-			edge.addAnnotations(queriedEdge.getCopyOfAnnotations());
-			edges.add(edge);
+		try(final BatchIterator<Map<String, Map<String, String>>> vertexBatches =
+				exportVerticesInBatches(targetGraph, exportBatchSize)){
+			while(vertexBatches.hasNextBatch()){
+				for(final Map.Entry<String, Map<String, String>> entry : vertexBatches.nextBatch().entrySet()){
+					final AbstractVertex vertex = new Vertex(entry.getKey()); // always create reference vertices
+					vertex.addAnnotations(entry.getValue());
+					verticesMap.put(entry.getKey(), vertex);
+					resultGraph.vertexSet().add(vertex);
+				}
+			}
 		}
 
-		final spade.core.Graph resultGraph = new spade.core.Graph();
-		resultGraph.vertexSet().addAll(verticesMap.values());
-		resultGraph.edgeSet().addAll(edges);
+		try(final BatchIterator<Set<QueriedEdge>> edgeBatches = exportEdgesInBatches(targetGraph, exportBatchSize)){
+			while(edgeBatches.hasNextBatch()){
+				for(final QueriedEdge queriedEdge : edgeBatches.nextBatch()){
+					AbstractVertex child = verticesMap.get(queriedEdge.childHash);
+					AbstractVertex parent = verticesMap.get(queriedEdge.parentHash);
+					if(child == null){
+						child = new Vertex(queriedEdge.childHash);
+					}
+					if(parent == null){
+						parent = new Vertex(queriedEdge.parentHash);
+					}
+					final AbstractEdge edge = new Edge(queriedEdge.edgeHash, child, parent);
+					edge.addAnnotations(queriedEdge.getCopyOfAnnotations());
+					resultGraph.edgeSet().add(edge);
+				}
+			}
+		}
 		return resultGraph;
 	}
 
+	/**
+	 * Visits the vertices and then the edges of the graph one batch at a time without keeping them.
+	 * Endpoints of edges are reference vertices which only have the hash (and the id if the vertex has one).
+	 */
+	public final void exportGraph(final Graph targetGraph, final boolean force, final GraphStream.Visitor visitor)
+			throws Exception{
+		checkExportLimit(targetGraph, force);
+		// Only the few vertices with an explicit id are remembered so that the edges refer to them correctly
+		final Map<String, String> vertexIds = new HashMap<String, String>();
+		try(final BatchIterator<Map<String, Map<String, String>>> vertexBatches =
+				exportVerticesInBatches(targetGraph, exportBatchSize)){
+			while(vertexBatches.hasNextBatch()){
+				for(final Map.Entry<String, Map<String, String>> entry : vertexBatches.nextBatch().entrySet()){
+					final AbstractVertex vertex = new Vertex(entry.getKey());
+					vertex.addAnnotations(entry.getValue());
+					if(vertex.id() != null){
+						vertexIds.put(entry.getKey(), vertex.id());
+					}
+					visitor.visitVertex(vertex);
+				}
+			}
+		}
+
+		try(final BatchIterator<Set<QueriedEdge>> edgeBatches = exportEdgesInBatches(targetGraph, exportBatchSize)){
+			while(edgeBatches.hasNextBatch()){
+				for(final QueriedEdge queriedEdge : edgeBatches.nextBatch()){
+					final AbstractVertex child = new Vertex(queriedEdge.childHash);
+					final AbstractVertex parent = new Vertex(queriedEdge.parentHash);
+					if(vertexIds.containsKey(queriedEdge.childHash)){
+						child.setId(vertexIds.get(queriedEdge.childHash));
+					}
+					if(vertexIds.containsKey(queriedEdge.parentHash)){
+						parent.setId(vertexIds.get(queriedEdge.parentHash));
+					}
+					final AbstractEdge edge = new Edge(queriedEdge.edgeHash, child, parent);
+					edge.addAnnotations(queriedEdge.getCopyOfAnnotations());
+					visitor.visitEdge(edge);
+				}
+			}
+		}
+	}
+
 	public abstract void getAdjacentVertex(Graph targetGraph, Graph subjectGraph, Graph sourceGraph, GetLineage.Direction direction);
 
 	public abstract void getEdge(Graph targetGraph, Graph subjectGraph, String annotationKey, PredicateOperator operator,
@@ -260,10 +320,40 @@ public abstract class QueryInstructionExecutor{
 
 	public final void saveGraph(final Graph targetGraph, final SaveGraph.Format format, final boolean force,
 			final String filePath){
-		final boolean verify = false;
-		final spade.core.Graph exportedGraph = new ExportGraph(targetGraph, force, verify).execute(this);
-		try{
-			spade.core.Graph.exportGraphToFile(format, filePath, exportedGraph);
+		if(!targetGraph.getRemotes().isEmpty()){
+			// Remote graphs have to be merged with the local graph first
+			final boolean verify = false;
+			final spade.core.Graph exportedGraph = new ExportGraph(targetGraph, force, verify).execute(this);
+			try{
+				spade.core.Graph.exportGraphToFile(format, filePath, exportedGraph);
+			}catch(Exception e){
+				throw new RuntimeException("Failed to save graph to file '" + filePath + "' on SPADE server", e);
+			}
+			return;
+		}
+		if(HelperFunctions.isNullOrEmpty(filePath)){
+			throw new RuntimeException("Cannot save graph to NULL/Empty file path: '" + filePath + "'");
+		}
+		// Written as it is read so that the graph is never completely in memory
+		try(final BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))){
+			final AbstractStorage storage = spade.core.Graph.createExportStorage(format, writer, false);
+			try{
+				exportGraph(targetGraph, force, new GraphStream.Visitor(){
+					@Override
+					public void visitVertex(final AbstractVertex vertex) throws Exception{
+						storage.putVertex(vertex);
+					}
+
+					@Override
+					public void visitEdge(final AbstractEdge edge) throws Exception{
+						storage.putEdge(edge);
+					}
+				});
+			}finally{
+				storage.shutdown();
+			}
+		}catch(RuntimeException e){
+			throw e;
 		}catch(Exception e){
 			throw new RuntimeException("Failed to save graph to file '" + filePath + "' on SPADE server", e);
 		}
@@ -288,6 +378,23 @@ public abstract class QueryInstructionExecutor{
 
 	public abstract Set<QueriedEdge> exportEdges(final Graph targetGraph);
 
+	/**
+	 * Vertices of the graph in batches of hash to annotations.
+	 * The default reads all the vertices at once. Executors which can read incrementally should override this.
+	 */
+	public BatchIterator<Map<String, Map<String, String>>> exportVerticesInBatches(final Graph targetGraph,
+			final int batchSize){
+		return BatchIterator.singleBatch(exportVertices(targetGraph));
+	}
+
+	/**
+	 * Edges of the graph in batches.
+	 * The default reads all the edges at once. Executors which can read incrementally should override this.
+	 */
+	public BatchIterator<Set<QueriedEdge>> exportEdgesInBatches(final Graph targetGraph, final int batchSize){
+		return BatchIterator.singleBatch(exportEdges(targetGraph));
+	}
+
 	public final Graph createNewGraph(){
 		Graph newGraph = getQueryEnvironment().allocateGraph();
 		createEmptyGraph(newGraph);
@@ -338,52 +445,125 @@ public abstract class QueryInstructionExecutor{
 		return result;
 	}
 
-	public void putGraph(final long putGraphBatchSize, final Graph targetGraph, final spade.core.Graph graph){
-		final AbstractStorage storage = getStorage();
-
-		final Graph verticesGraph = createNewGraph();
-		final Graph edgesGraph = createNewGraph();
+	/**
+	 * Puts the vertices and edges of 'graph' which are not in the storage yet and adds all of them to 'targetGraph'.
+	 * Returns the number of vertices and edges which were put.
+	 */
+	public long putGraph(final long putGraphBatchSize, final Graph targetGraph, final spade.core.Graph graph){
+		long putCount = 0;
+
+		// Put but not added to 'targetGraph' yet because the storage may not have written them
+		final ArrayList<String> unlinkedVertexHashes = new ArrayList<String>();
+		final ArrayList<String> unlinkedEdgeHashes = new ArrayList<String>();
+
+		// All vertices first so that the endpoints of the edges are present
+		final List<AbstractVertex> vertices = new ArrayList<AbstractVertex>();
+		for(final AbstractVertex vertex : graph.vertexSet()){
+			vertices.add(vertex);
+			if(vertices.size() >= putGraphBatchSize){
+				putCount += upsertVertices(targetGraph, vertices, unlinkedVertexHashes);
+				vertices.clear();
+			}
+		}
+		if(!vertices.isEmpty()){
+			putCount += upsertVertices(targetGraph, vertices, unlinkedVertexHashes);
+		}
 
-		// The following two calls insert vertices/edges in 'graph' that exist in $base,
-		// into the variable 'targetGraph'
-		insertVertexHashesInBatches(putGraphBatchSize, verticesGraph, graph);
-		insertEdgeHashesInBatches(putGraphBatchSize, edgesGraph, graph);
+		final List<AbstractEdge> edges = new ArrayList<AbstractEdge>();
+		for(final AbstractEdge edge : graph.edgeSet()){
+			edges.add(edge);
+			if(edges.size() >= putGraphBatchSize){
+				putCount += upsertEdges(targetGraph, edges, unlinkedEdgeHashes);
+				edges.clear();
+			}
+		}
+		if(!edges.isEmpty()){
+			putCount += upsertEdges(targetGraph, edges, unlinkedEdgeHashes);
+		}
 
-		// Getting the vertices/edges that were assigned to variable 'targetGraph'
-		final spade.core.Graph vertexGraph = exportGraph(verticesGraph, true);
-		final spade.core.Graph edgeGraph = exportGraph(edgesGraph, true);
+		if(!unlinkedVertexHashes.isEmpty() || !unlinkedEdgeHashes.isEmpty()){
+			// Once for the whole graph. The existence checks of the batches above do not need it because the
+			// vertices (and edges) of 'graph' are distinct.
+			getStorage().flushTransactions(true);
+			insertLiteralVertexInBatches(putGraphBatchSize, targetGraph, unlinkedVertexHashes);
+			insertLiteralEdgeInBatches(putGraphBatchSize, targetGraph, unlinkedEdgeHashes);
+		}
 
-		// Subtracting vertices in 'targetGraph' from 'graph' to get the vertices which
-		// are not in $base
-		final spade.core.Graph subgraphNotPresent = new spade.core.Graph();
-		subgraphNotPresent.vertexSet().addAll(graph.vertexSet());
-		subgraphNotPresent.edgeSet().addAll(graph.edgeSet());
-		subgraphNotPresent.vertexSet().removeAll(vertexGraph.vertexSet());
-		subgraphNotPresent.edgeSet().removeAll(edgeGraph.edgeSet());
+		return putCount;
+	}
 
-		// Putting the new vertices in $base
-		for(final AbstractVertex vertex : subgraphNotPresent.vertexSet()){
-			storage.putVertex(vertex);
+	private void insertLiteralVertexInBatches(final long batchSize, final Graph targetGraph, final List<String> hashes){
+		for(int i = 0; i < hashes.size(); i += batchSize){
+			insertLiteralVertex(targetGraph,
+					new ArrayList<String>(hashes.subList(i, (int)Math.min(hashes.size(), i + batchSize))));
 		}
+	}
 
-		// Putting the new edges in $base
-		for(final AbstractEdge edge : subgraphNotPresent.edgeSet()){
-			storage.putEdge(edge);
+	private void insertLiteralEdgeInBatches(final long batchSize, final Graph targetGraph, final List<String> hashes){
+		for(int i = 0; i < hashes.size(); i += batchSize){
+			insertLiteralEdge(targetGraph,
+					new ArrayList<String>(hashes.subList(i, (int)Math.min(hashes.size(), i + batchSize))));
 		}
+	}
 
-		storage.flushTransactions(true);
+	/**
+	 * Puts the vertices which are not in the storage yet and adds all of them to 'targetGraph'.
+	 * Returns the number of vertices which were put.
+	 *
+	 * Storages should override this with a single operation. The default looks up the existing vertices first, and
+	 * the ones it puts cannot be added to 'targetGraph' until the storage has written them. Their hashes are
+	 * appended to 'unlinkedHashes' instead and added by {@link #putGraph} after one flush.
+	 */
+	protected int upsertVertices(final Graph targetGraph, final List<AbstractVertex> vertices,
+			final List<String> unlinkedHashes){
+		final ArrayList<String> hashes = new ArrayList<String>();
+		for(final AbstractVertex vertex : vertices){
+			hashes.add(vertex.bigHashCode());
+		}
+		final Graph existingGraph = createNewGraph();
+		insertLiteralVertex(existingGraph, hashes);
+		final Set<String> existingHashes = exportVertices(existingGraph).keySet();
+		unionGraph(targetGraph, existingGraph);
 
-		HelperFunctions.sleepSafe(50);
+		final AbstractStorage storage = getStorage();
+		int putCount = 0;
+		for(final AbstractVertex vertex : vertices){
+			final String hash = vertex.bigHashCode();
+			if(!existingHashes.contains(hash) && storage.putVertex(vertex)){
+				unlinkedHashes.add(hash);
+				putCount++;
+			}
+		}
+		return putCount;
+	}
 
-		// The vertices/edges that were not in $base (but were in 'graph') are now in
-		// $base
-		// Insert the just-added vertices and edges to 'targetGraph'
-		insertVertexHashesInBatches(putGraphBatchSize, verticesGraph, graph);
-		insertEdgeHashesInBatches(putGraphBatchSize, edgesGraph, graph);
+	/**
+	 * Same as {@link #upsertVertices} but for edges
+	 */
+	protected int upsertEdges(final Graph targetGraph, final List<AbstractEdge> edges,
+			final List<String> unlinkedHashes){
+		final ArrayList<String> hashes = new ArrayList<String>();
+		for(final AbstractEdge edge : edges){
+			hashes.add(edge.bigHashCode());
+		}
+		final Graph existingGraph = createNewGraph();
+		insertLiteralEdge(existingGraph, hashes);
+		final Set<String> existingHashes = new HashSet<String>();
+		for(final QueriedEdge existingEdge : exportEdges(existingGraph)){
+			existingHashes.add(existingEdge.edgeHash);
+		}
+		unionGraph(targetGraph, existingGraph);
 
-		// Union into one variable 'targetGraph'
-		unionGraph(targetGraph, verticesGraph);
-		unionGraph(targetGraph, edgesGraph);
+		final AbstractStorage storage = getStorage();
+		int putCount = 0;
+		for(final AbstractEdge edge : edges){
+			final String hash = edge.bigHashCode();
+			if(!existingHashes.contains(hash) && storage.putEdge(edge)){
+				unlinkedHashes.add(hash);
+				putCount++;
+			}
+		}
+		return putCount;
 	}
 
 	public void insertVertexHashesInBatches(final long putGraphBatchSize, final Graph targetGraph,
@@ -544,16 +724,20 @@ public abstract class QueryInstructionExecutor{
 			}
 			transformerInitialized = true;
 
-			final spade.core.Graph subjectGraphExported = exportGraph(subjectGraph, true);
-			final Result<spade.core.Graph> executeResult = AbstractTransformer.execute(transformer, subjectGraphExported,
-					executionContext);
-			if(executeResult.error){
-				throw new RuntimeException(executeResult.errorMessage, executeResult.exception);
-			}
+			if(transformer.isEdgeLocal()){
+				transformGraphInEdgeBatches(putGraphBatchSize, transformer, executionContext, outputGraph, subjectGraph);
+			}else{
+				final spade.core.Graph subjectGraphExported = exportGraph(subjectGraph, true);
+				final Result<spade.core.Graph> executeResult = AbstractTransformer.execute(transformer, subjectGraphExported,
+						executionContext);
+				if(executeResult.error){
+					throw new RuntimeException(executeResult.errorMessage, executeResult.exception);
+				}
 
-			final spade.core.Graph transformedGraph = executeResult.result.copyContents();
+				final spade.core.Graph transformedGraph = executeResult.result.copyContents();
 
-			putGraph(putGraphBatchSize, outputGraph, transformedGraph);
+				putGraph(putGraphBatchSize, outputGraph, transformedGraph);
+			}
 		}finally{
 			if(transformerInitialized){
 				final Result<Boolean> shutdownResult = AbstractTransformer.destroy(transformer);
@@ -564,6 +748,62 @@ public abstract class QueryInstructionExecutor{
 		}
 	}
 
+	/**
+	 * Runs an edge-local transformer on one batch of edges (with the endpoints) at a time.
+	 * The edges are read from a copy of the subject graph so that the writes to the base graph are not visited.
+	 */
+	private final void transformGraphInEdgeBatches(final long putGraphBatchSize, final AbstractTransformer transformer,
+			final AbstractTransformer.ExecutionContext executionContext, final Graph outputGraph, final Graph subjectGraph){
+		final Graph subjectGraphSnapshot = createNewGraph();
+		unionGraph(subjectGraphSnapshot, subjectGraph);
+		final Graph endpointGraph = createNewGraph();
+		try(final BatchIterator<Set<QueriedEdge>> edgeBatches =
+				exportEdgesInBatches(subjectGraphSnapshot, exportBatchSize)){
+			while(edgeBatches.hasNextBatch()){
+				final Set<QueriedEdge> queriedEdges = edgeBatches.nextBatch();
+				final Set<String> endpointHashes = new HashSet<String>();
+				for(final QueriedEdge queriedEdge : queriedEdges){
+					endpointHashes.add(queriedEdge.childHash);
+					endpointHashes.add(queriedEdge.parentHash);
+				}
+				createEmptyGraph(endpointGraph);
+				insertLiteralVertex(endpointGraph, new ArrayList<String>(endpointHashes));
+
+				final spade.core.Graph batchGraph = new spade.core.Graph();
+				final Map<String, AbstractVertex> verticesMap = new HashMap<String, AbstractVertex>();
+				for(final Map.Entry<String, Map<String, String>> entry : exportVertices(endpointGraph).entrySet()){
+					final AbstractVertex vertex = new Vertex(entry.getKey()); // always create reference vertices
+					vertex.addAnnotations(entry.getValue());
+					verticesMap.put(entry.getKey(), vertex);
+					batchGraph.vertexSet().add(vertex);
+				}
+				for(final QueriedEdge queriedEdge : queriedEdges){
+					AbstractVertex child = verticesMap.get(queriedEdge.childHash);
+					AbstractVertex parent = verticesMap.get(queriedEdge.parentHash);
+					if(child == null){
+						child = new Vertex(queriedEdge.childHash);
+					}
+					if(parent == null){
+						parent = new Vertex(queriedEdge.parentHash);
+					}
+					final AbstractEdge edge = new Edge(queriedEdge.edgeHash, child, parent);
+					edge.addAnnotations(queriedEdge.getCopyOfAnnotations());
+					batchGraph.edgeSet().add(edge);
+				}
+
+				final Result<spade.core.Graph> executeResult = AbstractTransformer.execute(transformer, batchGraph,
+						executionContext);
+				if(executeResult.error){
+					throw new RuntimeException(executeResult.errorMessage, executeResult.exception);
+				}
+				putGraph(putGraphBatchSize, outputGraph, executeResult.result.copyContents());
+			}
+		}finally{
+			createEmptyGraph(endpointGraph);
+			createEmptyGraph(subjectGraphSnapshot);
+		}
+	}
+
 	public final ArrayList<Integer> getPathLengths(final Graph subjectGraph, final Graph startGraph, 
 			final Graph toGraph, final int maxDepth){
 		final java.util.ArrayList<Integer> result = new java.util.ArrayList<Integer>();
@@ -85,6 +85,7 @@ import spade.query.quickgrail.parser.ParseVariable;
 import spade.query.quickgrail.types.Type;
 import spade.query.quickgrail.types.TypeID;
 import spade.query.quickgrail.types.TypedValue;
+import spade.query.quickgrail.utility.PredicateCompiler;
 import spade.query.quickgrail.utility.QuickGrailPredicateTree;
 import spade.query.quickgrail.utility.QuickGrailPredicateTree.PredicateNode;
 import spade.utility.FileUtility;
@@ -1071,28 +1072,7 @@ public class QuickGrailQueryResolver{
 	
 	private Graph resolveGetVertexOrEdgeComparison(Graph.Component component, Graph subjectGraph,
 			PredicateNode predicateNode, Graph outputGraph){
-		PredicateOperator predicateOperator = null;
-		switch(predicateNode.value){
-		case QuickGrailPredicateTree.COMPARATOR_EQUAL1: case QuickGrailPredicateTree.COMPARATOR_EQUAL2:
-			predicateOperator = PredicateOperator.EQUAL; break;
-		case QuickGrailPredicateTree.COMPARATOR_NOT_EQUAL1: case QuickGrailPredicateTree.COMPARATOR_NOT_EQUAL2:
-			predicateOperator = PredicateOperator.NOT_EQUAL; break;
-		case QuickGrailPredicateTree.COMPARATOR_LESS:
-			predicateOperator = PredicateOperator.LESSER; break;
-		case QuickGrailPredicateTree.COMPARATOR_LESS_EQUAL:
-			predicateOperator = PredicateOperator.LESSER_EQUAL; break;
-		case QuickGrailPredicateTree.COMPARATOR_GREATER:
-			predicateOperator = PredicateOperator.GREATER; break;
-		case QuickGrailPredicateTree.COMPARATOR_GREATER_EQUAL:
-			predicateOperator = PredicateOperator.GREATER_EQUAL; break;
-		case QuickGrailPredicateTree.COMPARATOR_LIKE:
-			predicateOperator = PredicateOperator.LIKE; break;
-		case QuickGrailPredicateTree.COMPARATOR_REGEX1: case QuickGrailPredicateTree.COMPARATOR_REGEX2:
-			predicateOperator = PredicateOperator.REGEX; break;
-		default:
-			throw new RuntimeException(
-					"Unexpected comparator: " + predicateNode.value);
-		}
+		final PredicateOperator predicateOperator = PredicateCompiler.toPredicateOperator(predicateNode.value);
 
 		if(outputGraph == null){
 			outputGraph = allocateEmptyGraph();
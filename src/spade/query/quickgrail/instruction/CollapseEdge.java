@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -65,6 +66,16 @@ public class CollapseEdge extends Instruction<String>{
 		inline_field_values.add(String.join(",", fields == null ? new ArrayList<String>() : fields));
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, sourceGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.collapseEdge(targetGraph, sourceGraph, getFields());
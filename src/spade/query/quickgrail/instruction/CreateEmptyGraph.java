@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -55,6 +56,16 @@ public class CreateEmptyGraph extends Instruction<String>{
 		inline_field_values.add(graph.name);
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(graph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(graph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.createEmptyGraph(graph);
@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -51,6 +52,16 @@ public class CreateEmptyGraphMetadata extends Instruction<String>{
 		inline_field_values.add(metadata.name);
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(metadata);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(metadata);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.createEmptyGraphMetadata(metadata);
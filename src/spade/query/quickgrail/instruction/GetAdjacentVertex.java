@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -58,6 +59,16 @@ public class GetAdjacentVertex extends Instruction<String>{
 		inline_field_values.add(sourceGraph.name);
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, subjectGraph, sourceGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.getAdjacentVertex(targetGraph, subjectGraph, sourceGraph, direction);
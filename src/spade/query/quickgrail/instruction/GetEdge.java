@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -77,6 +78,16 @@ public class GetEdge extends Instruction<String>{
 		inline_field_values.add(String.valueOf(annotationValue));
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, subjectGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.getEdge(targetGraph, subjectGraph, annotationKey, operator, annotationValue, hasArguments());
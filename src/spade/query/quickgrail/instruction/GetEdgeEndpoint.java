@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -65,6 +66,16 @@ public class GetEdgeEndpoint extends Instruction<String>{
 		inline_field_values.add(component.name().substring(1));
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, subjectGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.getEdgeEndpoint(targetGraph, subjectGraph, component);
@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import spade.core.AbstractTransformer;
@@ -34,6 +35,9 @@ import spade.query.quickgrail.utility.TreeStringSerializable;
 public class GetLineage extends Instruction<String>{
 
 	public static final Logger logger = Logger.getLogger(GetLineage.class.getName());
+
+	// Lineage instructions update the shared transformer execution context and must stay in program order
+	protected static final String transformerExecutionContextName = "<transformer execution context>";
 	
 	public static enum Direction{
 		kAncestor, kDescendant, kBoth
@@ -89,6 +93,16 @@ public class GetLineage extends Instruction<String>{
 		context.setDirection(direction);
 	}
 
+	@Override
+	public Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, subjectGraph, startGraph, transformerExecutionContextName);
+	}
+
+	@Override
+	public Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph, transformerExecutionContextName);
+	}
+
 	@Override
 	public String execute(final QueryInstructionExecutor executor){
 		if(executor.getGraphCount(startGraph).getVertices() <= 0){
@@ -21,6 +21,7 @@ package spade.query.quickgrail.instruction;
 
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -91,6 +92,20 @@ public class GetPath extends Instruction<String>{
 		}
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		final Set<String> names = toDependencyNames(targetGraph, subjectGraph, srcGraph);
+		for(final SimpleEntry<Graph, Integer> intermediateStep : intermediateSteps){
+			names.add(intermediateStep.getKey().name);
+		}
+		return names;
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.getPath(targetGraph, subjectGraph, srcGraph, intermediateSteps);
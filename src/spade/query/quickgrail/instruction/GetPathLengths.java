@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -38,6 +39,16 @@ public class GetPathLengths extends Instruction<java.util.ArrayList<Integer>>{
 		this.maxDepth = maxDepth;
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(startGraph, subjectGraph, toGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames();
+	}
+
 	@Override
 	public java.util.ArrayList<Integer> execute(final QueryInstructionExecutor executor){
 		return executor.getPathLengths(subjectGraph, startGraph, toGraph, maxDepth);
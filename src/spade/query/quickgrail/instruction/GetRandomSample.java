@@ -22,6 +22,7 @@ package spade.query.quickgrail.instruction;
 import java.util.ArrayList;
 import java.util.PrimitiveIterator.OfLong;
 import java.util.Random;
+import java.util.Set;
 import java.util.stream.LongStream;
 
 import spade.query.quickgrail.core.GraphStatistic;
@@ -90,6 +91,16 @@ public class GetRandomSample extends Instruction<String>{
 		return null;
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, sourceGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		final GraphStatistic.Count count = executor.getGraphCount(sourceGraph);
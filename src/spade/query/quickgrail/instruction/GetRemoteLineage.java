@@ -20,26 +20,39 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.core.AbstractVertex;
-import spade.core.Kernel;
+import spade.core.Query;
 import spade.core.Settings;
 import spade.query.quickgrail.core.GraphStatistic;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
 import spade.query.quickgrail.core.QuickGrailQueryResolver.PredicateOperator;
 import spade.query.quickgrail.entities.Graph;
 import spade.reporter.audit.OPMConstants;
+import spade.resolver.RemoteLineageResolver;
 import spade.utility.DiscrepancyDetector;
 import spade.utility.HelperFunctions;
 import spade.utility.RemoteSPADEQueryConnection;
+import spade.utility.RemoteSPADEQueryConnectionPool;
 
 public class GetRemoteLineage extends GetLineage{
 
 	private static final Logger logger = Logger.getLogger(GetRemoteLineage.class.getName());
 
+	private static final int maxConcurrentHosts = 10;
+
 	private static final Object lock = new Object();
 	private static DiscrepancyDetector discrepancyDetector = null;
 
@@ -52,6 +65,12 @@ public class GetRemoteLineage extends GetLineage{
 		return "GetRemoteLineage";
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		// Contacts remote hosts and updates remote symbols
+		return null;
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		synchronized(lock){
@@ -64,11 +83,13 @@ public class GetRemoteLineage extends GetLineage{
 			}
 		}
 
+		// Remote network vertices already resolved in this lineage query
+		final Map<String, Integer> resolvedRemoteDepths = new HashMap<String, Integer>();
 		if(Direction.kAncestor.equals(direction) || Direction.kDescendant.equals(direction)){
-			executeOneDirection(executor, direction);
+			executeOneDirection(executor, direction, resolvedRemoteDepths);
 		}else if(Direction.kBoth.equals(direction)){
-			executeOneDirection(executor, Direction.kAncestor);
-			executeOneDirection(executor, Direction.kDescendant);
+			executeOneDirection(executor, Direction.kAncestor, resolvedRemoteDepths);
+			executeOneDirection(executor, Direction.kDescendant, resolvedRemoteDepths);
 		}else{
 			throw new RuntimeException(
 					"Unexpected direction: '" + direction + "'. Expected: Ancestor, Descendant or Both");
@@ -76,26 +97,18 @@ public class GetRemoteLineage extends GetLineage{
 		return null;
 	}
 
-	private final void executeOneDirection(final QueryInstructionExecutor executor, final Direction direction){
-		Graph networkVerticesGraph = executor.createNewGraph();
+	private final void executeOneDirection(final QueryInstructionExecutor executor, final Direction direction,
+			final Map<String, Integer> resolvedRemoteDepths){
+		final Graph networkVerticesGraph = executor.createNewGraph();
 		executor.getVertex(networkVerticesGraph, targetGraph, OPMConstants.ARTIFACT_SUBTYPE, PredicateOperator.EQUAL,
 				OPMConstants.SUBTYPE_NETWORK_SOCKET, true);
-		GraphStatistic.Count networkVerticesCount = executor.getGraphCount(networkVerticesGraph);
-		while(networkVerticesCount.getVertices() > 0){
-			// Get one network vertex
-			final Graph oneNetworkVertexGraph = executor.createNewGraph();
-			executor.limitGraph(oneNetworkVertexGraph, networkVerticesGraph, 1);
-
-			final Graph tmpNetworkVerticesGraph = executor.createNewGraph();
-			// Remove the found network vertices from the working set (i.e.
-			// networkVerticesGraph)
-			executor.subtractGraph(tmpNetworkVerticesGraph, networkVerticesGraph, oneNetworkVertexGraph,
-					Graph.Component.kVertex);
-			executor.clearGraph(networkVerticesGraph);
-			networkVerticesGraph = tmpNetworkVerticesGraph;
-			// Update the graph count variable
-			networkVerticesCount = executor.getGraphCount(networkVerticesGraph);
+		final spade.core.Graph networkVertices = executor.exportGraph(networkVerticesGraph, true);
 
+		final Map<AbstractVertex, Integer> localNetworkVertexToLocalDepth = new HashMap<AbstractVertex, Integer>();
+		for(final AbstractVertex networkVertex : networkVertices.vertexSet()){
+			final Graph oneNetworkVertexGraph = executor.createNewGraph();
+			executor.insertLiteralVertex(oneNetworkVertexGraph,
+					new ArrayList<String>(Arrays.asList(networkVertex.bigHashCode())));
 			final ArrayList<Integer> oneNetworkVertexDepths;
 			if(direction == Direction.kAncestor){
 				oneNetworkVertexDepths = executor.getPathLengths(subjectGraph, startGraph, oneNetworkVertexGraph,
@@ -104,130 +117,122 @@ public class GetRemoteLineage extends GetLineage{
 				oneNetworkVertexDepths = executor.getPathLengths(subjectGraph, oneNetworkVertexGraph, startGraph,
 						depth);
 			}
-			final Integer oneNetworkVertexMinDepth = HelperFunctions.min(oneNetworkVertexDepths);
-			final spade.core.Graph oneNetworkVertexGraphMaterialized = executor.exportGraph(oneNetworkVertexGraph,
-					true);
-			final AbstractVertex oneNetworkVertexMaterialized = oneNetworkVertexGraphMaterialized.vertexSet().iterator()
-					.next();
+			localNetworkVertexToLocalDepth.put(networkVertex, HelperFunctions.min(oneNetworkVertexDepths));
+		}
 
-			RemoteSPADEQueryConnection connection = null;
-			try{
-				final String remoteAddress = getRemoteAddress(oneNetworkVertexMaterialized);
-				final int spadeQueryPort = Settings.getCommandLineQueryPort();
-				connection = new RemoteSPADEQueryConnection(Kernel.getHostName(), remoteAddress, spadeQueryPort);
-				connection.connect(Kernel.getClientSocketFactory(), 5 * 1000);
-
-				final String remoteVerticesPredicate = buildRemoteGetVertexPredicate(oneNetworkVertexMaterialized);
-				final String remoteVerticesSymbol = connection.getBaseVertices(remoteVerticesPredicate);
-				final GraphStatistic.Count remoteVerticesCount = connection.getGraphCount(remoteVerticesSymbol);
-				if(remoteVerticesCount.getVertices() <= 0){
-					continue;
-				}
-				final Integer remoteDepth = depth - oneNetworkVertexMinDepth;
-				final String remoteLineageSymbol = connection.getBaseLineage(remoteVerticesSymbol, remoteDepth,
-						direction);
-				final GraphStatistic.Count remoteLineageStats = connection.getGraphCount(remoteLineageSymbol);
-				if(remoteLineageStats.isEmpty()){
-					continue;
-				}
-				final String toLinkSymbolName = connection.generateUniqueRemoteSymbolName();
-				connection.executeQuery(toLinkSymbolName + " = " + remoteLineageSymbol);
-
-				synchronized(lock){
-					try{
-						final boolean isValidRemoteGraph;
-						if(discrepancyDetector.isFindInconsistency()){
-							final boolean force = true;
-							final boolean verify = false;
-							final spade.core.Graph remoteLineageGraph = connection.exportGraph(remoteLineageSymbol, force, verify);
-							final spade.core.Graph remoteVertexGraph = connection.exportGraph(remoteVerticesSymbol, force, verify);
-
-							isValidRemoteGraph = discrepancyDetector.doDiscrepancyDetection(
-									remoteLineageGraph, new HashSet<AbstractVertex>(remoteVertexGraph.vertexSet()), 
-									remoteDepth, direction, remoteLineageGraph.getHostName()
-											);
-						}else{
-							// Everything is valid if discrepancyDetector disabled
-							isValidRemoteGraph = true;
-						}
-						if(isValidRemoteGraph == false){
-							logger.log(Level.WARNING, "Discrepancies found in result graph. Remote graph discarded.");
-						}else{
-							executor.getQueryEnvironment().setRemoteSymbol(targetGraph,
-									new Graph.Remote(remoteAddress, spadeQueryPort, toLinkSymbolName));
-						}
-					}catch(Exception e){
-						throw new RuntimeException("Failed to detect discrepancies in remote graph", e);
-					}
-				}
-			}catch(Exception e){
-				logger.log(Level.WARNING, "Failed to query remote SPADE server", e);
-			}finally{
-				if(connection != null){
-					try{
-						connection.close();
-					}catch(Exception e){
+		final Map<String, List<RemoteLineageResolver.RemoteSources>> remoteSourcesByHost =
+				new LinkedHashMap<String, List<RemoteLineageResolver.RemoteSources>>();
+		for(final RemoteLineageResolver.RemoteSources remoteSources : RemoteLineageResolver.groupRemoteSources(
+				localNetworkVertexToLocalDepth, depth, direction, resolvedRemoteDepths)){
+			List<RemoteLineageResolver.RemoteSources> hostRemoteSources = remoteSourcesByHost.get(remoteSources.remoteAddress);
+			if(hostRemoteSources == null){
+				hostRemoteSources = new ArrayList<RemoteLineageResolver.RemoteSources>();
+				remoteSourcesByHost.put(remoteSources.remoteAddress, hostRemoteSources);
+			}
+			hostRemoteSources.add(remoteSources);
+		}
+		if(remoteSourcesByHost.isEmpty()){
+			return;
+		}
 
+		// Hosts are queried at the same time
+		final int spadeQueryPort = Settings.getCommandLineQueryPort();
+		final ExecutorService executorService = Executors.newFixedThreadPool(
+				Math.min(maxConcurrentHosts, remoteSourcesByHost.size()));
+		try{
+			final Map<String, Future<List<Graph.Remote>>> futures = new LinkedHashMap<String, Future<List<Graph.Remote>>>();
+			for(final Map.Entry<String, List<RemoteLineageResolver.RemoteSources>> entry : remoteSourcesByHost.entrySet()){
+				futures.put(entry.getKey(), executorService.submit(
+						() -> resolveOnHost(entry.getKey(), spadeQueryPort, entry.getValue(), direction)));
+			}
+			for(final Map.Entry<String, Future<List<Graph.Remote>>> entry : futures.entrySet()){
+				try{
+					for(final Graph.Remote remote : entry.getValue().get()){
+						executor.getQueryEnvironment().setRemoteSymbol(targetGraph, remote);
 					}
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to query remote SPADE server: " + entry.getKey(), e);
 				}
 			}
+		}finally{
+			executorService.shutdown();
 		}
 	}
 
-	private String buildRemoteGetVertexPredicate(final AbstractVertex localNetworkVertex){
-		String predicate = "";
-		predicate += formatQueryName(getAnnotationLocalAddress()) + "="
-				+ formatQueryValue(getRemoteAddress(localNetworkVertex));
-		predicate += " and ";
-		predicate += formatQueryName(getAnnotationLocalPort()) + "="
-				+ formatQueryValue(getRemotePort(localNetworkVertex));
-		predicate += " and ";
-		predicate += formatQueryName(getAnnotationRemoteAddress()) + "="
-				+ formatQueryValue(getLocalAddress(localNetworkVertex));
-		predicate += " and ";
-		predicate += formatQueryName(getAnnotationRemotePort()) + "="
-				+ formatQueryValue(getLocalPort(localNetworkVertex));
-		return predicate;
-	}
-
-	private String formatQueryName(String name){
-		return '"' + name + '"';
-	}
-
-	private String formatQueryValue(String name){
-		return "'" + name + "'";
-	}
-
-	private String getAnnotationRemoteAddress(){
-		return OPMConstants.ARTIFACT_REMOTE_ADDRESS;
-	}
-
-	private String getAnnotationLocalAddress(){
-		return OPMConstants.ARTIFACT_LOCAL_ADDRESS;
-	}
-
-	private String getAnnotationLocalPort(){
-		return OPMConstants.ARTIFACT_LOCAL_PORT;
-	}
-
-	private String getAnnotationRemotePort(){
-		return OPMConstants.ARTIFACT_REMOTE_PORT;
-	}
-
-	private String getRemoteAddress(AbstractVertex networkVertex){
-		return networkVertex.getAnnotation(getAnnotationRemoteAddress());
-	}
-
-	private String getLocalAddress(AbstractVertex networkVertex){
-		return networkVertex.getAnnotation(getAnnotationLocalAddress());
-	}
-
-	private String getRemotePort(AbstractVertex networkVertex){
-		return networkVertex.getAnnotation(getAnnotationRemotePort());
+	/**
+	 * Resolves all the remote sources of the host on one pooled connection. All the lineage queries are sent together.
+	 * Returns the remote symbols to link.
+	 */
+	private final List<Graph.Remote> resolveOnHost(final String remoteAddress, final int spadeQueryPort,
+			final List<RemoteLineageResolver.RemoteSources> hostRemoteSources, final Direction direction)
+			throws Exception{
+		final RemoteSPADEQueryConnectionPool pool = RemoteSPADEQueryConnectionPool.getDefault();
+		final RemoteSPADEQueryConnection connection = pool.borrow(remoteAddress, spadeQueryPort, null);
+		try{
+			final List<String> toLinkSymbolNames = connection.generateUniqueRemoteSymbolNames(hostRemoteSources.size());
+			final List<Query> queries = new ArrayList<Query>();
+			for(int i = 0; i < hostRemoteSources.size(); i++){
+				final RemoteLineageResolver.RemoteSources remoteSources = hostRemoteSources.get(i);
+				final String toLinkSymbolName = toLinkSymbolNames.get(i);
+				final String query = toLinkSymbolName + " = $base.getLineage($base.getVertex("
+						+ remoteSources.getMergedPredicate() + "), " + remoteSources.remoteDepth + ", "
+						+ RemoteLineageResolver.getFormattedDirection(direction) + "); stat " + toLinkSymbolName + ";";
+				queries.add(new Query(connection.localHostName, remoteAddress, query, null));
+			}
+			final List<Query> responses = connection.executeQueries(queries);
+
+			final List<Graph.Remote> remotes = new ArrayList<Graph.Remote>();
+			String unusedSymbolNames = "";
+			for(int i = 0; i < hostRemoteSources.size(); i++){
+				final RemoteLineageResolver.RemoteSources remoteSources = hostRemoteSources.get(i);
+				final String toLinkSymbolName = toLinkSymbolNames.get(i);
+				final GraphStatistic.Count remoteLineageStats = (GraphStatistic.Count)responses.get(i).getResult();
+				if(!remoteLineageStats.isEmpty() && isValidRemoteGraph(connection, toLinkSymbolName, remoteSources,
+						direction)){
+					remotes.add(new Graph.Remote(remoteAddress, spadeQueryPort, toLinkSymbolName));
+				}else{
+					unusedSymbolNames += " " + toLinkSymbolName;
+				}
+			}
+			if(!unusedSymbolNames.isEmpty()){
+				connection.executeQuery("erase" + unusedSymbolNames);
+			}
+			pool.release(connection);
+			return remotes;
+		}catch(Exception e){
+			pool.invalidate(connection);
+			throw e;
+		}
 	}
 
-	private String getLocalPort(AbstractVertex networkVertex){
-		return networkVertex.getAnnotation(getAnnotationLocalPort());
+	private final boolean isValidRemoteGraph(final RemoteSPADEQueryConnection connection,
+			final String remoteLineageSymbol, final RemoteLineageResolver.RemoteSources remoteSources,
+			final Direction direction){
+		synchronized(lock){
+			try{
+				final boolean isValidRemoteGraph;
+				if(discrepancyDetector.isFindInconsistency()){
+					final boolean force = true;
+					final boolean verify = false;
+					final spade.core.Graph remoteLineageGraph = connection.exportGraph(remoteLineageSymbol, force, verify);
+					final spade.core.Graph remoteVertexGraph = connection.exportGraph(
+							"$base.getVertex(" + remoteSources.getMergedPredicate() + ")", force, verify);
+
+					isValidRemoteGraph = discrepancyDetector.doDiscrepancyDetection(
+							remoteLineageGraph, new HashSet<AbstractVertex>(remoteVertexGraph.vertexSet()),
+							remoteSources.remoteDepth, direction, remoteLineageGraph.getHostName()
+									);
+				}else{
+					// Everything is valid if discrepancyDetector disabled
+					isValidRemoteGraph = true;
+				}
+				if(isValidRemoteGraph == false){
+					logger.log(Level.WARNING, "Discrepancies found in result graph. Remote graph discarded.");
+				}
+				return isValidRemoteGraph;
+			}catch(Exception e){
+				throw new RuntimeException("Failed to detect discrepancies in remote graph", e);
+			}
+		}
 	}
-
 }
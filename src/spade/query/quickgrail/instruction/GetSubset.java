@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.GraphStatistic;
 import spade.query.quickgrail.core.Instruction;
@@ -114,6 +115,16 @@ public class GetSubset extends Instruction<String>{
 		return null;
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetGraph, sourceGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		final GraphStatistic.Count count = executor.getGraphCount(sourceGraph);
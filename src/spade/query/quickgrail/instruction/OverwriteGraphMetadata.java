@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -58,6 +59,16 @@ public class OverwriteGraphMetadata extends Instruction<String>{
 		inline_field_values.add(rhsMetadata.name);
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetMetadata, lhsMetadata, rhsMetadata);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetMetadata);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.overwriteGraphMetadata(targetMetadata, lhsMetadata, rhsMetadata);
@@ -21,6 +21,7 @@ package spade.query.quickgrail.instruction;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -240,6 +241,16 @@ public abstract class RemoteVariableOperation<R extends Serializable> extends In
 			inline_field_values.add(srcGraph.name);
 		}
 
+		@Override
+		public final Set<String> getDependencyNames(){
+			return toDependencyNames(dstGraph, srcGraph);
+		}
+
+		@Override
+		public final Set<String> getWrittenDependencyNames(){
+			return toDependencyNames(dstGraph);
+		}
+
 		@Override
 		public final String execute(final QueryInstructionExecutor executor){
 			executor.getQueryEnvironment().copyRemoteSymbols(dstGraph, srcGraph);
@@ -276,6 +287,16 @@ public abstract class RemoteVariableOperation<R extends Serializable> extends In
 			inline_field_values.add(rhsGraph.name);
 		}
 
+		@Override
+		public final Set<String> getDependencyNames(){
+			return toDependencyNames(resultGraph, lhsGraph, rhsGraph);
+		}
+
+		@Override
+		public final Set<String> getWrittenDependencyNames(){
+			return toDependencyNames(resultGraph);
+		}
+
 		@Override
 		public final String execute(final QueryInstructionExecutor executor){
 			executor.getQueryEnvironment().intersectRemoteSymbols(resultGraph, lhsGraph, rhsGraph);
@@ -312,6 +333,16 @@ public abstract class RemoteVariableOperation<R extends Serializable> extends In
 			inline_field_values.add(rhsGraph.name);
 		}
 
+		@Override
+		public final Set<String> getDependencyNames(){
+			return toDependencyNames(resultGraph, lhsGraph, rhsGraph);
+		}
+
+		@Override
+		public final Set<String> getWrittenDependencyNames(){
+			return toDependencyNames(resultGraph);
+		}
+
 		@Override
 		public final String execute(final QueryInstructionExecutor executor){
 			executor.getQueryEnvironment().subtractRemoteSymbols(resultGraph, lhsGraph, rhsGraph);
@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -73,6 +74,16 @@ public class SetGraphMetadata extends Instruction<String>{
 		inline_field_values.add(value);
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(targetMetadata, sourceGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(targetMetadata);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.setGraphMetadata(targetMetadata, component, sourceGraph, name, value);
@@ -20,6 +20,7 @@
 package spade.query.quickgrail.instruction;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import spade.query.quickgrail.core.Instruction;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
@@ -69,6 +70,16 @@ public class SubtractGraph extends Instruction<String>{
 		}
 	}
 
+	@Override
+	public final Set<String> getDependencyNames(){
+		return toDependencyNames(outputGraph, minuendGraph, subtrahendGraph);
+	}
+
+	@Override
+	public final Set<String> getWrittenDependencyNames(){
+		return toDependencyNames(outputGraph);
+	}
+
 	@Override
 	public final String execute(final QueryInstructionExecutor executor){
 		executor.subtractGraph(outputGraph, minuendGraph, subtrahendGraph, component);
@@ -0,0 +1,222 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.quickgrail.utility;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.query.quickgrail.core.QuickGrailQueryResolver.PredicateOperator;
+import spade.query.quickgrail.parser.DSLParserWrapper;
+import spade.query.quickgrail.parser.ParseAssignment;
+import spade.query.quickgrail.parser.ParseProgram;
+import spade.query.quickgrail.parser.ParseStatement;
+import spade.query.quickgrail.utility.QuickGrailPredicateTree.PredicateNode;
+
+/**
+ * Compiles QuickGrail predicates into Java predicates so that vertices and edges outside of a storage (filters,
+ * screens, transformers, result graphs) can be matched using the same predicate language.
+ *
+ * Regexes and like patterns are compiled once. The annotation key '*' matches if any annotation matches.
+ * Ordering comparisons are lexicographic, like in the storages where annotations are strings, so that a predicate
+ * matches the same elements everywhere (e.g. '10' < '9').
+ */
+public final class PredicateCompiler{
+
+	private PredicateCompiler(){}
+
+	/**
+	 * Parses the predicate part of a QuickGrail predicate assignment. For example: "type" == 'Process' and "pid" > '100'.
+	 * Predicate variables are not allowed.
+	 */
+	public static PredicateNode parsePredicate(final String predicateText){
+		if(predicateText == null || predicateText.trim().isEmpty()){
+			throw new IllegalArgumentException("NULL/Empty predicate");
+		}
+		// Single line because a '%' followed by a newline is a comment
+		final String queryText = "%predicate = " + predicateText.replace('\r', ' ').replace('\n', ' ');
+		final ParseProgram parseProgram;
+		try{
+			parseProgram = new DSLParserWrapper().fromText(queryText);
+		}catch(Exception e){
+			throw new RuntimeException("Invalid predicate: " + predicateText, e);
+		}
+		if(parseProgram.getStatements().size() != 1){
+			throw new RuntimeException("Invalid predicate: " + predicateText);
+		}
+		final ParseStatement parseStatement = parseProgram.getStatements().get(0);
+		if(!(parseStatement instanceof ParseAssignment)){
+			throw new RuntimeException("Invalid predicate: " + predicateText);
+		}
+		final ParseAssignment parseAssignment = (ParseAssignment)parseStatement;
+		if(!QuickGrailPredicateTree.isGraphPredicateExpression(parseAssignment.getRhs())){
+			throw new RuntimeException("Not a predicate: " + predicateText);
+		}
+		return QuickGrailPredicateTree.resolveGraphPredicate(parseAssignment.getRhs(), null);
+	}
+
+	public static PredicateOperator toPredicateOperator(final String comparator){
+		switch(comparator){
+			case QuickGrailPredicateTree.COMPARATOR_EQUAL1: case QuickGrailPredicateTree.COMPARATOR_EQUAL2:
+				return PredicateOperator.EQUAL;
+			case QuickGrailPredicateTree.COMPARATOR_NOT_EQUAL1: case QuickGrailPredicateTree.COMPARATOR_NOT_EQUAL2:
+				return PredicateOperator.NOT_EQUAL;
+			case QuickGrailPredicateTree.COMPARATOR_LESS: return PredicateOperator.LESSER;
+			case QuickGrailPredicateTree.COMPARATOR_LESS_EQUAL: return PredicateOperator.LESSER_EQUAL;
+			case QuickGrailPredicateTree.COMPARATOR_GREATER: return PredicateOperator.GREATER;
+			case QuickGrailPredicateTree.COMPARATOR_GREATER_EQUAL: return PredicateOperator.GREATER_EQUAL;
+			case QuickGrailPredicateTree.COMPARATOR_LIKE: return PredicateOperator.LIKE;
+			case QuickGrailPredicateTree.COMPARATOR_REGEX1: case QuickGrailPredicateTree.COMPARATOR_REGEX2:
+				return PredicateOperator.REGEX;
+			default: throw new RuntimeException("Unexpected comparator: " + comparator);
+		}
+	}
+
+	public static Predicate<AbstractVertex> compileVertexPredicate(final PredicateNode predicateRoot){
+		return compile(predicateRoot, AbstractVertex::getAnnotation, AbstractVertex::getAnnotationKeys);
+	}
+
+	public static Predicate<AbstractEdge> compileEdgePredicate(final PredicateNode predicateRoot){
+		return compile(predicateRoot, AbstractEdge::getAnnotation, AbstractEdge::getAnnotationKeys);
+	}
+
+	public static Predicate<Map<String, String>> compileAnnotationsPredicate(final PredicateNode predicateRoot){
+		return compile(predicateRoot, Map::get, Map::keySet);
+	}
+
+	public static Predicate<AbstractVertex> compileVertexPredicate(final String annotationKey,
+			final PredicateOperator operator, final String annotationValue){
+		return compileComparison(annotationKey, compileValuePredicate(operator, annotationValue),
+				AbstractVertex::getAnnotation, AbstractVertex::getAnnotationKeys);
+	}
+
+	public static Predicate<AbstractEdge> compileEdgePredicate(final String annotationKey,
+			final PredicateOperator operator, final String annotationValue){
+		return compileComparison(annotationKey, compileValuePredicate(operator, annotationValue),
+				AbstractEdge::getAnnotation, AbstractEdge::getAnnotationKeys);
+	}
+
+	/**
+	 * Compiles the predicate tree for any element type given the functions to read the annotations of an element
+	 */
+	public static <T> Predicate<T> compile(final PredicateNode node, final BiFunction<T, String, String> getAnnotation,
+			final Function<T, Set<String>> getAnnotationKeys){
+		if(node == null){
+			throw new IllegalArgumentException("NULL predicate");
+		}
+		switch(node.value){
+			case QuickGrailPredicateTree.BOOLEAN_OPERATOR_AND:{
+				final Predicate<T> left = compile(node.getLeft(), getAnnotation, getAnnotationKeys);
+				final Predicate<T> right = compile(node.getRight(), getAnnotation, getAnnotationKeys);
+				return element -> left.test(element) && right.test(element);
+			}
+			case QuickGrailPredicateTree.BOOLEAN_OPERATOR_OR:{
+				final Predicate<T> left = compile(node.getLeft(), getAnnotation, getAnnotationKeys);
+				final Predicate<T> right = compile(node.getRight(), getAnnotation, getAnnotationKeys);
+				return element -> left.test(element) || right.test(element);
+			}
+			case QuickGrailPredicateTree.BOOLEAN_OPERATOR_NOT:{
+				final Predicate<T> left = compile(node.getLeft(), getAnnotation, getAnnotationKeys);
+				return element -> !left.test(element);
+			}
+			default:{
+				if(node.getLeft() == null || node.getRight() == null){
+					throw new RuntimeException("Invalid comparison in predicate: " + node);
+				}
+				final Predicate<String> valuePredicate = compileValuePredicate(toPredicateOperator(node.value),
+						node.getRight().value);
+				return compileComparison(node.getLeft().value, valuePredicate, getAnnotation, getAnnotationKeys);
+			}
+		}
+	}
+
+	private static <T> Predicate<T> compileComparison(final String annotationKey, final Predicate<String> valuePredicate,
+			final BiFunction<T, String, String> getAnnotation, final Function<T, Set<String>> getAnnotationKeys){
+		if(annotationKey.equals("*")){
+			return element -> {
+				for(final String key : getAnnotationKeys.apply(element)){
+					final String value = getAnnotation.apply(element, key);
+					if(value != null && valuePredicate.test(value)){
+						return true;
+					}
+				}
+				return false;
+			};
+		}
+		// Missing annotations never match (like NULL in SQL)
+		return element -> {
+			final String value = getAnnotation.apply(element, annotationKey);
+			return value != null && valuePredicate.test(value);
+		};
+	}
+
+	public static Predicate<String> compileValuePredicate(final PredicateOperator operator, final String annotationValue){
+		switch(operator){
+			case EQUAL: return value -> value.equals(annotationValue);
+			case NOT_EQUAL: return value -> !value.equals(annotationValue);
+			case GREATER: return compileOrdering(annotationValue, comparison -> comparison > 0);
+			case GREATER_EQUAL: return compileOrdering(annotationValue, comparison -> comparison >= 0);
+			case LESSER: return compileOrdering(annotationValue, comparison -> comparison < 0);
+			case LESSER_EQUAL: return compileOrdering(annotationValue, comparison -> comparison <= 0);
+			case REGEX:{
+				final Pattern pattern = Pattern.compile(annotationValue);
+				return value -> pattern.matcher(value).find();
+			}
+			case LIKE:{
+				final Pattern pattern = Pattern.compile(convertLikeToRegex(annotationValue), Pattern.DOTALL);
+				return value -> pattern.matcher(value).matches();
+			}
+			default: throw new RuntimeException("Unexpected comparison operator");
+		}
+	}
+
+	private static interface ComparisonResult{
+		public boolean test(final int comparison);
+	}
+
+	private static Predicate<String> compileOrdering(final String annotationValue, final ComparisonResult result){
+		return value -> result.test(value.compareTo(annotationValue));
+	}
+
+	public static String convertLikeToRegex(final String likePattern){
+		final StringBuilder regex = new StringBuilder();
+		final StringBuilder literal = new StringBuilder();
+		for(final char c : likePattern.toCharArray()){
+			if(c == '%' || c == '_'){
+				if(literal.length() > 0){
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '%' ? ".*" : ".");
+			}else{
+				literal.append(c);
+			}
+		}
+		if(literal.length() > 0){
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return regex.toString();
+	}
+}
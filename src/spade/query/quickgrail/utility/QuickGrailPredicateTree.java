@@ -157,6 +157,9 @@ public class QuickGrailPredicateTree{
 				ParseVariable parseVariable = (ParseVariable)expression;
 				if(parseVariable.getType().getTypeID().equals(TypeID.kGraphPredicate)){
 					String symbolName = parseVariable.getName().getValue();
+					if(env == null){
+						throw new RuntimeException("Graph predicate variables not allowed here: " + symbolName);
+					}
 					GraphPredicate graphPredicate = env.getPredicateSymbol(symbolName);
 					if(graphPredicate == null){
 						throw new RuntimeException(
@@ -0,0 +1,190 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractReporter;
+import spade.core.AbstractVertex;
+import spade.core.GraphStream;
+import spade.core.Settings;
+import spade.storage.binarylog.BinaryLogReader;
+import spade.utility.FileUtility;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+
+/**
+ * Replays a binary log written by the storage spade.storage.BinaryLog.
+ *
+ * The blocks are read in order with memory-mapped reads. A log which was not closed by the storage (e.g. because of
+ * a crash) is replayed till its last complete block.
+ */
+public class BinaryLog extends AbstractReporter{
+
+	private final Logger logger = Logger.getLogger(BinaryLog.class.getName());
+
+	private static final String keyInput = "input", keyReportingIntervalSeconds = "reportingIntervalSeconds";
+
+	private String inputFilePath = null;
+	private long reportingIntervalMillis = 0;
+	private long lastReportedAtMillis = 0;
+
+	private BinaryLogReader reader = null;
+	private Thread mainThread = null;
+	private volatile boolean shutdown = false;
+
+	private long vertexCount = 0, edgeCount = 0;
+
+	private final GraphStream.Visitor visitor = new GraphStream.Visitor(){
+		@Override
+		public void visitVertex(final AbstractVertex vertex){
+			vertexCount++;
+			putVertex(vertex);
+		}
+
+		@Override
+		public void visitEdge(final AbstractEdge edge){
+			edgeCount++;
+			putEdge(edge);
+		}
+	};
+
+	private final Runnable main = new Runnable(){
+		@Override
+		public void run(){
+			lastReportedAtMillis = System.currentTimeMillis();
+			try{
+				for(int i = 0; i < reader.getBlockCount() && !shutdown; i++){
+					reader.readBlock(i, visitor);
+					printStats(false);
+				}
+				logger.log(Level.INFO, "Finished replaying binary log: " + inputFilePath);
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to replay binary log: " + inputFilePath, e);
+			}finally{
+				printStats(true);
+			}
+		}
+	};
+
+	private void printStats(final boolean force){
+		final long currentMillis = System.currentTimeMillis();
+		if(force || (reportingIntervalMillis > 0 && currentMillis - lastReportedAtMillis >= reportingIntervalMillis)){
+			logger.log(Level.INFO, "Vertices=" + vertexCount + ", Edges=" + edgeCount + ", Current Buffer Size="
+					+ getBuffer().size());
+			lastReportedAtMillis = currentMillis;
+		}
+	}
+
+	@Override
+	public synchronized boolean launch(final String arguments){
+		final Map<String, String> map = new HashMap<String, String>();
+		try{
+			final String configFilePath = Settings.getDefaultConfigFilePath(this.getClass());
+			map.putAll(HelperFunctions.parseKeyValuePairsFrom(arguments, configFilePath, null));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments and/or reporter config file", e);
+			return false;
+		}
+
+		final String inputFilePathString = map.remove(keyInput);
+		final String reportingIntervalSecondsString = map.remove(keyReportingIntervalSeconds);
+
+		try{
+			launch(inputFilePathString, reportingIntervalSecondsString);
+			logger.log(Level.INFO, "Arguments [" + keyInput + "=" + inputFilePathString + ", "
+					+ keyReportingIntervalSeconds + "=" + reportingIntervalSecondsString + "]");
+
+			if(!map.isEmpty()){
+				logger.log(Level.INFO, "Unused key-value pairs in the arguments and/or config file: " + map);
+			}
+
+			return true;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to launch reporter", e);
+			return false;
+		}
+	}
+
+	public final synchronized void launch(final String inputFilePathString, final String reportingIntervalSecondsString)
+			throws Exception{
+		if(reader != null){
+			throw new Exception("Reporter already launched");
+		}
+
+		final Result<Long> reportingIntervalSecondsResult =
+				HelperFunctions.parseLong(reportingIntervalSecondsString, 10, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		if(reportingIntervalSecondsResult.error){
+			throw new Exception("Invalid number of seconds to report stats at: '" + reportingIntervalSecondsString
+					+ "'. " + reportingIntervalSecondsResult.errorMessage);
+		}
+
+		try{
+			FileUtility.pathMustBeAReadableFile(inputFilePathString);
+		}catch(Exception e){
+			throw new Exception("Invalid input file path to read from: '" + inputFilePathString + "'", e);
+		}
+
+		try{
+			this.reader = new BinaryLogReader(inputFilePathString);
+		}catch(Exception e){
+			throw new Exception("Failed to open binary log: '" + inputFilePathString + "'", e);
+		}
+		this.inputFilePath = inputFilePathString;
+		this.reportingIntervalMillis = reportingIntervalSecondsResult.result * 1000;
+
+		if(!reader.isIndexed()){
+			logger.log(Level.WARNING, "Binary log was not closed properly. Replaying till the last complete block");
+		}
+		logger.log(Level.INFO, "Replaying " + reader.getBlockCount() + " block(s) with " + reader.getVertexCount()
+				+ " vertices and " + reader.getEdgeCount() + " edges");
+
+		mainThread = new Thread(main, this.getClass().getSimpleName() + "-reporter-thread");
+		mainThread.start();
+	}
+
+	@Override
+	public final boolean shutdown(){
+		shutdown = true;
+		final Thread thread = mainThread;
+		if(thread != null){
+			logger.log(Level.INFO, "Waiting for main thread to exit... ");
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				logger.log(Level.WARNING, "Interrupted while waiting for main thread to exit", e);
+			}
+		}
+		synchronized(this){
+			if(reader != null){
+				try{
+					reader.close();
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to close binary log", e);
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -23,10 +23,17 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -64,6 +71,7 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractReporter;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
+import spade.core.Vertex;
 import spade.edge.cdm.SimpleEdge;
 import spade.reporter.audit.OPMConstants;
 import spade.utility.FileUtility;
@@ -78,6 +86,11 @@ import spade.utility.map.external.ExternalMapManager;
  *	
  * Assumes that all vertices are seen before the edges they are a part of.
  * If a vertex is not found then edge is not put.
+ * 
+ * Only the hash of a vertex is kept by its uuid. The endpoints of the edges put only have the hash.
+ * 
+ * Binary files are split at Avro sync markers and the splits are decoded by 'decodeThreads' threads. The datums are
+ * converted in the order they are in the file.
  *
  */
 public class CDM extends AbstractReporter{
@@ -85,7 +98,9 @@ public class CDM extends AbstractReporter{
 	private final Logger logger = Logger.getLogger(this.getClass().getName());
 	
 	// Keys used in config
-	private static final String CONFIG_KEY_SCHEMA = "Schema";
+	private static final String CONFIG_KEY_SCHEMA = "Schema",
+			CONFIG_KEY_DECODE_THREADS = "decodeThreads",
+			CONFIG_KEY_DECODE_SPLIT_BYTES = "decodeSplitBytes";
 	
 	public final static String KEY_CDM_TYPE = "cdm.type";
 	
@@ -97,10 +112,13 @@ public class CDM extends AbstractReporter{
 
 	private volatile boolean shutdown = false;
 	
-	// Using an external map because can grow arbitrarily
-	private ExternalMap<String, AbstractVertex> uuidToVertexMap;
+	// Using an external map because can grow arbitrarily. Uuid to the hash of the vertex
+	private ExternalMap<String, String> uuidToVertexHashMap;
 	private final String uuidMapId = "CDMVertexMap";
 	
+	// Null if binary files are decoded on the reporter thread
+	private ExecutorService decoderThreads = null;
+	
 	private LinkedList<DataReader> dataReaders = new LinkedList<DataReader>();
 	private boolean waitForLog = true;
 		
@@ -268,6 +286,26 @@ public class CDM extends AbstractReporter{
 				}
 			}
 			
+			int decodeThreads = Runtime.getRuntime().availableProcessors();
+			long decodeSplitBytes = 8 * 1024 * 1024;
+			try{
+				String decodeThreadsConfig = configMap.get(CONFIG_KEY_DECODE_THREADS);
+				if(decodeThreadsConfig != null && Integer.parseInt(decodeThreadsConfig.trim()) > 0){
+					decodeThreads = Integer.parseInt(decodeThreadsConfig.trim());
+				}
+				String decodeSplitBytesConfig = configMap.get(CONFIG_KEY_DECODE_SPLIT_BYTES);
+				if(decodeSplitBytesConfig != null){
+					decodeSplitBytes = Long.parseLong(decodeSplitBytesConfig.trim());
+					if(decodeSplitBytes < 1){
+						throw new Exception("'"+CONFIG_KEY_DECODE_SPLIT_BYTES+"' must be greater than 0");
+					}
+				}
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Invalid '"+CONFIG_KEY_DECODE_THREADS+"' or '"+CONFIG_KEY_DECODE_SPLIT_BYTES
+						+"' in config file", e);
+				return false;
+			}
+			
 			try{
 				boolean binaryFormat = false;
 				if(inputFileArgument.endsWith(".json")){
@@ -275,10 +313,23 @@ public class CDM extends AbstractReporter{
 				}else{
 					binaryFormat = true;
 				}
+				if(binaryFormat && decodeThreads > 1){
+					final AtomicInteger decoderThreadCount = new AtomicInteger(0);
+					decoderThreads = Executors.newFixedThreadPool(decodeThreads, runnable -> {
+						Thread thread = new Thread(runnable, "CDM-Decoder-" + decoderThreadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+				}
 				for(String inputFilePath : inputFilePaths){
 					DataReader dataReader = null;
 					if(binaryFormat){
-						dataReader = new BinaryReader(inputFilePath, schemaFilePath);
+						if(decoderThreads != null){
+							dataReader = new ParallelBinaryReader(inputFilePath, schemaFilePath, decoderThreads, 
+									decodeThreads * 2, decodeSplitBytes);
+						}else{
+							dataReader = new BinaryReader(inputFilePath, schemaFilePath);
+						}
 					}else{
 						dataReader = new JsonReader(inputFilePath, schemaFilePath);
 					}
@@ -286,6 +337,7 @@ public class CDM extends AbstractReporter{
 				}
 			}catch(Exception e){
 				logger.log(Level.SEVERE, "Failed to build data reader", e);
+				doCleanup();
 				return false;
 			}
 			
@@ -299,14 +351,15 @@ public class CDM extends AbstractReporter{
 				return false;
 			}else{
 				ExternalMapArgument externalMapArgument = externalMapArgumentResult.result;
-				Result<ExternalMap<String, AbstractVertex>> externalMapResult = ExternalMapManager.create(externalMapArgument);
+				Result<ExternalMap<String, String>> externalMapResult = ExternalMapManager.create(externalMapArgument);
 				if(externalMapResult.error){
 					logger.log(Level.SEVERE, "Failed to create external map '"+uuidMapId+"' from arguments: " + externalMapArgument);
 					logger.log(Level.SEVERE, externalMapResult.toErrorString());
+					doCleanup();
 					return false;
 				}else{
 					logger.log(Level.INFO, uuidMapId + ": " + externalMapArgument);
-					uuidToVertexMap = externalMapResult.result;
+					uuidToVertexHashMap = externalMapResult.result;
 				}
 			}
 			
@@ -319,7 +372,9 @@ public class CDM extends AbstractReporter{
 			}
 			
 			logger.log(Level.INFO, 
-					"Arguments: rotate='"+rotate+"', waitForLog='"+waitForLog+"', inputFile='"+inputFileArgument+"'");
+					"Arguments: rotate='"+rotate+"', waitForLog='"+waitForLog+"', inputFile='"+inputFileArgument+"'"
+					+ ", "+CONFIG_KEY_DECODE_THREADS+"='"+(decoderThreads == null ? 1 : decodeThreads)+"'"
+					+ ", "+CONFIG_KEY_DECODE_SPLIT_BYTES+"='"+decodeSplitBytes+"'");
 			logger.log(Level.INFO, "Input files: " + inputFilePaths);
 			
 			return true;
@@ -671,7 +726,7 @@ public class CDM extends AbstractReporter{
 		addSource(vertex, source);
 		addAnnotationIfNotNull(vertex, "uuid", uuidString);
 		addAnnotationsIfNotNull(vertex, properties);
-		uuidToVertexMap.put(uuidString, vertex);
+		uuidToVertexHashMap.put(uuidString, vertex.bigHashCode());
 		super.putVertex(vertex);
 	}
 	
@@ -681,10 +736,10 @@ public class CDM extends AbstractReporter{
 			String sourceUuidString = getUUIDAsString(sourceUuid);
 			String destinationUuidString = getUUIDAsString(destinationUuid);
 			if(sourceUuidString != null && destinationUuidString != null){
-				AbstractVertex sourceVertex = uuidToVertexMap.get(sourceUuidString);
-				AbstractVertex destinationVertex = uuidToVertexMap.get(destinationUuidString);
-				if(sourceVertex != null && destinationVertex != null){
-					SimpleEdge edge = new SimpleEdge(sourceVertex, destinationVertex);
+				String sourceVertexHash = uuidToVertexHashMap.get(sourceUuidString);
+				String destinationVertexHash = uuidToVertexHashMap.get(destinationUuidString);
+				if(sourceVertexHash != null && destinationVertexHash != null){
+					SimpleEdge edge = new SimpleEdge(new Vertex(sourceVertexHash), new Vertex(destinationVertexHash));
 					if(annotations != null){
 						edge.addAnnotations(annotations);
 					}
@@ -838,9 +893,9 @@ public class CDM extends AbstractReporter{
 	}
 	
 	private synchronized void doCleanup(){
-		if(uuidToVertexMap != null){
-			uuidToVertexMap.close();
-			uuidToVertexMap = null;
+		if(uuidToVertexHashMap != null){
+			uuidToVertexHashMap.close();
+			uuidToVertexHashMap = null;
 		}
 
 		if(dataReaders != null){
@@ -856,6 +911,11 @@ public class CDM extends AbstractReporter{
 				}
 			}
 		}
+		
+		if(decoderThreads != null){
+			decoderThreads.shutdownNow();
+			decoderThreads = null;
+		}
 	}	
 }
 
@@ -942,3 +1002,91 @@ class BinaryReader implements DataReader{
 		return filepath;
 	}
 }
+
+/**
+ * Reads a binary file in splits of 'splitBytes' decoded in parallel. Splits start and end at Avro sync markers
+ * so that every block is decoded by exactly one split. Datums are returned in the order they are in the file.
+ * 
+ * At most 'maxSplitsInFlight' decoded splits are held in memory.
+ */
+class ParallelBinaryReader implements DataReader{
+	
+	private final String filepath;
+	private final Schema schema;
+	private final ExecutorService decoderThreads;
+	private final int maxSplitsInFlight;
+	private final long splitBytes;
+	private final long fileLength;
+	
+	private final LinkedList<Future<List<Object>>> splitsInFlight = new LinkedList<Future<List<Object>>>();
+	private long nextSplitStart = 0;
+	private Iterator<Object> currentSplit = null;
+	
+	public ParallelBinaryReader(String dataFilepath, String schemaFilepath, ExecutorService decoderThreads,
+			int maxSplitsInFlight, long splitBytes) throws Exception{
+		this.filepath = dataFilepath;
+		Parser parser = new Schema.Parser();
+		this.schema = parser.parse(new File(schemaFilepath));
+		this.decoderThreads = decoderThreads;
+		this.maxSplitsInFlight = maxSplitsInFlight;
+		this.splitBytes = splitBytes;
+		this.fileLength = new File(dataFilepath).length();
+	}
+	
+	private void submitSplits(){
+		while(splitsInFlight.size() < maxSplitsInFlight && nextSplitStart < fileLength){
+			final long start = nextSplitStart;
+			final long end = Math.min(fileLength, start + splitBytes);
+			nextSplitStart = end;
+			splitsInFlight.addLast(decoderThreads.submit(() -> decodeSplit(start, end)));
+		}
+	}
+	
+	/**
+	 * Decodes the blocks which start after the first sync marker at or after 'start' up to the first sync marker 
+	 * at or after 'end'
+	 */
+	private List<Object> decodeSplit(long start, long end) throws Exception{
+		List<Object> datums = new ArrayList<Object>();
+		DatumReader<Object> datumReader = new SpecificDatumReader<Object>(schema);
+		try(DataFileReader<Object> dataFileReader = new DataFileReader<>(new File(filepath), datumReader)){
+			dataFileReader.sync(start);
+			while(dataFileReader.hasNext() && !dataFileReader.pastSync(end)){
+				datums.add(dataFileReader.next());
+			}
+		}
+		return datums;
+	}
+	
+	public Object read() throws Exception{
+		while(currentSplit == null || !currentSplit.hasNext()){
+			currentSplit = null;
+			submitSplits();
+			if(splitsInFlight.isEmpty()){
+				return null;
+			}
+			try{
+				currentSplit = splitsInFlight.removeFirst().get().iterator();
+			}catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				if(cause instanceof Exception){
+					throw (Exception)cause;
+				}
+				throw new Exception("Failed to decode split of file: " + filepath, cause);
+			}
+		}
+		return currentSplit.next();
+	}
+	
+	public void close() throws Exception{
+		for(Future<List<Object>> split : splitsInFlight){
+			split.cancel(true);
+		}
+		splitsInFlight.clear();
+		currentSplit = null;
+	}
+	
+	public String getDataFilePath(){
+		return filepath;
+	}
+}
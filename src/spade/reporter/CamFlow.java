@@ -105,13 +105,16 @@ public class CamFlow extends JSON{
 
 		final String inputFilePathString = map.remove(keyInputLog);
 		final String reportingIntervalSecondsString = map.remove(keyReportingIntervalSeconds);
+		final String parseThreadsString = map.remove(keyParseThreads);
 		
 		try{
+			setParseThreads(parseThreadsString);
 			final boolean blocking = false;
 			final boolean closeReaderOnShutdown = true;
 			final boolean logAll = true;
 			launch(inputFilePathString, reportingIntervalSecondsString, blocking, closeReaderOnShutdown, logAll);
-			log(Level.INFO, "Arguments ["+keyInputLog+"="+inputFilePathString+", "+keyReportingIntervalSeconds+"="+reportingIntervalSecondsString+"]");
+			log(Level.INFO, "Arguments ["+keyInputLog+"="+inputFilePathString+", "+keyReportingIntervalSeconds+"="+reportingIntervalSecondsString
+					+", "+keyParseThreads+"="+parseThreadsString+"]");
 
 			if(!map.isEmpty()){
 				log(Level.INFO, "Unused key-value pairs in the arguments and/or config file: " + map);
@@ -23,13 +23,24 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.json.JSONObject;
-import org.json.JSONTokener;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractReporter;
@@ -44,6 +55,12 @@ import spade.utility.Result;
 /**
  * JSON reporter for SPADE
  *
+ * The input is read with a streaming parser and the vertices and edges are built directly from the tokens.
+ * The input can either be an array of JSON objects or a sequence of JSON objects.
+ *
+ * If 'parseThreads' is greater than 1 then the input must have one JSON object per line. Lines are parsed in
+ * batches by the parse threads and the vertices and edges are put in the buffer in the order of the input.
+ *
  * @author Hasanat Kazmi
  */
 public class JSON extends AbstractReporter{
@@ -73,6 +90,10 @@ public class JSON extends AbstractReporter{
 	//
 	
 	private static final String keyInput = "input", keyReportingIntervalSeconds = "reportingIntervalSeconds";
+	protected static final String keyParseThreads = "parseThreads";
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	private static final int linesPerBatch = 1024;
 
 	private String inputFilePath = null;
 	private Long reportingIntervalMillis = null;
@@ -82,6 +103,7 @@ public class JSON extends AbstractReporter{
 	private boolean isLaunched = false;
 	private boolean closeReaderOnShutdown = true;
 	private boolean logAll = true;
+	private int parseThreads = 1;
 	
 	///////////////////////////////////////////////////////
 	
@@ -91,7 +113,8 @@ public class JSON extends AbstractReporter{
 	private volatile boolean shutdown = false;
 	private volatile Reader reader = null; 
 	private volatile boolean mainRunning = false;
-	private volatile JSONTokener jsonTokener = null;
+	private volatile JsonParser jsonParser = null;
+	private volatile BufferedReader lineReader = null;
 	
 	private volatile boolean mainStopped = false;
 
@@ -147,39 +170,10 @@ public class JSON extends AbstractReporter{
 	
 				lastReportedAtMillis = System.currentTimeMillis();
 
-				Object object = null;
-				while(!isShutdown()){
-					printStats(false);
-	
-					try{
-						object = jsonTokener.nextValue();
-					}catch(Exception e){
-						log(Level.SEVERE, "Failed to read JSON object", e);
-						break;
-					}
-					if(object == null){
-						log(Level.SEVERE, "NULL JSON object");
-						break;
-					}
-					if(!object.getClass().equals(JSONObject.class)){
-						log(Level.SEVERE, "Unexpected JSON element '"+object+"'. Expected JSON object");
-						break;
-					}
-					try{
-						processJSONObject((JSONObject)object);
-					}catch(Exception e){
-						log(Level.SEVERE, "Failed to process JSON object: " + object, e);
-						break;
-					}
-					try{
-						char c = jsonTokener.skipTo('{');
-						if(c != '{'){ // end of input
-							break;
-						}
-					}catch(Exception e){
-						log(Level.SEVERE, "Failed to find the next JSON object", e);
-						break;
-					}
+				if(parseThreads > 1){
+					readLinesInParallel();
+				}else{
+					readObjects();
 				}
 			}finally{
 				mainRunning = false;
@@ -188,8 +182,134 @@ public class JSON extends AbstractReporter{
 			}
 		}
 	};
-	
-	@Override
+
+	private final void readObjects(){
+		while(!isShutdown()){
+			printStats(false);
+
+			final Object element;
+			try{
+				element = parseObject(jsonParser, jsonParser.getTokenLocation().getLineNr());
+			}catch(Exception e){
+				log(Level.SEVERE, "Failed to read JSON object", e);
+				break;
+			}
+			putElement(element);
+			try{
+				if(!skipToObject(jsonParser)){ // end of input
+					break;
+				}
+			}catch(Exception e){
+				log(Level.SEVERE, "Failed to find the next JSON object", e);
+				break;
+			}
+		}
+	}
+
+	private final void readLinesInParallel(){
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		final ExecutorService parsers = Executors.newFixedThreadPool(parseThreads, runnable -> {
+			final Thread thread = new Thread(runnable, 
+					JSON.this.getClass().getSimpleName() + "-parse-thread-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try{
+			// Parsed in parallel but taken in the order of submission
+			final LinkedList<Future<List<Object>>> batches = new LinkedList<Future<List<Object>>>();
+			long lineNumber = 0;
+			boolean endOfInput = false;
+			while(!isShutdown()){
+				printStats(false);
+
+				while(!endOfInput && batches.size() < parseThreads * 2){
+					final List<String> lines = new ArrayList<String>(linesPerBatch);
+					try{
+						String line;
+						while(lines.size() < linesPerBatch && (line = lineReader.readLine()) != null){
+							lines.add(line);
+						}
+					}catch(Exception e){
+						log(Level.SEVERE, "Failed to read line", e);
+						endOfInput = true;
+					}
+					if(lines.size() < linesPerBatch){
+						endOfInput = true;
+					}
+					if(!lines.isEmpty()){
+						final long firstLineNumber = lineNumber + 1;
+						batches.addLast(parsers.submit(() -> parseLines(lines, firstLineNumber)));
+						lineNumber += lines.size();
+					}
+				}
+				if(batches.isEmpty()){
+					break;
+				}
+
+				final List<Object> elements;
+				try{
+					elements = batches.removeFirst().get();
+				}catch(ExecutionException e){
+					log(Level.SEVERE, "Failed to read JSON object", 
+							e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+					break;
+				}catch(Exception e){
+					log(Level.SEVERE, "Interrupted while parsing JSON objects", e);
+					break;
+				}
+				for(final Object element : elements){
+					putElement(element);
+				}
+			}
+		}finally{
+			parsers.shutdownNow();
+		}
+	}
+
+	/*
+	 * Allows the lines of a JSON array too i.e. '[', ']' and a trailing ',' after the object
+	 */
+	private final List<Object> parseLines(final List<String> lines, final long firstLineNumber) throws Exception{
+		final List<Object> elements = new ArrayList<Object>(lines.size());
+		for(int i = 0; i < lines.size(); i++){
+			String line = lines.get(i).trim();
+			if(line.isEmpty() || line.equals("[") || line.equals("]")){
+				continue;
+			}
+			if(line.endsWith(",")){
+				line = line.substring(0, line.length() - 1);
+			}
+			final long lineNumber = firstLineNumber + i;
+			try(final JsonParser parser = jsonFactory.createParser(line)){
+				if(parser.nextToken() != JsonToken.START_OBJECT){
+					throw new Exception("Expected JSON object at line " + lineNumber);
+				}
+				final Object element = parseObject(parser, lineNumber);
+				if(element != null){
+					elements.add(element);
+				}
+			}
+		}
+		return elements;
+	}
+
+	/*
+	 * Moves the parser to the start of the next object. Returns false at the end of input.
+	 */
+	private static final boolean skipToObject(final JsonParser parser) throws Exception{
+		JsonToken token;
+		while((token = parser.nextToken()) != null){
+			if(token == JsonToken.START_OBJECT){
+				return true;
+			}
+			if(token != JsonToken.START_ARRAY && token != JsonToken.END_ARRAY){
+				throw new Exception("Unexpected JSON element '" + parser.getText() + "'. Expected JSON object");
+			}
+		}
+		return false;
+	}
+
+		@Override
 	public synchronized boolean launch(String arguments){
 		final Map<String, String> map = new HashMap<String, String>();
 		try{
@@ -202,13 +322,16 @@ public class JSON extends AbstractReporter{
 
 		final String inputFilePathString = map.remove(keyInput);
 		final String reportingIntervalSecondsString = map.remove(keyReportingIntervalSeconds);
+		final String parseThreadsString = map.remove(keyParseThreads);
 		
 		try{
+			setParseThreads(parseThreadsString);
 			final boolean blocking = false;
 			final boolean closeReaderOnShutdown = true;
 			final boolean logAll = true;
 			launch(inputFilePathString, reportingIntervalSecondsString, blocking, closeReaderOnShutdown, logAll);
-			log(Level.INFO, "Arguments ["+keyInput+"="+inputFilePathString+", "+keyReportingIntervalSeconds+"="+reportingIntervalSecondsString+"]");
+			log(Level.INFO, "Arguments ["+keyInput+"="+inputFilePathString+", "+keyReportingIntervalSeconds+"="+reportingIntervalSecondsString
+					+", "+keyParseThreads+"="+parseThreads+"]");
 
 			if(!map.isEmpty()){
 				log(Level.INFO, "Unused key-value pairs in the arguments and/or config file: " + map);
@@ -221,6 +344,22 @@ public class JSON extends AbstractReporter{
 		}
 	}
 	
+	/**
+	 * Must be called before launch. NULL or empty value means 1.
+	 */
+	protected final synchronized void setParseThreads(final String parseThreadsString) throws Exception{
+		if(HelperFunctions.isNullOrEmpty(parseThreadsString)){
+			this.parseThreads = 1;
+			return;
+		}
+		final Result<Long> parseThreadsResult = HelperFunctions.parseLong(parseThreadsString, 10, 1, Integer.MAX_VALUE);
+		if(parseThreadsResult.error){
+			throw new Exception("Invalid number of parse threads: '"+parseThreadsString+"'. " 
+					+ parseThreadsResult.errorMessage);
+		}
+		this.parseThreads = parseThreadsResult.result.intValue();
+	}
+	
 	public final synchronized void launch(final String inputFilePathString, final String reportingIntervalSecondsString,
 			final boolean blocking, final boolean closeReaderOnShutdown, final boolean logAll) throws Exception{
 		final Result<Long> reportingIntervalSecondsResult = 
@@ -282,19 +421,24 @@ public class JSON extends AbstractReporter{
 		this.closeReaderOnShutdown = closeReaderOnShutdown;
 		this.logAll = logAll;
 		
-		try{
-			this.jsonTokener = new JSONTokener(this.reader);
-		}catch(Exception e){
-			throw new Exception("Failed to create JSON tokener", e);
-		}
-		
-		try{
-			char c = jsonTokener.skipTo('{');
-			if(c != '{'){
-				throw new Exception("No JSON object");
+		if(parseThreads > 1){
+			// Objects are found line by line by the main thread
+			this.lineReader = this.reader instanceof BufferedReader 
+					? (BufferedReader)this.reader : new BufferedReader(this.reader);
+		}else{
+			try{
+				this.jsonParser = jsonFactory.createParser(this.reader);
+			}catch(Exception e){
+				throw new Exception("Failed to create JSON parser", e);
+			}
+			
+			try{
+				if(!skipToObject(jsonParser)){
+					throw new Exception("No JSON object");
+				}
+			}catch(Exception e){
+				throw new Exception("Failed to find the first JSON object", e);
 			}
-		}catch(Exception e){
-			throw new Exception("Failed to find the first JSON object", e);
 		}
 		
 		try{
@@ -342,92 +486,120 @@ public class JSON extends AbstractReporter{
 		return true;
 	}
 
-	private final void processJSONObject(final JSONObject jsonObject){
-		final String typeString = jsonObject.optString(AbstractVertex.typeKey, null);
+	/*
+	 * The parser must be at the start of the object. The parser is at the end of the object on return.
+	 * Returns the vertex or the edge in the object, or NULL if the object is not a valid vertex or edge.
+	 * Safe to call from multiple threads with different parsers.
+	 */
+	private final Object parseObject(final JsonParser parser, final long lineNumber) throws Exception{
+		String typeString = null, idString = null, fromIdString = null, toIdString = null;
+		Map<String, String> annotationsMap = null;
+		JsonToken token;
+		while((token = parser.nextToken()) != JsonToken.END_OBJECT){
+			if(token != JsonToken.FIELD_NAME){
+				throw new Exception("Unexpected JSON token '" + token + "' at line " + lineNumber + ". Expected field name");
+			}
+			final String fieldName = parser.getCurrentName();
+			token = parser.nextToken();
+			if(AbstractVertex.annotationsKey.equals(fieldName)){
+				if(token == JsonToken.START_OBJECT){
+					annotationsMap = parseAnnotations(parser);
+				}else{
+					parser.skipChildren();
+				}
+			}else if(AbstractVertex.typeKey.equals(fieldName)){
+				typeString = getStringValue(parser, token);
+			}else if(AbstractVertex.idKey.equals(fieldName)){
+				idString = getStringValue(parser, token);
+			}else if(AbstractEdge.fromIdKey.equals(fieldName)){
+				fromIdString = getStringValue(parser, token);
+			}else if(AbstractEdge.toIdKey.equals(fieldName)){
+				toIdString = getStringValue(parser, token);
+			}else{
+				parser.skipChildren();
+			}
+		}
+
 		if(AbstractVertex.isVertexType(typeString)){
-			processVertex(jsonObject);
+			return createVertex(idString, typeString, annotationsMap, lineNumber);
 		}else if(AbstractEdge.isEdgeType(typeString)){
-			processEdge(jsonObject);
+			return createEdge(fromIdString, toIdString, typeString, annotationsMap, lineNumber);
 		}else{
-			log(Level.WARNING, "Unhandled 'type' in JSON object: " + jsonObject);
-			return;
+			log(Level.WARNING, "Unhandled 'type' in JSON object at line " + lineNumber + ": " + typeString);
+			return null;
 		}
 	}
 
-	private final void processVertex(final JSONObject vertexObject){
-		final String idString = vertexObject.optString(AbstractVertex.idKey, null);
-		
-		if(HelperFunctions.isNullOrEmpty(idString)){
-			log(Level.WARNING, "NULL/Empty vertex 'id' in JSON object: " + vertexObject);
-			return;
+	/*
+	 * Values are kept as they are in the input. Nested objects and arrays are kept as JSON text.
+	 */
+	private static final Map<String, String> parseAnnotations(final JsonParser parser) throws Exception{
+		final Map<String, String> annotationsMap = new HashMap<String, String>();
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			final String key = parser.getCurrentName();
+			final JsonToken token = parser.nextToken();
+			final String value;
+			if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+				final StringWriter writer = new StringWriter();
+				try(final JsonGenerator generator = jsonFactory.createGenerator(writer)){
+					generator.copyCurrentStructure(parser);
+				}
+				value = writer.toString();
+			}else{
+				value = parser.getText();
+			}
+			annotationsMap.put(key, value);
 		}
-		
-		final String typeString = vertexObject.optString(AbstractVertex.typeKey, null);
-		
-		if(HelperFunctions.isNullOrEmpty(typeString)){
-			log(Level.WARNING, "NULL/Empty vertex 'type' in JSON object: " + vertexObject);
-			return;
+		return annotationsMap;
+	}
+
+	private static final String getStringValue(final JsonParser parser, final JsonToken token) throws Exception{
+		if(token == JsonToken.VALUE_NULL){
+			return null;
+		}
+		if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+			parser.skipChildren();
+			return null;
+		}
+		return parser.getText();
+	}
+
+	private final AbstractVertex createVertex(final String idString, final String typeString,
+			final Map<String, String> annotationsMap, final long lineNumber){
+		if(HelperFunctions.isNullOrEmpty(idString)){
+			log(Level.WARNING, "NULL/Empty vertex 'id' in JSON object at line " + lineNumber);
+			return null;
 		}
 		
-		final Map<String, String> annotationsMap = new HashMap<String, String>();
-		
-		try{
-			final JSONObject annotationsObject = vertexObject.optJSONObject(AbstractVertex.annotationsKey);
-		
-			if(annotationsObject == null){
-				throw new Exception("NULL 'annotations'");
-			}
-			
-			annotationsMap.putAll(HelperFunctions.convertJSONObjectToMap(annotationsObject));
-		}catch(Exception e){
-			log(Level.WARNING, "Failed to get/parse vertex 'annotations' map in JSON object: " + vertexObject, e);
-			return;
+		if(annotationsMap == null){
+			log(Level.WARNING, "Failed to get/parse vertex 'annotations' map in JSON object at line " + lineNumber
+					+ ": NULL 'annotations'");
+			return null;
 		}
 		
 		annotationsMap.put(AbstractVertex.typeKey, typeString);
 		
 		final Vertex vertex = new Vertex(idString);
 		vertex.addAnnotations(annotationsMap);
-
-		vertexCountIncrement();
-		putVertexToBuffer(vertex);
+		return vertex;
 	}
 
-	private final void processEdge(final JSONObject edgeObject){
-		final String fromIdString = edgeObject.optString(AbstractEdge.fromIdKey, null);
-		
+	private final AbstractEdge createEdge(final String fromIdString, final String toIdString, final String typeString,
+			final Map<String, String> annotationsMap, final long lineNumber){
 		if(HelperFunctions.isNullOrEmpty(fromIdString)){
-			log(Level.WARNING, "NULL/Empty edge 'from' id in JSON object: " + edgeObject);
-			return;
+			log(Level.WARNING, "NULL/Empty edge 'from' id in JSON object at line " + lineNumber);
+			return null;
 		}
 		
-		final String toIdString = edgeObject.optString(AbstractEdge.toIdKey, null);
-		
 		if(HelperFunctions.isNullOrEmpty(toIdString)){
-			log(Level.WARNING, "NULL/Empty edge 'to' id in JSON object: " + edgeObject);
-			return;
+			log(Level.WARNING, "NULL/Empty edge 'to' id in JSON object at line " + lineNumber);
+			return null;
 		}
 		
-		final String typeString = edgeObject.optString(AbstractEdge.typeKey, null);
-		
-		if(HelperFunctions.isNullOrEmpty(typeString)){
-			log(Level.WARNING, "NULL/Empty edge 'type' in JSON object: " + edgeObject);
-			return;
-		}
-		
-		final Map<String, String> annotationsMap = new HashMap<String, String>();
-		
-		try{
-			final JSONObject annotationsObject = edgeObject.optJSONObject(AbstractEdge.annotationsKey);
-		
-			if(annotationsObject == null){
-				throw new Exception("NULL 'annotations'");
-			}
-			
-			annotationsMap.putAll(HelperFunctions.convertJSONObjectToMap(annotationsObject));
-		}catch(Exception e){
-			log(Level.WARNING, "Failed to get/parse edge 'annotations' map in JSON object: " + edgeObject, e);
-			return;
+		if(annotationsMap == null){
+			log(Level.WARNING, "Failed to get/parse edge 'annotations' map in JSON object at line " + lineNumber
+					+ ": NULL 'annotations'");
+			return null;
 		}
 		
 		annotationsMap.put(AbstractEdge.typeKey, typeString);
@@ -437,9 +609,17 @@ public class JSON extends AbstractReporter{
 
 		final AbstractEdge edge = new Edge(childVertex, parentVertex);
 		edge.addAnnotations(annotationsMap);
+		return edge;
+	}
 
-		edgeCountIncrement();
-		putEdgeToBuffer(edge);
+	private final void putElement(final Object element){
+		if(element instanceof AbstractVertex){
+			vertexCountIncrement();
+			putVertexToBuffer((AbstractVertex)element);
+		}else if(element instanceof AbstractEdge){
+			edgeCountIncrement();
+			putEdgeToBuffer((AbstractEdge)element);
+		}
 	}
 	
 	protected void putVertexToBuffer(final AbstractVertex vertex){
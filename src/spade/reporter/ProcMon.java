@@ -51,10 +51,14 @@ public class ProcMon extends AbstractReporter{
 	private static final String
 		keyInput = "input",
 		keyVersions = "versions",
-		keyWaitForLog = "waitForLog";
+		keyWaitForLog = "waitForLog",
+		keyParseThreads = "parseThreads";
+
+	private static final int parseBatchSize = 1024;
 
 	private boolean versions;
 	private boolean waitForLog;
+	private int parseThreads = 1;
 	private String inputPath;
     private EventReader eventReader;
 
@@ -74,8 +78,10 @@ public class ProcMon extends AbstractReporter{
 			final String inputPath = ArgumentFunctions.mustParseReadableFilePath(keyInput, configMap);
 			final boolean versions = ArgumentFunctions.mustParseBoolean(keyVersions, configMap);
 			final boolean waitForLog = ArgumentFunctions.mustParseBoolean(keyWaitForLog, configMap);
+			final int parseThreads = configMap.containsKey(keyParseThreads)
+					? ArgumentFunctions.mustParseInteger(keyParseThreads, configMap) : 1;
 
-			return launch(inputPath, versions, waitForLog);
+			return launch(inputPath, versions, waitForLog, parseThreads);
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to read/parse arguments and configurations", e);
 			return false;
@@ -84,12 +90,22 @@ public class ProcMon extends AbstractReporter{
     }
 
 	public boolean launch(final String inputPath, final boolean versions, final boolean waitForLog) throws Exception{
+		return launch(inputPath, versions, waitForLog, 1);
+	}
+
+	/**
+	 * If parse threads is greater than 1 then the log is read and parsed ahead of time on other threads.
+	 * The events are still handled in the order of the log.
+	 */
+	public boolean launch(final String inputPath, final boolean versions, final boolean waitForLog,
+			final int parseThreads) throws Exception{
 		this.inputPath = inputPath;
 		this.versions = versions;
 		this.waitForLog = waitForLog;
+		this.parseThreads = parseThreads;
 
 		try{
-			eventReader = EventReader.createReader(this.inputPath);
+			eventReader = EventReader.createReader(this.inputPath, this.parseThreads, parseBatchSize);
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to create ProcMon CSV log reader", e);
 			return false;
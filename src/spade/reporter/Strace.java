@@ -26,6 +26,8 @@ import spade.edge.opm.WasGeneratedBy;
 import spade.edge.opm.WasTriggeredBy;
 import spade.reporter.pdu.Pdu;
 import spade.reporter.pdu.PduParser;
+import spade.reporter.strace.StraceLogReader;
+import spade.reporter.strace.SyscallLineScanner;
 import spade.vertex.opm.Artifact;
 import spade.vertex.opm.Process;
 
@@ -62,22 +64,20 @@ public class Strace extends AbstractReporter {
     final int THREAD_SLEEP_DELAY = 5;
     volatile boolean shutdown = false;
     static final Logger logger = Logger.getLogger(Strace.class.getName());
-    static final Pattern eventPattern = Pattern.compile("([0-9]+)\\s+([\\d]+:[\\d]+:[\\d]+\\.[\\d]+)\\s+(\\w+)\\((.*)\\)\\s+=\\s+(\\-?[0-9]+).*");
-    static final Pattern eventIncompletePattern = Pattern.compile("([0-9]+)\\s+(.*) <unfinished \\.\\.\\.>");
-    static final Pattern eventCompletorPattern = Pattern.compile("([0-9]+)\\s+.*<... \\w+ resumed> (.*)");
     static final Pattern networkPattern = Pattern.compile("sin_port=htons\\(([0-9]+)\\), sin_addr=inet_addr\\(\"(.*)\"\\)");
     static final Pattern binderTransactionPattern = Pattern.compile("([0-9]+): ([a-z]+)\\s*from ([0-9]+):[0-9]+ to ([0-9]+):[0-9]+");
     String DEBUG_FILE_PATH;
     String TEMP_FILE_PATH;
-    Map<String, String> incompleteEvents = new HashMap<String, String>();
+    final SyscallLineScanner scanner = new SyscallLineScanner();
     Map<String, String> socketDescriptors = new HashMap<String, String>();
     Map<String, Map<String, String>> fileDescriptors = new HashMap<String, Map<String, String>>();
     Map<String, Integer> fileVersions = new HashMap<String, Integer>();
     Map<String, Process> processes = new HashMap<String, Process>();
     List<Set<String>> sharedDescriptorTables = new ArrayList<Set<String>>();
-    final String simpleDatePattern = "EEE MMM d H:mm:ss yyyy";
     ArrayList<String> mainPIDs = new ArrayList<String>();
     String templine = null;
+    // Path of a complete strace log (plain or '.gz') to read instead of attaching strace
+    String inputFilePath = null;
 
     private void log(String message) {
         logger.log(Level.INFO, message);
@@ -91,6 +91,7 @@ public class Strace extends AbstractReporter {
 		// Parse the arguments
         // Arguments e.g. "user=radio user=u0_a1 name=zygote"
         // all of the conditionals are translate into "OR" clauses
+        // "input=<path>" reads a recorded strace log instead
         if (arguments == null || arguments.equals("")) {
             arguments = "name=zygote";
         }
@@ -113,6 +114,8 @@ public class Strace extends AbstractReporter {
             if (key.equals("name") || key.equals("user") || key.equals("pid")
                     || key.equals("!name") || key.equals("!user") || key.equals("!pid")) {
                 argumentsMap.get(key).add(value);
+            } else if (key.equals("input")) {
+                inputFilePath = value;
             }
         }
 
@@ -124,6 +127,10 @@ public class Strace extends AbstractReporter {
             TEMP_FILE_PATH = "/tmp/spade-strace-output.txt";
     	}
 
+        if (inputFilePath != null) {
+            return launchReplay();
+        }
+
         // Attach strace
         try {
             java.lang.Process pidChecker = Runtime.getRuntime().exec("ps -e -o uname,pid,cmd");
@@ -324,6 +331,44 @@ public class Strace extends AbstractReporter {
         }
     }
 
+    private boolean launchReplay() {
+        try {
+            final StraceLogReader traceReader = StraceLogReader.open(inputFilePath);
+            if (LOG_DEBUG_INFO) {
+                logWriter = new PrintWriter(new FileWriter(DEBUG_FILE_PATH, false));
+            }
+
+            Runnable traceProcessor = new Runnable() {
+                public void run() {
+                    try {
+                        String line;
+                        while (!shutdown && (line = traceReader.readLine()) != null) {
+                            parseEvent(line);
+                        }
+                        logger.log(Level.INFO, "Finished reading strace log " + inputFilePath);
+                    } catch (Exception exception) {
+                        logger.log(Level.SEVERE, null, exception);
+                    } finally {
+                        if (LOG_DEBUG_INFO) {
+                            logWriter.flush();
+                            logWriter.close();
+                        }
+                        try {
+                            traceReader.close();
+                        } catch (Exception exception) {
+                            logger.log(Level.WARNING, "Failed to close strace log", exception);
+                        }
+                    }
+                }
+            };
+            new Thread(traceProcessor, "strace-Thread").start();
+            return true;
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Failed to open strace log " + inputFilePath, exception);
+            return false;
+        }
+    }
+
     private void createBehavior(Artifact artifact, String behavior) {
         if (ADD_BEHAVIOR_TAGS) {
             Artifact behaviorArtifact = new Artifact();
@@ -338,18 +383,17 @@ public class Strace extends AbstractReporter {
 
     private void parseEvent(String line) {
         try {
-            Matcher eventMatcher = eventPattern.matcher(line);
-            Matcher incompleteMatcher = eventIncompletePattern.matcher(line);
-            Matcher completorMatcher = eventCompletorPattern.matcher(line);
+            SyscallLineScanner.Syscall event = SyscallLineScanner.scanComplete(line);
+            String completeEvent;
 
             boolean success = true;
 
-            if (eventMatcher.matches()) {
-                String pid = eventMatcher.group(1);
-                String time = eventMatcher.group(2);
-                String syscall = eventMatcher.group(3);
-                String args = eventMatcher.group(4);
-                String retVal = eventMatcher.group(5);
+            if (event != null) {
+                String pid = event.pid;
+                String time = event.time;
+                String syscall = event.name;
+                String args = event.arguments;
+                String retVal = event.returnValue;
 
                 if (!processes.containsKey(pid)) {
                     log(String.format("Process %s not seen before, generating:\t\t%s", pid, line));
@@ -768,10 +812,9 @@ public class Strace extends AbstractReporter {
                 } else {
                     log(String.format("syscall %s() unrecognized:\t\t%s", syscall, line));
                 }
-            } else if (incompleteMatcher.matches()) {
-                incompleteEvents.put(incompleteMatcher.group(1), incompleteMatcher.group(2));
-            } else if (completorMatcher.matches()) {
-                String completeEvent = completorMatcher.group(1) + " " + incompleteEvents.remove(completorMatcher.group(1)) + completorMatcher.group(2);
+            } else if (scanner.keepIfUnfinished(line)) {
+                // Joined when resumed
+            } else if ((completeEvent = scanner.joinIfResumed(line)) != null) {
                 parseEvent(completeEvent);
             } else if (templine == null) {
                 templine = line;
@@ -797,12 +840,18 @@ public class Strace extends AbstractReporter {
             }
             Process processVertex = createProcess(pid);
             if (processVertex == null) {
-                return;
+                if (inputFilePath == null) {
+                    return;
+                }
+                // Recorded processes are not in /proc so only the pid is known
+                processVertex = new Process();
+                processVertex.addAnnotation("pid", pid);
+                fileDescriptors.put(pid, new HashMap<String, String>());
             }
             putVertex(processVertex);
             processes.put(pid, processVertex);
             String ppid = processVertex.getAnnotation("ppid");
-            if (Integer.parseInt(ppid) >= 1) {
+            if (ppid != null && Integer.parseInt(ppid) >= 1) {
                 checkProcessTree(ppid);
                 WasTriggeredBy triggerEdge = new WasTriggeredBy((Process) processes.get(pid), (Process) processes.get(ppid));
                 putEdge(triggerEdge);
@@ -821,6 +870,9 @@ public class Strace extends AbstractReporter {
     }
 
     private String getProcessCommandLine(String pid) {
+        if (inputFilePath != null) {
+            return null;
+        }
         try {
             BufferedReader cmdlineReader = new BufferedReader(new FileReader("/proc/" + pid + "/cmdline"));
             String cmdline = cmdlineReader.readLine();
@@ -846,6 +898,9 @@ public class Strace extends AbstractReporter {
     }
 
     private String getProcessName(String pid) {
+        if (inputFilePath != null) {
+            return null;
+        }
         try {
             BufferedReader namelineReader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
             String nameline = namelineReader.readLine();
@@ -872,6 +927,9 @@ public class Strace extends AbstractReporter {
 
     private Process createProcess(String pid) {
         // The process vertex is created using the proc filesystem.
+        if (inputFilePath != null) {
+            return null;
+        }
         try {
             Process newProcess = new Process();
             BufferedReader procReader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
@@ -963,6 +1021,10 @@ public class Strace extends AbstractReporter {
     }
 
     private boolean fixDescriptor(String pid, String fd) {
+        if (inputFilePath != null) {
+            log(String.format("unable to get file descriptor %s for pid %s from a recorded strace log", fd, pid));
+            return false;
+        }
         try {
             File file = new File("/proc/" + pid + "/fd/" + fd);
             String resolved = file.getCanonicalPath();
@@ -24,6 +24,8 @@ import spade.edge.opm.Used;
 import spade.edge.opm.WasDerivedFrom;
 import spade.edge.opm.WasGeneratedBy;
 import spade.edge.opm.WasTriggeredBy;
+import spade.reporter.strace.StraceLogReader;
+import spade.reporter.strace.SyscallLineScanner;
 import spade.vertex.opm.Artifact;
 import spade.vertex.opm.Process;
 
@@ -40,8 +42,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  *
@@ -54,18 +54,16 @@ public class StraceLinux extends AbstractReporter {
     final int THREAD_SLEEP_DELAY = 5;
     volatile boolean shutdown = false;
     static final Logger logger = Logger.getLogger(StraceLinux.class.getName());
-    static final Pattern eventPattern = Pattern.compile("([0-9]+)\\s+([\\d]+:[\\d]+:[\\d]+\\.[\\d]+)\\s+(\\w+)\\((.*)\\)\\s+=\\s+(\\-?[0-9]+).*");
-    static final Pattern eventIncompletePattern = Pattern.compile("([0-9]+)\\s+(.*) <unfinished \\.\\.\\.>");
-    static final Pattern eventCompletorPattern = Pattern.compile("([0-9]+)\\s+.*<... \\w+ resumed> (.*)");
     String DEBUG_FILE_PATH = "/tmp/spade-strace-debug.txt";
     String TEMP_FILE_PATH = "/tmp/spade-strace-output.txt";
-    Map<String, String> incompleteEvents = new HashMap<String, String>();
+    final SyscallLineScanner scanner = new SyscallLineScanner();
     Map<String, String> fileDescriptors = new HashMap<String, String>();
     Map<String, Integer> fileVersions = new HashMap<String, Integer>();
     Map<String, Process> processes = new HashMap<String, Process>();
     List<Set<String>> sharedDescriptorTables = new ArrayList<Set<String>>();
-    final String simpleDatePattern = "EEE MMM d H:mm:ss yyyy";
     String templine = null;
+    // Path of a complete strace log (plain or '.gz') to read instead of running the command
+    String inputFilePath = null;
 
     private void log(String message) {
         logger.log(Level.INFO, message);
@@ -76,12 +74,15 @@ public class StraceLinux extends AbstractReporter {
 
     @Override
     public boolean launch(String arguments) {
-		// arguments is command to run
+		// arguments is command to run, or "input=<path>" to read a recorded strace log
         if (arguments == null || arguments.equals("")) {
             return false;
         }
 
         final String command = arguments;
+        if (command.startsWith("input=")) {
+            inputFilePath = command.substring("input=".length()).trim();
+        }
 
         fileDescriptors.put("0", "stdin");
         fileDescriptors.put("1", "stdout");
@@ -92,6 +93,35 @@ public class StraceLinux extends AbstractReporter {
                 logWriter = new PrintWriter(new FileWriter(DEBUG_FILE_PATH, false));
             }
 
+            if (inputFilePath != null) {
+                final StraceLogReader logReader = StraceLogReader.open(inputFilePath);
+                Runnable logProcessor = new Runnable() {
+                    public void run() {
+                        try {
+                            String line;
+                            while (!shutdown && (line = logReader.readLine()) != null) {
+                                parseEvent(line);
+                            }
+                            logger.log(Level.INFO, "Finished reading strace log " + inputFilePath + ". Its safe to remove Strace reporter");
+                        } catch (Exception exception) {
+                            logger.log(Level.SEVERE, null, exception);
+                        } finally {
+                            if (LOG_DEBUG_INFO) {
+                                logWriter.flush();
+                                logWriter.close();
+                            }
+                            try {
+                                logReader.close();
+                            } catch (Exception exception) {
+                                logger.log(Level.WARNING, "Failed to close strace log", exception);
+                            }
+                        }
+                    }
+                };
+                new Thread(logProcessor, "strace-Thread").start();
+                return true;
+            }
+
             Runnable traceProcessor = new Runnable() {
                 public void run() {
                     try {
@@ -143,18 +173,17 @@ public class StraceLinux extends AbstractReporter {
 
     private void parseEvent(String line) {
         try {
-            Matcher eventMatcher = eventPattern.matcher(line);
-            Matcher incompleteMatcher = eventIncompletePattern.matcher(line);
-            Matcher completorMatcher = eventCompletorPattern.matcher(line);
+            SyscallLineScanner.Syscall event = SyscallLineScanner.scanComplete(line);
+            String completeEvent;
 
             boolean success = true;
 
-            if (eventMatcher.matches()) {
-                String pid = eventMatcher.group(1);
-                String time = eventMatcher.group(2);
-                String syscall = eventMatcher.group(3);
-                String args = eventMatcher.group(4);
-                String retVal = eventMatcher.group(5);
+            if (event != null) {
+                String pid = event.pid;
+                String time = event.time;
+                String syscall = event.name;
+                String args = event.arguments;
+                String retVal = event.returnValue;
 
                 if (!processes.containsKey(pid)) {
                     log(String.format("Process %s not seen before, generating:\t\t%s", pid, line));
@@ -372,10 +401,9 @@ public class StraceLinux extends AbstractReporter {
                 } else {
                     log(String.format("syscall %s() unrecognized:\t\t%s", syscall, line));
                 }
-            } else if (incompleteMatcher.matches()) {
-                incompleteEvents.put(incompleteMatcher.group(1), incompleteMatcher.group(2));
-            } else if (completorMatcher.matches()) {
-                String completeEvent = completorMatcher.group(1) + " " + incompleteEvents.remove(completorMatcher.group(1)) + completorMatcher.group(2);
+            } else if (scanner.keepIfUnfinished(line)) {
+                // Joined when resumed
+            } else if ((completeEvent = scanner.joinIfResumed(line)) != null) {
                 parseEvent(completeEvent);
             } else if (templine == null) {
                 templine = line;
@@ -425,6 +453,9 @@ public class StraceLinux extends AbstractReporter {
     }
 
     private String getProcessCommandLine(String pid) {
+        if (inputFilePath != null) {
+            return null;
+        }
         try {
             BufferedReader cmdlineReader = new BufferedReader(new FileReader("/proc/" + pid + "/cmdline"));
             String cmdline = cmdlineReader.readLine();
@@ -438,6 +469,9 @@ public class StraceLinux extends AbstractReporter {
     }
 
     private String getProcessName(String pid) {
+        if (inputFilePath != null) {
+            return null;
+        }
         try {
             BufferedReader namelineReader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
             String nameline = namelineReader.readLine();
@@ -455,6 +489,10 @@ public class StraceLinux extends AbstractReporter {
         try {
             Process newProcess = new Process();
             newProcess.addAnnotation("pid", pid);
+            if (inputFilePath != null) {
+                // Recorded processes are not in /proc so only the pid is known
+                return newProcess;
+            }
 
             if (new File("/proc/" + pid + "/status").exists()) {
                 BufferedReader procReader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
@@ -96,7 +96,20 @@ public class CSVEventReader extends EventReader{
     	, INDEX_DATE_AND_TIME
     	, INDEX_TID;
 
-	private au.com.bytecode.opencsv.CSVReader reader = null;
+	// Records are read and parsed separately (instead of using the opencsv reader) so that they can be parsed on
+	// other threads. See ParallelEventReader.
+	private BufferedReader reader = null;
+	// State of the opencsv parser which is kept across lines and records
+	private boolean inField = false;
+
+	public static final class Record{
+		private final List<String> lines = new ArrayList<String>(1);
+		private final boolean inField;
+
+		private Record(final boolean inField){
+			this.inField = inField;
+		}
+	}
 
 	public CSVEventReader(final String filePath) throws Exception{
 		super(filePath);
@@ -104,7 +117,7 @@ public class CSVEventReader extends EventReader{
 			final java.io.FileInputStream fileInputStream = new java.io.FileInputStream(new java.io.File(filePath));
 			fileInputStream.read(new byte[3]); // consume BOM bytes
 			final java.io.InputStreamReader inputStreamReader = new java.io.InputStreamReader(fileInputStream, java.nio.charset.StandardCharsets.UTF_8);
-			reader = new au.com.bytecode.opencsv.CSVReader(inputStreamReader);
+			reader = new BufferedReader(inputStreamReader);
 			final boolean isHeader = true;
 			final String[] headerValues = parseCSVLine(isHeader);
 			if(headerValues == null){
@@ -168,7 +181,93 @@ public class CSVEventReader extends EventReader{
 		if(tokens == null){
 			return null;
 		}
+		return createEvent(tokens);
+	}
+
+	/**
+	 * Returns the lines of the next record, or NULL at the end of the file.
+	 * A record has more than one line if a quoted value has a line break.
+	 */
+	public Record readRecord() throws Exception{
+		Record record = null;
+		boolean inQuotes = false;
+		do{
+			final String line = reader.readLine();
+			if(line == null){
+				return record;
+			}
+			if(record == null){
+				record = new Record(inField);
+			}
+			record.lines.add(line);
+			inQuotes = scanQuotes(line, inQuotes);
+		}while(inQuotes);
+		return record;
+	}
+
+	/**
+	 * Safe to call from multiple threads
+	 */
+	public Event parseRecord(final Record record) throws Exception{
+		return createEvent(parseRecordLines(record));
+	}
+
+	/*
+	 * Same as the opencsv reader: each line is parsed by the same parser and the tokens are concatenated
+	 */
+	private static String[] parseRecordLines(final Record record) throws Exception{
+		final au.com.bytecode.opencsv.CSVParser parser = new au.com.bytecode.opencsv.CSVParser();
+		if(record.inField){
+			parser.parseLine("-"); // puts the new parser in the same state as the one which read the previous record
+		}
+		String[] result = null;
+		for(final String line : record.lines){
+			final String[] tokens = parser.parseLineMulti(line);
+			if(tokens.length > 0){
+				if(result == null){
+					result = tokens;
+				}else{
+					final String[] joined = Arrays.copyOf(result, result.length + tokens.length);
+					System.arraycopy(tokens, 0, joined, result.length, tokens.length);
+					result = joined;
+				}
+			}
+		}
+		return result;
+	}
 
+	/*
+	 * Tracks only the state of the opencsv parser (with the default characters) to find where a record ends
+	 * without parsing it. Returns true if the line ends inside quotes.
+	 */
+	private boolean scanQuotes(final String line, boolean inQuotes){
+		final char quote = au.com.bytecode.opencsv.CSVParser.DEFAULT_QUOTE_CHARACTER;
+		final char escape = au.com.bytecode.opencsv.CSVParser.DEFAULT_ESCAPE_CHARACTER;
+		final char separator = au.com.bytecode.opencsv.CSVParser.DEFAULT_SEPARATOR;
+		for(int i = 0; i < line.length(); i++){
+			final char c = line.charAt(i);
+			final boolean hasNext = i + 1 < line.length();
+			if(c == escape){
+				if((inQuotes || inField) && hasNext && (line.charAt(i + 1) == quote || line.charAt(i + 1) == escape)){
+					i++;
+				}
+			}else if(c == quote){
+				if((inQuotes || inField) && hasNext && line.charAt(i + 1) == quote){
+					i++;
+				}else{
+					inQuotes = !inQuotes;
+				}
+				inField = !inField;
+			}else if(c == separator && !inQuotes){
+				inField = false;
+			}else{
+				inField = true;
+			}
+		}
+		return inQuotes;
+	}
+
+	private Event createEvent(final String[] tokens) throws Exception{
         final String timeOfDay = getToken(tokens, INDEX_TIME);
         final String processName = getToken(tokens, INDEX_PROCESS_NAME);
         final String pid = getToken(tokens, INDEX_PID);
@@ -209,7 +308,11 @@ public class CSVEventReader extends EventReader{
 	}
 
 	private String[] parseCSVLine(final boolean isHeader) throws Exception{
-		return reader.readNext();
+		final Record record = readRecord();
+		if(record == null){
+			return null;
+		}
+		return parseRecordLines(record);
 	}
 
 	private String _getToken(final String[] tokens, final Integer index, final boolean optional) throws Exception{
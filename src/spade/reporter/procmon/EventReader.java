@@ -48,4 +48,15 @@ public abstract class EventReader implements Closeable{
 		}
 	}
 
+	/**
+	 * Events are read ahead of time by a ParallelEventReader if the parse thread count is greater than 1
+	 */
+	public static EventReader createReader(final String filePath, final int parseThreadCount, final int batchSize) throws Exception{
+		final EventReader eventReader = createReader(filePath);
+		if(parseThreadCount <= 1){
+			return eventReader;
+		}
+		return new ParallelEventReader(eventReader, parseThreadCount, batchSize);
+	}
+
 }
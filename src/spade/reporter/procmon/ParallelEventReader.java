@@ -0,0 +1,197 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.procmon;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the events of another reader ahead of time on a separate thread.
+ *
+ * For CSV files, the records are split by the read thread and parsed into events by the parse threads.
+ * For XML files, the events are read by the read thread only since the XML stream can only be read in order.
+ *
+ * Events are returned in the order of the file. If an event cannot be read then the events before it are returned
+ * first and the failure is thrown after them, the same as the wrapped reader.
+ */
+public class ParallelEventReader extends EventReader{
+
+	private static final class Batch{
+		private final List<Event> events;
+		private final Exception exception;
+
+		private Batch(final List<Event> events, final Exception exception){
+			this.events = events;
+			this.exception = exception;
+		}
+	}
+
+	private static final Batch endOfEvents = new Batch(Collections.<Event>emptyList(), null);
+
+	private final EventReader eventReader;
+	private final int batchSize;
+	private final ExecutorService parseThreads;
+	private final BlockingQueue<Future<Batch>> batches;
+	private final Thread readThread;
+
+	private volatile boolean closed = false;
+	private volatile Exception readException = null;
+
+	private Iterator<Event> currentBatch = Collections.emptyIterator();
+	private Exception currentBatchException = null;
+	private boolean ended = false;
+
+	public ParallelEventReader(final EventReader eventReader, final int parseThreadCount, final int batchSize){
+		super(eventReader.filePath);
+		if(parseThreadCount < 1){
+			throw new IllegalArgumentException("Parse thread count must be greater than 0. Found: " + parseThreadCount);
+		}
+		if(batchSize < 1){
+			throw new IllegalArgumentException("Batch size must be greater than 0. Found: " + batchSize);
+		}
+		this.eventReader = eventReader;
+		this.batchSize = batchSize;
+		this.batches = new ArrayBlockingQueue<Future<Batch>>(parseThreadCount * 2);
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		this.parseThreads = Executors.newFixedThreadPool(parseThreadCount, runnable -> {
+			final Thread thread = new Thread(runnable, "ProcMon-parse-thread-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.readThread = new Thread(this::readBatches, "ProcMon-read-thread");
+		this.readThread.setDaemon(true);
+		this.readThread.start();
+	}
+
+	private void readBatches(){
+		try{
+			while(!closed){
+				final Future<Batch> batch;
+				if(eventReader instanceof CSVEventReader){
+					batch = readCSVBatch((CSVEventReader)eventReader);
+				}else{
+					batch = readEventBatch();
+				}
+				if(batch == null){
+					break;
+				}
+				batches.put(batch);
+			}
+		}catch(InterruptedException e){
+			// closed
+		}catch(Exception e){
+			readException = e;
+		}finally{
+			try{
+				batches.put(CompletableFuture.completedFuture(endOfEvents));
+			}catch(InterruptedException e){
+				// closed
+			}
+		}
+	}
+
+	private Future<Batch> readCSVBatch(final CSVEventReader csvEventReader) throws Exception{
+		final List<CSVEventReader.Record> records = new ArrayList<CSVEventReader.Record>(batchSize);
+		CSVEventReader.Record record;
+		while(records.size() < batchSize && (record = csvEventReader.readRecord()) != null){
+			records.add(record);
+		}
+		if(records.isEmpty()){
+			return null;
+		}
+		return parseThreads.submit(() -> {
+			final List<Event> events = new ArrayList<Event>(records.size());
+			try{
+				for(final CSVEventReader.Record parseRecord : records){
+					events.add(csvEventReader.parseRecord(parseRecord));
+				}
+			}catch(Exception e){
+				return new Batch(events, e);
+			}
+			return new Batch(events, null);
+		});
+	}
+
+	private Future<Batch> readEventBatch() throws Exception{
+		final List<Event> events = new ArrayList<Event>(batchSize);
+		try{
+			Event event;
+			while(events.size() < batchSize && (event = eventReader.read()) != null){
+				events.add(event);
+			}
+		}catch(Exception e){
+			return CompletableFuture.completedFuture(new Batch(events, e));
+		}
+		if(events.isEmpty()){
+			return null;
+		}
+		return CompletableFuture.completedFuture(new Batch(events, null));
+	}
+
+	@Override
+	public Event read() throws Exception{
+		while(!currentBatch.hasNext()){
+			if(currentBatchException != null){
+				final Exception exception = currentBatchException;
+				currentBatchException = null;
+				throw exception;
+			}
+			if(ended){
+				return null;
+			}
+			final Batch batch;
+			try{
+				batch = batches.take().get();
+			}catch(ExecutionException e){
+				final Throwable cause = e.getCause();
+				throw cause instanceof Exception ? (Exception)cause : e;
+			}
+			if(batch == endOfEvents){
+				ended = true;
+				if(readException != null){
+					throw readException;
+				}
+				return null;
+			}
+			currentBatch = batch.events.iterator();
+			currentBatchException = batch.exception;
+		}
+		return currentBatch.next();
+	}
+
+	@Override
+	public void close() throws IOException{
+		closed = true;
+		readThread.interrupt();
+		parseThreads.shutdownNow();
+		eventReader.close();
+	}
+}
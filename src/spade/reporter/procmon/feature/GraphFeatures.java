@@ -41,12 +41,18 @@ public class GraphFeatures{
 	private static final String statusBenign = "good", statusTainted = "tainted", statusMalicious = "bad";
 	private static final double labelBad = 1.0, labelGood = 0.0;
 
+	// Vertex statuses as stored in the status array. Index of the status string in 'statusNames'.
+	private static final byte statusIdNone = 0, statusIdBenign = 1, statusIdTainted = 2, statusIdMalicious = 3;
+	private static final String[] statusNames = {null, statusBenign, statusTainted, statusMalicious};
+
 	private static final String extensionExe = "exe", extensionDat = "dat", extensionDll = "dll", extensionBin = "bin";
 
 	private static final Set<String> sensitiveExtensions = new HashSet<String>(
 			Arrays.asList(extensionExe, extensionDat, extensionDll, extensionBin));
 
 	private static final double scaleTime = 10000000;
+	private static final int initialVertexCapacity = 1024;
+
 	private final double beginningThreshold;
 	private final double taintedParentWeight;
 	private final DateTimeFormatter timeFormatter;
@@ -57,9 +63,15 @@ public class GraphFeatures{
 
 	private final Set<String> maliciousProcessNames = new HashSet<>();
 
-	private final Map<String, Double> vertexLabels = new HashMap<>();
-	private final Map<String, String> vertexStatuses = new HashMap<>();
-	private final Map<String, Integer> vertexAncestorsCount = new HashMap<>();
+	/*
+	 * Per vertex state in primitive arrays indexed by the order in which the vertices were first seen.
+	 * A NaN label means that the label has not been set.
+	 */
+	private final Map<String, Integer> vertexIndices = new HashMap<>();
+	private int vertexCount = 0;
+	private double[] vertexLabels = new double[initialVertexCapacity];
+	private byte[] vertexStatuses = new byte[initialVertexCapacity];
+	private int[] vertexAncestorsCount = new int[initialVertexCapacity];
 
 	public GraphFeatures(final Set<String> maliciousProcessNames, 
 			final double inceptionTime, final double taintedParentWeight, final DateTimeFormatter timeFormatter,
@@ -71,80 +83,102 @@ public class GraphFeatures{
 		this.dateTimeFormatter = dateTimeFormatter;
 	}
 
-	private String getProcessStatus(final AbstractVertex vertex) throws Exception{
-		return getProcessStatus(vertex.bigHashCode());
+	private int getVertexIndex(final String bigHashCode){
+		final Integer index = vertexIndices.get(bigHashCode);
+		return index == null ? -1 : index;
+	}
+
+	private int getOrCreateVertexIndex(final String bigHashCode){
+		Integer index = vertexIndices.get(bigHashCode);
+		if(index == null){
+			if(vertexCount == vertexLabels.length){
+				final int capacity = vertexCount * 2;
+				vertexLabels = Arrays.copyOf(vertexLabels, capacity);
+				vertexStatuses = Arrays.copyOf(vertexStatuses, capacity);
+				vertexAncestorsCount = Arrays.copyOf(vertexAncestorsCount, capacity);
+			}
+			index = vertexCount++;
+			vertexLabels[index] = Double.NaN;
+			vertexStatuses[index] = statusIdNone;
+			vertexAncestorsCount[index] = 0;
+			vertexIndices.put(bigHashCode, index);
+		}
+		return index;
 	}
 
 	public String getProcessStatus(final String bigHashCode){
-		return vertexStatuses.get(bigHashCode);
+		final int index = getVertexIndex(bigHashCode);
+		return index < 0 ? null : statusNames[vertexStatuses[index]];
 	}
 
-	private boolean isNotBenignStatus(final AbstractVertex vertex) throws Exception{
-		return !statusBenign.equals(getProcessStatus(vertex));
+	private boolean isNotBenignStatus(final int index){
+		return vertexStatuses[index] != statusIdBenign;
 	}
 
-	private boolean isBenignStatus(final AbstractVertex vertex) throws Exception{
-		return statusBenign.equals(getProcessStatus(vertex));
+	private boolean isBenignStatus(final int index){
+		return vertexStatuses[index] == statusIdBenign;
 	}
 
-	private boolean isMaliciousStatus(final AbstractVertex vertex) throws Exception{
-		return statusMalicious.equals(getProcessStatus(vertex));
+	private boolean isMaliciousStatus(final int index){
+		return vertexStatuses[index] == statusIdMalicious;
 	}
 
-	private void setMaliciousStatus(final AbstractVertex vertex) throws Exception{
-		vertexStatuses.put(vertex.bigHashCode(), statusMalicious);
+	private void setMaliciousStatus(final int index){
+		vertexStatuses[index] = statusIdMalicious;
 	}
 
-	private void setTaintStatus(final AbstractVertex vertex) throws Exception{
-		vertexStatuses.put(vertex.bigHashCode(), statusTainted);
+	private void setTaintStatus(final int index){
+		vertexStatuses[index] = statusIdTainted;
 	}
 
-	private void setBenignStatus(final AbstractVertex vertex) throws Exception{
-		vertexStatuses.put(vertex.bigHashCode(), statusBenign);
+	private void setBenignStatus(final int index){
+		vertexStatuses[index] = statusIdBenign;
 	}
 
-	private Double getLabel(final AbstractVertex vertex) throws Exception{
-		Double label = getLabel(vertex.bigHashCode());
-		if(label == null){
-			label = labelGood;
-		}
-		return label;
+	private double getLabel(final int index){
+		final double label = vertexLabels[index];
+		return Double.isNaN(label) ? labelGood : label;
 	}
 
 	public Double getLabel(final String bigHashCode){
-		return vertexLabels.get(bigHashCode);
+		final int index = getVertexIndex(bigHashCode);
+		if(index < 0 || Double.isNaN(vertexLabels[index])){
+			return null;
+		}
+		return vertexLabels[index];
 	}
 
-	private boolean isLabelBad(final AbstractVertex vertex) throws Exception{
-		return getLabel(vertex) == labelBad;
+	private boolean isLabelBad(final int index){
+		return getLabel(index) == labelBad;
 	}
 
-	private boolean isLabelLessThanBad(final AbstractVertex vertex) throws Exception{
-		return getLabel(vertex) < labelBad;
+	private boolean isLabelLessThanBad(final int index){
+		return getLabel(index) < labelBad;
 	}
 
-	private void setLabelBad(final AbstractVertex vertex) throws Exception{
-		updateLabel(vertex, labelBad);
+	private void setLabelBad(final int index){
+		updateLabel(index, labelBad);
 	}
 
-	private void setLabelGood(final AbstractVertex vertex) throws Exception{
-		updateLabel(vertex, labelGood);
+	private void setLabelGood(final int index){
+		updateLabel(index, labelGood);
 	}
 
-	private void updateLabel(final AbstractVertex vertex, final double updatedLabel) throws Exception{
-		vertexLabels.put(vertex.bigHashCode(), updatedLabel);
+	private void updateLabel(final int index, final double updatedLabel){
+		vertexLabels[index] = updatedLabel;
 	}
 
 	public int getAncestorsCount(final AbstractVertex vertex) throws Exception{
-		Integer ancestorsCount = vertexAncestorsCount.get(vertex.bigHashCode());
-		if(ancestorsCount == null){
-			ancestorsCount = 0;
-		}
-		return ancestorsCount;
+		final int index = getVertexIndex(vertex.bigHashCode());
+		return index < 0 ? 0 : vertexAncestorsCount[index];
 	}
 
-	private void updateAncestorsCount(final AbstractVertex vertex, int updatedAncestorsCount) throws Exception{
-		vertexAncestorsCount.put(vertex.bigHashCode(), updatedAncestorsCount);
+	private int getAncestorsCount(final int index){
+		return vertexAncestorsCount[index];
+	}
+
+	private void updateAncestorsCount(final int index, int updatedAncestorsCount){
+		vertexAncestorsCount[index] = updatedAncestorsCount;
 	}
 
 	private ProcessFeatures getProcessFeatures(final AbstractVertex vertex) throws Exception{
@@ -164,10 +198,9 @@ public class GraphFeatures{
 		}
 	}
 
-	private void updateOperationOnArtifactByABadProcess(final AbstractEdge wasGeneratedByEdge){
+	private void updateOperationOnArtifactByABadProcess(final AbstractEdge wasGeneratedByEdge, final int processIndex){
 		try{
-			final AbstractVertex processVertex = wasGeneratedByEdge.getParentVertex();
-			if(isLabelBad(processVertex)){
+			if(isLabelBad(processIndex)){
 				final AbstractVertex artifactVertex = wasGeneratedByEdge.getChildVertex();
 				final String wasGeneratedByOperation = ProvenanceModel.getEdgeOperation(wasGeneratedByEdge);
 
@@ -195,17 +228,19 @@ public class GraphFeatures{
 	}
 
 	public void handleVertex(final AbstractVertex vertex) throws Exception{
+		final String bigHashCode = vertex.bigHashCode();
+		final int index = getOrCreateVertexIndex(bigHashCode);
 		if(ProvenanceModel.isProcessVertex(vertex)){
 			final ProcessIdentifier processIdentifier = ProcessIdentifier.get(vertex);
 			final ProcessFeatures processFeatures = new ProcessFeatures(beginningThreshold);
 			processFeaturesMap.put(processIdentifier, processFeatures);
 			final String processName = ProvenanceModel.getProcessName(vertex);
 			if(maliciousProcessNames.contains(processName)){
-				setLabelBad(vertex);
-				setMaliciousStatus(vertex);
+				setLabelBad(index);
+				setMaliciousStatus(index);
 			}else{
-				setLabelGood(vertex);
-				setBenignStatus(vertex);
+				setLabelGood(index);
+				setBenignStatus(index);
 			}
 
 			final String ppid = ProvenanceModel.getPpid(vertex);
@@ -214,27 +249,28 @@ public class GraphFeatures{
 			processFeatures.setPpid(ppid);
 			processFeatures.setProcessName(processName);
 			processFeatures.setCommandLine(commandLine);
-			processFeatures.setVertexBigHashCode(vertex.bigHashCode());
+			processFeatures.setVertexBigHashCode(bigHashCode);
 		}else{
-			setLabelGood(vertex);
-			setBenignStatus(vertex);
+			setLabelGood(index);
+			setBenignStatus(index);
 		}
-		updateAncestorsCount(vertex, 0);
+		updateAncestorsCount(index, 0);
 	}
 
-	private void checkAndUpdateVertexTaint(final AbstractVertex childVertex, final AbstractVertex parentVertex) throws Exception{
-		if(isNotBenignStatus(parentVertex) && isBenignStatus(childVertex)){
+	private void checkAndUpdateVertexTaint(final AbstractVertex parentVertex, final int childIndex,
+			final int parentIndex) throws Exception{
+		if(isNotBenignStatus(parentIndex) && isBenignStatus(childIndex)){
 			if(ProvenanceModel.isNotRegistry(parentVertex)){
-				setTaintStatus(childVertex);
+				setTaintStatus(childIndex);
 			}
 		}
 	}
 
-	private void computeAndUpdateVertexLabel(final AbstractVertex childVertex, final AbstractVertex parentVertex) throws Exception{
-		if(isLabelLessThanBad(childVertex)){
-			final double childVertexLabel = getLabel(childVertex);
-			final double childAncestorsCount = getAncestorsCount(childVertex);
-			final double parentVertexLabel = getLabel(parentVertex);
+	private void computeAndUpdateVertexLabel(final int childIndex, final int parentIndex){
+		if(isLabelLessThanBad(childIndex)){
+			final double childVertexLabel = getLabel(childIndex);
+			final double childAncestorsCount = getAncestorsCount(childIndex);
+			final double parentVertexLabel = getLabel(parentIndex);
 			final double factor; // Alpha
 			// Indicator function
 			if(parentVertexLabel > 0.5){
@@ -245,8 +281,8 @@ public class GraphFeatures{
 			final double updatedChildAncestorsCount = childAncestorsCount + factor;
 			final double updatedChildVertexLabel = ((childVertexLabel * childAncestorsCount)
 					+ (factor * parentVertexLabel)) / (updatedChildAncestorsCount);
-			updateLabel(childVertex, updatedChildVertexLabel);
-			updateAncestorsCount(childVertex, (int)updatedChildAncestorsCount);
+			updateLabel(childIndex, updatedChildVertexLabel);
+			updateAncestorsCount(childIndex, (int)updatedChildAncestorsCount);
 		}
 	}
 
@@ -277,8 +313,12 @@ public class GraphFeatures{
 		final AbstractVertex childVertex = edge.getChildVertex();
 		final AbstractVertex parentVertex = edge.getParentVertex();
 
-		checkAndUpdateVertexTaint(childVertex, parentVertex);
-		computeAndUpdateVertexLabel(childVertex, parentVertex);
+		// Hash of the endpoints computed only once for the edge
+		final int childIndex = getOrCreateVertexIndex(childVertex.bigHashCode());
+		final int parentIndex = getOrCreateVertexIndex(parentVertex.bigHashCode());
+
+		checkAndUpdateVertexTaint(parentVertex, childIndex, parentIndex);
+		computeAndUpdateVertexLabel(childIndex, parentIndex);
 
 		updateLifeDurationForProcesses(edge);
 
@@ -287,9 +327,9 @@ public class GraphFeatures{
 		}else if(ProvenanceModel.isWasControlledByEdge(edge)){
 			handleWasControlledBy(edge);
 		}else if(ProvenanceModel.isWasTriggeredByEdge(edge)){
-			handleWasTriggeredBy(edge);
+			handleWasTriggeredBy(edge, childIndex, parentIndex);
 		}else if(ProvenanceModel.isWasGeneratedByEdge(edge)){
-			handleWasGeneratedByEdge(edge);
+			handleWasGeneratedByEdge(edge, parentIndex);
 		}
 	}
 
@@ -301,7 +341,8 @@ public class GraphFeatures{
 		processFeatures.setAgentName(agentName);
 	}
 
-	private void handleWasTriggeredBy(final AbstractEdge edge) throws Exception{
+	private void handleWasTriggeredBy(final AbstractEdge edge, final int childIndex, final int parentIndex)
+			throws Exception{
 		final AbstractVertex childVertex = edge.getChildVertex();
 		final AbstractVertex parentVertex = edge.getParentVertex();
 		final LocalDateTime edgeDateTime = getDateTimeFromEdge(edge);
@@ -326,12 +367,12 @@ public class GraphFeatures{
 			triggererProcessFeatures.setWritesThenExecutes();
 		}
 
-		if(isLabelBad(parentVertex)){
-			updateLabel(childVertex, labelBad);
+		if(isLabelBad(parentIndex)){
+			updateLabel(childIndex, labelBad);
 		}
 
-		if(isMaliciousStatus(parentVertex)){
-			setMaliciousStatus(childVertex);
+		if(isMaliciousStatus(parentIndex)){
+			setMaliciousStatus(childIndex);
 		}
 
 		triggererProcessFeatures.updateLifeDuration(edgeDateTime, scaleTime);
@@ -370,7 +411,7 @@ public class GraphFeatures{
 		}
 	}
 
-	private void handleWasGeneratedByEdge(final AbstractEdge edge) throws Exception{
+	private void handleWasGeneratedByEdge(final AbstractEdge edge, final int parentIndex) throws Exception{
 		final AbstractVertex childVertex = edge.getChildVertex();
 		final AbstractVertex parentVertex = edge.getParentVertex();
 		final ProcessFeatures processFeatures = getProcessFeatures(parentVertex);
@@ -384,7 +425,7 @@ public class GraphFeatures{
 		wasGeneratedByFlowFeatures.updateEdge(edgeDateTime, flowSize, timeSpentInFlow);
 
 		if(ProvenanceModel.isFileSystemArtifact(childVertex)){
-			updateOperationOnArtifactByABadProcess(edge);
+			updateOperationOnArtifactByABadProcess(edge, parentIndex);
 
 			final String filePath = ProvenanceModel.getFilePath(childVertex);
 			final String directoryPath = ProvenanceModel.getDirectoryPath(filePath);
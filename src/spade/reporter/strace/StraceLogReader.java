@@ -0,0 +1,119 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.strace;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Line reader for a complete (offline) strace log.
+ *
+ * Files ending with '.gz' are decompressed while reading. Other files are memory-mapped one window at a time so
+ * that the lines are read without copying the file through a stream.
+ */
+public final class StraceLogReader implements Closeable{
+
+	private static final long mappedWindowBytes = 64L * 1024 * 1024;
+
+	// Set for compressed files
+	private final BufferedReader bufferedReader;
+
+	// Set for mapped files
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private MappedByteBuffer window = null;
+	private long windowStart = 0;
+	private long position = 0;
+	private byte[] lineBytes = new byte[1024];
+
+	private StraceLogReader(final BufferedReader bufferedReader){
+		this.bufferedReader = bufferedReader;
+		this.file = null;
+		this.channel = null;
+		this.size = 0;
+	}
+
+	private StraceLogReader(final RandomAccessFile file) throws IOException{
+		this.bufferedReader = null;
+		this.file = file;
+		this.channel = file.getChannel();
+		this.size = channel.size();
+	}
+
+	public static StraceLogReader open(final String path) throws IOException{
+		if(path.endsWith(".gz")){
+			return new StraceLogReader(new BufferedReader(new InputStreamReader(
+					new GZIPInputStream(new FileInputStream(path), 64 * 1024), StandardCharsets.UTF_8)));
+		}
+		return new StraceLogReader(new RandomAccessFile(path, "r"));
+	}
+
+	/**
+	 * Returns NULL at the end of the file
+	 */
+	public String readLine() throws IOException{
+		if(bufferedReader != null){
+			return bufferedReader.readLine();
+		}
+		if(position >= size){
+			return null;
+		}
+		int length = 0;
+		while(position < size){
+			if(window == null || position >= windowStart + window.limit()){
+				windowStart = position;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(mappedWindowBytes, size - windowStart));
+			}
+			final byte b = window.get((int)(position - windowStart));
+			position++;
+			if(b == '\n'){
+				break;
+			}
+			if(length == lineBytes.length){
+				lineBytes = Arrays.copyOf(lineBytes, length * 2);
+			}
+			lineBytes[length++] = b;
+		}
+		if(length > 0 && lineBytes[length - 1] == '\r'){
+			length--;
+		}
+		return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException{
+		if(bufferedReader != null){
+			bufferedReader.close();
+		}else{
+			window = null;
+			file.close();
+		}
+	}
+}
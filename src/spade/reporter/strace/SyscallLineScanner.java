@@ -0,0 +1,218 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.strace;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single pass scanner for the lines written by 'strace -f -tt'. Replaces the regular expressions which backtracked
+ * over the long argument lists.
+ *
+ * A complete line is: '<pid> <hh:mm:ss.micros> <syscall>(<arguments>) = <return value>[ <anything>]'.
+ * A line ending with ' <unfinished ...>' is kept (by pid) till the line '<pid> ... <... <syscall> resumed> <rest>'
+ * which is then joined with the kept line.
+ */
+public final class SyscallLineScanner{
+
+	public static final class Syscall{
+		public final String pid;
+		public final String time;
+		public final String name;
+		public final String arguments;
+		public final String returnValue;
+
+		private Syscall(final String pid, final String time, final String name, final String arguments,
+				final String returnValue){
+			this.pid = pid;
+			this.time = time;
+			this.name = name;
+			this.arguments = arguments;
+			this.returnValue = returnValue;
+		}
+	}
+
+	private static final String unfinishedSuffix = " <unfinished ...>";
+	private static final String resumedMarker = " resumed> ";
+
+	// pid -> the part of the unfinished line after the pid
+	private final Map<String, String> unfinished = new HashMap<String, String>();
+
+	/**
+	 * Returns NULL if the line is not a complete syscall line
+	 */
+	public static Syscall scanComplete(final String line){
+		final int pidEnd = skipDigits(line, 0);
+		if(pidEnd == 0){
+			return null;
+		}
+		final int timeStart = skipWhitespace(line, pidEnd);
+		if(timeStart == pidEnd){
+			return null;
+		}
+		final int timeEnd = skipTime(line, timeStart);
+		if(timeEnd < 0){
+			return null;
+		}
+		final int nameStart = skipWhitespace(line, timeEnd);
+		if(nameStart == timeEnd){
+			return null;
+		}
+		final int nameEnd = skipWordCharacters(line, nameStart);
+		if(nameEnd == nameStart || nameEnd >= line.length() || line.charAt(nameEnd) != '('){
+			return null;
+		}
+		final int argumentsStart = nameEnd + 1;
+		// The last ')' followed by the return value ends the arguments
+		for(int i = line.length() - 1; i >= argumentsStart; i--){
+			if(line.charAt(i) != ')'){
+				continue;
+			}
+			final int returnValueStart = findReturnValue(line, i + 1);
+			if(returnValueStart > 0){
+				final int returnValueEnd = skipDigits(line, 
+						line.charAt(returnValueStart) == '-' ? returnValueStart + 1 : returnValueStart);
+				return new Syscall(line.substring(0, pidEnd), line.substring(timeStart, timeEnd),
+						line.substring(nameStart, nameEnd), line.substring(argumentsStart, i),
+						line.substring(returnValueStart, returnValueEnd));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keeps the line if it is an unfinished syscall line.
+	 * Returns true if kept.
+	 */
+	public boolean keepIfUnfinished(final String line){
+		if(!line.endsWith(unfinishedSuffix)){
+			return false;
+		}
+		final int pidEnd = skipDigits(line, 0);
+		if(pidEnd == 0){
+			return false;
+		}
+		final int restStart = skipWhitespace(line, pidEnd);
+		if(restStart == pidEnd || restStart > line.length() - unfinishedSuffix.length()){
+			return false;
+		}
+		unfinished.put(line.substring(0, pidEnd), line.substring(restStart, line.length() - unfinishedSuffix.length()));
+		return true;
+	}
+
+	/**
+	 * Returns the line joined with the unfinished line of the same pid if it is a resumed syscall line.
+	 * Otherwise, returns NULL.
+	 */
+	public String joinIfResumed(final String line){
+		final int pidEnd = skipDigits(line, 0);
+		if(pidEnd == 0){
+			return null;
+		}
+		final int restStart = skipWhitespace(line, pidEnd);
+		if(restStart == pidEnd){
+			return null;
+		}
+		int markerStart = line.lastIndexOf(resumedMarker);
+		while(markerStart >= restStart){
+			// '<... <syscall> resumed> '
+			final int nameStart = skipWordCharactersBackwards(line, markerStart);
+			if(nameStart < markerStart && nameStart - 5 >= restStart && line.charAt(nameStart - 1) == ' '
+					&& line.charAt(nameStart - 5) == '<'){
+				final String pid = line.substring(0, pidEnd);
+				return pid + " " + unfinished.remove(pid) + line.substring(markerStart + resumedMarker.length());
+			}
+			markerStart = line.lastIndexOf(resumedMarker, markerStart - 1);
+		}
+		return null;
+	}
+
+	public int getUnfinishedCount(){
+		return unfinished.size();
+	}
+
+	private static boolean isDigit(final char c){
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWordCharacter(final char c){
+		return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+	}
+
+	private static int skipDigits(final String line, int i){
+		while(i < line.length() && isDigit(line.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipWhitespace(final String line, int i){
+		while(i < line.length() && Character.isWhitespace(line.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipWordCharacters(final String line, int i){
+		while(i < line.length() && isWordCharacter(line.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipWordCharactersBackwards(final String line, int end){
+		while(end > 0 && isWordCharacter(line.charAt(end - 1))){
+			end--;
+		}
+		return end;
+	}
+
+	/*
+	 * 'hh:mm:ss.micros' with any number of digits in each part. Returns -1 if not a time.
+	 */
+	private static int skipTime(final String line, final int start){
+		int i = start;
+		for(final char separator : new char[]{':', ':', '.'}){
+			final int end = skipDigits(line, i);
+			if(end == i || end >= line.length() || line.charAt(end) != separator){
+				return -1;
+			}
+			i = end + 1;
+		}
+		final int end = skipDigits(line, i);
+		return end == i ? -1 : end;
+	}
+
+	/*
+	 * '<whitespace>=<whitespace>[-]<digits>'. Returns the start of the return value, or -1 if not a return value.
+	 */
+	private static int findReturnValue(final String line, final int start){
+		final int equalsIndex = skipWhitespace(line, start);
+		if(equalsIndex == start || equalsIndex >= line.length() || line.charAt(equalsIndex) != '='){
+			return -1;
+		}
+		final int valueStart = skipWhitespace(line, equalsIndex + 1);
+		if(valueStart == equalsIndex + 1 || valueStart >= line.length()){
+			return -1;
+		}
+		final int digitsStart = line.charAt(valueStart) == '-' ? valueStart + 1 : valueStart;
+		return skipDigits(line, digitsStart) == digitsStart ? -1 : valueStart;
+	}
+}
@@ -18,14 +18,16 @@ package spade.resolver;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import spade.core.AbstractRemoteResolver;
 import spade.core.AbstractVertex;
@@ -33,12 +35,60 @@ import spade.core.Kernel;
 import spade.core.Query;
 import spade.core.Settings;
 import spade.query.quickgrail.instruction.GetLineage;
+import spade.reporter.audit.OPMConstants;
 import spade.utility.HelperFunctions;
 
+/**
+ * Resolves the lineage of network vertices on the remote hosts they are connected to.
+ *
+ * All the network vertices on a host which need the same remote depth are merged into a single multi-source lineage
+ * query. All the queries for a host are sent together on a pooled connection. Network vertices which are already
+ * resolved by this resolver (to at least the same depth) are not queried again.
+ */
 public class RemoteLineageResolver extends AbstractRemoteResolver{
 
+	private static final Logger logger = Logger.getLogger(RemoteLineageResolver.class.getName());
+
 	private static final int NTHREADS = 10;
-	
+
+	// Bound on the size of the predicate in a single query
+	private static final int maxSourcesPerQuery = 64;
+
+	/**
+	 * Network vertices on one remote host which need lineage up to the same remote depth
+	 */
+	public static final class RemoteSources{
+		public final String remoteAddress;
+		public final int remoteDepth;
+		private final List<String> predicates = new ArrayList<String>();
+
+		private RemoteSources(final String remoteAddress, final int remoteDepth){
+			this.remoteAddress = remoteAddress;
+			this.remoteDepth = remoteDepth;
+		}
+
+		/**
+		 * Predicate which matches all the remote network vertices
+		 */
+		public final String getMergedPredicate(){
+			if(predicates.size() == 1){
+				return predicates.get(0);
+			}
+			String merged = "";
+			for(final String predicate : predicates){
+				if(!merged.isEmpty()){
+					merged += " or ";
+				}
+				merged += "(" + predicate + ")";
+			}
+			return merged;
+		}
+
+		public final int size(){
+			return predicates.size();
+		}
+	}
+
 	private final Map<AbstractVertex, Integer> localNetworkVertexToLocalDepth = new HashMap<AbstractVertex, Integer>();
 	private final int maxDepth;
 	private final GetLineage.Direction direction;
@@ -46,7 +96,8 @@ public class RemoteLineageResolver extends AbstractRemoteResolver{
 
 	private final String storageClassName;
 
-	private final Map<String, Set<AbstractVertex>> remoteIpToNetworkVertices = new HashMap<String, Set<AbstractVertex>>();
+	// Remote network vertices already resolved by this resolver to the remote depth
+	private final Map<String, Integer> resolvedRemoteDepths = new HashMap<String, Integer>();
 
 	public RemoteLineageResolver(Map<AbstractVertex, Integer> localNetworkVertexToLocalDepth, int maxDepth,
 			GetLineage.Direction direction, String nonce, String storageClassName){
@@ -78,44 +129,38 @@ public class RemoteLineageResolver extends AbstractRemoteResolver{
 			if(depth < 0){
 				throw new RuntimeException("Negative depth for vertex in map");
 			}
-			String remoteAddress = null;//RemoteResolver.getRemoteAddress(vertex);
-			if(HelperFunctions.isNullOrEmpty(remoteAddress)){
-				throw new RuntimeException("Negative depth for vertex in map");
-			}
-			Set<AbstractVertex> remoteVerticesSet = remoteIpToNetworkVertices.get(remoteAddress);
-			if(remoteVerticesSet == null){
-				remoteVerticesSet = new HashSet<AbstractVertex>();
-				remoteIpToNetworkVertices.put(remoteAddress, remoteVerticesSet);
+			if(HelperFunctions.isNullOrEmpty(getRemoteAddress(vertex))){
+				throw new RuntimeException("NULL/Empty remote address for vertex in map");
 			}
-			remoteVerticesSet.add(vertex);
 		}
 	}
 
 	@Override
 	public List<Query> resolve(){
 		int clientPort = Settings.getCommandLineQueryPort();
-				
+
+		final List<RemoteSources> allRemoteSources = groupRemoteSources(localNetworkVertexToLocalDepth, maxDepth,
+				direction, resolvedRemoteDepths);
+
 		Map<String, List<Query>> allQueries = new HashMap<String, List<Query>>();
-		for(Map.Entry<String, Set<AbstractVertex>> entry : remoteIpToNetworkVertices.entrySet()){
-			String remoteAddress = entry.getKey();
-			Set<AbstractVertex> vertices = entry.getValue();
-			
-			List<Query> queriesForSingleHost = new ArrayList<Query>();
-			allQueries.put(remoteAddress, queriesForSingleHost);
-			
-			for(AbstractVertex vertex : vertices){
-				String query = buildRemoteGetLineageQuery(vertex, localNetworkVertexToLocalDepth.get(vertex));
-				Query q = new Query(Kernel.getHostName(), remoteAddress, query, nonce);
-				queriesForSingleHost.add(q);
+		for(final RemoteSources remoteSources : allRemoteSources){
+			List<Query> queriesForSingleHost = allQueries.get(remoteSources.remoteAddress);
+			if(queriesForSingleHost == null){
+				queriesForSingleHost = new ArrayList<Query>();
+				allQueries.put(remoteSources.remoteAddress, queriesForSingleHost);
 			}
+			// Signatures of the response are verified with the nonce
+			final String queryNonce = nonce == null ? String.valueOf(System.nanoTime()) : nonce;
+			queriesForSingleHost.add(new Query(Kernel.getHostName(), remoteSources.remoteAddress,
+					buildRemoteGetLineageQuery(remoteSources), queryNonce));
 		}
-		
+
 		List<Query> queryResponses = new ArrayList<Query>();
 		ExecutorService executorService = Executors.newFixedThreadPool(NTHREADS);
-		
+
 		try{
 			List<Future<List<Query>>> futures = new ArrayList<>();
-			
+
 			for(Map.Entry<String, List<Query>> entry : allQueries.entrySet()){
 				String remoteAddress = entry.getKey();
 				List<Query> queries = entry.getValue();
@@ -126,9 +171,9 @@ public class RemoteLineageResolver extends AbstractRemoteResolver{
 					futures.add(future);
 				}
 			}
-			
+
 			// Going to wait
-			
+
 			for(Future<List<Query>> future : futures){
 				try{
 					List<Query> queryResponseSublist = future.get();
@@ -139,45 +184,126 @@ public class RemoteLineageResolver extends AbstractRemoteResolver{
 					throw new RuntimeException("Failed to get query results", e);
 				}
 			}
-			
+
 		}finally{
 			executorService.shutdown();
 		}
-		
+
 		return queryResponses;
 	}
 
-	private String buildRemoteGetLineageQuery(AbstractVertex localNetworkVertex, final int localDepth){
-		final int remoteDepth = maxDepth - localDepth;
+	private String buildRemoteGetLineageQuery(final RemoteSources remoteSources){
 		String query = "";
-		query += "dump $base.getLineage($base.getVertex("; // Dump so that we don't have to store it anywhere
-//		query += formatQueryName(RemoteResolver.getAnnotationLocalAddress()) + "="
-//				+ formatQueryValue(RemoteResolver.getRemoteAddress(localNetworkVertex));
-//		query += " and ";
-//		query += formatQueryName(RemoteResolver.getAnnotationLocalPort()) + "="
-//				+ formatQueryValue(RemoteResolver.getRemotePort(localNetworkVertex));
-//		query += " and ";
-//		query += formatQueryName(RemoteResolver.getAnnotationRemoteAddress()) + "="
-//				+ formatQueryValue(RemoteResolver.getLocalAddress(localNetworkVertex));
-//		query += " and ";
-//		query += formatQueryName(RemoteResolver.getAnnotationRemotePort()) + "="
-//				+ formatQueryValue(RemoteResolver.getLocalPort(localNetworkVertex));
+		query += "dump all $base.getLineage($base.getVertex("; // Dump so that we don't have to store it anywhere
+		query += remoteSources.getMergedPredicate();
 		query += ")";
-		query += ", " + remoteDepth;
+		query += ", " + remoteSources.remoteDepth;
 		query += ", " + getFormattedDirection(direction);
-		query += ", 1);"; // finish of get lineage with remote resolve & export = 1 TODO
+		query += ");";
 		return query;
 	}
 
-	private String formatQueryName(String name){
+	/**
+	 * Groups the network vertices by the remote host and the depth left for the remote lineage.
+	 *
+	 * A remote network vertex reachable through multiple local network vertices is included once with the
+	 * largest remote depth. Remote network vertices in 'resolvedRemoteDepths' with at least the same remote depth are
+	 * excluded. The included ones are added to 'resolvedRemoteDepths'.
+	 * Network vertices without the remote address are skipped.
+	 */
+	public static List<RemoteSources> groupRemoteSources(final Map<AbstractVertex, Integer> localNetworkVertexToLocalDepth,
+			final int maxDepth, final GetLineage.Direction direction, final Map<String, Integer> resolvedRemoteDepths){
+		// key -> [remote address, predicate]
+		final Map<String, String[]> sources = new LinkedHashMap<String, String[]>();
+		final Map<String, Integer> sourceRemoteDepths = new HashMap<String, Integer>();
+		for(final Map.Entry<AbstractVertex, Integer> entry : localNetworkVertexToLocalDepth.entrySet()){
+			final AbstractVertex vertex = entry.getKey();
+			final int remoteDepth = maxDepth - entry.getValue();
+			final String remoteAddress = getRemoteAddress(vertex);
+			if(remoteDepth < 0){
+				continue;
+			}
+			if(HelperFunctions.isNullOrEmpty(remoteAddress)){
+				logger.log(Level.WARNING, "Skipped network vertex without remote address: " + vertex);
+				continue;
+			}
+			final String predicate = buildRemoteGetVertexPredicate(vertex);
+			final String key = remoteAddress + "\n" + predicate + "\n" + direction;
+			final Integer existingRemoteDepth = sourceRemoteDepths.get(key);
+			if(existingRemoteDepth == null || existingRemoteDepth < remoteDepth){
+				sources.put(key, new String[]{remoteAddress, predicate});
+				sourceRemoteDepths.put(key, remoteDepth);
+			}
+		}
+
+		// host -> remote depth -> sources
+		final Map<String, TreeMap<Integer, List<RemoteSources>>> grouped = new LinkedHashMap<String, TreeMap<Integer, List<RemoteSources>>>();
+		final List<RemoteSources> result = new ArrayList<RemoteSources>();
+		for(final Map.Entry<String, String[]> entry : sources.entrySet()){
+			final String key = entry.getKey();
+			final String remoteAddress = entry.getValue()[0];
+			final String predicate = entry.getValue()[1];
+			final int remoteDepth = sourceRemoteDepths.get(key);
+
+			final Integer resolvedRemoteDepth = resolvedRemoteDepths.get(key);
+			if(resolvedRemoteDepth != null && resolvedRemoteDepth >= remoteDepth){
+				continue;
+			}
+			resolvedRemoteDepths.put(key, remoteDepth);
+
+			TreeMap<Integer, List<RemoteSources>> hostGroups = grouped.get(remoteAddress);
+			if(hostGroups == null){
+				hostGroups = new TreeMap<Integer, List<RemoteSources>>();
+				grouped.put(remoteAddress, hostGroups);
+			}
+			List<RemoteSources> depthGroups = hostGroups.get(remoteDepth);
+			if(depthGroups == null){
+				depthGroups = new ArrayList<RemoteSources>();
+				hostGroups.put(remoteDepth, depthGroups);
+			}
+			RemoteSources remoteSources = depthGroups.isEmpty() ? null : depthGroups.get(depthGroups.size() - 1);
+			if(remoteSources == null || remoteSources.size() >= maxSourcesPerQuery){
+				remoteSources = new RemoteSources(remoteAddress, remoteDepth);
+				depthGroups.add(remoteSources);
+				result.add(remoteSources);
+			}
+			remoteSources.predicates.add(predicate);
+		}
+		return result;
+	}
+
+	/**
+	 * Predicate for the remote network vertex which is the other end of the local network vertex
+	 */
+	public static String buildRemoteGetVertexPredicate(final AbstractVertex localNetworkVertex){
+		String predicate = "";
+		predicate += formatQueryName(OPMConstants.ARTIFACT_LOCAL_ADDRESS) + "="
+				+ formatQueryValue(getRemoteAddress(localNetworkVertex));
+		predicate += " and ";
+		predicate += formatQueryName(OPMConstants.ARTIFACT_LOCAL_PORT) + "="
+				+ formatQueryValue(localNetworkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT));
+		predicate += " and ";
+		predicate += formatQueryName(OPMConstants.ARTIFACT_REMOTE_ADDRESS) + "="
+				+ formatQueryValue(localNetworkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS));
+		predicate += " and ";
+		predicate += formatQueryName(OPMConstants.ARTIFACT_REMOTE_PORT) + "="
+				+ formatQueryValue(localNetworkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT));
+		return predicate;
+	}
+
+	public static String getRemoteAddress(final AbstractVertex networkVertex){
+		return networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS);
+	}
+
+	private static String formatQueryName(String name){
 		return '"' + name + '"';
 	}
 
-	private String formatQueryValue(String name){
+	private static String formatQueryValue(String name){
 		return "'" + name + "'";
 	}
 
-	private String getFormattedDirection(GetLineage.Direction direction){
+	public static String getFormattedDirection(GetLineage.Direction direction){
 		switch(direction){
 		case kAncestor:
 			return "'a'";
@@ -0,0 +1,183 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Settings;
+import spade.storage.binarylog.BinaryLogFormat;
+import spade.storage.binarylog.BinaryLogWriter;
+import spade.utility.FileUtility;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+
+/**
+ * Writes vertices and edges to a compact, block-compressed binary log which can be replayed with the reporter
+ * spade.reporter.BinaryLog.
+ *
+ * Meant for archiving provenance and moving it between hosts and storages. See {@link BinaryLogFormat}.
+ */
+public final class BinaryLog extends AbstractStorage{
+
+	private static final Logger logger = Logger.getLogger(BinaryLog.class.getName());
+
+	private static final String
+		keyOutput = "output",
+		keyBlockSize = "blockSize",
+		keyCompression = "compression",
+		keyAppend = "append";
+
+	private BinaryLogWriter writer = null;
+
+	@Override
+	public final synchronized boolean initialize(final String arguments){
+		final Map<String, String> map = new HashMap<String, String>();
+		try{
+			final String configFilePath = Settings.getDefaultConfigFilePath(this.getClass());
+			map.putAll(HelperFunctions.parseKeyValuePairsFrom(arguments, configFilePath, null));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments and/or storage config file", e);
+			return false;
+		}
+
+		final String outputFilePathString = map.remove(keyOutput);
+		final String blockSizeString = map.remove(keyBlockSize);
+		final String compressionString = map.remove(keyCompression);
+		final String appendString = map.remove(keyAppend);
+
+		try{
+			initialize(outputFilePathString, blockSizeString, compressionString, appendString);
+			logger.log(Level.INFO, "Arguments [" + keyOutput + "=" + outputFilePathString + ", " + keyBlockSize + "="
+					+ blockSizeString + ", " + keyCompression + "=" + compressionString + ", " + keyAppend + "="
+					+ appendString + "]");
+
+			if(!map.isEmpty()){
+				logger.log(Level.INFO, "Unused key-value pairs in the arguments and/or config file: " + map);
+			}
+
+			return true;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to initialize storage", e);
+			return false;
+		}
+	}
+
+	public final synchronized void initialize(final String outputFilePathString, final String blockSizeString,
+			final String compressionString, final String appendString) throws Exception{
+		if(writer != null){
+			throw new Exception("Storage already initialized");
+		}
+
+		final Result<Long> blockSizeResult = HelperFunctions.parseLong(blockSizeString, 10, 1, 256 * 1024 * 1024);
+		if(blockSizeResult.error){
+			throw new Exception("Invalid block size: '" + blockSizeString + "'. " + blockSizeResult.errorMessage);
+		}
+
+		final Result<BinaryLogFormat.Codec> codecResult =
+				HelperFunctions.parseEnumValue(BinaryLogFormat.Codec.class, compressionString, true);
+		if(codecResult.error){
+			throw new Exception("Invalid compression: '" + compressionString + "'. " + codecResult.errorMessage);
+		}
+
+		final Result<Boolean> appendResult = HelperFunctions.parseBoolean(appendString);
+		if(appendResult.error){
+			throw new Exception("Invalid append flag: '" + appendString + "'. " + appendResult.errorMessage);
+		}
+
+		try{
+			FileUtility.pathMustBeAWritableFile(outputFilePathString);
+		}catch(Exception e){
+			throw new Exception("Invalid output file path to write to: '" + outputFilePathString + "'", e);
+		}
+
+		try{
+			writer = new BinaryLogWriter(outputFilePathString, blockSizeResult.result.intValue(), codecResult.result,
+					appendResult.result);
+		}catch(Exception e){
+			throw new Exception("Failed to open binary log for writing: '" + outputFilePathString + "'", e);
+		}
+	}
+
+	@Override
+	public final synchronized boolean storeVertex(final AbstractVertex vertex){
+		try{
+			writer.writeVertex(vertex.bigHashCode(), vertex.getCopyOfAnnotations());
+			return true;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to write vertex: " + vertex, e);
+			return false;
+		}
+	}
+
+	@Override
+	public final synchronized boolean storeEdge(final AbstractEdge edge){
+		try{
+			writer.writeEdge(edge.bigHashCode(), edge.getChildVertex().bigHashCode(),
+					edge.getParentVertex().bigHashCode(), edge.getCopyOfAnnotations());
+			return true;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to write edge: " + edge, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the current block only if forced
+	 */
+	@Override
+	public final synchronized boolean flushTransactions(final boolean force){
+		if(force && writer != null){
+			try{
+				writer.flush();
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to flush binary log", e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final synchronized boolean shutdown(){
+		if(writer != null){
+			try{
+				writer.close();
+				logger.log(Level.INFO, "Closed binary log with " + writer.getBlockCount() + " block(s)");
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to close binary log. Data written before the last block is kept", e);
+				return false;
+			}finally{
+				writer = null;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final synchronized Object executeQuery(final String query){
+		throw new RuntimeException("BinaryLog storage does NOT support querying");
+	}
+}
@@ -23,8 +23,10 @@ import java.nio.ByteBuffer;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -135,9 +137,11 @@ public class CDM extends Kafka {
 	private final Map<String, UUID> pidSubjectUUID = 
 			new HashMap<String, UUID>();
 	/**
-	 * To keep track of principals published so that we don't duplicate them
+	 * To keep track of principals and hosts published so that we don't duplicate them.
+	 * Bounded to the most recently seen 'publishedCacheSize' UUIDs. An evicted principal is published again if seen again.
 	 */
-	private final Set<UUID> publishedPrincipals = new HashSet<UUID>();
+	private int publishedCacheSize = 100000;
+	private Set<UUID> publishedPrincipalsAndHosts = createPublishedCache(publishedCacheSize);
 	/**
 	 * To keep track of the last time and event id. All edges with the same time and event id are
 	 * collected first and the edges are processes as one event
@@ -398,9 +402,8 @@ public class CDM extends Kafka {
 				if(principal != null){
 					UUID principalUUID = principal.getUuid();
 
-					if(!publishedPrincipals.contains(principalUUID)){
+					if(publishedPrincipalsAndHosts.add(principalUUID)){
 						objectsToPublish.add(buildTcCDMDatum(principal, principalSource));
-						publishedPrincipals.add(principalUUID);
 					}
 
 					Subject subject = getSubjectFromProcess(process, principalUUID);
@@ -562,6 +565,9 @@ public class CDM extends Kafka {
 	private boolean publishHost(AbstractVertex vertex){
 		if(vertex != null){
 			UUID uuid = getUuid(vertex);
+			if(!publishedPrincipalsAndHosts.add(uuid)){
+				return true; // already published
+			}
 			String hostName = vertex.getAnnotation(OPMConstants.ARTIFACT_HOST_NETWORK_NAME);
 			String ta1Version = vertex.getAnnotation(OPMConstants.ARTIFACT_HOST_TA1_VERSION);
 			String serialNumber = vertex.getAnnotation(OPMConstants.ARTIFACT_HOST_SERIAL_NUMBER);
@@ -923,6 +929,30 @@ public class CDM extends Kafka {
 	}
 
 
+	private static Set<UUID> createPublishedCache(final int maxSize){
+		return Collections.newSetFromMap(new LinkedHashMap<UUID, Boolean>(16, 0.75f, true){
+			private static final long serialVersionUID = 3296450517209734114L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest){
+				return size() > maxSize;
+			}
+		});
+	}
+	
+	public boolean setPublishedCacheSize(Map<String, String> map){
+		String publishedCacheSizeKey = "publishedCacheSize";
+		String publishedCacheSizeValue = map.get(publishedCacheSizeKey);
+		if(publishedCacheSizeValue != null){
+			Integer size = HelperFunctions.parseInt(publishedCacheSizeValue.trim(), null);
+			if(size == null || size < 1){
+				logger.log(Level.SEVERE, "Invalid '"+publishedCacheSizeKey+"' value: '"+publishedCacheSizeValue+"'. Must be greater than 0");
+				return false;
+			}
+			publishedCacheSize = size;
+		}
+		return true;
+	}
+
 	public boolean setReportingIntervalSeconds(Map<String, String> map){
 		String reportingIntervalSecondsKey = "reportingIntervalSeconds";
 		String reportingIntervalSeconds = map.get(reportingIntervalSecondsKey);
@@ -1047,6 +1077,11 @@ public class CDM extends Kafka {
 			return false;
 		}
 		
+		if(!setPublishedCacheSize(configMap) || !setPublishedCacheSize(argumentsMap)){
+			return false;
+		}
+		publishedPrincipalsAndHosts = createPublishedCache(publishedCacheSize);
+		
 		// Only do the following checks in case of server
 		if(useSsl && writeDataToServer(argumentsMap)){
 			try{
@@ -1467,7 +1502,7 @@ public class CDM extends Kafka {
 			publishVerticesAndEdges(currentVerticesAndEdges);
 			currentVerticesAndEdges.clear();
 			pidSubjectUUID.clear();
-			publishedPrincipals.clear();
+			publishedPrincipalsAndHosts.clear();
 
 			publishEndStreamAndTimeMarkerObjects();
 
@@ -21,9 +21,13 @@
 package spade.storage;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,6 +38,8 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
+import spade.storage.kafka.AsyncDataWriter;
+import spade.storage.kafka.AvroBinarySerializer;
 import spade.storage.kafka.DataWriter;
 import spade.storage.kafka.Edge;
 import spade.storage.kafka.FileWriter;
@@ -53,12 +59,29 @@ public class Kafka extends AbstractStorage{
 			SCHEMA_FILE_KEY = "schema",
 			SERVER_KEY = "kafkaserver",
 			TOPIC_KEY = "kafkatopic",
-			PRODUCER_ID_KEY = "kafkaproducerid";
+			PRODUCER_ID_KEY = "kafkaproducerid",
+			BATCH_SIZE_KEY = "batchsize",
+			LINGER_MILLIS_KEY = "lingermillis",
+			ASYNC_KEY = "async",
+			MAX_IN_FLIGHT_RECORDS_KEY = "maxinflightrecords";
 	
 	private static final Logger logger = Logger.getLogger(Kafka.class.getName());
     
     private List<DataWriter> dataWriters = new ArrayList<DataWriter>();
     
+    /*
+     * Records are written to the data writers in batches. A batch is written when it is full, when its first
+     * record has waited for 'lingerMillis' (checked when records are published and by the linger flusher), on flush,
+     * and on shutdown.
+     */
+    private int batchSize = 1;
+    private long lingerMillis = 0;
+    private boolean async = false;
+    private int maxInFlightRecords = 65536;
+    private List<GenericContainer> pendingRecords = new ArrayList<GenericContainer>();
+    private long pendingSinceMillis = 0;
+    private ScheduledExecutorService lingerFlusher = null;
+    
     private String defaultConfigFilePath = Settings.getDefaultConfigFilePath(this.getClass()); //depending on the instance get the correct config file
   	
     public boolean writeDataToServer(Map<String, String> args){
@@ -82,6 +105,10 @@ public class Kafka extends AbstractStorage{
            
             Map<String, String> passedArguments = HelperFunctions.makeKeysLowerCase(HelperFunctions.parseKeyValPairs(arguments));
             
+            if(!initializeBatching(passedArguments)){
+            	return false;
+            }
+            
             //if output file key exists then handle as file 
             if(passedArguments.get(OUTPUT_FILE_KEY) != null){  
             	
@@ -106,7 +133,7 @@ public class Kafka extends AbstractStorage{
             		logger.log(Level.SEVERE, "Failed to create file writer");
             		return false;
             	}else{
-            		dataWriters.add(dataWriter);
+            		dataWriters.add(async ? new AsyncDataWriter(dataWriter, maxInFlightRecords) : dataWriter);
             	}
             	
             } 
@@ -179,9 +206,10 @@ public class Kafka extends AbstractStorage{
 	            	return false;
 	            }
 	            
-	            dataWriters.add(dataWriter);
+	            dataWriters.add(async ? new AsyncDataWriter(dataWriter, maxInFlightRecords) : dataWriter);
             }      
             
+            startLingerFlusher();
             return true;
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
@@ -189,6 +217,83 @@ public class Kafka extends AbstractStorage{
         }
 	}
 	
+	/**
+	 * Reads the batching settings from the default config file and then from the arguments (which take precedence)
+	 */
+	private boolean initializeBatching(Map<String, String> passedArguments) throws Exception{
+		Map<String, String> settings = new HashMap<String, String>();
+		if(FileUtility.doesPathExist(defaultConfigFilePath)){
+			settings.putAll(HelperFunctions.makeKeysLowerCase(FileUtility.readConfigFileAsKeyValueMap(defaultConfigFilePath, "=")));
+		}
+		settings.putAll(passedArguments);
+		
+		String value;
+		if((value = settings.get(BATCH_SIZE_KEY)) != null){
+			Integer parsed = HelperFunctions.parseInt(value.trim(), null);
+			if(parsed == null || parsed < 1){
+				logger.log(Level.SEVERE, "Invalid '" + BATCH_SIZE_KEY + "' value: '" + value + "'. Must be greater than 0");
+				return false;
+			}
+			batchSize = parsed;
+		}
+		if((value = settings.get(LINGER_MILLIS_KEY)) != null){
+			Long parsed = HelperFunctions.parseLong(value.trim(), null);
+			if(parsed == null || parsed < 0){
+				logger.log(Level.SEVERE, "Invalid '" + LINGER_MILLIS_KEY + "' value: '" + value + "'. Must not be negative");
+				return false;
+			}
+			lingerMillis = parsed;
+		}
+		if((value = settings.get(ASYNC_KEY)) != null){
+			value = value.trim();
+			if("true".equals(value)){
+				async = true;
+			}else if("false".equals(value)){
+				async = false;
+			}else{
+				logger.log(Level.SEVERE, "Invalid '" + ASYNC_KEY + "' value: '" + value + "'. Only 'true' or 'false'");
+				return false;
+			}
+		}
+		if((value = settings.get(MAX_IN_FLIGHT_RECORDS_KEY)) != null){
+			Integer parsed = HelperFunctions.parseInt(value.trim(), null);
+			if(parsed == null || parsed < 1){
+				logger.log(Level.SEVERE, "Invalid '" + MAX_IN_FLIGHT_RECORDS_KEY + "' value: '" + value + "'. Must be greater than 0");
+				return false;
+			}
+			maxInFlightRecords = parsed;
+		}
+		pendingRecords = new ArrayList<GenericContainer>(batchSize);
+		logger.log(Level.INFO, "Batching: batchSize={0} lingerMillis={1} async={2} maxInFlightRecords={3}",
+				new Object[]{batchSize, lingerMillis, async, maxInFlightRecords});
+		return true;
+	}
+	
+	/**
+	 * Writes the pending batch once its first record has waited for 'lingerMillis' even if nothing else is published
+	 */
+	private void startLingerFlusher(){
+		if(batchSize <= 1 || lingerMillis <= 0){
+			return;
+		}
+		lingerFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, getClass().getSimpleName() + "-linger-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		lingerFlusher.scheduleWithFixedDelay(this::writeLingeringRecords, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized void writeLingeringRecords(){
+		try{
+			if(!pendingRecords.isEmpty() && (System.currentTimeMillis() - pendingSinceMillis) >= lingerMillis){
+				writePendingRecords();
+			}
+		}catch(Exception exception){
+			logger.log(Level.WARNING, "Failed to write lingering records", exception);
+		}
+	}
+	
 	public static DataWriter getDataWriter(Properties properties) throws Exception{
 		if(properties.get(Kafka.OUTPUT_FILE_KEY) != null){
 			if(String.valueOf(properties.get(Kafka.OUTPUT_FILE_KEY)).endsWith(".json")){
@@ -208,8 +313,7 @@ public class Kafka extends AbstractStorage{
 		properties.put(ProducerConfig.CLIENT_ID_CONFIG, kafkaProducerID);
 		properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,
                 "org.apache.kafka.common.serialization.StringSerializer");
-		properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
-				"org.apache.kafka.common.serialization.StringSerializer");
+		properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, AvroBinarySerializer.class);
 		return properties;
 	}
 	
@@ -254,27 +358,63 @@ public class Kafka extends AbstractStorage{
 	}
 	
 	//function to call to save data to the storage
-	protected int publishRecords(List<GenericContainer> genericContainers) {
+	//returns the number of records accepted. Records are only added to the current batch if the batch isn't due
+	protected synchronized int publishRecords(List<GenericContainer> genericContainers) {
+		if(genericContainers == null || genericContainers.isEmpty()){
+			return 0;
+		}
+		if(pendingRecords.isEmpty()){
+			pendingSinceMillis = System.currentTimeMillis();
+		}
+		pendingRecords.addAll(genericContainers);
+		if(pendingRecords.size() >= batchSize || (System.currentTimeMillis() - pendingSinceMillis) >= lingerMillis){
+			return Math.min(writePendingRecords(), genericContainers.size());
+		}
+		return genericContainers.size();
+	}
+	
+	//returns the number of records written to all the data writers
+	private int writePendingRecords(){
+		if(pendingRecords.isEmpty()){
+			return 0;
+		}
+		// Handed over as is since async writers keep the list
+		List<GenericContainer> batch = pendingRecords;
+		pendingRecords = new ArrayList<GenericContainer>(batchSize);
 		int recordCount = 0;
-		if(genericContainers != null){
-			for (GenericContainer genericContainer : genericContainers) {
-				//            logger.log(Level.INFO, "Attempting to publish record {0}", genericContainer.toString());
-				for(DataWriter dataWriter : dataWriters){
-					try {
-						dataWriter.writeRecord(genericContainer);
-						recordCount += 1;
-						//                    logger.log(Level.INFO, "Sent record: ({0})", recordCount);
-					} catch (Exception exception) {
-						logger.log(Level.INFO, "Failed to publish record {0}", genericContainer.toString());
-						logger.log(Level.WARNING, "{0}", exception);
-					} 
-				}                
+		for(DataWriter dataWriter : dataWriters){
+			try{
+				dataWriter.writeRecords(batch);
+				recordCount += batch.size();
+			}catch(Exception exception){
+				logger.log(Level.WARNING, "Failed to publish batch of " + batch.size() + " records", exception);
 			}
 		}
 		return (recordCount / dataWriters.size());
 	}
 	
-	public boolean shutdown(){
+	@Override
+	public synchronized boolean flushTransactions(boolean force){
+		writePendingRecords();
+		boolean success = true;
+		for(DataWriter dataWriter : dataWriters){
+			try{
+				dataWriter.flush();
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to flush data writer", e);
+				success = false;
+			}
+		}
+		return success;
+	}
+	
+	public synchronized boolean shutdown(){
+		if(lingerFlusher != null){
+			// A run waiting for the lock finds nothing pending after the write below
+			lingerFlusher.shutdown();
+			lingerFlusher = null;
+		}
+		writePendingRecords();
 		boolean success = true;
 		for(DataWriter dataWriter : dataWriters){
 			try{
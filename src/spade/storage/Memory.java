@@ -0,0 +1,153 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+import spade.core.Settings;
+import spade.query.quickgrail.core.QueryInstructionExecutor;
+import spade.query.quickgrail.instruction.SaveGraph;
+import spade.storage.memory.MemoryGraph;
+import spade.storage.memory.MemoryInstructionExecutor;
+import spade.storage.memory.MemoryQueryEnvironment;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+
+/**
+ * A queryable storage which keeps the whole graph in memory.
+ *
+ * The graph is built live from the vertices and edges sent to the storage. It can also be preloaded from a
+ * graph exported by another storage (using QuickGrail 'export') in JSON or DOT format.
+ */
+public class Memory extends AbstractStorage{
+
+	private static final Logger logger = Logger.getLogger(Memory.class.getName());
+
+	private static final String keyLoad = "load", keyLoadFormat = "loadFormat";
+
+	private final String baseGraphName = "spade_base_graph";
+
+	private final MemoryGraph memoryGraph = new MemoryGraph();
+	private MemoryQueryEnvironment queryEnvironment = null;
+	private MemoryInstructionExecutor queryInstructionExecutor = null;
+
+	@Override
+	public boolean initialize(final String arguments){
+		final Map<String, String> map = new HashMap<String, String>();
+		try{
+			final String configFilePath = Settings.getDefaultConfigFilePath(this.getClass());
+			map.putAll(HelperFunctions.parseKeyValuePairsFrom(arguments, configFilePath, null));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments and/or storage config file", e);
+			return false;
+		}
+
+		final String loadPath = map.get(keyLoad);
+		if(!HelperFunctions.isNullOrEmpty(loadPath)){
+			final String loadFormatString = map.get(keyLoadFormat);
+			final SaveGraph.Format loadFormat;
+			if(HelperFunctions.isNullOrEmpty(loadFormatString)){
+				loadFormat = loadPath.toLowerCase().endsWith(".json") ? SaveGraph.Format.kJson : SaveGraph.Format.kDot;
+			}else{
+				final Result<SaveGraph.Format> loadFormatResult = HelperFunctions.parseEnumValue(SaveGraph.Format.class,
+						"k" + loadFormatString.trim(), true);
+				if(loadFormatResult.error){
+					logger.log(Level.SEVERE, "Invalid value for '" + keyLoadFormat + "': '" + loadFormatString + "'. "
+							+ "Expected 'json' or 'dot'");
+					return false;
+				}
+				loadFormat = loadFormatResult.result;
+			}
+
+			try{
+				load(loadPath, loadFormat);
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to load graph from file: '" + loadPath + "'", e);
+				return false;
+			}
+		}
+
+		logger.log(Level.INFO, "Arguments [" + keyLoad + "=" + loadPath + "]. "
+				+ "Vertices=" + memoryGraph.getVertexCount() + ", Edges=" + memoryGraph.getEdgeCount());
+		return true;
+	}
+
+	private void load(final String path, final SaveGraph.Format format) throws Exception{
+		final Graph graph;
+		switch(format){
+			case kJson: graph = Graph.importGraphFromJSONFile(path); break;
+			case kDot: graph = Graph.importGraphFromDOTFile(path, false); break;
+			default: throw new RuntimeException("Unhandled format: " + format);
+		}
+		for(final AbstractVertex vertex : graph.vertexSet()){
+			storeVertex(vertex);
+		}
+		for(final AbstractEdge edge : graph.edgeSet()){
+			storeEdge(edge);
+		}
+	}
+
+	@Override
+	public boolean storeVertex(final AbstractVertex incomingVertex){
+		memoryGraph.putVertex(incomingVertex.bigHashCode(), incomingVertex.getCopyOfAnnotations());
+		return true;
+	}
+
+	@Override
+	public boolean storeEdge(final AbstractEdge incomingEdge){
+		memoryGraph.putEdge(incomingEdge.bigHashCode(), incomingEdge.getChildVertex().bigHashCode(),
+				incomingEdge.getParentVertex().bigHashCode(), incomingEdge.getCopyOfAnnotations());
+		return true;
+	}
+
+	@Override
+	public long getVertexCount(){
+		return memoryGraph.getVertexCount();
+	}
+
+	@Override
+	public long getEdgeCount(){
+		return memoryGraph.getEdgeCount();
+	}
+
+	@Override
+	public Object executeQuery(final String query){
+		throw new RuntimeException("Native queries not supported by the in-memory storage");
+	}
+
+	@Override
+	public synchronized QueryInstructionExecutor getQueryInstructionExecutor(){
+		if(queryEnvironment == null){
+			queryEnvironment = new MemoryQueryEnvironment(baseGraphName);
+			queryEnvironment.initialize();
+		}
+		if(queryInstructionExecutor == null){
+			queryInstructionExecutor = new MemoryInstructionExecutor(this, memoryGraph, queryEnvironment);
+		}
+		return queryInstructionExecutor;
+	}
+}
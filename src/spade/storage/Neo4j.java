@@ -54,9 +54,11 @@ import spade.storage.neo4j.StorageTest;
 import spade.storage.neo4j.TaskCreateIndex;
 import spade.storage.neo4j.TaskExecuteQuery;
 import spade.storage.neo4j.TaskGetHashToVertexMap;
+import spade.storage.neo4j.TaskGetIdRows;
 import spade.storage.neo4j.TaskGetQueriedEdgeSet;
 import spade.storage.neo4j.TaskPutEdge;
 import spade.storage.neo4j.TaskPutVertex;
+import spade.storage.neo4j.TaskUpsertGraph;
 import spade.utility.HelperFunctions;
 import spade.utility.Result;
 
@@ -416,12 +418,17 @@ public class Neo4j extends AbstractStorage{
 		// Globals
 		int tasksExecutedSinceLastFlush;
 		long timeInMillisOfLastFlush;
+		// Whether the current transaction has put vertices/edges which are not visible to queries yet
+		boolean graphChangedSinceLastFlush;
 
 		private final Transaction getANewTransaction(Transaction tx, final boolean commit) throws Exception{
 			if(tx != null){
 				try{
 					if(commit){
 						getDatabaseManager().timedCommit(tx);
+						if(graphChangedSinceLastFlush){
+							incrementEpoch();
+						}
 					}else{
 						tx.rollback();
 					}
@@ -439,6 +446,7 @@ public class Neo4j extends AbstractStorage{
 			}
 			tasksExecutedSinceLastFlush = 0;
 			timeInMillisOfLastFlush = System.currentTimeMillis();
+			graphChangedSinceLastFlush = false;
 			return getDatabaseManager().beginANewTransaction();
 		}
 
@@ -519,6 +527,10 @@ public class Neo4j extends AbstractStorage{
 								}
 								getStorageStats().startActionTimer("EXECUTE-" + task.getClass().getSimpleName());
 								task.execute(Neo4j.this, tx);
+								if(task instanceof TaskPutVertex || task instanceof TaskPutEdge
+										|| task instanceof TaskUpsertGraph){
+									graphChangedSinceLastFlush = true;
+								}
 								if(task.commitAfterExecution){
 									tx = getANewTransaction(tx, true);
 								}
@@ -691,6 +703,12 @@ public class Neo4j extends AbstractStorage{
 		}
 	}
 
+	@Override
+	protected boolean isBufferingWrites(){
+		// Puts are pending tasks which are only visible once executed and committed
+		return true;
+	}
+
 	// start - public
 	@Override
 	public final boolean storeVertex(final AbstractVertex vertex){
@@ -723,18 +741,48 @@ public class Neo4j extends AbstractStorage{
 		return queryObject.getResult();
 	}
 
+	public final List<Map<String, Object>> executeQueryForSmallResult(final String query, final Map<String, Object> parameters){
+		final TaskExecuteQuery queryObject = new TaskExecuteQuery(query, parameters);
+		executeQueryAndBlockForResult(queryObject);
+		return queryObject.getResult();
+	}
+
+	public final List<long[]> readIdRows(final String query, final Map<String, Object> parameters, final String... columnNames){
+		final TaskGetIdRows queryObject = new TaskGetIdRows(query, parameters, columnNames);
+		executeQueryAndBlockForResult(queryObject);
+		return queryObject.getResult();
+	}
+
 	public final Map<String, Map<String, String>> readHashToVertexMap(String vertexAliasInQuery, String query){
 		final TaskGetHashToVertexMap queryObject = new TaskGetHashToVertexMap(query, vertexAliasInQuery);
 		executeQueryAndBlockForResult(queryObject);
 		return queryObject.getResult();
 	}
+
+	public final Map<String, Map<String, String>> readHashToVertexMap(String vertexAliasInQuery, String query,
+			Map<String, Object> parameters){
+		final TaskGetHashToVertexMap queryObject = new TaskGetHashToVertexMap(query, vertexAliasInQuery, parameters);
+		executeQueryAndBlockForResult(queryObject);
+		return queryObject.getResult();
+	}
 	
 	public final Set<QueriedEdge> readEdgeSet(String relationshipAliasInQuery, String query){
 		final TaskGetQueriedEdgeSet queryObject = new TaskGetQueriedEdgeSet(query, relationshipAliasInQuery);
 		executeQueryAndBlockForResult(queryObject);
 		return queryObject.getResult();
 	}
+
+	public final Set<QueriedEdge> readEdgeSet(String relationshipAliasInQuery, String query, Map<String, Object> parameters){
+		final TaskGetQueriedEdgeSet queryObject = new TaskGetQueriedEdgeSet(query, relationshipAliasInQuery, parameters);
+		executeQueryAndBlockForResult(queryObject);
+		return queryObject.getResult();
+	}
 	
+	public final TaskUpsertGraph.Result upsertGraph(final List<AbstractVertex> vertices, final List<AbstractEdge> edges){
+		// The epoch is incremented when the task commits
+		return executeQueryAndBlockForResult(new TaskUpsertGraph(vertices, edges));
+	}
+
 	// All outside queries routed through here
 	public final <X> X executeQueryAndBlockForResult(final StorageTask<X> queryObject){
 		if(queryObject == null){
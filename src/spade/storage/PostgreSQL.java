@@ -392,6 +392,12 @@ public class PostgreSQL extends SQL{
 		return true;
 	}
 
+	@Override
+	protected boolean isBufferingWrites(){
+		// Buffered vertices/edges are only visible once copied in by flush
+		return true;
+	}
+
 	private void addToBuffer(final AbstractVertex vertex){
 		graphBuffer.add(vertex);
 		if(graphBuffer.full()){
@@ -508,9 +514,182 @@ public class PostgreSQL extends SQL{
 				logger.log(Level.WARNING, "Failed to persist " + edgeBufferSize + " edges", e);
 			}
 		}
+		if(graph.vertexSize() > 0 || graph.edgeSize() > 0){
+			incrementEpoch();
+		}
 		graph.clear();
 	}
 
+	/**
+	 * Inserts the vertices which are not in the vertex table yet, and adds all of them to the graph table
+	 * 'graphTableName'. Done in a single statement. Returns the number of vertices inserted.
+	 */
+	public int upsertVertices(final String graphTableName, final List<AbstractVertex> vertices){
+		final List<AbstractVertex> storableVertices = new ArrayList<AbstractVertex>();
+		final Set<String> annotationKeys = new HashSet<String>();
+		for(final AbstractVertex vertex : vertices){
+			if(!isVertexBlocked(vertex)){
+				storableVertices.add(vertex);
+				annotationKeys.addAll(vertex.getAnnotationKeys());
+			}
+		}
+		if(storableVertices.isEmpty()){
+			return 0;
+		}
+		final Set<String> newColumnNames = getNewVertexColumns(annotationKeys);
+		if(!newColumnNames.isEmpty()){
+			// Flush existing data because schema needs to be updated
+			flush();
+			try{
+				updateTableColumns(newColumnNames, getVertexTableName());
+				addToVertexColumn(newColumnNames);
+			}catch(Exception e){
+				logger.log(Level.WARNING, storableVertices.size() + " vertices discarded because of PostgreSQL error", e);
+				return 0;
+			}
+		}
+
+		final List<String> columnNames = new ArrayList<String>(getVertexColumnNames());
+		final List<String> rows = new ArrayList<String>();
+		for(final AbstractVertex vertex : storableVertices){
+			final List<String> values = new ArrayList<String>();
+			for(final String columnName : columnNames){
+				if(PRIMARY_KEY.equals(columnName)){
+					values.add(formatToUUIDLiteral(vertex.bigHashCode()));
+				}else{
+					values.add(formatToLiteral(vertex.getAnnotation(columnName)));
+				}
+			}
+			rows.add(getValuesRow(values));
+		}
+
+		final Set<String> insertedHashes = upsertRows(
+				getVertexTableName(), getBaseVertexTableName(), graphTableName, columnNames, rows);
+		if(!insertedHashes.isEmpty()){
+			incrementEpoch();
+		}
+		return insertedHashes.size();
+	}
+
+	/**
+	 * Same as {@link #upsertVertices} but for edges
+	 */
+	public int upsertEdges(final String graphTableName, final List<AbstractEdge> edges){
+		final List<AbstractEdge> storableEdges = new ArrayList<AbstractEdge>();
+		final Set<String> annotationKeys = new HashSet<String>();
+		for(final AbstractEdge edge : edges){
+			if(!isEdgeBlocked(edge) && edge.getChildVertex() != null && edge.getParentVertex() != null){
+				storableEdges.add(edge);
+				annotationKeys.addAll(edge.getAnnotationKeys());
+			}
+		}
+		if(storableEdges.isEmpty()){
+			return 0;
+		}
+		final Set<String> newColumnNames = getNewEdgeColumns(annotationKeys);
+		if(!newColumnNames.isEmpty()){
+			// Flush existing data because schema needs to be updated
+			flush();
+			try{
+				updateTableColumns(newColumnNames, getEdgeTableName());
+				addToEdgeColumn(newColumnNames);
+			}catch(Exception e){
+				logger.log(Level.WARNING, storableEdges.size() + " edges discarded because of PostgreSQL error", e);
+				return 0;
+			}
+		}
+
+		final List<String> columnNames = new ArrayList<String>(getEdgeColumnNames());
+		final List<String> rows = new ArrayList<String>();
+		for(final AbstractEdge edge : storableEdges){
+			final List<String> values = new ArrayList<String>();
+			for(final String columnName : columnNames){
+				switch(columnName){
+					case PRIMARY_KEY: values.add(formatToUUIDLiteral(edge.bigHashCode())); break;
+					case CHILD_VERTEX_KEY: values.add(formatToUUIDLiteral(edge.getChildVertex().bigHashCode())); break;
+					case PARENT_VERTEX_KEY: values.add(formatToUUIDLiteral(edge.getParentVertex().bigHashCode())); break;
+					default: values.add(formatToLiteral(edge.getAnnotation(columnName))); break;
+				}
+			}
+			rows.add(getValuesRow(values));
+		}
+
+		final Set<String> insertedHashes = upsertRows(
+				getEdgeTableName(), getBaseEdgeTableName(), graphTableName, columnNames, rows);
+		if(!insertedHashes.isEmpty()){
+			if(BUILD_SCAFFOLD){
+				try{
+					for(final AbstractEdge edge : storableEdges){
+						if(insertedHashes.contains(edge.bigHashCode())){
+							insertScaffoldEntry(edge);
+						}
+					}
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to update scaffold", e);
+				}
+			}
+			incrementEpoch();
+		}
+		return insertedHashes.size();
+	}
+
+	/*
+	 * Inserts the rows whose hash is not in the annotation table yet into the annotation and base tables, and the hashes
+	 * of all rows into the graph table. Returns the inserted hashes.
+	 * The annotation tables have no unique constraint on the hash (they are filled with 'copy') so 'on conflict' does
+	 * not apply. All parts of the statement see the same snapshot so 'not exists' checks the tables as they were
+	 * before it.
+	 */
+	private Set<String> upsertRows(final String annotationTableName, final String baseTableName,
+			final String graphTableName, final List<String> columnNames, final List<String> rows){
+		final String hashColumnName = formatColumnName(getPrimaryKeyName());
+		final List<String> formattedColumnNames = new ArrayList<String>();
+		final List<String> putColumnNames = new ArrayList<String>();
+		for(final String columnName : columnNames){
+			formattedColumnNames.add(formatColumnName(columnName));
+			putColumnNames.add("p." + formatColumnName(columnName));
+		}
+		final String columns = String.join(", ", formattedColumnNames);
+
+		final String query =
+				"with m_put (" + columns + ") as (values " + String.join(", ", rows) + ")"
+				+ ", m_new as (insert into " + annotationTableName + " (" + columns + ")"
+				+ " select distinct on (p." + hashColumnName + ") " + String.join(", ", putColumnNames) + " from m_put p"
+				+ " where not exists (select 1 from " + annotationTableName + " a where a." + hashColumnName
+				+ " = p." + hashColumnName + ") returning " + hashColumnName + ")"
+				+ ", m_base as (insert into " + baseTableName + " select " + hashColumnName + " from m_new)"
+				+ ", m_graph as (insert into " + graphTableName + " select distinct " + hashColumnName + " from m_put)"
+				+ " select " + hashColumnName + " from m_new;";
+
+		final Set<String> insertedHashes = new HashSet<String>();
+		for(final List<String> row : executeQueryForResult(query, false)){
+			insertedHashes.add(row.get(0).replaceAll("\\-", ""));
+		}
+		return insertedHashes;
+	}
+
+	private String getValuesRow(final List<String> values){
+		return "(" + String.join(", ", values) + ")";
+	}
+
+	private String formatToLiteral(final String value){
+		if(value == null){
+			return "null";
+		}
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	/**
+	 * The hashes are stored as uuid. Throws IllegalArgumentException if the hash does not fit one instead of letting
+	 * it be dropped or truncated.
+	 */
+	public static String formatToUUIDLiteral(final String hash){
+		if(hash == null || !hash.matches("[0-9a-fA-F]{32}")){
+			throw new IllegalArgumentException("Hash is not 32 hexadecimal characters: '" + hash + "'");
+		}
+		return "'" + hash + "'::uuid";
+	}
+
 	private String getCSVLine(final Iterable<String> iterable){
 		final StringBuffer str = new StringBuffer();
 		for(String item : iterable){
@@ -553,6 +732,12 @@ public class PostgreSQL extends SQL{
 		persist(graphBuffer.flush());
 	}
 
+	@Override
+	public boolean flushTransactions(final boolean force){
+		flush();
+		return true;
+	}
+
 	public List<List<String>> executeQueryForResult(String query, boolean addColumnNames){
 		flush();
 
@@ -306,6 +306,7 @@ public class Quickstep extends AbstractStorage {
       try {
     	  garbageCollectVertexIds();
         processBatch();
+        incrementEpoch();
       } catch (Exception e) {
         StringWriter sw = new StringWriter();
         e.printStackTrace(new PrintWriter(sw));
@@ -578,12 +579,22 @@ public class Quickstep extends AbstractStorage {
 				if(batch.getVertices().size() > 0 || batch.getEdges().size() > 0){ // at least vertices or edges should be non-empty
 					copyManager.submitBatch(batch);
 				}
+				if(force){
+					// Wait for the copy so that the flushed vertices and edges can be queried on return
+					copyManager.finalizeBatch();
+				}
 				resetForceSubmitTimer();
 			}
 		}
 		return true;
 	}
 
+  @Override
+  protected boolean isBufferingWrites() {
+    // Batched vertices/edges are only visible once the copy manager has processed the batch
+    return true;
+  }
+
   @Override
   public synchronized boolean storeEdge(AbstractEdge incomingEdge) {
     synchronized (batch) {
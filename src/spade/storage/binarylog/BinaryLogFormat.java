@@ -0,0 +1,262 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.binarylog;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary log of vertices and edges.
+ *
+ * The file is the header, the blocks, and the index of the blocks (written on close):
+ *
+ * HEADER: magic (int), version (int)
+ * BLOCK: magic (int), codec (byte), raw length (int), stored length (int), vertex count (int), edge count (int),
+ * CRC32 of the raw bytes (int), and the stored (raw or compressed) bytes
+ * INDEX: offset (long), vertex count (int) and edge count (int) for each block, followed by the index offset (long),
+ * the block count (int) and the index magic (int)
+ *
+ * The raw bytes of a block are a sequence of records. Each record starts with its type:
+ *
+ * KEY: the annotation key which gets the next id in the dictionary of the block
+ * VERTEX: hash, annotation count, and (key id, value) pairs
+ * EDGE: hash, child hash, parent hash, annotation count, and (key id, value) pairs
+ *
+ * Every block has its own key dictionary so that any block can be decoded on its own. Counts and ids are unsigned
+ * varints. Strings are written as a varint of (length &lt;&lt; 1 | hex) followed by the bytes of the string. If hex is 1
+ * then the string is lower case hexadecimal (e.g. a hash) and is written as 1 byte per 2 characters, otherwise the
+ * bytes are UTF-8.
+ *
+ * A file without the index (e.g. not closed because of a crash) is read by scanning the blocks. Scanning stops at the
+ * first incomplete block.
+ */
+public final class BinaryLogFormat{
+
+	static final int magic = 0x5350424C; // SPBL
+	static final int version = 1;
+	static final int headerLength = 8;
+
+	static final int blockMagic = 0x53504242; // SPBB
+	static final int blockHeaderLength = 25;
+
+	static final int indexMagic = 0x53504249; // SPBI
+	static final int indexEntryLength = 16;
+	static final int indexTrailerLength = 16;
+
+	static final byte recordKey = 1, recordVertex = 2, recordEdge = 3;
+
+	public static enum Codec{
+		NONE((byte)0), DEFLATE((byte)1);
+
+		final byte id;
+
+		private Codec(final byte id){
+			this.id = id;
+		}
+
+		static Codec get(final byte id){
+			for(final Codec codec : values()){
+				if(codec.id == id){
+					return codec;
+				}
+			}
+			return null;
+		}
+	}
+
+	static final class BlockInfo{
+		final long offset;
+		final int vertexCount;
+		final int edgeCount;
+
+		BlockInfo(final long offset, final int vertexCount, final int edgeCount){
+			this.offset = offset;
+			this.vertexCount = vertexCount;
+			this.edgeCount = edgeCount;
+		}
+	}
+
+	static final class Layout{
+		final List<BlockInfo> blocks;
+		// Offset after the last block i.e. where the next block goes
+		final long end;
+		final boolean indexed;
+
+		private Layout(final List<BlockInfo> blocks, final long end, final boolean indexed){
+			this.blocks = blocks;
+			this.end = end;
+			this.indexed = indexed;
+		}
+	}
+
+	private BinaryLogFormat(){}
+
+	static Layout readLayout(final FileChannel channel) throws IOException{
+		final long size = channel.size();
+		if(size < headerLength){
+			throw new IOException("Not a binary log. File too short: " + size + " byte(s)");
+		}
+		final ByteBuffer header = readFully(channel, 0, headerLength);
+		if(header.getInt() != magic){
+			throw new IOException("Not a binary log. Invalid magic");
+		}
+		final int fileVersion = header.getInt();
+		if(fileVersion != version){
+			throw new IOException("Unsupported binary log version: " + fileVersion + ". Expected: " + version);
+		}
+
+		if(size >= headerLength + indexTrailerLength){
+			final ByteBuffer trailer = readFully(channel, size - indexTrailerLength, indexTrailerLength);
+			final long indexOffset = trailer.getLong();
+			final int blockCount = trailer.getInt();
+			if(trailer.getInt() == indexMagic && blockCount >= 0 && indexOffset >= headerLength
+					&& indexOffset + (long)blockCount * indexEntryLength + indexTrailerLength == size){
+				final ByteBuffer index = readFully(channel, indexOffset, blockCount * indexEntryLength);
+				final List<BlockInfo> blocks = new ArrayList<BlockInfo>(blockCount);
+				for(int i = 0; i < blockCount; i++){
+					blocks.add(new BlockInfo(index.getLong(), index.getInt(), index.getInt()));
+				}
+				return new Layout(blocks, indexOffset, true);
+			}
+		}
+
+		final List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+		long offset = headerLength;
+		while(offset + blockHeaderLength <= size){
+			final ByteBuffer blockHeader = readFully(channel, offset, blockHeaderLength);
+			if(blockHeader.getInt() != blockMagic || Codec.get(blockHeader.get()) == null){
+				break;
+			}
+			final int rawLength = blockHeader.getInt();
+			final int storedLength = blockHeader.getInt();
+			final int vertexCount = blockHeader.getInt();
+			final int edgeCount = blockHeader.getInt();
+			if(rawLength < 0 || storedLength < 0 || vertexCount < 0 || edgeCount < 0
+					|| offset + blockHeaderLength + storedLength > size){
+				break;
+			}
+			blocks.add(new BlockInfo(offset, vertexCount, edgeCount));
+			offset += blockHeaderLength + storedLength;
+		}
+		return new Layout(blocks, offset, false);
+	}
+
+	static ByteBuffer readFully(final FileChannel channel, final long position, final int length) throws IOException{
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position()) < 0){
+				throw new EOFException("Unexpected end of binary log at: " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static boolean isHex(final String string){
+		final int length = string.length();
+		if(length == 0 || (length & 1) != 0){
+			return false;
+		}
+		for(int i = 0; i < length; i++){
+			final char c = string.charAt(i);
+			if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Growable buffer for the raw bytes of a block
+	 */
+	static final class RecordBuffer{
+		byte[] bytes;
+		int length = 0;
+
+		RecordBuffer(final int initialCapacity){
+			this.bytes = new byte[Math.max(16, initialCapacity)];
+		}
+
+		private void ensureCapacity(final int additional){
+			if(length + additional > bytes.length){
+				final long newCapacity = Math.max((long)bytes.length * 2, (long)length + additional);
+				if(newCapacity > Integer.MAX_VALUE - 8){
+					throw new IllegalStateException("Binary log block too large: " + newCapacity + " bytes");
+				}
+				final byte[] newBytes = new byte[(int)newCapacity];
+				System.arraycopy(bytes, 0, newBytes, 0, length);
+				bytes = newBytes;
+			}
+		}
+
+		void writeByte(final int value){
+			ensureCapacity(1);
+			bytes[length++] = (byte)value;
+		}
+
+		void writeVarint(int value){
+			ensureCapacity(5);
+			while((value & ~0x7F) != 0){
+				bytes[length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte)value;
+		}
+
+		void writeString(final String string){
+			if(isHex(string)){
+				final int byteCount = string.length() / 2;
+				writeVarint((byteCount << 1) | 1);
+				ensureCapacity(byteCount);
+				for(int i = 0; i < byteCount; i++){
+					bytes[length++] = (byte)((Character.digit(string.charAt(2 * i), 16) << 4)
+							| Character.digit(string.charAt(2 * i + 1), 16));
+				}
+			}else{
+				final byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+				writeVarint(utf8.length << 1);
+				ensureCapacity(utf8.length);
+				System.arraycopy(utf8, 0, bytes, length, utf8.length);
+				length += utf8.length;
+			}
+		}
+
+		void clear(){
+			length = 0;
+		}
+	}
+
+	static int readVarint(final ByteBuffer buffer) throws IOException{
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			final byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in binary log");
+	}
+}
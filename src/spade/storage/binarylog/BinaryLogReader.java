@@ -0,0 +1,286 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.binarylog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.GraphStream;
+import spade.core.Vertex;
+import spade.storage.binarylog.BinaryLogFormat.BlockInfo;
+import spade.storage.binarylog.BinaryLogFormat.Codec;
+import spade.storage.binarylog.BinaryLogFormat.Layout;
+
+/**
+ * Reads the blocks of a binary log. See {@link BinaryLogFormat}.
+ *
+ * The file is memory-mapped (in windows of at most 1 GB) and uncompressed blocks are decoded directly from the mapped
+ * memory. Vertices and edges are reference vertices and edges. The endpoints of edges only have the hash.
+ * Not thread-safe.
+ */
+public final class BinaryLogReader implements Closeable{
+
+	private static final long maxWindowSize = 1L << 30;
+	private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+	private final FileChannel channel;
+	private final long size;
+	private final List<BlockInfo> blocks;
+	private final boolean indexed;
+
+	private MappedByteBuffer window = null;
+	private long windowStart = 0, windowEnd = 0;
+
+	private final Inflater inflater = new Inflater();
+	private final CRC32 crc32 = new CRC32();
+	private byte[] inflated = new byte[0];
+	private byte[] scratch = new byte[256];
+	private final List<String> keys = new ArrayList<String>();
+
+	public BinaryLogReader(final String path) throws IOException{
+		this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try{
+			this.size = channel.size();
+			final Layout layout = BinaryLogFormat.readLayout(channel);
+			this.blocks = layout.blocks;
+			this.indexed = layout.indexed;
+		}catch(IOException | RuntimeException e){
+			channel.close();
+			inflater.end();
+			throw e;
+		}
+	}
+
+	public final int getBlockCount(){
+		return blocks.size();
+	}
+
+	/**
+	 * False if the file was not closed by the writer and the blocks were found by scanning
+	 */
+	public final boolean isIndexed(){
+		return indexed;
+	}
+
+	public final long getVertexCount(){
+		long count = 0;
+		for(final BlockInfo block : blocks){
+			count += block.vertexCount;
+		}
+		return count;
+	}
+
+	public final long getEdgeCount(){
+		long count = 0;
+		for(final BlockInfo block : blocks){
+			count += block.edgeCount;
+		}
+		return count;
+	}
+
+	/**
+	 * Decodes the block and gives its vertices and edges to the visitor in the order they were written
+	 */
+	public final void readBlock(final int blockIndex, final GraphStream.Visitor visitor) throws Exception{
+		final BlockInfo blockInfo = blocks.get(blockIndex);
+		final ByteBuffer header = getBuffer(blockInfo.offset, BinaryLogFormat.blockHeaderLength);
+		if(header.getInt() != BinaryLogFormat.blockMagic){
+			throw new IOException("Invalid magic of block " + blockIndex + " at offset " + blockInfo.offset);
+		}
+		final Codec codec = Codec.get(header.get());
+		final int rawLength = header.getInt();
+		final int storedLength = header.getInt();
+		final int vertexCount = header.getInt();
+		final int edgeCount = header.getInt();
+		final int crc = header.getInt();
+		if(codec == null || rawLength < 0 || storedLength < 0){
+			throw new IOException("Invalid header of block " + blockIndex + " at offset " + blockInfo.offset);
+		}
+
+		final ByteBuffer stored = getBuffer(blockInfo.offset + BinaryLogFormat.blockHeaderLength, storedLength);
+		final ByteBuffer raw;
+		switch(codec){
+			case NONE: raw = stored; break;
+			case DEFLATE: raw = inflate(stored, rawLength, blockIndex); break;
+			default: throw new IOException("Unhandled codec of block " + blockIndex + ": " + codec);
+		}
+		if(raw.remaining() != rawLength){
+			throw new IOException("Unexpected length of block " + blockIndex + ": " + raw.remaining()
+					+ ". Expected: " + rawLength);
+		}
+		crc32.reset();
+		crc32.update(raw.duplicate());
+		if((int)crc32.getValue() != crc){
+			throw new IOException("Checksum mismatch in block " + blockIndex + " at offset " + blockInfo.offset);
+		}
+
+		decodeRecords(raw, blockIndex, vertexCount, edgeCount, visitor);
+	}
+
+	private void decodeRecords(final ByteBuffer raw, final int blockIndex, final int expectedVertexCount,
+			final int expectedEdgeCount, final GraphStream.Visitor visitor) throws Exception{
+		keys.clear();
+		int vertexCount = 0, edgeCount = 0;
+		try{
+			while(raw.hasRemaining()){
+				final byte recordType = raw.get();
+				switch(recordType){
+					case BinaryLogFormat.recordKey:{
+						keys.add(readString(raw));
+						break;
+					}
+					case BinaryLogFormat.recordVertex:{
+						final AbstractVertex vertex = new Vertex(readString(raw));
+						readAnnotations(raw, vertex, null);
+						vertexCount++;
+						visitor.visitVertex(vertex);
+						break;
+					}
+					case BinaryLogFormat.recordEdge:{
+						final String hash = readString(raw);
+						final AbstractVertex child = new Vertex(readString(raw));
+						final AbstractVertex parent = new Vertex(readString(raw));
+						final AbstractEdge edge = new Edge(hash, child, parent);
+						readAnnotations(raw, null, edge);
+						edgeCount++;
+						visitor.visitEdge(edge);
+						break;
+					}
+					default: throw new IOException("Unexpected record type in block " + blockIndex + ": " + recordType);
+				}
+			}
+		}catch(BufferUnderflowException e){
+			throw new IOException("Truncated record in block " + blockIndex, e);
+		}
+		if(vertexCount != expectedVertexCount || edgeCount != expectedEdgeCount){
+			throw new IOException("Unexpected counts in block " + blockIndex + ". Vertices: " + vertexCount + " (expected "
+					+ expectedVertexCount + "), edges: " + edgeCount + " (expected " + expectedEdgeCount + ")");
+		}
+	}
+
+	private void readAnnotations(final ByteBuffer raw, final AbstractVertex vertex, final AbstractEdge edge)
+			throws IOException{
+		final int count = BinaryLogFormat.readVarint(raw);
+		for(int i = 0; i < count; i++){
+			final int keyId = BinaryLogFormat.readVarint(raw);
+			if(keyId < 0 || keyId >= keys.size()){
+				throw new IOException("Undefined annotation key id in binary log: " + keyId);
+			}
+			final String value = readString(raw);
+			if(vertex != null){
+				vertex.addAnnotation(keys.get(keyId), value);
+			}else{
+				edge.addAnnotation(keys.get(keyId), value);
+			}
+		}
+	}
+
+	private String readString(final ByteBuffer buffer) throws IOException{
+		final int header = BinaryLogFormat.readVarint(buffer);
+		final int length = header >>> 1;
+		if(length > buffer.remaining()){
+			throw new IOException("String length beyond the end of the block: " + length);
+		}
+		if((header & 1) != 0){
+			final char[] chars = new char[length * 2];
+			for(int i = 0; i < length; i++){
+				final int b = buffer.get() & 0xFF;
+				chars[2 * i] = hexDigits[b >>> 4];
+				chars[2 * i + 1] = hexDigits[b & 0x0F];
+			}
+			return new String(chars);
+		}
+		if(buffer.hasArray()){
+			final int position = buffer.position();
+			buffer.position(position + length);
+			return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+		}
+		if(scratch.length < length){
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		buffer.get(scratch, 0, length);
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private ByteBuffer inflate(final ByteBuffer stored, final int rawLength, final int blockIndex) throws IOException{
+		if(inflated.length < rawLength){
+			inflated = new byte[rawLength];
+		}
+		inflater.reset();
+		inflater.setInput(stored);
+		int length = 0;
+		try{
+			while(!inflater.finished() && length < rawLength){
+				final int inflatedLength = inflater.inflate(inflated, length, rawLength - length);
+				if(inflatedLength == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+					break;
+				}
+				length += inflatedLength;
+			}
+		}catch(DataFormatException e){
+			throw new IOException("Failed to decompress block " + blockIndex, e);
+		}
+		if(!inflater.finished()){
+			throw new IOException("Truncated compressed data in block " + blockIndex);
+		}
+		return ByteBuffer.wrap(inflated, 0, length);
+	}
+
+	/*
+	 * Returns a buffer over the bytes of the file. The window is moved if the bytes are not in it.
+	 */
+	private ByteBuffer getBuffer(final long offset, final int length) throws IOException{
+		if(offset < 0 || offset + length > size){
+			throw new IOException("Range beyond the end of the binary log: [" + offset + ", " + (offset + length) + ")");
+		}
+		if(window == null || offset < windowStart || offset + length > windowEnd){
+			final long windowSize = Math.max(length, Math.min(maxWindowSize, size - offset));
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, windowSize);
+			windowStart = offset;
+			windowEnd = offset + windowSize;
+		}
+		final ByteBuffer buffer = window.duplicate();
+		buffer.position((int)(offset - windowStart));
+		buffer.limit((int)(offset - windowStart) + length);
+		return buffer.slice();
+	}
+
+	@Override
+	public final void close() throws IOException{
+		window = null;
+		inflater.end();
+		channel.close();
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.binarylog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import spade.storage.binarylog.BinaryLogFormat.BlockInfo;
+import spade.storage.binarylog.BinaryLogFormat.Codec;
+import spade.storage.binarylog.BinaryLogFormat.Layout;
+import spade.storage.binarylog.BinaryLogFormat.RecordBuffer;
+
+/**
+ * Appends vertices and edges to a binary log. See {@link BinaryLogFormat}.
+ *
+ * Records are collected in a block which is written when it reaches the block size, on flush, and on close.
+ * Not thread-safe.
+ */
+public final class BinaryLogWriter implements Closeable{
+
+	private final FileChannel channel;
+	private final int blockSize;
+	private final Codec codec;
+	private final Deflater deflater;
+	private final CRC32 crc32 = new CRC32();
+
+	private final List<BlockInfo> blocks;
+	private long end;
+
+	private final RecordBuffer block;
+	private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+	private int blockVertexCount = 0, blockEdgeCount = 0;
+	private byte[] compressed = new byte[0];
+	private final List<String> annotationKeys = new ArrayList<String>();
+	private final List<String> annotationValues = new ArrayList<String>();
+
+	private boolean closed = false;
+
+	/**
+	 * @param append if true and the file is not empty then the records are added after the existing blocks. A file
+	 * which was not closed is truncated to its last complete block
+	 */
+	public BinaryLogWriter(final String path, final int blockSize, final Codec codec, final boolean append)
+			throws IOException{
+		if(blockSize < 1){
+			throw new IllegalArgumentException("Block size must be greater than 0. Found: " + blockSize);
+		}
+		if(codec == null){
+			throw new IllegalArgumentException("NULL codec");
+		}
+		this.blockSize = blockSize;
+		this.codec = codec;
+		this.block = new RecordBuffer(blockSize + (blockSize >> 3));
+		if(append){
+			this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		}else{
+			this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		try{
+			if(channel.size() > 0){
+				final Layout layout = BinaryLogFormat.readLayout(channel);
+				this.blocks = new ArrayList<BlockInfo>(layout.blocks);
+				this.end = layout.end;
+				// The index (or an incomplete block) is written again on close
+				channel.truncate(end);
+			}else{
+				this.blocks = new ArrayList<BlockInfo>();
+				final ByteBuffer header = ByteBuffer.allocate(BinaryLogFormat.headerLength);
+				header.putInt(BinaryLogFormat.magic).putInt(BinaryLogFormat.version).flip();
+				write(header, 0);
+				this.end = BinaryLogFormat.headerLength;
+			}
+		}catch(IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+		this.deflater = codec == Codec.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+	}
+
+	public final void writeVertex(final String hash, final Map<String, String> annotations) throws IOException{
+		ensureOpen();
+		prepareAnnotations(annotations);
+		block.writeByte(BinaryLogFormat.recordVertex);
+		block.writeString(hash);
+		writeAnnotations();
+		blockVertexCount++;
+		if(block.length >= blockSize){
+			writeBlock();
+		}
+	}
+
+	public final void writeEdge(final String hash, final String childHash, final String parentHash,
+			final Map<String, String> annotations) throws IOException{
+		ensureOpen();
+		prepareAnnotations(annotations);
+		block.writeByte(BinaryLogFormat.recordEdge);
+		block.writeString(hash);
+		block.writeString(childHash);
+		block.writeString(parentHash);
+		writeAnnotations();
+		blockEdgeCount++;
+		if(block.length >= blockSize){
+			writeBlock();
+		}
+	}
+
+	/*
+	 * Skips NULL keys and values, and writes the keys not in the dictionary of the block yet
+	 */
+	private void prepareAnnotations(final Map<String, String> annotations){
+		annotationKeys.clear();
+		annotationValues.clear();
+		if(annotations == null){
+			return;
+		}
+		for(final Map.Entry<String, String> entry : annotations.entrySet()){
+			final String key = entry.getKey();
+			final String value = entry.getValue();
+			if(key == null || value == null){
+				continue;
+			}
+			if(!keyIds.containsKey(key)){
+				keyIds.put(key, keyIds.size());
+				block.writeByte(BinaryLogFormat.recordKey);
+				block.writeString(key);
+			}
+			annotationKeys.add(key);
+			annotationValues.add(value);
+		}
+	}
+
+	private void writeAnnotations(){
+		block.writeVarint(annotationKeys.size());
+		for(int i = 0; i < annotationKeys.size(); i++){
+			block.writeVarint(keyIds.get(annotationKeys.get(i)));
+			block.writeString(annotationValues.get(i));
+		}
+	}
+
+	/**
+	 * Writes the current block even if it is not full
+	 */
+	public final void flush() throws IOException{
+		ensureOpen();
+		writeBlock();
+	}
+
+	private void writeBlock() throws IOException{
+		if(blockVertexCount == 0 && blockEdgeCount == 0){
+			return;
+		}
+		crc32.reset();
+		crc32.update(block.bytes, 0, block.length);
+
+		Codec blockCodec = Codec.NONE;
+		byte[] stored = block.bytes;
+		int storedLength = block.length;
+		if(codec == Codec.DEFLATE){
+			final int compressedLength = deflate();
+			// Kept raw if compression did not help
+			if(compressedLength < block.length){
+				blockCodec = Codec.DEFLATE;
+				stored = compressed;
+				storedLength = compressedLength;
+			}
+		}
+
+		final ByteBuffer header = ByteBuffer.allocate(BinaryLogFormat.blockHeaderLength);
+		header.putInt(BinaryLogFormat.blockMagic).put(blockCodec.id).putInt(block.length).putInt(storedLength)
+				.putInt(blockVertexCount).putInt(blockEdgeCount).putInt((int)crc32.getValue()).flip();
+		write(header, end);
+		write(ByteBuffer.wrap(stored, 0, storedLength), end + BinaryLogFormat.blockHeaderLength);
+
+		blocks.add(new BlockInfo(end, blockVertexCount, blockEdgeCount));
+		end += BinaryLogFormat.blockHeaderLength + storedLength;
+
+		block.clear();
+		keyIds.clear();
+		blockVertexCount = blockEdgeCount = 0;
+	}
+
+	private int deflate(){
+		deflater.reset();
+		deflater.setInput(block.bytes, 0, block.length);
+		deflater.finish();
+		if(compressed.length < block.length){
+			compressed = new byte[block.length];
+		}
+		int compressedLength = 0;
+		while(!deflater.finished() && compressedLength < block.length){
+			compressedLength += deflater.deflate(compressed, compressedLength, block.length - compressedLength);
+		}
+		// Not finished means that the compressed bytes would not be smaller
+		return deflater.finished() ? compressedLength : Integer.MAX_VALUE;
+	}
+
+	private void write(final ByteBuffer buffer, final long position) throws IOException{
+		long offset = position;
+		while(buffer.hasRemaining()){
+			offset += channel.write(buffer, offset);
+		}
+	}
+
+	private void ensureOpen() throws IOException{
+		if(closed){
+			throw new IOException("Binary log writer is closed");
+		}
+	}
+
+	public final long getBlockCount(){
+		return blocks.size();
+	}
+
+	/**
+	 * Writes the current block and the index
+	 */
+	@Override
+	public final void close() throws IOException{
+		if(closed){
+			return;
+		}
+		closed = true;
+		try{
+			writeBlock();
+			final ByteBuffer index = ByteBuffer.allocate(
+					blocks.size() * BinaryLogFormat.indexEntryLength + BinaryLogFormat.indexTrailerLength);
+			for(final BlockInfo blockInfo : blocks){
+				index.putLong(blockInfo.offset).putInt(blockInfo.vertexCount).putInt(blockInfo.edgeCount);
+			}
+			index.putLong(end).putInt(blocks.size()).putInt(BinaryLogFormat.indexMagic).flip();
+			write(index, end);
+			channel.force(false);
+		}finally{
+			if(deflater != null){
+				deflater.end();
+			}
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,580 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.compressed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only compressed adjacency lists of vertices identified by consecutive integer ids (starting from 0).
+ *
+ * New neighbors are kept in memory and appended as a block to the list of the vertex on flush. The blocks of a vertex
+ * are chained from the newest to the oldest so that a flush does not encode the blocks already written. Once more
+ * than 'maxUnmergedBlocks' blocks have been appended to a vertex since its list was last merged, the whole list is
+ * decoded and written again as new blocks so that reading a list never walks a long chain. The replaced blocks are
+ * left in place.
+ *
+ * Block layout (unsigned varints unless stated otherwise):
+ *
+ * 1) Distance to the previous block of the vertex (0 if this is the first block of the vertex)
+ * 2) Distance to the reference block (0 if there is no reference)
+ * 3) If there is a reference: the zigzag encoded difference of the vertex id from the vertex id of the reference
+ *    block, and a bitmap with a bit set for every entry of the (decoded) reference block which is also
+ *    an entry of this block
+ * 4) Count of the remaining entries, and the remaining entries. The first one as the zigzag encoded difference from
+ *    the vertex id, and the rest as (gap - 1) from the previous entry
+ *
+ * The reference is chosen among the last 'referenceWindow' blocks written, and a chain of references is never longer
+ * than 'maxReferenceChain' blocks.
+ *
+ * The blocks file is memory-mapped in segments of fixed size, and a block never crosses a segment boundary.
+ *
+ * The index file is memory-mapped too. It has a header (magic, version, end of the blocks file, vertex count) and a
+ * fixed-width entry per vertex (offset + 1 of the newest block, blocks in the chain, blocks in the chain at the last
+ * merge). A flush only writes the entries of the vertices it appended blocks to, after the blocks are forced to disk.
+ */
+public class AdjacencyFile implements AutoCloseable{
+
+	private static final int indexMagic = 0x53414446; // SADF
+	private static final int indexVersion = 2;
+	private static final int indexHeaderSize = 32, indexEntrySize = 16;
+	// Multiple of the entry size so that an entry never crosses a segment boundary
+	private static final int indexSegmentSize = indexEntrySize * (1 << 20);
+
+	private static final int segmentSize = 64 * 1024 * 1024;
+	// Bounds the size of a block to much less than the segment size
+	private static final int maxBlockEntries = 1 << 16;
+
+	private static final int maxUnmergedBlocks = 16;
+
+	private static final class IntList{
+		private int[] values = new int[4];
+		private int size = 0;
+
+		private void add(final int value){
+			if(size == values.length){
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		// Sorted and without duplicates
+		private int[] toSortedSet(){
+			final int[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			int unique = 0;
+			for(int i = 0; i < sorted.length; i++){
+				if(unique == 0 || sorted[unique - 1] != sorted[i]){
+					sorted[unique++] = sorted[i];
+				}
+			}
+			return unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+		}
+	}
+
+	private static final class Head{
+		private final long offset; // -1 if no block
+		private final int chainLength, mergedChainLength;
+
+		private Head(final long offset, final int chainLength, final int mergedChainLength){
+			this.offset = offset;
+			this.chainLength = chainLength;
+			this.mergedChainLength = mergedChainLength;
+		}
+	}
+
+	private static final Head emptyHead = new Head(-1, 0, 0);
+
+	private static final class RecentBlock{
+		private final int vertexId;
+		private final long offset;
+		private final int[] entries;
+		private final int referenceChain;
+
+		private RecentBlock(final int vertexId, final long offset, final int[] entries, final int referenceChain){
+			this.vertexId = vertexId;
+			this.offset = offset;
+			this.entries = entries;
+			this.referenceChain = referenceChain;
+		}
+	}
+
+	private final File blocksFile, indexFile;
+	private final int referenceWindow, maxReferenceChain;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final FileChannel channel, indexChannel;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private final List<MappedByteBuffer> indexSegments = new ArrayList<MappedByteBuffer>();
+	private long end;
+	private int vertexCount;
+
+	private final Map<Integer, IntList> pending = new HashMap<Integer, IntList>();
+	private int pendingCount = 0;
+
+	private final ArrayDeque<RecentBlock> recentBlocks = new ArrayDeque<RecentBlock>();
+
+	public AdjacencyFile(final File directory, final String name, final int referenceWindow,
+			final int maxReferenceChain) throws IOException{
+		if(referenceWindow < 0){
+			throw new IllegalArgumentException("Negative reference window: " + referenceWindow);
+		}
+		if(maxReferenceChain < 0){
+			throw new IllegalArgumentException("Negative max reference chain: " + maxReferenceChain);
+		}
+		this.blocksFile = new File(directory, name + ".blocks");
+		this.indexFile = new File(directory, name + ".index");
+		this.referenceWindow = referenceWindow;
+		this.maxReferenceChain = maxReferenceChain;
+
+		final boolean indexExists = indexFile.isFile();
+		if(!indexExists){
+			// Blocks without an index are unreachable
+			Files.deleteIfExists(blocksFile.toPath());
+		}
+		this.indexChannel = FileChannel.open(indexFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			mapNextIndexSegment();
+			if(indexExists){
+				readIndexHeader();
+			}else{
+				this.end = 0;
+				this.vertexCount = 0;
+				writeIndexHeader();
+				indexSegments.get(0).force();
+			}
+			while((long)indexSegments.size() * indexSegmentSize < getIndexEntryPosition(vertexCount)){
+				mapNextIndexSegment();
+			}
+			this.channel = FileChannel.open(blocksFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}catch(IOException e){
+			indexChannel.close();
+			throw e;
+		}
+		for(long offset = 0; offset < end; offset += segmentSize){
+			mapNextSegment();
+		}
+	}
+
+	private void readIndexHeader() throws IOException{
+		final ByteBuffer header = indexSegments.get(0).duplicate();
+		if(header.getInt(0) != indexMagic){
+			throw new IOException("Not an adjacency index file: " + indexFile);
+		}
+		final int version = header.getInt(4);
+		if(version != indexVersion){
+			throw new IOException("Unexpected adjacency index file version " + version + ": " + indexFile);
+		}
+		this.end = header.getLong(8);
+		this.vertexCount = header.getInt(16);
+	}
+
+	private void writeIndexHeader(){
+		final ByteBuffer header = indexSegments.get(0).duplicate();
+		header.putInt(0, indexMagic);
+		header.putInt(4, indexVersion);
+		header.putLong(8, end);
+		header.putInt(16, vertexCount);
+	}
+
+	private static long getIndexEntryPosition(final int vertexId){
+		return indexHeaderSize + (long)vertexId * indexEntrySize;
+	}
+
+	private Head readHead(final int vertexId){
+		if(vertexId >= vertexCount){
+			return emptyHead;
+		}
+		final long position = getIndexEntryPosition(vertexId);
+		final ByteBuffer segment = indexSegments.get((int)(position / indexSegmentSize));
+		final int offset = (int)(position % indexSegmentSize);
+		return new Head(segment.getLong(offset) - 1, segment.getInt(offset + 8), segment.getInt(offset + 12));
+	}
+
+	private void writeHead(final int vertexId, final Head head) throws IOException{
+		final long position = getIndexEntryPosition(vertexId);
+		while(indexSegments.size() <= position / indexSegmentSize){
+			mapNextIndexSegment();
+		}
+		final ByteBuffer segment = indexSegments.get((int)(position / indexSegmentSize));
+		final int offset = (int)(position % indexSegmentSize);
+		segment.putLong(offset, head.offset + 1);
+		segment.putInt(offset + 8, head.chainLength);
+		segment.putInt(offset + 12, head.mergedChainLength);
+	}
+
+	private void mapNextSegment() throws IOException{
+		segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long)segments.size() * segmentSize, segmentSize));
+	}
+
+	private void mapNextIndexSegment() throws IOException{
+		indexSegments.add(indexChannel.map(FileChannel.MapMode.READ_WRITE,
+				(long)indexSegments.size() * indexSegmentSize, indexSegmentSize));
+	}
+
+	public final void add(final int vertexId, final int neighborId){
+		if(vertexId < 0 || neighborId < 0){
+			throw new IllegalArgumentException("Negative vertex id");
+		}
+		lock.writeLock().lock();
+		try{
+			IntList list = pending.get(vertexId);
+			if(list == null){
+				list = new IntList();
+				pending.put(vertexId, list);
+			}
+			list.add(neighborId);
+			pendingCount++;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public final int getPendingCount(){
+		lock.readLock().lock();
+		try{
+			return pendingCount;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the neighbors in memory to the blocks file and updates the index entries of the vertices appended to
+	 */
+	public final void flush() throws IOException{
+		lock.writeLock().lock();
+		try{
+			if(pending.isEmpty()){
+				return;
+			}
+			final int[] vertexIds = new int[pending.size()];
+			int i = 0;
+			for(final Integer vertexId : pending.keySet()){
+				vertexIds[i++] = vertexId;
+			}
+			Arrays.sort(vertexIds);
+			// Index entries are only written once the blocks they point to are on disk
+			final Head[] heads = new Head[vertexIds.length];
+			for(i = 0; i < vertexIds.length; i++){
+				final int vertexId = vertexIds[i];
+				Head head = readHead(vertexId);
+				int[] entries = pending.get(vertexId).toSortedSet();
+				final boolean merge = head.chainLength - head.mergedChainLength >= maxUnmergedBlocks;
+				if(merge){
+					final IntList all = new IntList();
+					for(long offset = head.offset; offset >= 0;){
+						offset = decodeBlock(vertexId, offset, all);
+					}
+					for(final int entry : entries){
+						all.add(entry);
+					}
+					entries = all.toSortedSet();
+					head = emptyHead;
+				}
+				for(int from = 0; from < entries.length; from += maxBlockEntries){
+					final int to = Math.min(entries.length, from + maxBlockEntries);
+					final long offset = appendBlock(vertexId,
+							from == 0 && to == entries.length ? entries : Arrays.copyOfRange(entries, from, to), head.offset);
+					head = new Head(offset, head.chainLength + 1, head.mergedChainLength);
+				}
+				heads[i] = merge ? new Head(head.offset, head.chainLength, head.chainLength) : head;
+			}
+			pending.clear();
+			pendingCount = 0;
+			for(final MappedByteBuffer segment : segments){
+				segment.force();
+			}
+			for(i = 0; i < vertexIds.length; i++){
+				writeHead(vertexIds[i], heads[i]);
+			}
+			vertexCount = Math.max(vertexCount, vertexIds[vertexIds.length - 1] + 1);
+			writeIndexHeader();
+			for(final MappedByteBuffer indexSegment : indexSegments){
+				indexSegment.force();
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the offset of the block
+	 */
+	private long appendBlock(final int vertexId, final int[] entries, final long previous) throws IOException{
+		RecentBlock reference = null;
+		int referenceCommon = 0;
+		for(final RecentBlock recentBlock : recentBlocks){
+			if(recentBlock.referenceChain < maxReferenceChain){
+				final int common = countCommon(recentBlock.entries, entries);
+				// A copied entry saves at least a byte and costs a bit for every entry of the reference
+				if(common > referenceCommon && common * 8 > recentBlock.entries.length){
+					reference = recentBlock;
+					referenceCommon = common;
+				}
+			}
+		}
+
+		long offset = end;
+		byte[] block = encodeBlock(vertexId, entries, offset, previous, reference);
+		if(offset % segmentSize + block.length > segmentSize){
+			// Skip to the next segment. Distances change so encode again.
+			offset = (offset / segmentSize + 1) * segmentSize;
+			block = encodeBlock(vertexId, entries, offset, previous, reference);
+		}
+		final int segmentIndex = (int)(offset / segmentSize);
+		while(segments.size() <= segmentIndex){
+			mapNextSegment();
+		}
+		final ByteBuffer segment = segments.get(segmentIndex).duplicate();
+		segment.position((int)(offset % segmentSize));
+		segment.put(block);
+		end = offset + block.length;
+
+		if(referenceWindow > 0){
+			recentBlocks.addLast(new RecentBlock(vertexId, offset, entries, reference == null ? 0 : reference.referenceChain + 1));
+			if(recentBlocks.size() > referenceWindow){
+				recentBlocks.removeFirst();
+			}
+		}
+		return offset;
+	}
+
+	private static int countCommon(final int[] a, final int[] b){
+		int common = 0;
+		for(int i = 0, j = 0; i < a.length && j < b.length;){
+			if(a[i] == b[j]){
+				common++;
+				i++;
+				j++;
+			}else if(a[i] < b[j]){
+				i++;
+			}else{
+				j++;
+			}
+		}
+		return common;
+	}
+
+	private static byte[] encodeBlock(final int vertexId, final int[] entries, final long offset, final long previous,
+			final RecentBlock reference){
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + entries.length * 2);
+		writeVarLong(out, previous < 0 ? 0 : offset - previous);
+		if(reference == null){
+			writeVarLong(out, 0);
+			writeRemaining(out, vertexId, entries, entries.length);
+		}else{
+			writeVarLong(out, offset - reference.offset);
+			writeZigZag(out, (long)vertexId - reference.vertexId);
+			final byte[] bitmap = new byte[(reference.entries.length + 7) / 8];
+			final int[] remaining = new int[entries.length];
+			int remainingCount = 0;
+			int i = 0;
+			for(int j = 0; j < entries.length; j++){
+				while(i < reference.entries.length && reference.entries[i] < entries[j]){
+					i++;
+				}
+				if(i < reference.entries.length && reference.entries[i] == entries[j]){
+					bitmap[i >>> 3] |= 1 << (i & 7);
+					i++;
+				}else{
+					remaining[remainingCount++] = entries[j];
+				}
+			}
+			out.write(bitmap, 0, bitmap.length);
+			writeRemaining(out, vertexId, remaining, remainingCount);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeRemaining(final ByteArrayOutputStream out, final int vertexId, final int[] entries,
+			final int count){
+		writeVarLong(out, count);
+		for(int i = 0; i < count; i++){
+			if(i == 0){
+				writeZigZag(out, (long)entries[0] - vertexId);
+			}else{
+				writeVarLong(out, entries[i] - entries[i - 1] - 1);
+			}
+		}
+	}
+
+	private static void writeZigZag(final ByteArrayOutputStream out, final long value){
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static void writeVarLong(final ByteArrayOutputStream out, long value){
+		while((value & ~0x7FL) != 0){
+			out.write((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+
+	private final class BlockReader{
+		private final ByteBuffer segment;
+		private int position;
+
+		private BlockReader(final long offset){
+			this.segment = segments.get((int)(offset / segmentSize));
+			this.position = (int)(offset % segmentSize);
+		}
+
+		private long readVarLong(){
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do{
+				b = segment.get(position++);
+				value |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			}while((b & 0x80) != 0);
+			return value;
+		}
+
+		private long readZigZag(){
+			final long zigzag = readVarLong();
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		private byte readByte(){
+			return segment.get(position++);
+		}
+	}
+
+	/**
+	 * Decodes the block at the offset into the list and returns the offset of the previous block of the vertex (-1 if
+	 * none)
+	 */
+	private long decodeBlock(final int vertexId, final long offset, final IntList into){
+		final BlockReader reader = new BlockReader(offset);
+		final long previousDistance = reader.readVarLong();
+		final long referenceDistance = reader.readVarLong();
+		int[] copied = null;
+		int copiedCount = 0;
+		if(referenceDistance > 0){
+			final int referenceVertexId = (int)(vertexId - reader.readZigZag());
+			final IntList referenceEntries = new IntList();
+			decodeBlock(referenceVertexId, offset - referenceDistance, referenceEntries);
+			copied = new int[referenceEntries.size];
+			byte bits = 0;
+			for(int i = 0; i < referenceEntries.size; i++){
+				if((i & 7) == 0){
+					bits = reader.readByte();
+				}
+				if((bits & (1 << (i & 7))) != 0){
+					copied[copiedCount++] = referenceEntries.values[i];
+				}
+			}
+		}
+		final int remainingCount = (int)reader.readVarLong();
+		int c = 0;
+		long previousEntry = 0;
+		for(int i = 0; i < remainingCount; i++){
+			final long entry;
+			if(i == 0){
+				entry = vertexId + reader.readZigZag();
+			}else{
+				entry = previousEntry + reader.readVarLong() + 1;
+			}
+			// Merge so that the block is decoded in order
+			while(c < copiedCount && copied[c] < entry){
+				into.add(copied[c++]);
+			}
+			into.add((int)entry);
+			previousEntry = entry;
+		}
+		while(c < copiedCount){
+			into.add(copied[c++]);
+		}
+		return previousDistance == 0 ? -1 : offset - previousDistance;
+	}
+
+	/**
+	 * Sorted and without duplicates. Includes the neighbors not flushed yet.
+	 */
+	public final int[] getNeighbors(final int vertexId){
+		final IntList neighbors = new IntList();
+		lock.readLock().lock();
+		try{
+			if(vertexId >= 0){
+				long offset = readHead(vertexId).offset;
+				while(offset >= 0){
+					offset = decodeBlock(vertexId, offset, neighbors);
+				}
+			}
+			final IntList pendingNeighbors = pending.get(vertexId);
+			if(pendingNeighbors != null){
+				for(int i = 0; i < pendingNeighbors.size; i++){
+					neighbors.add(pendingNeighbors.values[i]);
+				}
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+		return neighbors.toSortedSet();
+	}
+
+	/**
+	 * Size of the blocks file in use
+	 */
+	public final long getSizeBytes(){
+		lock.readLock().lock();
+		try{
+			return end;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException{
+		lock.writeLock().lock();
+		try{
+			try{
+				flush();
+			}finally{
+				try{
+					channel.close();
+				}finally{
+					indexChannel.close();
+				}
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+}
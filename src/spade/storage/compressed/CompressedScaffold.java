@@ -0,0 +1,125 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.compressed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Parents and children of vertices identified by consecutive integer ids, kept as compressed adjacency lists on disk.
+ *
+ * Edges are buffered in memory and appended to the lists every 'maxEdgesInMemory' edges.
+ * Lineage is computed by decoding only the lists of the vertices reached.
+ */
+public class CompressedScaffold implements AutoCloseable{
+
+	public static interface LineageVisitor{
+		/**
+		 * Called once for every vertex reached (within the depth) with its neighbors in the direction
+		 */
+		public void visit(final int vertexId, final int[] neighborIds) throws Exception;
+	}
+
+	private final AdjacencyFile parents, children;
+	private final int maxEdgesInMemory;
+
+	public CompressedScaffold(final File directory, final int referenceWindow, final int maxReferenceChain,
+			final int maxEdgesInMemory) throws IOException{
+		if(maxEdgesInMemory < 1){
+			throw new IllegalArgumentException("Max edges in memory must be greater than 0. Found: " + maxEdgesInMemory);
+		}
+		this.maxEdgesInMemory = maxEdgesInMemory;
+		this.parents = new AdjacencyFile(directory, "parents", referenceWindow, maxReferenceChain);
+		try{
+			this.children = new AdjacencyFile(directory, "children", referenceWindow, maxReferenceChain);
+		}catch(IOException e){
+			parents.close();
+			throw e;
+		}
+	}
+
+	public final synchronized void addEdge(final int childId, final int parentId) throws IOException{
+		parents.add(childId, parentId);
+		children.add(parentId, childId);
+		if(parents.getPendingCount() >= maxEdgesInMemory){
+			flush();
+		}
+	}
+
+	public final synchronized void flush() throws IOException{
+		parents.flush();
+		children.flush();
+	}
+
+	public final int[] getParents(final int vertexId){
+		return parents.getNeighbors(vertexId);
+	}
+
+	public final int[] getChildren(final int vertexId){
+		return children.getNeighbors(vertexId);
+	}
+
+	/**
+	 * Breadth first from the vertex. Ancestors if 'ancestors' is true otherwise descendants.
+	 * Vertices at 'maxDepth' are not visited.
+	 */
+	public final void getLineage(final int vertexId, final boolean ancestors, final int maxDepth,
+			final LineageVisitor visitor) throws Exception{
+		final AdjacencyFile adjacency = ancestors ? parents : children;
+		final BitSet visited = new BitSet();
+		int[] current = new int[]{vertexId};
+		int currentSize = 1;
+		visited.set(vertexId);
+		for(int depth = 0; depth < maxDepth && currentSize > 0; depth++){
+			int[] next = new int[16];
+			int nextSize = 0;
+			for(int i = 0; i < currentSize; i++){
+				final int[] neighborIds = adjacency.getNeighbors(current[i]);
+				visitor.visit(current[i], neighborIds);
+				for(final int neighborId : neighborIds){
+					if(!visited.get(neighborId)){
+						visited.set(neighborId);
+						if(nextSize == next.length){
+							next = Arrays.copyOf(next, nextSize * 2);
+						}
+						next[nextSize++] = neighborId;
+					}
+				}
+			}
+			current = next;
+			currentSize = nextSize;
+		}
+	}
+
+	public final long getSizeBytes(){
+		return parents.getSizeBytes() + children.getSizeBytes();
+	}
+
+	@Override
+	public synchronized void close() throws IOException{
+		try{
+			parents.close();
+		}finally{
+			children.close();
+		}
+	}
+}
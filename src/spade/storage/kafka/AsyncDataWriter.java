@@ -0,0 +1,134 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.kafka;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.avro.generic.GenericContainer;
+
+/**
+ * Writes the records to the wrapped writer on a background thread, in the order they were written.
+ * 
+ * At most 'maxInFlightRecords' records are waiting to be written. The writing thread blocks when the limit
+ * is reached. The first failure of the wrapped writer is thrown by the next call.
+ */
+public class AsyncDataWriter implements DataWriter{
+
+	private static final Logger logger = Logger.getLogger(AsyncDataWriter.class.getName());
+
+	private final DataWriter dataWriter;
+	private final int maxInFlightRecords;
+	private final Semaphore inFlightRecords;
+	private final ExecutorService executor;
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	public AsyncDataWriter(final DataWriter dataWriter, final int maxInFlightRecords){
+		if(dataWriter == null){
+			throw new IllegalArgumentException("NULL data writer");
+		}
+		if(maxInFlightRecords < 1){
+			throw new IllegalArgumentException("Max in-flight records must be greater than 0. Found: " + maxInFlightRecords);
+		}
+		this.dataWriter = dataWriter;
+		this.maxInFlightRecords = maxInFlightRecords;
+		this.inFlightRecords = new Semaphore(maxInFlightRecords);
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "AsyncDataWriter-" + dataWriter.getClass().getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void writeRecord(final GenericContainer genericContainer) throws Exception{
+		writeRecords(Collections.singletonList(genericContainer));
+	}
+
+	@Override
+	public void writeRecords(final List<GenericContainer> genericContainers) throws Exception{
+		throwFailure();
+		if(genericContainers.isEmpty()){
+			return;
+		}
+		// A batch larger than the limit is allowed alone
+		final int permits = Math.min(genericContainers.size(), maxInFlightRecords);
+		inFlightRecords.acquire(permits);
+		try{
+			executor.execute(() -> {
+				try{
+					dataWriter.writeRecords(genericContainers);
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to write batch of " + genericContainers.size() + " records", e);
+					failure.compareAndSet(null, e);
+				}finally{
+					inFlightRecords.release(permits);
+				}
+			});
+		}catch(RuntimeException e){
+			inFlightRecords.release(permits);
+			throw e;
+		}
+	}
+
+	@Override
+	public void flush() throws Exception{
+		final Future<Void> future = executor.submit(() -> {
+			dataWriter.flush();
+			return null;
+		});
+		try{
+			future.get();
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof Exception){
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+		throwFailure();
+	}
+
+	@Override
+	public void close() throws Exception{
+		executor.shutdown();
+		while(!executor.awaitTermination(1, TimeUnit.SECONDS)){
+			logger.log(Level.INFO, "Waiting for " + (maxInFlightRecords - inFlightRecords.availablePermits())
+					+ " record(s) to be written");
+		}
+		dataWriter.close();
+		throwFailure();
+	}
+
+	private void throwFailure() throws Exception{
+		final Exception exception = failure.getAndSet(null);
+		if(exception != null){
+			throw exception;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.kafka;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Kafka value serializer which writes the Avro binary encoding of the record.
+ * 
+ * The encoder, the output buffer, and the datum writer (per schema) are reused across records.
+ */
+public class AvroBinarySerializer implements Serializer<GenericContainer>{
+
+	private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+	private BinaryEncoder encoder = null;
+	private Schema datumWriterSchema = null;
+	private DatumWriter<GenericContainer> datumWriter = null;
+
+	@Override
+	public void configure(final Map<String, ?> configs, final boolean isKey){
+	}
+
+	@Override
+	public synchronized byte[] serialize(final String topic, final GenericContainer genericContainer){
+		if(genericContainer == null){
+			return null;
+		}
+		final Schema schema = genericContainer.getSchema();
+		if(schema != datumWriterSchema){
+			datumWriter = new SpecificDatumWriter<GenericContainer>(schema);
+			datumWriterSchema = schema;
+		}
+		outputStream.reset();
+		encoder = EncoderFactory.get().binaryEncoder(outputStream, encoder);
+		try{
+			datumWriter.write(genericContainer, encoder);
+			encoder.flush();
+		}catch(IOException e){
+			throw new SerializationException("Failed to serialize record for topic: " + topic, e);
+		}
+		return outputStream.toByteArray();
+	}
+
+	@Override
+	public void close(){
+	}
+}
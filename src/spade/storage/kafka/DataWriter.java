@@ -19,11 +19,28 @@
  */
 package spade.storage.kafka;
 
+import java.util.List;
+
 import org.apache.avro.generic.GenericContainer;
 
 public interface DataWriter {
 	
 	public abstract void writeRecord(GenericContainer genericContainer) throws Exception;
 	public abstract void close() throws Exception;
+
+	/**
+	 * Writes the records in order. The list must not be modified by the caller after the call.
+	 */
+	public default void writeRecords(List<GenericContainer> genericContainers) throws Exception{
+		for(GenericContainer genericContainer : genericContainers){
+			writeRecord(genericContainer);
+		}
+	}
+
+	/**
+	 * Waits till all the records written so far have been handed over to the output.
+	 */
+	public default void flush() throws Exception{
+	}
 	
 }
@@ -56,6 +56,11 @@ public class JsonFileWriter implements DataWriter {
 		datumWriter.write(genericContainer, jsonEncoder);
 	}
 
+	@Override
+	public void flush() throws Exception {
+		jsonEncoder.flush();
+	}
+
 	@Override
 	public void close() throws Exception {
 		jsonEncoder.flush();
@@ -22,6 +22,7 @@ package spade.storage.kafka;
 import org.apache.avro.generic.GenericContainer;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import spade.core.Settings;
@@ -32,6 +33,7 @@ import spade.utility.FileUtility;
 import java.io.File;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,9 +48,14 @@ public class ServerWriter implements DataWriter{
 	private long lastReportedRecordCount, recordCount;
 	private volatile long failedRecordCount;
 
-	private KafkaProducer<String, GenericContainer> serverWriter;
+	private static final String maxInFlightRecordsKey = "maxInFlightRecords";
+
+	private Producer<String, GenericContainer> serverWriter;
 	private String kafkaTopic;
 
+	// Records sent but not acknowledged yet. NULL if not bounded
+	private Semaphore inFlightRecords = null;
+
 	private String defaultConfigFilePath = Settings.getDefaultConfigFilePath(this.getClass());
 
 	public ServerWriter(Properties properties) throws Exception{
@@ -69,6 +76,12 @@ public class ServerWriter implements DataWriter{
 							recordCount = lastReportedRecordCount = 0;
 						}
 					}
+
+					Integer maxInFlightRecords = HelperFunctions.parseInt(additionalProperties.get(maxInFlightRecordsKey), null);
+					if(maxInFlightRecords != null && maxInFlightRecords > 0){
+						inFlightRecords = new Semaphore(maxInFlightRecords);
+					}
+					properties.remove(maxInFlightRecordsKey);
 				}
 			}
 		}catch(Exception e){
@@ -79,6 +92,25 @@ public class ServerWriter implements DataWriter{
 		serverWriter = new KafkaProducer<>(properties);
 	}
 
+	/**
+	 * Writes to the given producer (e.g. a mock producer) instead of creating one. Statistics are not reported.
+	 * 
+	 * @param maxInFlightRecords maximum records sent but not acknowledged yet. 0 for no limit
+	 */
+	public ServerWriter(Producer<String, GenericContainer> producer, String kafkaTopic, int maxInFlightRecords){
+		if(producer == null){
+			throw new IllegalArgumentException("NULL producer");
+		}
+		if(maxInFlightRecords < 0){
+			throw new IllegalArgumentException("Negative max in-flight records: " + maxInFlightRecords);
+		}
+		this.serverWriter = producer;
+		this.kafkaTopic = kafkaTopic;
+		if(maxInFlightRecords > 0){
+			this.inFlightRecords = new Semaphore(maxInFlightRecords);
+		}
+	}
+
 	private void printStats(){
 		long currentTime = System.currentTimeMillis();
 		float overallTime = (float) (currentTime - startTime) / 1000; // # in secs
@@ -94,6 +126,9 @@ public class ServerWriter implements DataWriter{
 	private Callback sendCallback = new Callback(){
 		@Override
 		public void onCompletion(RecordMetadata recordMetadata, Exception exception) {
+			if(inFlightRecords != null){
+				inFlightRecords.release();
+			}
 			if(exception != null){ //error
 				logger.log(Level.WARNING, "Failed to send record", exception);
 				failedRecordCount++;
@@ -108,7 +143,17 @@ public class ServerWriter implements DataWriter{
 		 * the record type (any type from the union schema may be sent)
 		 */
 		ProducerRecord<String, GenericContainer> record = new ProducerRecord<>(kafkaTopic, genericContainer);
-		serverWriter.send(record, sendCallback); //asynchronous send
+		if(inFlightRecords != null){
+			inFlightRecords.acquire(); // released by the callback
+		}
+		try{
+			serverWriter.send(record, sendCallback); //asynchronous send
+		}catch(Exception e){
+			if(inFlightRecords != null){
+				inFlightRecords.release();
+			}
+			throw e;
+		}
 		
 		if(reportingEnabled){
 			recordCount++;
@@ -121,6 +166,11 @@ public class ServerWriter implements DataWriter{
 		}
 	}
 
+	@Override
+	public void flush() throws Exception{
+		serverWriter.flush();
+	}
+
 	public void close() throws Exception{
 		if(reportingEnabled){
 			printStats();
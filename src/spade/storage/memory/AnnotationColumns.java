@@ -0,0 +1,116 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Annotations of vertices (or edges) stored column-wise. One column per annotation key.
+ *
+ * Each column keeps a dictionary of distinct values and one int code per element id so that a predicate
+ * is evaluated once per distinct value instead of once per element.
+ */
+public class AnnotationColumns{
+
+	public static final class Column{
+		private final ArrayList<String> dictionary = new ArrayList<String>();
+		private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		// Code + 1 by element id. 0 means that the element does not have the annotation
+		private int[] cells = new int[0];
+
+		private void set(final int id, final String value){
+			Integer code = codes.get(value);
+			if(code == null){
+				code = dictionary.size();
+				dictionary.add(value);
+				codes.put(value, code);
+			}
+			if(id >= cells.length){
+				cells = Arrays.copyOf(cells, Math.max(id + 1, cells.length * 2));
+			}
+			cells[id] = code + 1;
+		}
+
+		/**
+		 * Returns -1 if the element does not have the annotation
+		 */
+		public final int getCode(final int id){
+			return id < cells.length ? cells[id] - 1 : -1;
+		}
+
+		public final String get(final int id){
+			final int code = getCode(id);
+			return code < 0 ? null : dictionary.get(code);
+		}
+
+		public final String decode(final int code){
+			return dictionary.get(code);
+		}
+
+		public final int getDictionarySize(){
+			return dictionary.size();
+		}
+	}
+
+	private final Map<String, Column> columns = new TreeMap<String, Column>();
+
+	public final void put(final int id, final Map<String, String> annotations){
+		for(final Map.Entry<String, String> entry : annotations.entrySet()){
+			final String key = entry.getKey();
+			final String value = entry.getValue();
+			if(key == null || value == null){
+				continue;
+			}
+			Column column = columns.get(key);
+			if(column == null){
+				column = new Column();
+				columns.put(key, column);
+			}
+			column.set(id, value);
+		}
+	}
+
+	public final Map<String, String> get(final int id){
+		final Map<String, String> annotations = new HashMap<String, String>();
+		for(final Map.Entry<String, Column> entry : columns.entrySet()){
+			final String value = entry.getValue().get(id);
+			if(value != null){
+				annotations.put(entry.getKey(), value);
+			}
+		}
+		return annotations;
+	}
+
+	/**
+	 * Returns NULL if no element has the annotation
+	 */
+	public final Column getColumn(final String key){
+		return columns.get(key);
+	}
+
+	public final Set<String> getKeys(){
+		return columns.keySet();
+	}
+}
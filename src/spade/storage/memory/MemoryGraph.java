@@ -0,0 +1,387 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only in-memory graph. Vertices and edges get dense int ids in arrival order.
+ *
+ * Adjacency is kept in compressed sparse row (CSR) form in both directions: edges grouped by child vertex and
+ * edges grouped by parent vertex. Edges added after the last (re)build are kept in a small unindexed tail which
+ * is scanned once per traversal step. The CSR arrays are rebuilt lazily when the tail becomes large.
+ *
+ * Guarded by a read-write lock so that any number of queries can read at the same time. Callers doing multiple
+ * reads that must be consistent must do them between {@link #beginRead()} and {@link #endRead()}.
+ */
+public class MemoryGraph{
+
+	public static interface EdgeVisitor{
+		public void visit(final int edgeId, final int childId, final int parentId);
+	}
+
+	private static final int minimumUnindexedEdgesForRebuild = 4096;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final HashMap<String, Integer> vertexIdByHash = new HashMap<String, Integer>();
+	private final ArrayList<String> vertexHashes = new ArrayList<String>();
+	private final AnnotationColumns vertexAnnotations = new AnnotationColumns();
+	// Vertices created by an edge that arrived before its endpoint. Annotations are filled in on put
+	private final BitSet placeholderVertices = new BitSet();
+
+	private final HashMap<String, Integer> edgeIdByHash = new HashMap<String, Integer>();
+	private final ArrayList<String> edgeHashes = new ArrayList<String>();
+	private final AnnotationColumns edgeAnnotations = new AnnotationColumns();
+	private int[] edgeChild = new int[1024];
+	private int[] edgeParent = new int[1024];
+
+	// CSR over edges [0, indexedEdgeCount) and vertices [0, indexedVertexCount)
+	private int indexedEdgeCount = 0;
+	private int indexedVertexCount = 0;
+	private int[] childOffsets = new int[1];
+	private int[] childEdges = new int[0];
+	private int[] parentOffsets = new int[1];
+	private int[] parentEdges = new int[0];
+
+	public final int getVertexCount(){
+		lock.readLock().lock();
+		try{
+			return vertexHashes.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final int getEdgeCount(){
+		lock.readLock().lock();
+		try{
+			return edgeHashes.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the id of the vertex. Annotations are ignored if the vertex is already present unless it was only
+	 * added as an edge endpoint.
+	 */
+	public final int putVertex(final String hash, final Map<String, String> annotations){
+		lock.writeLock().lock();
+		try{
+			Integer id = vertexIdByHash.get(hash);
+			if(id == null){
+				id = addVertex(hash);
+				vertexAnnotations.put(id, annotations);
+			}else if(placeholderVertices.get(id)){
+				vertexAnnotations.put(id, annotations);
+				placeholderVertices.clear(id);
+			}
+			return id;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int getOrAddPlaceholderVertex(final String hash){
+		Integer id = vertexIdByHash.get(hash);
+		if(id == null){
+			id = addVertex(hash);
+			placeholderVertices.set(id);
+		}
+		return id;
+	}
+
+	private int addVertex(final String hash){
+		final int id = vertexHashes.size();
+		vertexHashes.add(hash);
+		vertexIdByHash.put(hash, id);
+		return id;
+	}
+
+	/**
+	 * True if the vertex was added as an edge endpoint and has not been put itself yet
+	 */
+	public final boolean isPlaceholderVertex(final int vertexId){
+		lock.readLock().lock();
+		try{
+			return placeholderVertices.get(vertexId);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the id of the edge. Endpoints are added as placeholders (without annotations) if not already present.
+	 * Annotations are ignored if the edge is already present.
+	 */
+	public final int putEdge(final String hash, final String childHash, final String parentHash,
+			final Map<String, String> annotations){
+		lock.writeLock().lock();
+		try{
+			Integer id = edgeIdByHash.get(hash);
+			if(id == null){
+				final int childId = getOrAddPlaceholderVertex(childHash);
+				final int parentId = getOrAddPlaceholderVertex(parentHash);
+				id = edgeHashes.size();
+				if(id >= edgeChild.length){
+					edgeChild = Arrays.copyOf(edgeChild, edgeChild.length * 2);
+					edgeParent = Arrays.copyOf(edgeParent, edgeParent.length * 2);
+				}
+				edgeChild[id] = childId;
+				edgeParent[id] = parentId;
+				edgeHashes.add(hash);
+				edgeIdByHash.put(hash, id);
+				edgeAnnotations.put(id, annotations);
+			}
+			return id;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns -1 if not present
+	 */
+	public final int getVertexId(final String hash){
+		lock.readLock().lock();
+		try{
+			final Integer id = vertexIdByHash.get(hash);
+			return id == null ? -1 : id;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns -1 if not present
+	 */
+	public final int getEdgeId(final String hash){
+		lock.readLock().lock();
+		try{
+			final Integer id = edgeIdByHash.get(hash);
+			return id == null ? -1 : id;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final String getVertexHash(final int vertexId){
+		lock.readLock().lock();
+		try{
+			return vertexHashes.get(vertexId);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final String getEdgeHash(final int edgeId){
+		lock.readLock().lock();
+		try{
+			return edgeHashes.get(edgeId);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final int getEdgeChild(final int edgeId){
+		lock.readLock().lock();
+		try{
+			return edgeChild[edgeId];
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final int getEdgeParent(final int edgeId){
+		lock.readLock().lock();
+		try{
+			return edgeParent[edgeId];
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final Map<String, String> getVertexAnnotations(final int vertexId){
+		lock.readLock().lock();
+		try{
+			return vertexAnnotations.get(vertexId);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final Map<String, String> getEdgeAnnotations(final int edgeId){
+		lock.readLock().lock();
+		try{
+			return edgeAnnotations.get(edgeId);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Must only be used between {@link #beginRead()} and {@link #endRead()}
+	 */
+	public final AnnotationColumns getVertexAnnotationColumns(){
+		return vertexAnnotations;
+	}
+
+	/**
+	 * Must only be used between {@link #beginRead()} and {@link #endRead()}
+	 */
+	public final AnnotationColumns getEdgeAnnotationColumns(){
+		return edgeAnnotations;
+	}
+
+	public final BitSet getAllVertexIds(){
+		lock.readLock().lock();
+		try{
+			final BitSet ids = new BitSet();
+			ids.set(0, vertexHashes.size());
+			return ids;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public final BitSet getAllEdgeIds(){
+		lock.readLock().lock();
+		try{
+			final BitSet ids = new BitSet();
+			ids.set(0, edgeHashes.size());
+			return ids;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts a consistent read. Must be matched by a call to {@link #endRead()}.
+	 */
+	public final void beginRead(){
+		// The read lock cannot be upgraded so the index is only brought up to date by outermost reads
+		if(lock.getReadHoldCount() == 0){
+			rebuildIndexIfNeeded();
+		}
+		lock.readLock().lock();
+	}
+
+	public final void endRead(){
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Visits all edges which have an endpoint in the frontier.
+	 * If 'fromChild' then the frontier vertices are matched against the child (ancestor direction) otherwise
+	 * against the parent.
+	 */
+	public final void visitEdges(final BitSet frontier, final boolean fromChild, final EdgeVisitor visitor){
+		lock.readLock().lock();
+		try{
+			final int[] offsets = fromChild ? childOffsets : parentOffsets;
+			final int[] edges = fromChild ? childEdges : parentEdges;
+			for(int vertexId = frontier.nextSetBit(0); vertexId >= 0 && vertexId < indexedVertexCount;
+					vertexId = frontier.nextSetBit(vertexId + 1)){
+				for(int i = offsets[vertexId]; i < offsets[vertexId + 1]; i++){
+					final int edgeId = edges[i];
+					visitor.visit(edgeId, edgeChild[edgeId], edgeParent[edgeId]);
+				}
+			}
+			final int edgeCount = edgeHashes.size();
+			for(int edgeId = indexedEdgeCount; edgeId < edgeCount; edgeId++){
+				if(frontier.get(fromChild ? edgeChild[edgeId] : edgeParent[edgeId])){
+					visitor.visit(edgeId, edgeChild[edgeId], edgeParent[edgeId]);
+				}
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Visits the edges in the given set
+	 */
+	public final void visitEdges(final BitSet edgeIds, final EdgeVisitor visitor){
+		lock.readLock().lock();
+		try{
+			for(int edgeId = edgeIds.nextSetBit(0); edgeId >= 0 && edgeId < edgeHashes.size();
+					edgeId = edgeIds.nextSetBit(edgeId + 1)){
+				visitor.visit(edgeId, edgeChild[edgeId], edgeParent[edgeId]);
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	private boolean isRebuildNeeded(){
+		final int unindexedEdgeCount = edgeHashes.size() - indexedEdgeCount;
+		return unindexedEdgeCount >= Math.max(minimumUnindexedEdgesForRebuild, indexedEdgeCount / 4);
+	}
+
+	private void rebuildIndexIfNeeded(){
+		// Checked under the read lock first so that concurrent readers are not blocked in the common case
+		lock.readLock().lock();
+		try{
+			if(!isRebuildNeeded()){
+				return;
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try{
+			if(!isRebuildNeeded()){
+				return;
+			}
+			final int vertexCount = vertexHashes.size();
+			final int edgeCount = edgeHashes.size();
+			childOffsets = new int[vertexCount + 1];
+			parentOffsets = new int[vertexCount + 1];
+			childEdges = new int[edgeCount];
+			parentEdges = new int[edgeCount];
+			buildIndex(edgeChild, edgeCount, vertexCount, childOffsets, childEdges);
+			buildIndex(edgeParent, edgeCount, vertexCount, parentOffsets, parentEdges);
+			indexedEdgeCount = edgeCount;
+			indexedVertexCount = vertexCount;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static void buildIndex(final int[] endpoint, final int edgeCount, final int vertexCount,
+			final int[] offsets, final int[] edges){
+		for(int edgeId = 0; edgeId < edgeCount; edgeId++){
+			offsets[endpoint[edgeId] + 1]++;
+		}
+		for(int vertexId = 0; vertexId < vertexCount; vertexId++){
+			offsets[vertexId + 1] += offsets[vertexId];
+		}
+		final int[] next = Arrays.copyOf(offsets, vertexCount);
+		for(int edgeId = 0; edgeId < edgeCount; edgeId++){
+			edges[next[endpoint[edgeId]]++] = edgeId;
+		}
+	}
+}
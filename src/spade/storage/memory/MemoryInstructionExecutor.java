@@ -0,0 +1,1189 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.query.quickgrail.core.BatchIterator;
+import spade.query.quickgrail.core.EnvironmentVariableManager;
+import spade.query.quickgrail.core.GraphDescription;
+import spade.query.quickgrail.core.GraphStatistic;
+import spade.query.quickgrail.core.GraphStatistic.Interval;
+import spade.query.quickgrail.core.QueriedEdge;
+import spade.query.quickgrail.core.QueryInstructionExecutor;
+import spade.query.quickgrail.core.QuickGrailQueryResolver.PredicateOperator;
+import spade.query.quickgrail.entities.Graph;
+import spade.query.quickgrail.entities.GraphMetadata;
+import spade.query.quickgrail.instruction.DescribeGraph;
+import spade.query.quickgrail.instruction.DescribeGraph.ElementType;
+import spade.query.quickgrail.instruction.GetEdgeEndpoint;
+import spade.query.quickgrail.instruction.GetLineage;
+import spade.query.quickgrail.instruction.GetLineage.Direction;
+import spade.query.quickgrail.instruction.SetGraphMetadata;
+import spade.query.quickgrail.utility.PredicateCompiler;
+import spade.query.quickgrail.utility.ResultTable;
+import spade.storage.Memory;
+
+/**
+ * Executes QuickGrail instructions against the in-memory graph of the 'Memory' storage.
+ *
+ * The base graph is not materialized. It is all the vertices and edges present when an instruction starts.
+ * Each instruction reads the memory graph between 'beginRead' and 'endRead' so that it sees a consistent snapshot.
+ * Instructions which do not depend on each other are executed concurrently.
+ */
+public class MemoryInstructionExecutor extends QueryInstructionExecutor{
+
+	private final Memory storage;
+	private final MemoryGraph memoryGraph;
+	private final MemoryQueryEnvironment queryEnvironment;
+
+	public MemoryInstructionExecutor(final Memory storage, final MemoryGraph memoryGraph,
+			final MemoryQueryEnvironment queryEnvironment){
+		this.storage = storage;
+		this.memoryGraph = memoryGraph;
+		this.queryEnvironment = queryEnvironment;
+		if(this.queryEnvironment == null){
+			throw new IllegalArgumentException("NULL Query Environment");
+		}
+		if(this.storage == null){
+			throw new IllegalArgumentException("NULL storage");
+		}
+		if(this.memoryGraph == null){
+			throw new IllegalArgumentException("NULL memory graph");
+		}
+	}
+
+	@Override
+	public final MemoryQueryEnvironment getQueryEnvironment(){
+		return queryEnvironment;
+	}
+
+	@Override
+	public AbstractStorage getStorage(){
+		return storage;
+	}
+
+	@Override
+	public boolean supportsConcurrentInstructions(){
+		return true;
+	}
+
+	private final boolean isBaseGraph(final Graph graph){
+		return queryEnvironment.isBaseGraph(graph);
+	}
+
+	/**
+	 * Vertex ids of the graph. The returned bitset must not be modified.
+	 */
+	private final BitSet getVertexIds(final Graph graph){
+		return isBaseGraph(graph) ? memoryGraph.getAllVertexIds() : queryEnvironment.getVertexIds(graph);
+	}
+
+	/**
+	 * Edge ids of the graph. The returned bitset must not be modified.
+	 */
+	private final BitSet getEdgeIds(final Graph graph){
+		return isBaseGraph(graph) ? memoryGraph.getAllEdgeIds() : queryEnvironment.getEdgeIds(graph);
+	}
+
+	private final void addVertexIds(final Graph targetGraph, final BitSet ids){
+		queryEnvironment.getVertexIds(targetGraph).or(ids);
+	}
+
+	private final void addEdgeIds(final Graph targetGraph, final BitSet ids){
+		queryEnvironment.getEdgeIds(targetGraph).or(ids);
+	}
+
+	private static BitSet and(final BitSet a, final BitSet b){
+		final BitSet result = (BitSet)a.clone();
+		result.and(b);
+		return result;
+	}
+
+	private static BitSet andNot(final BitSet a, final BitSet b){
+		final BitSet result = (BitSet)a.clone();
+		result.andNot(b);
+		return result;
+	}
+
+	private static BitSet head(final BitSet ids, final int limit){
+		final BitSet result = new BitSet();
+		int count = 0;
+		for(int id = ids.nextSetBit(0); id >= 0 && count < limit; id = ids.nextSetBit(id + 1)){
+			result.set(id);
+			count++;
+		}
+		return result;
+	}
+
+	private final AnnotationColumns getAnnotationColumns(final ElementType elementType){
+		switch(elementType){
+			case VERTEX: return memoryGraph.getVertexAnnotationColumns();
+			case EDGE: return memoryGraph.getEdgeAnnotationColumns();
+			default: throw new RuntimeException("Unknown element type");
+		}
+	}
+
+	private final BitSet getElementIds(final Graph graph, final ElementType elementType){
+		switch(elementType){
+			case VERTEX: return getVertexIds(graph);
+			case EDGE: return getEdgeIds(graph);
+			default: throw new RuntimeException("Unknown element type");
+		}
+	}
+
+	/////////////////////////////////////
+	// Predicates. Evaluated once per distinct value using the column dictionary when that is cheaper.
+	/////////////////////////////////////
+
+	private static void filterColumn(final BitSet result, final BitSet subjectIds, final AnnotationColumns.Column column,
+			final Predicate<String> predicate){
+		if(subjectIds.cardinality() < column.getDictionarySize()){
+			for(int id = subjectIds.nextSetBit(0); id >= 0; id = subjectIds.nextSetBit(id + 1)){
+				final String value = column.get(id);
+				if(value != null && predicate.test(value)){
+					result.set(id);
+				}
+			}
+		}else{
+			final boolean[] matches = new boolean[column.getDictionarySize()];
+			for(int code = 0; code < matches.length; code++){
+				matches[code] = predicate.test(column.decode(code));
+			}
+			for(int id = subjectIds.nextSetBit(0); id >= 0; id = subjectIds.nextSetBit(id + 1)){
+				final int code = column.getCode(id);
+				if(code >= 0 && matches[code]){
+					result.set(id);
+				}
+			}
+		}
+	}
+
+	private static BitSet filter(final BitSet subjectIds, final AnnotationColumns columns, final String annotationKey,
+			final PredicateOperator operator, final String annotationValue){
+		final Predicate<String> predicate = PredicateCompiler.compileValuePredicate(operator, annotationValue);
+		final BitSet result = new BitSet();
+		if(annotationKey.equals("*")){
+			for(final String key : columns.getKeys()){
+				filterColumn(result, subjectIds, columns.getColumn(key), predicate);
+			}
+		}else{
+			final AnnotationColumns.Column column = columns.getColumn(annotationKey);
+			if(column != null){
+				filterColumn(result, subjectIds, column, predicate);
+			}
+		}
+		return result;
+	}
+
+	private static BitSet filterWhereAnnotationsExist(final BitSet subjectIds, final AnnotationColumns columns,
+			final List<String> annotationKeys){
+		final BitSet result = (BitSet)subjectIds.clone();
+		for(final String annotationKey : annotationKeys){
+			final AnnotationColumns.Column column = columns.getColumn(annotationKey);
+			if(column == null){
+				return new BitSet();
+			}
+			for(int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)){
+				if(column.getCode(id) < 0){
+					result.clear(id);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Dictionary codes of the given annotations joined as a string. Missing annotations are -1.
+	 */
+	private static String getCodesKey(final AnnotationColumns columns, final List<String> annotationKeys, final int id){
+		final StringBuilder key = new StringBuilder();
+		for(final String annotationKey : annotationKeys){
+			final AnnotationColumns.Column column = columns.getColumn(annotationKey);
+			key.append(column == null ? -1 : column.getCode(id)).append(',');
+		}
+		return key.toString();
+	}
+
+	@Override
+	public void insertLiteralEdge(Graph targetGraph, ArrayList<String> edges){
+		if(edges != null){
+			final BitSet ids = new BitSet();
+			for(final String hash : edges){
+				final int id = memoryGraph.getEdgeId(hash);
+				if(id >= 0){
+					ids.set(id);
+				}
+			}
+			addEdgeIds(targetGraph, ids);
+		}
+	}
+
+	@Override
+	public void insertLiteralVertex(Graph targetGraph, ArrayList<String> vertices){
+		if(vertices != null){
+			final BitSet ids = new BitSet();
+			for(final String hash : vertices){
+				final int id = memoryGraph.getVertexId(hash);
+				if(id >= 0){
+					ids.set(id);
+				}
+			}
+			addVertexIds(targetGraph, ids);
+		}
+	}
+
+	@Override
+	protected int upsertVertices(final Graph targetGraph, final List<AbstractVertex> vertices,
+			final List<String> unlinkedHashes){
+		int putCount = 0;
+		final BitSet ids = new BitSet();
+		for(final AbstractVertex vertex : vertices){
+			final String hash = vertex.bigHashCode();
+			final int existingId = memoryGraph.getVertexId(hash);
+			if((existingId < 0 || memoryGraph.isPlaceholderVertex(existingId)) && storage.putVertex(vertex)){
+				putCount++;
+			}
+			final int id = memoryGraph.getVertexId(hash);
+			if(id >= 0){
+				ids.set(id);
+			}
+		}
+		addVertexIds(targetGraph, ids);
+		return putCount;
+	}
+
+	@Override
+	protected int upsertEdges(final Graph targetGraph, final List<AbstractEdge> edges,
+			final List<String> unlinkedHashes){
+		int putCount = 0;
+		final BitSet ids = new BitSet();
+		for(final AbstractEdge edge : edges){
+			final String hash = edge.bigHashCode();
+			if(memoryGraph.getEdgeId(hash) < 0 && storage.putEdge(edge)){
+				putCount++;
+			}
+			final int id = memoryGraph.getEdgeId(hash);
+			if(id >= 0){
+				ids.set(id);
+			}
+		}
+		addEdgeIds(targetGraph, ids);
+		return putCount;
+	}
+
+	@Override
+	public void createEmptyGraph(Graph graph){
+		queryEnvironment.clearGraphIds(graph);
+	}
+
+	@Override
+	public void distinctifyGraph(Graph targetGraph, Graph sourceGraph){
+		unionGraph(targetGraph, sourceGraph);
+	}
+
+	@Override
+	public void getWhereAnnotationsExist(final Graph targetGraph, final Graph subjectGraph,
+			final ArrayList<String> annotationNames){
+		memoryGraph.beginRead();
+		try{
+			addVertexIds(targetGraph, filterWhereAnnotationsExist(getVertexIds(subjectGraph),
+					memoryGraph.getVertexAnnotationColumns(), annotationNames));
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getMatch(final Graph targetGraph, final Graph graph1, final Graph graph2,
+			final ArrayList<String> annotationKeys){
+		memoryGraph.beginRead();
+		try{
+			final AnnotationColumns columns = memoryGraph.getVertexAnnotationColumns();
+			final BitSet vertices1 = filterWhereAnnotationsExist(getVertexIds(graph1), columns, annotationKeys);
+			final BitSet vertices2 = filterWhereAnnotationsExist(getVertexIds(graph2), columns, annotationKeys);
+
+			final Map<String, BitSet> vertices1ByKey = new HashMap<String, BitSet>();
+			for(int id = vertices1.nextSetBit(0); id >= 0; id = vertices1.nextSetBit(id + 1)){
+				final String key = getCodesKey(columns, annotationKeys, id);
+				BitSet ids = vertices1ByKey.get(key);
+				if(ids == null){
+					ids = new BitSet();
+					vertices1ByKey.put(key, ids);
+				}
+				ids.set(id);
+			}
+
+			final BitSet result = new BitSet();
+			final Set<String> matchedKeys = new HashSet<String>();
+			for(int id = vertices2.nextSetBit(0); id >= 0; id = vertices2.nextSetBit(id + 1)){
+				final String key = getCodesKey(columns, annotationKeys, id);
+				if(vertices1ByKey.containsKey(key)){
+					result.set(id);
+					matchedKeys.add(key);
+				}
+			}
+			for(final String matchedKey : matchedKeys){
+				result.or(vertices1ByKey.get(matchedKey));
+			}
+			addVertexIds(targetGraph, result);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getVertex(Graph targetGraph, Graph subjectGraph, String annotationKey, PredicateOperator operator,
+			String annotationValue, final boolean hasArguments){
+		memoryGraph.beginRead();
+		try{
+			final BitSet subjectIds = getVertexIds(subjectGraph);
+			if(hasArguments){
+				addVertexIds(targetGraph, filter(subjectIds, memoryGraph.getVertexAnnotationColumns(),
+						annotationKey, operator, annotationValue));
+			}else{
+				addVertexIds(targetGraph, subjectIds);
+			}
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getEdge(Graph targetGraph, Graph subjectGraph, String annotationKey, PredicateOperator operator,
+			String annotationValue, final boolean hasArguments){
+		memoryGraph.beginRead();
+		try{
+			final BitSet subjectIds = getEdgeIds(subjectGraph);
+			if(hasArguments){
+				addEdgeIds(targetGraph, filter(subjectIds, memoryGraph.getEdgeAnnotationColumns(),
+						annotationKey, operator, annotationValue));
+			}else{
+				addEdgeIds(targetGraph, subjectIds);
+			}
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public ResultTable evaluateQuery(final String nativeQuery){
+		throw new RuntimeException("Native queries not supported by the in-memory storage");
+	}
+
+	@Override
+	public void collapseEdge(Graph targetGraph, Graph sourceGraph, ArrayList<String> fields){
+		memoryGraph.beginRead();
+		try{
+			final AnnotationColumns columns = memoryGraph.getEdgeAnnotationColumns();
+			final Set<String> seenKeys = new HashSet<String>();
+			final BitSet resultEdges = new BitSet();
+			// Edges are visited in ascending id order so the first edge of each group is kept
+			memoryGraph.visitEdges(getEdgeIds(sourceGraph), (edgeId, childId, parentId) -> {
+				final String key = childId + "," + parentId + "," + getCodesKey(columns, fields, edgeId);
+				if(seenKeys.add(key)){
+					resultEdges.set(edgeId);
+				}
+			});
+			addVertexIds(targetGraph, getVertexIds(sourceGraph));
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	private static BitSet getSubsetOrderedByHash(final BitSet ids, final List<String> hashes, final long fromInclusive,
+			final long toExclusive){
+		final Integer[] sortedIds = new Integer[ids.cardinality()];
+		int i = 0;
+		for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+			sortedIds[i++] = id;
+		}
+		final String[] hashById = hashes.toArray(new String[]{});
+		Arrays.sort(sortedIds, (a, b) -> hashById[a].compareTo(hashById[b]));
+		final BitSet result = new BitSet();
+		for(long j = Math.max(0, fromInclusive); j < Math.min(sortedIds.length, toExclusive); j++){
+			result.set(sortedIds[(int)j]);
+		}
+		return result;
+	}
+
+	@Override
+	public void getSubsetVertex(final Graph targetGraph, final Graph sourceGraph, final long fromInclusive,
+			final long toExclusive){
+		memoryGraph.beginRead();
+		try{
+			final BitSet ids = getVertexIds(sourceGraph);
+			final List<String> hashes = new ArrayList<String>();
+			final int vertexCount = memoryGraph.getVertexCount();
+			for(int id = 0; id < vertexCount; id++){
+				hashes.add(memoryGraph.getVertexHash(id));
+			}
+			addVertexIds(targetGraph, getSubsetOrderedByHash(ids, hashes, fromInclusive, toExclusive));
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getSubsetEdge(final Graph targetGraph, final Graph sourceGraph, final long fromInclusive,
+			final long toExclusive){
+		memoryGraph.beginRead();
+		try{
+			final BitSet ids = getEdgeIds(sourceGraph);
+			final List<String> hashes = new ArrayList<String>();
+			final int edgeCount = memoryGraph.getEdgeCount();
+			for(int id = 0; id < edgeCount; id++){
+				hashes.add(memoryGraph.getEdgeHash(id));
+			}
+			addEdgeIds(targetGraph, getSubsetOrderedByHash(ids, hashes, fromInclusive, toExclusive));
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getEdgeEndpoint(Graph targetGraph, Graph subjectGraph, GetEdgeEndpoint.Component component){
+		final boolean source = component.equals(GetEdgeEndpoint.Component.kSource)
+				|| component.equals(GetEdgeEndpoint.Component.kBoth);
+		final boolean destination = component.equals(GetEdgeEndpoint.Component.kDestination)
+				|| component.equals(GetEdgeEndpoint.Component.kBoth);
+		final BitSet endpoints = new BitSet();
+		memoryGraph.visitEdges(getEdgeIds(subjectGraph), (edgeId, childId, parentId) -> {
+			if(source){
+				endpoints.set(childId);
+			}
+			if(destination){
+				endpoints.set(parentId);
+			}
+		});
+		addVertexIds(targetGraph, endpoints);
+	}
+
+	@Override
+	public void intersectGraph(Graph outputGraph, Graph lhsGraph, Graph rhsGraph){
+		memoryGraph.beginRead();
+		try{
+			addVertexIds(outputGraph, and(getVertexIds(lhsGraph), getVertexIds(rhsGraph)));
+			addEdgeIds(outputGraph, and(getEdgeIds(lhsGraph), getEdgeIds(rhsGraph)));
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void limitGraph(Graph targetGraph, Graph sourceGraph, int limit){
+		memoryGraph.beginRead();
+		try{
+			addVertexIds(targetGraph, head(getVertexIds(sourceGraph), limit));
+			addEdgeIds(targetGraph, head(getEdgeIds(sourceGraph), limit));
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public GraphStatistic.Count getGraphCount(final Graph graph){
+		memoryGraph.beginRead();
+		try{
+			return new GraphStatistic.Count(getVertexIds(graph).cardinality(), getEdgeIds(graph).cardinality());
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	/////////////////////////////////////
+	// Statistics. Values that are not numbers are skipped for numeric statistics.
+	/////////////////////////////////////
+
+	private final List<Double> getNumericValues(final Graph graph, final ElementType elementType,
+			final String annotationKey){
+		final List<Double> values = new ArrayList<Double>();
+		memoryGraph.beginRead();
+		try{
+			final AnnotationColumns.Column column = getAnnotationColumns(elementType).getColumn(annotationKey);
+			if(column != null){
+				final BitSet ids = getElementIds(graph, elementType);
+				for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+					final String value = column.get(id);
+					if(value != null){
+						try{
+							values.add(Double.parseDouble(value.trim()));
+						}catch(NumberFormatException nfe){
+							// Skip
+						}
+					}
+				}
+			}
+		}finally{
+			memoryGraph.endRead();
+		}
+		return values;
+	}
+
+	@Override
+	public long getGraphStatisticSize(final Graph graph, final ElementType elementType, final String annotationKey){
+		memoryGraph.beginRead();
+		try{
+			final AnnotationColumns.Column column = getAnnotationColumns(elementType).getColumn(annotationKey);
+			if(column == null){
+				return 0;
+			}
+			long size = 0;
+			final BitSet ids = getElementIds(graph, elementType);
+			for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+				if(column.getCode(id) >= 0){
+					size++;
+				}
+			}
+			return size;
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public GraphStatistic.Distribution getGraphDistribution(final Graph graph, final ElementType elementType,
+			final String annotationKey, final Integer binCount){
+		final List<Double> values = getNumericValues(graph, elementType, annotationKey);
+		if(values.isEmpty()){
+			return new GraphStatistic.Distribution();
+		}
+
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for(final double value : values){
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		final double range = max - min + 1;
+		final double step = range / binCount;
+		final List<Interval> intervals = new ArrayList<Interval>();
+		double begin = min;
+		while(begin + step < max){
+			intervals.add(new Interval(begin, begin + step));
+			begin += step;
+		}
+		intervals.add(new Interval(begin, max));
+
+		final double[] counts = new double[intervals.size()];
+		for(final double value : values){
+			for(int i = 0; i < intervals.size(); i++){
+				final Interval interval = intervals.get(i);
+				final boolean last = i == intervals.size() - 1;
+				if(value >= interval.from && (value < interval.to || (last && value <= interval.to))){
+					counts[i]++;
+					break;
+				}
+			}
+		}
+
+		final SortedMap<Interval, Double> distribution = new TreeMap<>();
+		for(int i = 0; i < intervals.size(); i++){
+			distribution.put(intervals.get(i), counts[i]);
+		}
+		return new GraphStatistic.Distribution(distribution);
+	}
+
+	@Override
+	public GraphStatistic.StandardDeviation getGraphStandardDeviation(final Graph graph, final ElementType elementType,
+			final String annotationKey){
+		final List<Double> values = getNumericValues(graph, elementType, annotationKey);
+		if(values.isEmpty()){
+			return new GraphStatistic.StandardDeviation();
+		}
+		if(values.size() < 2){
+			return new GraphStatistic.StandardDeviation(0);
+		}
+		double sum = 0;
+		for(final double value : values){
+			sum += value;
+		}
+		final double mean = sum / values.size();
+		double squaredDifferences = 0;
+		for(final double value : values){
+			squaredDifferences += (value - mean) * (value - mean);
+		}
+		return new GraphStatistic.StandardDeviation(Math.sqrt(squaredDifferences / (values.size() - 1)));
+	}
+
+	@Override
+	public GraphStatistic.Mean getGraphMean(final Graph graph, final ElementType elementType, final String annotationKey){
+		final List<Double> values = getNumericValues(graph, elementType, annotationKey);
+		if(values.isEmpty()){
+			return new GraphStatistic.Mean();
+		}
+		double sum = 0;
+		for(final double value : values){
+			sum += value;
+		}
+		return new GraphStatistic.Mean(sum / values.size());
+	}
+
+	/**
+	 * Distinct value to count for the elements of the graph
+	 */
+	private final SortedMap<String, Long> getValueCounts(final Graph graph, final ElementType elementType,
+			final String annotationKey){
+		final SortedMap<String, Long> valueCounts = new TreeMap<String, Long>();
+		memoryGraph.beginRead();
+		try{
+			final AnnotationColumns.Column column = getAnnotationColumns(elementType).getColumn(annotationKey);
+			if(column != null){
+				final long[] codeCounts = new long[column.getDictionarySize()];
+				final BitSet ids = getElementIds(graph, elementType);
+				for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+					final int code = column.getCode(id);
+					if(code >= 0){
+						codeCounts[code]++;
+					}
+				}
+				for(int code = 0; code < codeCounts.length; code++){
+					if(codeCounts[code] > 0){
+						valueCounts.put(column.decode(code), codeCounts[code]);
+					}
+				}
+			}
+		}finally{
+			memoryGraph.endRead();
+		}
+		return valueCounts;
+	}
+
+	@Override
+	public GraphStatistic.Histogram getGraphHistogram(final Graph graph, final ElementType elementType, final String annotationKey){
+		final SortedMap<String, Long> valueCounts = getValueCounts(graph, elementType, annotationKey);
+		if(valueCounts.isEmpty()){
+			return new GraphStatistic.Histogram();
+		}
+		final SortedMap<String, Double> histogram = new TreeMap<>();
+		for(final Map.Entry<String, Long> entry : valueCounts.entrySet()){
+			histogram.put(entry.getKey(), entry.getValue().doubleValue());
+		}
+		return new GraphStatistic.Histogram(histogram);
+	}
+
+	@Override
+	public GraphDescription describeGraph(final DescribeGraph instruction){
+		if(instruction.graph == null){
+			throw new RuntimeException("NULL graph");
+		}
+		if(instruction.elementType == null){
+			throw new RuntimeException("NULL element type");
+		}
+		switch(instruction.elementType){
+			case VERTEX:
+			case EDGE:
+				break;
+			default: throw new RuntimeException("Unhandled element type: " + instruction.elementType);
+		}
+
+		if(instruction.all){
+			final List<String> annotations = new ArrayList<String>();
+			memoryGraph.beginRead();
+			try{
+				final AnnotationColumns columns = getAnnotationColumns(instruction.elementType);
+				final BitSet ids = getElementIds(instruction.graph, instruction.elementType);
+				for(final String key : columns.getKeys()){
+					if(instruction.limit != null && annotations.size() >= instruction.limit){
+						break;
+					}
+					final AnnotationColumns.Column column = columns.getColumn(key);
+					for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+						if(column.getCode(id) >= 0){
+							annotations.add(key);
+							break;
+						}
+					}
+				}
+			}finally{
+				memoryGraph.endRead();
+			}
+			final GraphDescription desc = new GraphDescription(instruction.elementType);
+			desc.addAnnotations(annotations);
+			return desc;
+		}else{
+			if(instruction.annotationName == null){
+				throw new RuntimeException("NULL annotation name");
+			}
+			if(instruction.descriptionType == null){
+				throw new RuntimeException("NULL annotation description type");
+			}
+
+			final SortedMap<String, Long> valueCounts = getValueCounts(instruction.graph, instruction.elementType,
+					instruction.annotationName);
+			final GraphDescription desc = new GraphDescription(instruction.elementType, instruction.annotationName,
+					instruction.descriptionType);
+			switch(instruction.descriptionType){
+				case COUNT:{
+					int added = 0;
+					for(final Map.Entry<String, Long> entry : valueCounts.entrySet()){
+						if(instruction.limit != null && added >= instruction.limit){
+							break;
+						}
+						desc.putValueToCount(entry.getKey(), entry.getValue());
+						added++;
+					}
+					return desc;
+				}
+				case MINMAX:{
+					if(valueCounts.isEmpty()){
+						desc.setMinMax(EnvironmentVariableManager.getUndefinedConstant(),
+								EnvironmentVariableManager.getUndefinedConstant());
+					}else{
+						desc.setMinMax(valueCounts.firstKey(), valueCounts.lastKey());
+					}
+					return desc;
+				}
+				default: throw new RuntimeException("Unhandled description type: " + instruction.descriptionType);
+			}
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, String>> exportVertices(final Graph targetGraph){
+		final Map<String, Map<String, String>> hashToVertexMap = new HashMap<String, Map<String, String>>();
+		memoryGraph.beginRead();
+		try{
+			final BitSet ids = getVertexIds(targetGraph);
+			for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+				hashToVertexMap.put(memoryGraph.getVertexHash(id), memoryGraph.getVertexAnnotations(id));
+			}
+		}finally{
+			memoryGraph.endRead();
+		}
+		return hashToVertexMap;
+	}
+
+	@Override
+	public Set<QueriedEdge> exportEdges(final Graph targetGraph){
+		final Set<QueriedEdge> edges = new HashSet<QueriedEdge>();
+		memoryGraph.beginRead();
+		try{
+			memoryGraph.visitEdges(getEdgeIds(targetGraph), (edgeId, childId, parentId) -> {
+				edges.add(new QueriedEdge(memoryGraph.getEdgeHash(edgeId), memoryGraph.getVertexHash(childId),
+						memoryGraph.getVertexHash(parentId), memoryGraph.getEdgeAnnotations(edgeId)));
+			});
+		}finally{
+			memoryGraph.endRead();
+		}
+		return edges;
+	}
+
+	@Override
+	public BatchIterator<Map<String, Map<String, String>>> exportVerticesInBatches(final Graph targetGraph,
+			final int batchSize){
+		final BitSet ids = copyIds(targetGraph, true);
+		return new BatchIterator<Map<String, Map<String, String>>>(batchSize){
+			private int nextId = ids.nextSetBit(0);
+
+			@Override
+			public Map<String, Map<String, String>> nextBatch(){
+				final Map<String, Map<String, String>> batch = new HashMap<String, Map<String, String>>();
+				memoryGraph.beginRead();
+				try{
+					for(; nextId >= 0 && batch.size() < batchSize; nextId = ids.nextSetBit(nextId + 1)){
+						batch.put(memoryGraph.getVertexHash(nextId), memoryGraph.getVertexAnnotations(nextId));
+					}
+				}finally{
+					memoryGraph.endRead();
+				}
+				return batch;
+			}
+
+			@Override
+			public boolean hasNextBatch(){
+				return nextId >= 0;
+			}
+		};
+	}
+
+	@Override
+	public BatchIterator<Set<QueriedEdge>> exportEdgesInBatches(final Graph targetGraph, final int batchSize){
+		final BitSet ids = copyIds(targetGraph, false);
+		return new BatchIterator<Set<QueriedEdge>>(batchSize){
+			private int nextId = ids.nextSetBit(0);
+
+			@Override
+			public Set<QueriedEdge> nextBatch(){
+				final Set<QueriedEdge> batch = new HashSet<QueriedEdge>();
+				memoryGraph.beginRead();
+				try{
+					for(; nextId >= 0 && batch.size() < batchSize; nextId = ids.nextSetBit(nextId + 1)){
+						batch.add(new QueriedEdge(memoryGraph.getEdgeHash(nextId),
+								memoryGraph.getVertexHash(memoryGraph.getEdgeChild(nextId)),
+								memoryGraph.getVertexHash(memoryGraph.getEdgeParent(nextId)),
+								memoryGraph.getEdgeAnnotations(nextId)));
+					}
+				}finally{
+					memoryGraph.endRead();
+				}
+				return batch;
+			}
+
+			@Override
+			public boolean hasNextBatch(){
+				return nextId >= 0;
+			}
+		};
+	}
+
+	/**
+	 * Snapshot of the ids so that the graph variable can change while a cursor is open
+	 */
+	private final BitSet copyIds(final Graph graph, final boolean vertices){
+		memoryGraph.beginRead();
+		try{
+			return (BitSet)(vertices ? getVertexIds(graph) : getEdgeIds(graph)).clone();
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void subtractGraph(Graph outputGraph, Graph minuendGraph, Graph subtrahendGraph, Graph.Component component){
+		memoryGraph.beginRead();
+		try{
+			if(component == null || component == Graph.Component.kVertex){
+				addVertexIds(outputGraph, andNot(getVertexIds(minuendGraph), getVertexIds(subtrahendGraph)));
+			}
+			if(component == null || component == Graph.Component.kEdge){
+				addEdgeIds(outputGraph, andNot(getEdgeIds(minuendGraph), getEdgeIds(subtrahendGraph)));
+			}
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void unionGraph(Graph targetGraph, Graph sourceGraph){
+		memoryGraph.beginRead();
+		try{
+			addVertexIds(targetGraph, getVertexIds(sourceGraph));
+			addEdgeIds(targetGraph, getEdgeIds(sourceGraph));
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	/////////////////////////////////////
+	// Traversal over the CSR adjacency. Must be called between 'beginRead' and 'endRead' on the memory graph.
+	/////////////////////////////////////
+
+	private static final class Reachable{
+		// Vertex id to the minimum number of hops from the start vertices. -1 if not reached
+		private final int[] depths;
+		private final BitSet vertices = new BitSet();
+		private final BitSet edges = new BitSet();
+
+		private Reachable(final int vertexCount){
+			this.depths = new int[vertexCount];
+			Arrays.fill(this.depths, -1);
+		}
+	}
+
+	/**
+	 * Breadth-first traversal from the start vertices in the subject graph upto the max depth.
+	 * If 'fromChild' then in the ancestor direction otherwise in the descendant direction.
+	 */
+	private final Reachable getReachable(final BitSet startVertices, final boolean fromChild, final int maxDepth,
+			final BitSet subjectVertices, final BitSet subjectEdges){
+		final Reachable reachable = new Reachable(memoryGraph.getVertexCount());
+		BitSet frontier = and(startVertices, subjectVertices);
+		for(int id = frontier.nextSetBit(0); id >= 0; id = frontier.nextSetBit(id + 1)){
+			reachable.depths[id] = 0;
+		}
+		reachable.vertices.or(frontier);
+		for(int depth = 0; depth < maxDepth && !frontier.isEmpty(); depth++){
+			final int nextDepth = depth + 1;
+			final BitSet next = new BitSet();
+			memoryGraph.visitEdges(frontier, fromChild, (edgeId, childId, parentId) -> {
+				final int otherId = fromChild ? parentId : childId;
+				if(!subjectEdges.get(edgeId) || !subjectVertices.get(otherId)){
+					return;
+				}
+				reachable.edges.set(edgeId);
+				if(reachable.depths[otherId] < 0){
+					reachable.depths[otherId] = nextDepth;
+					next.set(otherId);
+				}
+			});
+			reachable.vertices.or(next);
+			frontier = next;
+		}
+		return reachable;
+	}
+
+	/**
+	 * Breadth-first traversal against the edge direction (parent to child) from the destination vertices using
+	 * only the given edges. Returns the distance of each vertex to the destination. -1 if not reachable.
+	 */
+	private final int[] getDistancesTo(final BitSet destinationVertices, final BitSet edges, final int maxDepth){
+		final int[] distances = new int[memoryGraph.getVertexCount()];
+		Arrays.fill(distances, -1);
+		BitSet frontier = (BitSet)destinationVertices.clone();
+		for(int id = frontier.nextSetBit(0); id >= 0; id = frontier.nextSetBit(id + 1)){
+			distances[id] = 0;
+		}
+		for(int depth = 0; depth < maxDepth && !frontier.isEmpty(); depth++){
+			final int nextDepth = depth + 1;
+			final BitSet next = new BitSet();
+			memoryGraph.visitEdges(frontier, false, (edgeId, childId, parentId) -> {
+				if(edges.get(edgeId) && distances[childId] < 0){
+					distances[childId] = nextDepth;
+					next.set(childId);
+				}
+			});
+			frontier = next;
+		}
+		return distances;
+	}
+
+	@Override
+	public void getAdjacentVertex(Graph targetGraph, Graph subjectGraph, Graph sourceGraph, GetLineage.Direction direction){
+		memoryGraph.beginRead();
+		try{
+			final BitSet subjectVertices = getVertexIds(subjectGraph);
+			final BitSet subjectEdges = getEdgeIds(subjectGraph);
+			final BitSet sourceVertices = and(getVertexIds(sourceGraph), subjectVertices);
+
+			final BitSet resultVertices = new BitSet();
+			final BitSet resultEdges = new BitSet();
+			for(final boolean fromChild : new boolean[]{true, false}){
+				if(fromChild && !(direction.equals(Direction.kAncestor) || direction.equals(Direction.kBoth))){
+					continue;
+				}
+				if(!fromChild && !(direction.equals(Direction.kDescendant) || direction.equals(Direction.kBoth))){
+					continue;
+				}
+				memoryGraph.visitEdges(sourceVertices, fromChild, (edgeId, childId, parentId) -> {
+					if(subjectEdges.get(edgeId) && subjectVertices.get(childId) && subjectVertices.get(parentId)){
+						resultEdges.set(edgeId);
+						resultVertices.set(childId);
+						resultVertices.set(parentId);
+					}
+				});
+			}
+			addVertexIds(targetGraph, resultVertices);
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getLineage(Graph targetGraph, Graph subjectGraph, Graph startGraph, int depth, Direction direction){
+		memoryGraph.beginRead();
+		try{
+			final BitSet subjectVertices = getVertexIds(subjectGraph);
+			final BitSet subjectEdges = getEdgeIds(subjectGraph);
+			final BitSet startVertices = getVertexIds(startGraph);
+
+			final BitSet resultVertices = new BitSet();
+			final BitSet resultEdges = new BitSet();
+			if(direction.equals(Direction.kAncestor) || direction.equals(Direction.kBoth)){
+				final Reachable reachable = getReachable(startVertices, true, depth, subjectVertices, subjectEdges);
+				resultVertices.or(reachable.vertices);
+				resultEdges.or(reachable.edges);
+			}
+			if(direction.equals(Direction.kDescendant) || direction.equals(Direction.kBoth)){
+				final Reachable reachable = getReachable(startVertices, false, depth, subjectVertices, subjectEdges);
+				resultVertices.or(reachable.vertices);
+				resultEdges.or(reachable.edges);
+			}
+			addVertexIds(targetGraph, resultVertices);
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	/**
+	 * Vertices and edges on any path (of length upto max depth) from the source to the destination.
+	 * A vertex is included if its distance from the source plus its distance to the destination is within max depth.
+	 */
+	private final void getPathsFromSourceToDestination(final BitSet resultVertices, final BitSet resultEdges,
+			final Graph subjectGraph, final Graph srcGraph, final Graph dstGraph, final int maxDepth){
+		final Reachable reachable = getReachable(getVertexIds(srcGraph), true, maxDepth,
+				getVertexIds(subjectGraph), getEdgeIds(subjectGraph));
+		final BitSet reachedDestinations = and(getVertexIds(dstGraph), reachable.vertices);
+		if(reachedDestinations.isEmpty()){
+			return;
+		}
+
+		final int[] distancesToDestination = getDistancesTo(reachedDestinations, reachable.edges, maxDepth);
+		for(int id = reachable.vertices.nextSetBit(0); id >= 0; id = reachable.vertices.nextSetBit(id + 1)){
+			if(distancesToDestination[id] >= 0 && reachable.depths[id] + distancesToDestination[id] <= maxDepth){
+				resultVertices.set(id);
+			}
+		}
+		memoryGraph.visitEdges(reachable.edges, (edgeId, childId, parentId) -> {
+			final int distanceFromSource = reachable.depths[childId];
+			final int distanceToDestination = distancesToDestination[parentId];
+			if(distanceFromSource >= 0 && distanceToDestination >= 0
+					&& distanceFromSource + 1 + distanceToDestination <= maxDepth){
+				resultEdges.set(edgeId);
+			}
+		});
+	}
+
+	@Override
+	public void getSimplePath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
+		memoryGraph.beginRead();
+		try{
+			final BitSet resultVertices = new BitSet();
+			final BitSet resultEdges = new BitSet();
+			getPathsFromSourceToDestination(resultVertices, resultEdges, subjectGraph, srcGraph, dstGraph, maxDepth);
+			addVertexIds(targetGraph, resultVertices);
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getLink(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
+		memoryGraph.beginRead();
+		try{
+			final BitSet resultVertices = new BitSet();
+			final BitSet resultEdges = new BitSet();
+			getPathsFromSourceToDestination(resultVertices, resultEdges, subjectGraph, srcGraph, dstGraph, maxDepth);
+			getPathsFromSourceToDestination(resultVertices, resultEdges, subjectGraph, dstGraph, srcGraph, maxDepth);
+			addVertexIds(targetGraph, resultVertices);
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	/**
+	 * One shortest path for each pair of source and destination vertices.
+	 * Ties are broken by picking the edge with the smallest id.
+	 */
+	@Override
+	public void getShortestPath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
+		memoryGraph.beginRead();
+		try{
+			final BitSet subjectVertices = getVertexIds(subjectGraph);
+			final BitSet sourceVertices = and(getVertexIds(srcGraph), subjectVertices);
+			final Reachable reachable = getReachable(sourceVertices, true, maxDepth, subjectVertices,
+					getEdgeIds(subjectGraph));
+			final BitSet reachedDestinations = and(getVertexIds(dstGraph), reachable.vertices);
+
+			final BitSet resultVertices = new BitSet();
+			final BitSet resultEdges = new BitSet();
+			for(int destinationId = reachedDestinations.nextSetBit(0); destinationId >= 0;
+					destinationId = reachedDestinations.nextSetBit(destinationId + 1)){
+				final BitSet destination = new BitSet();
+				destination.set(destinationId);
+				final int[] distances = getDistancesTo(destination, reachable.edges, maxDepth);
+				for(int sourceId = sourceVertices.nextSetBit(0); sourceId >= 0; sourceId = sourceVertices.nextSetBit(sourceId + 1)){
+					if(distances[sourceId] < 0){
+						continue;
+					}
+					final BitSet current = new BitSet();
+					current.set(sourceId);
+					resultVertices.set(sourceId);
+					for(int distance = distances[sourceId]; distance > 0; distance--){
+						final int expectedDistance = distance - 1;
+						final int[] chosenEdge = new int[]{-1, -1};
+						memoryGraph.visitEdges(current, true, (edgeId, childId, parentId) -> {
+							if(reachable.edges.get(edgeId) && distances[parentId] == expectedDistance
+									&& (chosenEdge[0] < 0 || edgeId < chosenEdge[0])){
+								chosenEdge[0] = edgeId;
+								chosenEdge[1] = parentId;
+							}
+						});
+						if(chosenEdge[0] < 0){
+							break;
+						}
+						resultEdges.set(chosenEdge[0]);
+						resultVertices.set(chosenEdge[1]);
+						current.clear();
+						current.set(chosenEdge[1]);
+					}
+				}
+			}
+			addVertexIds(targetGraph, resultVertices);
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void getSubgraph(Graph targetGraph, Graph subjectGraph, Graph skeletonGraph){
+		memoryGraph.beginRead();
+		try{
+			final BitSet subjectVertices = getVertexIds(subjectGraph);
+			final BitSet subjectEdges = getEdgeIds(subjectGraph);
+
+			final BitSet resultVertices = and(getVertexIds(skeletonGraph), subjectVertices);
+			memoryGraph.visitEdges(getEdgeIds(skeletonGraph), (edgeId, childId, parentId) -> {
+				if(subjectVertices.get(childId)){
+					resultVertices.set(childId);
+				}
+				if(subjectVertices.get(parentId)){
+					resultVertices.set(parentId);
+				}
+			});
+			addVertexIds(targetGraph, resultVertices);
+
+			final BitSet targetVertices = getVertexIds(targetGraph);
+			final BitSet resultEdges = new BitSet();
+			memoryGraph.visitEdges(targetVertices, true, (edgeId, childId, parentId) -> {
+				if(targetVertices.get(parentId) && subjectEdges.get(edgeId)){
+					resultEdges.set(edgeId);
+				}
+			});
+			addEdgeIds(targetGraph, resultEdges);
+		}finally{
+			memoryGraph.endRead();
+		}
+	}
+
+	@Override
+	public void createEmptyGraphMetadata(GraphMetadata metadata){
+	}
+
+	@Override
+	public void overwriteGraphMetadata(GraphMetadata targetMetadata, GraphMetadata lhsMetadata,
+			GraphMetadata rhsMetadata){
+	}
+
+	@Override
+	public void setGraphMetadata(GraphMetadata targetMetadata, SetGraphMetadata.Component component, Graph sourceGraph, String name,
+			String value){
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.memory;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import spade.query.quickgrail.core.AbstractQueryEnvironment;
+import spade.query.quickgrail.entities.Graph;
+
+/**
+ * Graph variables are bitsets of the vertex and edge ids in the memory graph.
+ * Nothing is persisted. All symbols live for the lifetime of the storage.
+ */
+public class MemoryQueryEnvironment extends AbstractQueryEnvironment{
+
+	private int idCounter = 0;
+
+	private final Map<String, BitSet> graphVertexIds = new HashMap<String, BitSet>();
+	private final Map<String, BitSet> graphEdgeIds = new HashMap<String, BitSet>();
+
+	public MemoryQueryEnvironment(final String baseGraphName){
+		super(baseGraphName);
+	}
+
+	@Override
+	public void createSymbolStorageIfNotPresent(){}
+
+	@Override
+	public void deleteSymbolStorageIfPresent(){}
+
+	@Override
+	public synchronized int readIdCount(){
+		return idCounter;
+	}
+
+	@Override
+	public Map<String, Graph> readGraphSymbols(){
+		return new HashMap<String, Graph>();
+	}
+
+	@Override
+	public void readRemoteSymbols(final Graph graph){}
+
+	@Override
+	public Map<String, String> readMetadataSymbols(){
+		return new HashMap<String, String>();
+	}
+
+	@Override
+	public Map<String, String> readPredicateSymbols(){
+		return new HashMap<String, String>();
+	}
+
+	@Override
+	public synchronized void saveIdCounter(final int idCounter){
+		this.idCounter = idCounter;
+	}
+
+	@Override
+	public void saveGraphSymbol(final String symbol, final String graphName, final boolean symbolNameWasPresent){}
+
+	@Override
+	public void saveRemoteSymbol(final Graph graph, final Graph.Remote remote){}
+
+	@Override
+	public void saveMetadataSymbol(final String symbol, final String metadataName, final boolean symbolNameWasPresent){}
+
+	@Override
+	public void savePredicateSymbol(final String symbol, final String predicate, final boolean symbolNameWasPresent){}
+
+	@Override
+	public void deleteGraphSymbol(final String symbol){}
+
+	@Override
+	public void deleteRemoteSymbol(final Graph graph, final Graph.Remote remote){}
+
+	@Override
+	public void deleteRemoteSymbols(final Graph graph){}
+
+	@Override
+	public void deleteMetadataSymbol(final String symbol){}
+
+	@Override
+	public void deletePredicateSymbol(final String symbol){}
+
+	private final void mustNotBeBaseGraph(final Graph graph){
+		if(isBaseGraph(graph)){
+			throw new RuntimeException("Base graph is not materialized as ids");
+		}
+	}
+
+	/**
+	 * Returns the live vertex id set of the graph variable. Created (empty) if not present.
+	 */
+	public final synchronized BitSet getVertexIds(final Graph graph){
+		mustNotBeBaseGraph(graph);
+		BitSet ids = graphVertexIds.get(graph.name);
+		if(ids == null){
+			ids = new BitSet();
+			graphVertexIds.put(graph.name, ids);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the live edge id set of the graph variable. Created (empty) if not present.
+	 */
+	public final synchronized BitSet getEdgeIds(final Graph graph){
+		mustNotBeBaseGraph(graph);
+		BitSet ids = graphEdgeIds.get(graph.name);
+		if(ids == null){
+			ids = new BitSet();
+			graphEdgeIds.put(graph.name, ids);
+		}
+		return ids;
+	}
+
+	public final synchronized void clearGraphIds(final Graph graph){
+		mustNotBeBaseGraph(graph);
+		graphVertexIds.put(graph.name, new BitSet());
+		graphEdgeIds.put(graph.name, new BitSet());
+	}
+
+	@Override
+	public final void doGarbageCollection(){
+		final Set<String> referencedGraphNames = new HashSet<String>(getCurrentGraphSymbolsStringMap().values());
+		synchronized(this){
+			graphVertexIds.keySet().retainAll(referencedGraphNames);
+			graphEdgeIds.keySet().retainAll(referencedGraphNames);
+		}
+	}
+}
@@ -20,14 +20,22 @@
 package spade.storage.neo4j;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.query.quickgrail.core.BatchIterator;
 import spade.query.quickgrail.core.EnvironmentVariableManager;
 import spade.query.quickgrail.core.GraphDescription;
 import spade.query.quickgrail.core.GraphStatistic;
@@ -49,6 +57,7 @@ import spade.query.quickgrail.utility.ResultTable;
 import spade.query.quickgrail.utility.Schema;
 import spade.storage.Neo4j;
 import spade.utility.HelperFunctions;
+import spade.utility.IdBitmap;
 
 public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 
@@ -82,21 +91,108 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 		return storage;
 	}
 
+	private final boolean isBaseGraph(final Graph graph){
+		return neo4jQueryEnvironment.isBaseGraph(graph);
+	}
+
+	private final String getBaseLabel(){
+		return neo4jQueryEnvironment.getBaseGraph().name;
+	}
+
+	/**
+	 * Returns NULL for the base graph which means 'all'
+	 */
+	private final IdBitmap getVertexIdsOrNullIfBase(final Graph graph){
+		return isBaseGraph(graph) ? null : neo4jQueryEnvironment.getVertexIds(graph);
+	}
+
+	/**
+	 * Returns NULL for the base graph which means 'all'
+	 */
+	private final IdBitmap getEdgeIdsOrNullIfBase(final Graph graph){
+		return isBaseGraph(graph) ? null : neo4jQueryEnvironment.getEdgeIds(graph);
+	}
+
+	private static boolean isMember(final IdBitmap idsOrNullIfAll, final long id){
+		return idsOrNullIfAll == null || idsOrNullIfAll.contains(id);
+	}
+
+	/**
+	 * Vertex ids of the graph. The returned bitmap must not be modified.
+	 */
+	private final IdBitmap getVertexIds(final Graph graph){
+		if(isBaseGraph(graph)){
+			return readIds("match (v:" + getBaseLabel() + ") return id(v) as id;", new HashMap<String, Object>(), "id");
+		}
+		return neo4jQueryEnvironment.getVertexIds(graph);
+	}
+
+	/**
+	 * Edge ids of the graph. The returned bitmap must not be modified.
+	 */
+	private final IdBitmap getEdgeIds(final Graph graph){
+		if(isBaseGraph(graph)){
+			return readIds("match ()-[e]->() return id(e) as id;", new HashMap<String, Object>(), "id");
+		}
+		return neo4jQueryEnvironment.getEdgeIds(graph);
+	}
+
+	private final void addVertexIds(final Graph targetGraph, final IdBitmap ids){
+		neo4jQueryEnvironment.getVertexIds(targetGraph).or(ids);
+	}
+
+	private final void addEdgeIds(final Graph targetGraph, final IdBitmap ids){
+		neo4jQueryEnvironment.getEdgeIds(targetGraph).or(ids);
+	}
+
+	private final IdBitmap readIds(final String query, final Map<String, Object> parameters, final String... columnNames){
+		final IdBitmap ids = new IdBitmap();
+		for(final long[] row : storage.readIdRows(query, parameters, columnNames)){
+			for(final long id : row){
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns a cypher predicate restricting the node alias to the graph. Parameter added to the map if needed.
+	 */
+	private final String buildVertexRestriction(final String vertexAlias, final Graph graph,
+			final Map<String, Object> parameters){
+		if(isBaseGraph(graph)){
+			return vertexAlias + ":" + getBaseLabel();
+		}else{
+			final String parameterName = "ids_" + vertexAlias;
+			parameters.put(parameterName, neo4jQueryEnvironment.getVertexIds(graph).toList());
+			return "id(" + vertexAlias + ") in $" + parameterName;
+		}
+	}
+
+	/**
+	 * Returns a cypher predicate restricting the relationship alias to the graph. Parameter added to the map if needed.
+	 */
+	private final String buildEdgeRestriction(final String edgeAlias, final Graph graph,
+			final Map<String, Object> parameters){
+		if(isBaseGraph(graph)){
+			return "true";
+		}else{
+			final String parameterName = "ids_" + edgeAlias;
+			parameters.put(parameterName, neo4jQueryEnvironment.getEdgeIds(graph).toList());
+			return "id(" + edgeAlias + ") in $" + parameterName;
+		}
+	}
+
 	@Override
 	public void insertLiteralEdge(Graph targetGraph, ArrayList<String> edges){
 		List<String> hashes = edges;
 		if(hashes == null || hashes.isEmpty()){
 			// Empty graph already
 		}else{
-			String query = "match ()-[e]->() where ";
-			String whereClause = "";
-			for(String hash : hashes){
-				whereClause += "e.`"+hashKey+"`='" + hash + "' or ";
-			}
-			whereClause = whereClause.substring(0, whereClause.length() - 3);
-			query += whereClause;
-			query += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-	 		storage.executeQuery(query);
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			parameters.put("hashes", hashes);
+			final String query = "match ()-[e]->() where e.`" + hashKey + "` in $hashes return id(e) as id;";
+			addEdgeIds(targetGraph, readIds(query, parameters, "id"));
 		}
 	}
 
@@ -106,22 +202,36 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 		if(hashes == null || hashes.isEmpty()){
 			// Empty graph already
 		}else{
-			String query = "match (v) where ";
-			String whereClause = "";
-			for(String hash : hashes){
-				whereClause += "v.`"+hashKey+"`='" + hash + "' or ";
-			}
-			whereClause = whereClause.substring(0, whereClause.length() - 3);
-			query += whereClause;
-			query += " set v:" + targetGraph.name + ";";
-	 		storage.executeQuery(query);
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			parameters.put("hashes", hashes);
+			final String query = "match (v:" + getBaseLabel() + ") where v.`" + hashKey + "` in $hashes return id(v) as id;";
+			addVertexIds(targetGraph, readIds(query, parameters, "id"));
 		}
 	}
 
+	@Override
+	protected int upsertVertices(final Graph targetGraph, final List<AbstractVertex> vertices,
+			final List<String> unlinkedHashes){
+		final TaskUpsertGraph.Result result = storage.upsertGraph(vertices, Collections.<AbstractEdge>emptyList());
+		final IdBitmap ids = new IdBitmap();
+		ids.addAll(result.vertexIds);
+		addVertexIds(targetGraph, ids);
+		return result.putVertices.size();
+	}
+
+	@Override
+	protected int upsertEdges(final Graph targetGraph, final List<AbstractEdge> edges,
+			final List<String> unlinkedHashes){
+		final TaskUpsertGraph.Result result = storage.upsertGraph(Collections.<AbstractVertex>emptyList(), edges);
+		final IdBitmap ids = new IdBitmap();
+		ids.addAll(result.edgeIds);
+		addEdgeIds(targetGraph, ids);
+		return result.putEdges.size();
+	}
+
 	@Override
 	public void createEmptyGraph(Graph graph){
-		neo4jQueryEnvironment.dropVertexLabels(graph.name);
-		neo4jQueryEnvironment.dropEdgeSymbol(graph.name);
+		neo4jQueryEnvironment.clearGraphIds(graph);
 	}
 
 	@Override
@@ -132,21 +242,17 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 	@Override
 	public void getWhereAnnotationsExist(final Graph targetGraph, final Graph subjectGraph,
 			final ArrayList<String> annotationNames){
+		final Map<String, Object> parameters = new HashMap<String, Object>();
 		String query = "";
-		query += "match (v:"+subjectGraph.name+") where ";
+		query += "match (v) where " + buildVertexRestriction("v", subjectGraph, parameters);
 		final ArrayList<String> annotationKeys = annotationNames;
 		
 		for(int i = 0; i < annotationKeys.size(); i++){
 			final String annotationKey = annotationKeys.get(i);
-			query += "exists(v.`" + annotationKey + "`)";
-			if(i == annotationKeys.size() - 1){ // is last
-				// don't append the 'and'
-			}else{
-				query += " and ";
-			}
+			query += " and exists(v.`" + annotationKey + "`)";
 		}
-		query += " set v:" + targetGraph.name + ";";
- 		storage.executeQuery(query);
+		query += " return id(v) as id;";
+		addVertexIds(targetGraph, readIds(query, parameters, "id"));
 	}
 
 	@Override
@@ -157,24 +263,21 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 		final Graph g2 = createNewGraph();
 		getWhereAnnotationsExist(g2, graph2 , annotationKeys);
 
+		final Map<String, Object> parameters = new HashMap<String, Object>();
 		String query = "";
-		query += "match (a:" + g1.name + "), (b:" + g2.name + ") where ";
+		query += "match (a), (b) where " + buildVertexRestriction("a", g1, parameters) 
+				+ " and " + buildVertexRestriction("b", g2, parameters);
 
 		for(int i = 0; i < annotationKeys.size(); i++){
 			final String annotationKey = annotationKeys.get(i);
+			query += " and ";
 			query += "(";
 			query += "(a.`" + annotationKey + "` = b.`" + annotationKey + "`)";
 			//query += " or (not exists(a.`" + annotationKey + "`) and not exists(b.`" + annotationKey + "`))";
 			query += ")";
-			if(i == annotationKeys.size() - 1){ // is last
-				// don't append the 'and'
-			}else{
-				query += " and ";
-			}
 		}
-		query += " set a:" + targetGraph.name;
-		query += " set b:" + targetGraph.name + ";";
- 		storage.executeQuery(query);
+		query += " return distinct id(a) as a, id(b) as b;";
+		addVertexIds(targetGraph, readIds(query, parameters, "a", "b"));
 	}
 
 	private String buildComparison(
@@ -228,17 +331,18 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 	@Override
 	public void getVertex(Graph targetGraph, Graph subjectGraph, String annotationKey, PredicateOperator operator,
 			String annotationValue, final boolean hasArguments){
+		final Map<String, Object> parameters = new HashMap<String, Object>();
 		String query = "";
-		query += "match (v:" + subjectGraph.name + ")";
+		query += "match (v) where " + buildVertexRestriction("v", subjectGraph, parameters);
 		if(hasArguments){
 			if(annotationKey.equals("*")){
-				query += " where " + buildWildCardComparison("v", operator, annotationValue);	
+				query += " and " + buildWildCardComparison("v", operator, annotationValue);	
 			}else{
-				query += " where v." + buildComparison(annotationKey, operator, annotationValue);
+				query += " and v." + buildComparison(annotationKey, operator, annotationValue);
 			}
 		}
-		query += " set v:" + targetGraph.name + ";";
- 		storage.executeQuery(query);
+		query += " return id(v) as id;";
+		addVertexIds(targetGraph, readIds(query, parameters, "id"));
 	}
 
 	@Override
@@ -274,17 +378,14 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 		return table;
 	}
 
-	private String buildSubqueryForUpdatingEdgeSymbols(String edgeAlias, String targetGraphName){
-		final String edgeProperty = edgeAlias + ".`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		targetGraphName = "'," + targetGraphName + ",'";
-		String query = "set " + edgeProperty + " = "
-				+ "case "
-				+ "when not exists(" + edgeProperty + ") then " + targetGraphName + " " // set
-				+ "when " + edgeProperty + " contains " + targetGraphName + " then " + edgeProperty + " " // leave as is
-				+ "else " + edgeProperty + " + " + targetGraphName + " end"; // append
-		return query;
+	private final String buildMatchVertices(final String vertexAlias, final Graph graph, final Map<String, Object> parameters){
+		return "match (" + vertexAlias + ") where " + buildVertexRestriction(vertexAlias, graph, parameters) + " ";
 	}
-	
+
+	private final String buildMatchEdges(final String edgeAlias, final Graph graph, final Map<String, Object> parameters){
+		return "match ()-[" + edgeAlias + "]->() where " + buildEdgeRestriction(edgeAlias, graph, parameters) + " ";
+	}
+
 	@Override
 	public void collapseEdge(Graph targetGraph, Graph sourceGraph, ArrayList<String> fields){		
 		String fieldsString = "";
@@ -292,201 +393,163 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 		for(String field : fields){
 			fieldsString += "e0.`" + field + "` as x" + (xxx++) + " , ";
 		}
-		
-		String vertexQuery = "match (v:" + sourceGraph.name + ") set v:" + targetGraph.name + ";";
-		
-		final String edgeProperty = "e0.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match (x)-[e0]->(y) ";
-		if(!neo4jQueryEnvironment.isBaseGraph(sourceGraph)){
-			query += "where " + edgeProperty + " contains ',"+sourceGraph.name+",'";
-		}
-		query += " with distinct x as src, y as dst, " + fieldsString + " min(e0) as e ";
-		query += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-				
-		storage.executeQuery(vertexQuery);
-		storage.executeQuery(query);
+
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		String query = "match (x)-[e0]->(y) where " + buildEdgeRestriction("e0", sourceGraph, parameters);
+		query += " with x as src, y as dst, " + fieldsString + " min(id(e0)) as e ";
+		query += " return e;";
+
+		addVertexIds(targetGraph, getVertexIds(sourceGraph));
+		addEdgeIds(targetGraph, readIds(query, parameters, "e"));
 	}
 	
 	@Override
 	public void getSubsetVertex(final Graph targetGraph, final Graph sourceGraph, final long fromInclusive,
 			final long toExclusive){
-		final String query = "match (v:" + sourceGraph.name + ") with v order by v.`" + hashKey
-				+ "` asc with collect(v)[" + fromInclusive + ".." + toExclusive
-				+ "] as vlist unwind vlist as vref set vref:" + targetGraph.name
-				+ ";";
-		storage.executeQuery(query);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = buildMatchVertices("v", sourceGraph, parameters) 
+				+ "with v order by v.`" + hashKey + "` asc "
+				+ "skip " + fromInclusive + " limit " + Math.max(0, toExclusive - fromInclusive) + " "
+				+ "return id(v) as id;";
+		addVertexIds(targetGraph, readIds(query, parameters, "id"));
 	}
 
 	@Override
 	public void getSubsetEdge(final Graph targetGraph, final Graph sourceGraph, final long fromInclusive,
 			final long toExclusive){
-		final String edgeProperty = "e0.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-		String query = "match ()-[e0]->() ";
-		if(!neo4jQueryEnvironment.isBaseGraph(sourceGraph)){
-			query += "where " + edgeProperty + " contains '," + sourceGraph.name + ",' ";
-		}
-		query += "with e0 order by e0.`" + hashKey + "` asc with collect(e0)[" + fromInclusive + ".." + toExclusive + "] " + 
-				"as e0list unwind e0list as e ";
-		query += buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-		storage.executeQuery(query);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = buildMatchEdges("e", sourceGraph, parameters) 
+				+ "with e order by e.`" + hashKey + "` asc "
+				+ "skip " + fromInclusive + " limit " + Math.max(0, toExclusive - fromInclusive) + " "
+				+ "return id(e) as id;";
+		addEdgeIds(targetGraph, readIds(query, parameters, "id"));
 	}
 
 	@Override
 	public void getEdge(Graph targetGraph, Graph subjectGraph, String annotationKey, PredicateOperator operator,
 			String annotationValue, final boolean hasArguments){
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "";
-		query += "match ()-[e]->() ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += "where " + edgeProperty + " contains ',"+subjectGraph.name+",' ";
-			if(hasArguments){
-				if(annotationKey.equals("*")){
-					query += " where " + buildWildCardComparison("v", operator, annotationValue);	
-				}else{
-					query += "and e." + buildComparison(annotationKey, operator, annotationValue);
-				}
-			}
-		}else{
-			if(hasArguments){
-				if(annotationKey.equals("*")){
-					query += " where " + buildWildCardComparison("v", operator, annotationValue);	
-				}else{
-					query += "where e." + buildComparison(annotationKey, operator, annotationValue);
-				}
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		String query = buildMatchEdges("e", subjectGraph, parameters);
+		if(hasArguments){
+			if(annotationKey.equals("*")){
+				query += "and " + buildWildCardComparison("e", operator, annotationValue);
+			}else{
+				query += "and e." + buildComparison(annotationKey, operator, annotationValue);
 			}
 		}
-		query += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-		
-		storage.executeQuery(query);
+		query += " return id(e) as id;";
+		addEdgeIds(targetGraph, readIds(query, parameters, "id"));
 	}
 
 	@Override
 	public void getEdgeEndpoint(Graph targetGraph, Graph subjectGraph, Component component){
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "";
-		query += "match (a)-[e]->(b) ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += "where " + edgeProperty + " contains ',"+subjectGraph.name+",' ";
-		}
-		if(component.equals(GetEdgeEndpoint.Component.kSource)
-				|| component.equals(GetEdgeEndpoint.Component.kBoth)){
-			query += "set a:" + targetGraph.name + " ";
-		}
-		if(component.equals(GetEdgeEndpoint.Component.kDestination)
-				|| component.equals(GetEdgeEndpoint.Component.kBoth)){
-			query += "set b:" + targetGraph.name + " ";
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = "match (a)-[e]->(b) where " + buildEdgeRestriction("e", subjectGraph, parameters) 
+				+ " return id(a) as a, id(b) as b;";
+		final boolean source = component.equals(GetEdgeEndpoint.Component.kSource)
+				|| component.equals(GetEdgeEndpoint.Component.kBoth);
+		final boolean destination = component.equals(GetEdgeEndpoint.Component.kDestination)
+				|| component.equals(GetEdgeEndpoint.Component.kBoth);
+		final IdBitmap endpoints = new IdBitmap();
+		for(final long[] row : storage.readIdRows(query, parameters, "a", "b")){
+			if(source){
+				endpoints.add(row[0]);
+			}
+			if(destination){
+				endpoints.add(row[1]);
+			}
 		}
-		
-		query += ";";
-		
-		storage.executeQuery(query);
+		addVertexIds(targetGraph, endpoints);
 	}
 
 	@Override
 	public void intersectGraph(Graph outputGraph, Graph lhsGraph, Graph rhsGraph){
-		String vertexQuery = "";
-		vertexQuery += "match (x:" + lhsGraph.name + ":" + rhsGraph.name + ") ";
-		vertexQuery += "set x:" + outputGraph.name + ";";
-		
-		storage.executeQuery(vertexQuery);
-		
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String edgeQuery = "";
-		edgeQuery = "match ()-[e]->()";
-		if(neo4jQueryEnvironment.isBaseGraph(lhsGraph) && neo4jQueryEnvironment.isBaseGraph(rhsGraph)){
-			// no where needed
-		}else if(!neo4jQueryEnvironment.isBaseGraph(lhsGraph) && neo4jQueryEnvironment.isBaseGraph(rhsGraph)){
-			edgeQuery += " where " + edgeProperty + " contains '," + lhsGraph.name + ",'";
-		}else if(neo4jQueryEnvironment.isBaseGraph(lhsGraph) && !neo4jQueryEnvironment.isBaseGraph(rhsGraph)){
-			edgeQuery += " where " + edgeProperty + " contains '," + rhsGraph.name + ",'";
+		final IdBitmap lhsVertices = getVertexIdsOrNullIfBase(lhsGraph);
+		final IdBitmap rhsVertices = getVertexIdsOrNullIfBase(rhsGraph);
+		final IdBitmap lhsEdges = getEdgeIdsOrNullIfBase(lhsGraph);
+		final IdBitmap rhsEdges = getEdgeIdsOrNullIfBase(rhsGraph);
+		if(lhsVertices == null && rhsVertices == null){
+			addVertexIds(outputGraph, getVertexIds(lhsGraph));
+			addEdgeIds(outputGraph, getEdgeIds(lhsGraph));
+		}else if(lhsVertices == null){
+			addVertexIds(outputGraph, rhsVertices);
+			addEdgeIds(outputGraph, rhsEdges);
+		}else if(rhsVertices == null){
+			addVertexIds(outputGraph, lhsVertices);
+			addEdgeIds(outputGraph, lhsEdges);
 		}else{
-			edgeQuery += " where " + edgeProperty + " contains '," + lhsGraph.name + ",'";
-			edgeQuery += " and " + edgeProperty + " contains '," + rhsGraph.name + ",'";
+			addVertexIds(outputGraph, IdBitmap.and(lhsVertices, rhsVertices));
+			addEdgeIds(outputGraph, IdBitmap.and(lhsEdges, rhsEdges));
 		}
-		edgeQuery += " " + buildSubqueryForUpdatingEdgeSymbols("e", outputGraph.name);
-		
-		storage.executeQuery(edgeQuery);
 	}
 
 	@Override
 	public void limitGraph(Graph targetGraph, Graph sourceGraph, int limit){
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String vertexQuery = 
-				"match (v:" + sourceGraph.name + ") with v order by id(v) asc limit " 
-				+ limit + " set v:" + targetGraph.name + ";";
-		String edgeQuery = "match ()-[e]->()";
-		if(!neo4jQueryEnvironment.isBaseGraph(sourceGraph)){
-			edgeQuery += " where " + edgeProperty + " contains '," + sourceGraph.name + ",'";
+		if(isBaseGraph(sourceGraph)){
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			addVertexIds(targetGraph, readIds(
+					"match (v:" + getBaseLabel() + ") return id(v) as id order by id asc limit " + limit + ";",
+					parameters, "id"));
+			addEdgeIds(targetGraph, readIds(
+					"match ()-[e]->() return id(e) as id order by id asc limit " + limit + ";",
+					parameters, "id"));
+		}else{
+			addVertexIds(targetGraph, neo4jQueryEnvironment.getVertexIds(sourceGraph).head(limit));
+			addEdgeIds(targetGraph, neo4jQueryEnvironment.getEdgeIds(sourceGraph).head(limit));
+		}
+	}
+
+	private final long readCount(final String query, final Map<String, Object> parameters, final String columnName){
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
+		if(result.size() > 0){
+			return Long.parseLong(String.valueOf(result.get(0).get(columnName)));
+		}else{
+			return 0;
 		}
-		edgeQuery += " with e order by id(e) asc limit " + limit;
-		edgeQuery += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-		storage.executeQuery(vertexQuery);
-		storage.executeQuery(edgeQuery);
 	}
 	
 	@Override
 	public GraphStatistic.Count getGraphCount(final Graph graph){
 		final long vertices;
 		final long edges;
-		List<Map<String, Object>> result = storage
-				.executeQueryForSmallResult("match (v:" + graph.name + ") return count(v) as vcount;");
-		if(result.size() > 0){
-			vertices = Long.parseLong(String.valueOf(result.get(0).get("vcount")));
+		if(isBaseGraph(graph)){
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			vertices = readCount("match (v:" + getBaseLabel() + ") return count(v) as vcount;", parameters, "vcount");
+			edges = readCount("match ()-[e]->() return count(e) as ecount;", parameters, "ecount");
 		}else{
-			vertices = 0;
+			vertices = neo4jQueryEnvironment.getVertexIds(graph).cardinality();
+			edges = neo4jQueryEnvironment.getEdgeIds(graph).cardinality();
 		}
-		if(neo4jQueryEnvironment.isBaseGraph(graph)){
-			result = storage.executeQueryForSmallResult("match ()-[e]->() return count(e) as ecount;");
-		}else{
-			final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-			result = storage.executeQueryForSmallResult("match ()-[e]->() " + "where " + edgeProperty + " contains ',"
-					+ graph.name + ",' " + "return count(e) as ecount;");
+		return new GraphStatistic.Count(vertices, edges);
+	}
+
+	/**
+	 * Returns the match and where clause for the element type. Any additional predicate must start with 'and'.
+	 */
+	private final String buildMatchElements(final String alias, final Graph graph, final ElementType elementType,
+			final Map<String, Object> parameters){
+		switch(elementType){
+			case VERTEX: return buildMatchVertices(alias, graph, parameters);
+			case EDGE: return buildMatchEdges(alias, graph, parameters);
+			default: throw new RuntimeException("Unknown element type");
 		}
-		if(result.size() > 0){
-			edges = Long.parseLong(String.valueOf(result.get(0).get("ecount")));
-		}else{
-			edges = 0;
+	}
+
+	private final String getElementAlias(final ElementType elementType){
+		switch(elementType){
+			case VERTEX: return "v";
+			case EDGE: return "e";
+			default: throw new RuntimeException("Unknown element type");
 		}
-		return new GraphStatistic.Count(vertices, edges);
 	}
 
 	@Override
 	public long getGraphStatisticSize(final Graph graph, final ElementType elementType, final String annotationKey){
-		switch(elementType){
-			case VERTEX:{
-				final List<Map<String, Object>> result = storage.executeQueryForSmallResult(
-						"match (v:" + graph.name + ") where v.`" + annotationKey + "` is not null return count(v) as vcount;"
-						);
-				if(result.size() > 0){
-					return Long.parseLong(String.valueOf(result.get(0).get("vcount")));
-				}else{
-					return 0;
-				}
-			}
-			case EDGE:{
-				final List<Map<String, Object>> result;
-				if(neo4jQueryEnvironment.isBaseGraph(graph)){
-					result = storage.executeQueryForSmallResult(
-							"match ()-[e]->() where e.`" + annotationKey + "` is not null return count(e) as ecount;"
-							);
-				}else{
-					final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-					result = storage.executeQueryForSmallResult(
-							"match ()-[e]->() " 
-							+ "where " + edgeProperty + " contains '," + graph.name + ",' "
-							+ "and e.`" + annotationKey + "` is not null "
-							+ "return count(e) as ecount;");
-				}
-				if(result.size() > 0){
-					return Long.parseLong(String.valueOf(result.get(0).get("ecount")));
-				}else{
-					return 0;
-				}
-			}
-			default:{
-				throw new RuntimeException("Unknown element type");
-			}
-		}
+		final String alias = getElementAlias(elementType);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = buildMatchElements(alias, graph, elementType, parameters)
+				+ "and " + alias + ".`" + annotationKey + "` is not null return count(" + alias + ") as count;";
+		return readCount(query, parameters, "count");
 	}
 
 	@Override
@@ -497,37 +560,15 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			return new GraphStatistic.Distribution();
 		}
 
-		final String finalAnnotationKey;
-		final String minMaxQuery;
-		switch(elementType){
-			case VERTEX:{
-				finalAnnotationKey = "toInteger(v." + annotationKey + ")";
-				minMaxQuery = "MATCH (v:" + graph.name + ") RETURN"
-						+ " MIN(" + finalAnnotationKey + ") AS min,"
-						+ " MAX(" + finalAnnotationKey + ") AS max;";
-				break;
-			}
-			case EDGE:{
-				finalAnnotationKey = "toInteger(e." + annotationKey + ")";
-				final String returnStatement = " RETURN"
-						+ " MIN(" + finalAnnotationKey + ") AS min,"
-						+ " MAX(" + finalAnnotationKey + ") AS max;";
-				if(neo4jQueryEnvironment.isBaseGraph(graph)){
-					minMaxQuery = "MATCH ()-[e]->() " + returnStatement;
-				}else{
-					final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-					minMaxQuery = "match ()-[e]->()" + " where "
-							+ edgeProperty + " contains '," + graph.name + ",' "
-							+ returnStatement;
-				}
-				break;
-			}
-			default:{
-				throw new RuntimeException("Unknown element type");
-			}
-		}
+		final String alias = getElementAlias(elementType);
+		final String finalAnnotationKey = "toInteger(" + alias + "." + annotationKey + ")";
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String matchClause = buildMatchElements(alias, graph, elementType, parameters);
+		final String minMaxQuery = matchClause + "RETURN"
+				+ " MIN(" + finalAnnotationKey + ") AS min,"
+				+ " MAX(" + finalAnnotationKey + ") AS max;";
 
-		final List<Map<String, Object>> minMaxResult = storage.executeQueryForSmallResult(minMaxQuery);
+		final List<Map<String, Object>> minMaxResult = storage.executeQueryForSmallResult(minMaxQuery, parameters);
 		if(minMaxResult.size() == 0){
 			throw new RuntimeException("Failed to get min and max for: '" + annotationKey + "'");
 		}
@@ -537,25 +578,7 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 
 		final double range = max - min + 1;
 		final double step = range / binCount;
-		String query;
-		switch(elementType){
-			case VERTEX:{
-				query = "match (v:" + graph.name + ")";
-				break;
-			}
-			case EDGE:{
-				if(neo4jQueryEnvironment.isBaseGraph(graph)){
-					query = "match ()-[e]->()";
-				}else{
-					final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-					query = "match ()-[e]->()" + "where " + edgeProperty + " contains '," + graph.name + ",'";
-				}
-				break;
-			}
-			default:{
-				throw new RuntimeException("Unknown element type");
-			}
-		}
+		String query = matchClause;
 
 		final Map<String, Interval> nameToInterval = new TreeMap<>();
 
@@ -583,7 +606,7 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 				finalColumnName);
 		nameToInterval.put(finalColumnName, new Interval(begin, max));
 
-		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
 		final SortedMap<Interval, Double> distribution = new TreeMap<>();
 		if(result.size() > 0){
 			final Map<String, Object> data = result.get(0);
@@ -610,29 +633,12 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			return new GraphStatistic.StandardDeviation();
 		}
 
-		final String query;
-		switch(elementType){
-			case VERTEX:{
-				query = "match (v:" + graph.name + ") return stDev(toInteger(v." + annotationKey + ")) as std;";
-				break;
-			}
-			case EDGE:{
-				if(neo4jQueryEnvironment.isBaseGraph(graph)){
-					query = "match ()-[e]->() return stDev(toInteger(e." + annotationKey + ")) as std;";
-				}else{
-					final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-					query = "match ()-[e]->()"
-							+ "where " + edgeProperty + " contains '," + graph.name + ",' "
-							+ "return stDev(toInteger(e." + annotationKey + ")) as std;";
-				}
-				break;
-			}
-			default:{
-				throw new RuntimeException("Unknown element type");
-			}
-		}
+		final String alias = getElementAlias(elementType);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = buildMatchElements(alias, graph, elementType, parameters)
+				+ "return stDev(toInteger(" + alias + "." + annotationKey + ")) as std;";
 
-		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
 		final double stdDev;
 		if(result.size() > 0){
 			stdDev = Double.parseDouble(String.valueOf(result.get(0).get("std")));
@@ -651,29 +657,12 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			return new GraphStatistic.Mean();
 		}
 
-		final String query;
-		switch(elementType){
-			case VERTEX:{
-				query = "match (v:" + graph.name + ") return AVG(toInteger(v." + annotationKey + ")) as mean;";
-				break;
-			}
-			case EDGE:{
-				if(neo4jQueryEnvironment.isBaseGraph(graph)){
-					query = "match ()-[e]->() return AVG(toInteger(e." + annotationKey + ")) as mean;";
-				}else{
-					final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-					query = "match ()-[e]->()" 
-							+ "where " + edgeProperty + " contains '," + graph.name + ",' "
-							+ "return AVG(toInteger(e." + annotationKey + ")) as mean;";
-				}
-				break;
-			}
-			default:{
-				throw new RuntimeException("Unknown element type");
-			}
-		}
+		final String alias = getElementAlias(elementType);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = buildMatchElements(alias, graph, elementType, parameters)
+				+ "return AVG(toInteger(" + alias + "." + annotationKey + ")) as mean;";
 
-		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
 		final Double mean;
 		if(result.size() > 0){
 			mean = Double.parseDouble(String.valueOf(result.get(0).get("mean")));
@@ -692,29 +681,12 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			return new GraphStatistic.Histogram();
 		}
 
-		final String query;
-		switch(elementType){
-			case VERTEX:{
-				query = "match (v:" + graph.name + ") return v." + annotationKey + " as ann, count(*) as cnt;";
-				break;
-			}
-			case EDGE:{
-				if(neo4jQueryEnvironment.isBaseGraph(graph)){
-					query = "match ()-[e]->() return e." + annotationKey + " as ann, count(*) as cnt;";
-				}else{
-					final String edgeProperty = "e.`" + neo4jQueryEnvironment.edgeLabelsPropertyName + "`";
-					query = "match ()-[e]->()" 
-							+ "where " + edgeProperty + " contains '," + graph.name + ",' " 
-							+ "return e." + annotationKey + " as ann, count(*) as cnt;";
-				}
-				break;
-			}
-			default:{
-				throw new RuntimeException("Unknown element type");
-			}
-		}
+		final String alias = getElementAlias(elementType);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String query = buildMatchElements(alias, graph, elementType, parameters)
+				+ "return " + alias + "." + annotationKey + " as ann, count(*) as cnt;";
 
-		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
 		final SortedMap<String, Double> histogram = new TreeMap<>();
 		if(result.size() > 0){
 			for(final Map<String, Object> map : result){
@@ -734,81 +706,164 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 
 	@Override
 	public void subtractGraph(Graph outputGraph, Graph minuendGraph, Graph subtrahendGraph, Graph.Component component){
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		if(neo4jQueryEnvironment.isBaseGraph(minuendGraph) && neo4jQueryEnvironment.isBaseGraph(subtrahendGraph)){
-			// no resulting vertices and edge since both are base
-		}else if(!neo4jQueryEnvironment.isBaseGraph(minuendGraph) && neo4jQueryEnvironment.isBaseGraph(subtrahendGraph)){
+		if(isBaseGraph(subtrahendGraph)){
 			// no resulting vertices and edges since the subtrahend is base
-		}else if(neo4jQueryEnvironment.isBaseGraph(minuendGraph) && !neo4jQueryEnvironment.isBaseGraph(subtrahendGraph)){
-			String vertexQuery = "match (n:" + minuendGraph.name + ") where not '" + subtrahendGraph.name + 
-					"' in labels(n) set n:" + outputGraph.name + ";";
-			String edgeQuery = "match ()-[e]->()";
-			edgeQuery += " where not " + edgeProperty + " contains '," + subtrahendGraph.name + ",'";
-			edgeQuery += " " + buildSubqueryForUpdatingEdgeSymbols("e", outputGraph.name);
-			if(component == null || component == Graph.Component.kVertex){
-				storage.executeQuery(vertexQuery);
+			return;
+		}
+		if(component == null || component == Graph.Component.kVertex){
+			addVertexIds(outputGraph, IdBitmap.andNot(getVertexIds(minuendGraph), 
+					neo4jQueryEnvironment.getVertexIds(subtrahendGraph)));
+		}
+		if(component == null || component == Graph.Component.kEdge){
+			addEdgeIds(outputGraph, IdBitmap.andNot(getEdgeIds(minuendGraph), 
+					neo4jQueryEnvironment.getEdgeIds(subtrahendGraph)));
+		}
+	}
+
+	@Override
+	public void unionGraph(Graph targetGraph, Graph sourceGraph){
+		addVertexIds(targetGraph, getVertexIds(sourceGraph));
+		addEdgeIds(targetGraph, getEdgeIds(sourceGraph));
+	}
+
+	/////////////////////////////////////
+	// Traversal. Only ids are read from the store. Restriction to the subject graph is done in memory.
+	/////////////////////////////////////
+
+	private static final int traversalBatchSize = 10000;
+
+	/**
+	 * Returns rows of [edge id, child vertex id, parent vertex id] for all edges incident on the frontier.
+	 * If 'outgoing' then the frontier vertices are the children (ancestor direction) otherwise the parents.
+	 */
+	private final List<long[]> getIncidentEdges(final IdBitmap frontier, final boolean outgoing){
+		final List<long[]> rows = new ArrayList<long[]>();
+		final String query = "match (a)-[e]->(b) where id(" + (outgoing ? "a" : "b") + ") in $frontier "
+				+ "return id(e) as e, id(a) as a, id(b) as b;";
+		final List<Long> batch = new ArrayList<Long>();
+		final PrimitiveIterator.OfLong iterator = frontier.longIterator();
+		while(iterator.hasNext()){
+			batch.add(iterator.nextLong());
+			if(batch.size() >= traversalBatchSize || !iterator.hasNext()){
+				final Map<String, Object> parameters = new HashMap<String, Object>();
+				parameters.put("frontier", new ArrayList<Long>(batch));
+				rows.addAll(storage.readIdRows(query, parameters, "e", "a", "b"));
+				batch.clear();
 			}
-			if(component == null || component == Graph.Component.kEdge){
-				storage.executeQuery(edgeQuery);
+		}
+		return rows;
+	}
+
+	private static final class Reachable{
+		// Vertex id to the minimum number of hops from the start vertices
+		private final Map<Long, Integer> depths = new HashMap<Long, Integer>();
+		// Rows of [edge id, child vertex id, parent vertex id]
+		private final List<long[]> edges = new ArrayList<long[]>();
+	}
+
+	/**
+	 * Breadth-first traversal from the start vertices in the subject graph upto the max depth.
+	 * 'subjectVertices' and 'subjectEdges' are NULL for the base graph.
+	 */
+	private final Reachable getReachable(final IdBitmap startVertices, final boolean outgoing, final int maxDepth,
+			final IdBitmap subjectVertices, final IdBitmap subjectEdges){
+		final Reachable reachable = new Reachable();
+		IdBitmap frontier = new IdBitmap();
+		for(final long vertexId : startVertices){
+			if(isMember(subjectVertices, vertexId)){
+				frontier.add(vertexId);
+				reachable.depths.put(vertexId, 0);
 			}
-		}else{
-			String vertexQuery = "match (n:" + minuendGraph.name + ") where not '" + subtrahendGraph.name + 
-					"' in labels(n) set n:" + outputGraph.name + ";";
-			
-			String edgeQuery = "match ()-[e]->()";
-			edgeQuery += " where " + edgeProperty + " contains '," + minuendGraph.name + ",'";
-			edgeQuery += " and not " + edgeProperty + " contains '," + subtrahendGraph.name + ",'";
-			edgeQuery += " " + buildSubqueryForUpdatingEdgeSymbols("e", outputGraph.name);
-			if(component == null || component == Graph.Component.kVertex){
-				storage.executeQuery(vertexQuery);
+		}
+		for(int depth = 0; depth < maxDepth && !frontier.isEmpty(); depth++){
+			final IdBitmap next = new IdBitmap();
+			for(final long[] row : getIncidentEdges(frontier, outgoing)){
+				final long edgeId = row[0];
+				final long otherId = outgoing ? row[2] : row[1];
+				if(!isMember(subjectEdges, edgeId) || !isMember(subjectVertices, otherId)){
+					continue;
+				}
+				reachable.edges.add(row);
+				if(!reachable.depths.containsKey(otherId)){
+					reachable.depths.put(otherId, depth + 1);
+					next.add(otherId);
+				}
 			}
-			if(component == null || component == Graph.Component.kEdge){
-				storage.executeQuery(edgeQuery);
+			frontier = next;
+		}
+		return reachable;
+	}
+
+	/**
+	 * In memory breadth-first traversal from the given vertex against the edge direction i.e. from parent to child.
+	 */
+	private static Map<Long, Integer> getDistancesTo(final Map<Long, List<long[]>> edgesByParent,
+			final IdBitmap destinationVertices, final int maxDepth){
+		final Map<Long, Integer> distances = new HashMap<Long, Integer>();
+		LinkedList<Long> frontier = new LinkedList<Long>();
+		for(final long vertexId : destinationVertices){
+			distances.put(vertexId, 0);
+			frontier.add(vertexId);
+		}
+		for(int depth = 0; depth < maxDepth && !frontier.isEmpty(); depth++){
+			final LinkedList<Long> next = new LinkedList<Long>();
+			for(final Long parentId : frontier){
+				final List<long[]> edges = edgesByParent.get(parentId);
+				if(edges != null){
+					for(final long[] edge : edges){
+						final long childId = edge[1];
+						if(!distances.containsKey(childId)){
+							distances.put(childId, depth + 1);
+							next.add(childId);
+						}
+					}
+				}
 			}
+			frontier = next;
 		}
+		return distances;
 	}
 
-	@Override
-	public void unionGraph(Graph targetGraph, Graph sourceGraph){
-		String edgeQuery = "match ()-[e]->()";
-		String vertexQuery = "match (v:" + sourceGraph.name + ") set v:" + targetGraph.name + ";";
-		if(!neo4jQueryEnvironment.isBaseGraph(sourceGraph)){
-			final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-			edgeQuery += " where " + edgeProperty + " contains '," + sourceGraph.name + ",'";
+	private static Map<Long, List<long[]>> groupEdges(final List<long[]> edges, final int vertexIndex){
+		final Map<Long, List<long[]>> grouped = new HashMap<Long, List<long[]>>();
+		for(final long[] edge : edges){
+			List<long[]> list = grouped.get(edge[vertexIndex]);
+			if(list == null){
+				list = new ArrayList<long[]>();
+				grouped.put(edge[vertexIndex], list);
+			}
+			list.add(edge);
 		}
-		edgeQuery += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name);
-		
-		storage.executeQuery(edgeQuery);
-		storage.executeQuery(vertexQuery);
+		return grouped;
 	}
 
 	@Override
 	public void getAdjacentVertex(Graph targetGraph, Graph subjectGraph, Graph sourceGraph, GetLineage.Direction direction){
 		// TODO rename to get adjacent graph
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		if(direction.equals(GetLineage.Direction.kAncestor) || direction.equals(GetLineage.Direction.kBoth)){
-			String query = "match (a:"+sourceGraph.name+":"+subjectGraph.name+")-[e]->"
-					+ "(b:"+subjectGraph.name+")";
-			if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-				query += " where " + edgeProperty + " contains '," + subjectGraph.name + ",'";
+		final IdBitmap subjectVertices = getVertexIdsOrNullIfBase(subjectGraph);
+		final IdBitmap subjectEdges = getEdgeIdsOrNullIfBase(subjectGraph);
+		final IdBitmap sourceVertices = subjectVertices == null ? getVertexIds(sourceGraph)
+				: IdBitmap.and(getVertexIds(sourceGraph), subjectVertices);
+
+		final IdBitmap resultVertices = new IdBitmap();
+		final IdBitmap resultEdges = new IdBitmap();
+		for(final boolean outgoing : new boolean[]{true, false}){
+			if(outgoing && !(direction.equals(GetLineage.Direction.kAncestor) || direction.equals(GetLineage.Direction.kBoth))){
+				continue;
 			}
-			query += " set a:" + targetGraph.name;
-			query += " set b:" + targetGraph.name;
-			query += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-			storage.executeQuery(query);
-		}
-		
-		if(direction.equals(GetLineage.Direction.kDescendant) || direction.equals(GetLineage.Direction.kBoth)){
-			String query = "match (a:"+subjectGraph.name+")-[e]->"
-					+ "(b:"+sourceGraph.name+":"+subjectGraph.name+")";
-			if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-				query += " where " + edgeProperty + " contains '," + subjectGraph.name + ",'";
+			if(!outgoing && !(direction.equals(GetLineage.Direction.kDescendant) || direction.equals(GetLineage.Direction.kBoth))){
+				continue;
+			}
+			for(final long[] row : getIncidentEdges(sourceVertices, outgoing)){
+				if(isMember(subjectEdges, row[0]) && isMember(subjectVertices, row[1]) && isMember(subjectVertices, row[2])){
+					resultEdges.add(row[0]);
+					resultVertices.add(row[1]);
+					resultVertices.add(row[2]);
+				}
 			}
-			query += " set a:" + targetGraph.name;
-			query += " set b:" + targetGraph.name;
-			query += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-			storage.executeQuery(query);
 		}
+		addVertexIds(targetGraph, resultVertices);
+		addEdgeIds(targetGraph, resultEdges);
 	}
 	
 	@Override
@@ -826,22 +881,11 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			default: throw new RuntimeException("Unhandled element type: " + instruction.elementType);
 		}
 		
+		final Map<String, Object> parameters = new HashMap<String, Object>();
 		if(instruction.all){
-			String query;
-			switch(instruction.elementType){
-				case VERTEX:
-					query = "match (v:" + instruction.graph.name + ") with keys(v) as keys unwind keys as rowsofkeys return distinct rowsofkeys";
-					break;
-				case EDGE:
-					final String relationshipProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-					query = "match ()-[e]->()";
-					if(!neo4jQueryEnvironment.isBaseGraph(instruction.graph)){
-						query += " where " + relationshipProperty + " contains '," + instruction.graph.name + ",'";
-					}
-					query += " with keys(e) as keys unwind keys as rowsofkeys return distinct rowsofkeys";
-					break;
-				default: throw new RuntimeException("Unhandled element type: " + instruction.elementType);
-			}
+			final String alias = getElementAlias(instruction.elementType);
+			String query = buildMatchElements(alias, instruction.graph, instruction.elementType, parameters);
+			query += "with keys(" + alias + ") as keys unwind keys as rowsofkeys return distinct rowsofkeys";
 			
 			query += " order by rowsofkeys";
 			if(instruction.limit != null){
@@ -849,7 +893,7 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			}
 			
 			final Set<String> annotations = new HashSet<String>();
-			final List<Map<String, Object>> queryResult = storage.executeQueryForSmallResult(query);
+			final List<Map<String, Object>> queryResult = storage.executeQueryForSmallResult(query, parameters);
 			for(Map<String, Object> map : queryResult){
 				final Object value = map.get("rowsofkeys");
 				if(value != null){
@@ -873,20 +917,8 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 			}
 			
 			final String alias = "x";
-			String query;
-			switch(instruction.elementType){
-				case VERTEX:
-					query = "match ("+alias+":" + instruction.graph.name + ") where exists("+alias+".`" + instruction.annotationName + "`) ";
-					break;
-				case EDGE:
-					final String relationshipProperty = alias + ".`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-					query = "match ()-["+alias+"]->() where exists("+alias+".`" + instruction.annotationName + "`) ";
-					if(!neo4jQueryEnvironment.isBaseGraph(instruction.graph)){
-						query += "and " + relationshipProperty + " contains '," + instruction.graph.name + ",' ";
-					}
-					break;
-				default: throw new RuntimeException("Unhandled element type: " + instruction.elementType);
-			}
+			String query = buildMatchElements(alias, instruction.graph, instruction.elementType, parameters);
+			query += "and exists(" + alias + ".`" + instruction.annotationName + "`) ";
 			
 			switch(instruction.descriptionType){
 				case COUNT:{
@@ -896,7 +928,7 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 					if(instruction.limit != null){
 						query += " limit " + instruction.limit;
 					}
-					final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+					final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
 					final GraphDescription desc = new GraphDescription(instruction.elementType, instruction.annotationName, 
 							instruction.descriptionType);
 					for(Map<String, Object> map : result){
@@ -911,7 +943,7 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 				case MINMAX:{
 					query += "return min(" + alias + ".`" + instruction.annotationName + "`) as spademin, "
 							+ "max(" + alias + ".`" + instruction.annotationName + "`) as spademax;";
-					final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+					final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query, parameters);
 					String minValue = null, maxValue = null;
 					if(result.size() > 0){
 						final Object minObject = result.get(0).get("spademin");
@@ -939,141 +971,245 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 	
 	@Override
 	public Map<String, Map<String, String>> exportVertices(final Graph targetGraph){
-		String nodesQuery = "match (v:" + targetGraph.name + ") return v;";
-		return storage.readHashToVertexMap("v", nodesQuery);
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String nodesQuery = buildMatchVertices("v", targetGraph, parameters) + "return v;";
+		return storage.readHashToVertexMap("v", nodesQuery, parameters);
 	}
 	
 	@Override
 	public Set<QueriedEdge> exportEdges(final Graph targetGraph){
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String edgeQuery = "match ()-[e]->()";
-		if(!neo4jQueryEnvironment.isBaseGraph(targetGraph)){
-			edgeQuery += " where " + edgeProperty + " contains '," + targetGraph.name + ",'";
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String edgeQuery = buildMatchEdges("e", targetGraph, parameters) + "return e;";
+		return storage.readEdgeSet("e", edgeQuery, parameters);
+	}
+
+	@Override
+	public BatchIterator<Map<String, Map<String, String>>> exportVerticesInBatches(final Graph targetGraph,
+			final int batchSize){
+		final IdBitmap ids = isBaseGraph(targetGraph) ? getVertexIds(targetGraph) : new IdBitmap(getVertexIds(targetGraph));
+		return new IdBatchIterator<Map<String, Map<String, String>>>(ids, batchSize){
+			@Override
+			protected Map<String, Map<String, String>> readBatch(final Map<String, Object> parameters){
+				return storage.readHashToVertexMap("v", "match (v) where id(v) in $ids return v;", parameters);
+			}
+		};
+	}
+
+	@Override
+	public BatchIterator<Set<QueriedEdge>> exportEdgesInBatches(final Graph targetGraph, final int batchSize){
+		final IdBitmap ids = isBaseGraph(targetGraph) ? getEdgeIds(targetGraph) : new IdBitmap(getEdgeIds(targetGraph));
+		return new IdBatchIterator<Set<QueriedEdge>>(ids, batchSize){
+			@Override
+			protected Set<QueriedEdge> readBatch(final Map<String, Object> parameters){
+				return storage.readEdgeSet("e", "match ()-[e]->() where id(e) in $ids return e;", parameters);
+			}
+		};
+	}
+
+	/*
+	 * Reads the elements 'batchSize' ids at a time. Each batch is looked up by id in its own transaction so that
+	 * no transaction is kept open between batches. Only the (compressed) ids are kept in memory.
+	 */
+	private abstract class IdBatchIterator<T> extends BatchIterator<T>{
+		private final PrimitiveIterator.OfLong ids;
+
+		private IdBatchIterator(final IdBitmap ids, final int batchSize){
+			super(batchSize);
+			this.ids = ids.longIterator();
+		}
+
+		protected abstract T readBatch(final Map<String, Object> parameters);
+
+		@Override
+		public boolean hasNextBatch(){
+			return ids.hasNext();
+		}
+
+		@Override
+		public T nextBatch(){
+			if(!ids.hasNext()){
+				throw new NoSuchElementException();
+			}
+			final List<Long> batch = new ArrayList<Long>();
+			while(ids.hasNext() && batch.size() < batchSize){
+				batch.add(ids.nextLong());
+			}
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			parameters.put("ids", batch);
+			return readBatch(parameters);
 		}
-		edgeQuery += " return e;";
-		
-		return storage.readEdgeSet("e", edgeQuery);
 	}
 	
 	@Override
 	public void getLineage(Graph targetGraph, Graph subjectGraph, Graph startGraph, int depth, Direction direction){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
+		final IdBitmap subjectVertices = getVertexIdsOrNullIfBase(subjectGraph);
+		final IdBitmap subjectEdges = getEdgeIdsOrNullIfBase(subjectGraph);
+		final IdBitmap startVertices = getVertexIds(startGraph);
+
+		final IdBitmap resultVertices = new IdBitmap();
+		final IdBitmap resultEdges = new IdBitmap();
 		if(direction.equals(GetLineage.Direction.kAncestor) || direction.equals(GetLineage.Direction.kBoth)){
-			String query = "match ";
-			query += "p=(a:"+startGraph.name+":"+subjectGraph.name+")"
-					+ "-[e0*0.."+depth+"]->"
-					+ "(b:"+subjectGraph.name+") ";
-			if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-				query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
+			final Reachable reachable = getReachable(startVertices, true, depth, subjectVertices, subjectEdges);
+			resultVertices.addAll(reachable.depths.keySet());
+			for(final long[] edge : reachable.edges){
+				resultEdges.add(edge[0]);
 			}
-			query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-			query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-			storage.executeQuery(query);
 		}
 		
 		if(direction.equals(GetLineage.Direction.kDescendant) || direction.equals(GetLineage.Direction.kBoth)){
-			String query = "match ";
-			query += "p=(a:"+subjectGraph.name+")"
-					+ "-[e0*0.."+depth+"]->"
-					+ "(b:"+startGraph.name+":"+subjectGraph.name+") ";
-			if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-				query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
+			final Reachable reachable = getReachable(startVertices, false, depth, subjectVertices, subjectEdges);
+			resultVertices.addAll(reachable.depths.keySet());
+			for(final long[] edge : reachable.edges){
+				resultEdges.add(edge[0]);
+			}
+		}
+		addVertexIds(targetGraph, resultVertices);
+		addEdgeIds(targetGraph, resultEdges);
+	}
+
+	/**
+	 * Vertices and edges on any path (of length upto max depth) from the source to the destination.
+	 * A vertex is included if its distance from the source plus its distance to the destination is within max depth.
+	 */
+	private final void getPathsFromSourceToDestination(final IdBitmap resultVertices, final IdBitmap resultEdges,
+			final Graph subjectGraph, final Graph srcGraph, final Graph dstGraph, final int maxDepth){
+		final IdBitmap subjectVertices = getVertexIdsOrNullIfBase(subjectGraph);
+		final IdBitmap subjectEdges = getEdgeIdsOrNullIfBase(subjectGraph);
+
+		final Reachable reachable = getReachable(getVertexIds(srcGraph), true, maxDepth, subjectVertices, subjectEdges);
+		final IdBitmap reachedDestinations = new IdBitmap();
+		for(final long vertexId : getVertexIds(dstGraph)){
+			if(reachable.depths.containsKey(vertexId)){
+				reachedDestinations.add(vertexId);
+			}
+		}
+		if(reachedDestinations.isEmpty()){
+			return;
+		}
+
+		final Map<Long, Integer> distancesToDestination = getDistancesTo(groupEdges(reachable.edges, 2),
+				reachedDestinations, maxDepth);
+		for(final Map.Entry<Long, Integer> entry : reachable.depths.entrySet()){
+			final Integer distanceToDestination = distancesToDestination.get(entry.getKey());
+			if(distanceToDestination != null && entry.getValue() + distanceToDestination <= maxDepth){
+				resultVertices.add(entry.getKey());
+			}
+		}
+		for(final long[] edge : reachable.edges){
+			final Integer distanceFromSource = reachable.depths.get(edge[1]);
+			final Integer distanceToDestination = distancesToDestination.get(edge[2]);
+			if(distanceFromSource != null && distanceToDestination != null
+					&& distanceFromSource + 1 + distanceToDestination <= maxDepth){
+				resultEdges.add(edge[0]);
 			}
-			query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-			query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-			storage.executeQuery(query);
 		}
 	}
 
 	@Override
 	public void getSimplePath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match ";
-		query += "p=(a:"+srcGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+dstGraph.name+":"+subjectGraph.name+") ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
+		final IdBitmap resultVertices = new IdBitmap();
+		final IdBitmap resultEdges = new IdBitmap();
+		getPathsFromSourceToDestination(resultVertices, resultEdges, subjectGraph, srcGraph, dstGraph, maxDepth);
+		addVertexIds(targetGraph, resultVertices);
+		addEdgeIds(targetGraph, resultEdges);
 	}
 	
 	@Override
 	public void getLink(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match ";
-		query += "p=(a:"+srcGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+dstGraph.name+":"+subjectGraph.name+") ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
-		
-		query = "match ";
-		query += "p=(a:"+dstGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+srcGraph.name+":"+subjectGraph.name+") ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
+		final IdBitmap resultVertices = new IdBitmap();
+		final IdBitmap resultEdges = new IdBitmap();
+		getPathsFromSourceToDestination(resultVertices, resultEdges, subjectGraph, srcGraph, dstGraph, maxDepth);
+		getPathsFromSourceToDestination(resultVertices, resultEdges, subjectGraph, dstGraph, srcGraph, maxDepth);
+		addVertexIds(targetGraph, resultVertices);
+		addEdgeIds(targetGraph, resultEdges);
 	}
 
+	/**
+	 * One shortest path for each pair of source and destination vertices (like cypher 'shortestPath').
+	 * Ties are broken by picking the edge with the smallest id.
+	 */
 	@Override
 	public void getShortestPath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match ";
-		query += "p=shortestPath((a:"+srcGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+dstGraph.name+":"+subjectGraph.name+")) ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
+		final IdBitmap subjectVertices = getVertexIdsOrNullIfBase(subjectGraph);
+		final IdBitmap subjectEdges = getEdgeIdsOrNullIfBase(subjectGraph);
+
+		final IdBitmap sourceVertices = getVertexIds(srcGraph);
+		final Reachable reachable = getReachable(sourceVertices, true, maxDepth, subjectVertices, subjectEdges);
+		final Map<Long, List<long[]>> edgesByChild = groupEdges(reachable.edges, 1);
+		final Map<Long, List<long[]>> edgesByParent = groupEdges(reachable.edges, 2);
+
+		final IdBitmap resultVertices = new IdBitmap();
+		final IdBitmap resultEdges = new IdBitmap();
+		for(final long destinationId : getVertexIds(dstGraph)){
+			if(!reachable.depths.containsKey(destinationId)){
+				continue;
+			}
+			final IdBitmap destination = new IdBitmap();
+			destination.add(destinationId);
+			final Map<Long, Integer> distances = getDistancesTo(edgesByParent, destination, maxDepth);
+			for(final long sourceId : sourceVertices){
+				Integer distance = distances.get(sourceId);
+				if(distance == null || !isMember(subjectVertices, sourceId)){
+					continue;
+				}
+				long currentId = sourceId;
+				resultVertices.add(currentId);
+				while(distance > 0){
+					long[] chosenEdge = null;
+					final List<long[]> edges = edgesByChild.get(currentId);
+					if(edges != null){
+						for(final long[] edge : edges){
+							final Integer parentDistance = distances.get(edge[2]);
+							if(parentDistance != null && parentDistance == distance - 1
+									&& (chosenEdge == null || edge[0] < chosenEdge[0])){
+								chosenEdge = edge;
+							}
+						}
+					}
+					if(chosenEdge == null){
+						break;
+					}
+					resultEdges.add(chosenEdge[0]);
+					resultVertices.add(chosenEdge[2]);
+					currentId = chosenEdge[2];
+					distance = distance - 1;
+				}
+			}
 		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
+		addVertexIds(targetGraph, resultVertices);
+		addEdgeIds(targetGraph, resultEdges);
 	}
 
 	@Override
 	public void getSubgraph(Graph targetGraph, Graph subjectGraph, Graph skeletonGraph){
-		final String edgeProperty = "e.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String vertexQuery = 
-				"match (n:" + skeletonGraph.name + ":" + subjectGraph.name + ") "
-				+ "set n:" + targetGraph.name + ";";
-		
-		String edgeQuery0 = "";
-		edgeQuery0 += "match ()-[e]->(b:"+subjectGraph.name+")";
-		if(!neo4jQueryEnvironment.isBaseGraph(skeletonGraph)){
-			edgeQuery0 += " where " + edgeProperty + " contains '," + skeletonGraph.name + ",'";
-		}
-		edgeQuery0 += " set b:" + targetGraph.name + ";";
-		
-		String edgeQuery1 = "";
-		edgeQuery1 += "match (a:"+subjectGraph.name+")-[e]->()";
-		if(!neo4jQueryEnvironment.isBaseGraph(skeletonGraph)){
-			edgeQuery1 += " where " + edgeProperty + " contains '," + skeletonGraph.name + ",'";
+		final IdBitmap subjectVertices = getVertexIdsOrNullIfBase(subjectGraph);
+		final IdBitmap subjectEdges = getEdgeIdsOrNullIfBase(subjectGraph);
+
+		// order matters
+		final IdBitmap skeletonVertices = getVertexIds(skeletonGraph);
+		addVertexIds(targetGraph, subjectVertices == null ? skeletonVertices : IdBitmap.and(skeletonVertices, subjectVertices));
+
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String endpointsQuery = "match (a)-[e]->(b) where " + buildEdgeRestriction("e", skeletonGraph, parameters)
+				+ " return id(a) as a, id(b) as b;";
+		final IdBitmap endpoints = new IdBitmap();
+		for(final long[] row : storage.readIdRows(endpointsQuery, parameters, "a", "b")){
+			for(final long vertexId : row){
+				if(isMember(subjectVertices, vertexId)){
+					endpoints.add(vertexId);
+				}
+			}
 		}
-		edgeQuery1 += " set a:" + targetGraph.name + ";";
-		
-		String edgeQuery2 = "";
-		edgeQuery2 += "match (a:"+targetGraph.name+")-[e]->(b:"+targetGraph.name+")";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			edgeQuery2 += " where " + edgeProperty + " contains '," + subjectGraph.name + ",'";
+		addVertexIds(targetGraph, endpoints);
+
+		final IdBitmap targetVertices = neo4jQueryEnvironment.getVertexIds(targetGraph);
+		final IdBitmap resultEdges = new IdBitmap();
+		for(final long[] row : getIncidentEdges(targetVertices, true)){
+			if(targetVertices.contains(row[2]) && isMember(subjectEdges, row[0])){
+				resultEdges.add(row[0]);
+			}
 		}
-		edgeQuery2 += " " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ";";
-		
-		// order matters
-		storage.executeQuery(vertexQuery);
-		storage.executeQuery(edgeQuery0);
-		storage.executeQuery(edgeQuery1);
-		storage.executeQuery(edgeQuery2);
+		addEdgeIds(targetGraph, resultEdges);
 	}
 
 	@Override
@@ -12,7 +12,17 @@ import spade.query.quickgrail.core.AbstractQueryEnvironment;
 import spade.query.quickgrail.entities.Graph;
 import spade.storage.Neo4j;
 import spade.utility.HelperFunctions;
-
+import spade.utility.IdBitmap;
+
+/**
+ * Graph variables are kept in memory as compressed bitmaps of Neo4j internal node and relationship ids.
+ * Set operations, lineage restrictions, and garbage collection of graph variables do not write to the store.
+ *
+ * The base graph is never materialized as bitmaps. It is identified by the primary node label.
+ *
+ * Graph variables live for the lifetime of the storage. Metadata, predicate, and remote symbols are persisted in
+ * the symbol node as before.
+ */
 public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 
 	private final String symbolNodeLabel;
@@ -27,6 +37,9 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 	
 	public final String edgeLabelsPropertyName;
 
+	private final Map<String, IdBitmap> graphVertexIds = new HashMap<String, IdBitmap>();
+	private final Map<String, IdBitmap> graphEdgeIds = new HashMap<String, IdBitmap>();
+
 	public Neo4jQueryEnvironment(final String baseGraphName, final Neo4j storage, final String edgeLabelsPropertyName,
 			final String symbolNodeLabel){
 		super(baseGraphName);
@@ -81,6 +94,8 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 			throw new RuntimeException("Query storage in undefined state. " + "Expected only one node with label: '"
 					+ remoteSymbolNodeLabel + "'.");
 		}
+
+		dropLegacyGraphLabels();
 	}
 
 	@Override
@@ -152,13 +167,8 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 
 	@Override
 	public Map<String, Graph> readGraphSymbols(){
-		String graphSymbolsString = readSymbolNodePropertyAndValidate(propertyNameGraphSymbols);
-		final Map<String, String> symbolToGraphName = inflateMapFromString(propertyNameGraphSymbols, graphSymbolsString, ",", "=");
-		final Map<String, Graph> symbolToGraph = new HashMap<>();
-		for(final Map.Entry<String, String> entry : symbolToGraphName.entrySet()){
-			symbolToGraph.put(entry.getKey(), new Graph(entry.getValue()));
-		}
-		return symbolToGraph;
+		// Graph variables are held in memory only. Their contents do not outlive the storage instance.
+		return new HashMap<String, Graph>();
 	}
 
 	@Override
@@ -222,7 +232,7 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 
 	@Override
 	public void saveGraphSymbol(String symbol, String graphName, boolean symbolNameWasPresent){
-		updateGraphSymbols();
+		// In memory only
 	}
 
 	private final String createRemotePropertyValue(final Graph.Remote remote){
@@ -263,7 +273,7 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 
 	@Override
 	public void deleteGraphSymbol(String symbol){
-		updateGraphSymbols();
+		// In memory only
 	}
 
 	@Override
@@ -296,13 +306,6 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 		storage.executeQuery("match (" + "v:" + remoteSymbolNodeLabel + ") remove v.`" + graphName + "`;");
 	}
 
-	private void updateGraphSymbols(){
-		Map<String, String> map = getCurrentGraphSymbolsStringMap();
-		String value = deflateMapToString(map, ",", "=");
-		storage.executeQuery(
-				"match (x:" + symbolNodeLabel + ") " + "set x." + propertyNameGraphSymbols + "='" + value + "';");
-	}
-
 	private void updateMetadataSymbols(){
 		Map<String, String> map = getCurrentMetadataSymbolsStringMap();
 		String value = deflateMapToString(map, ",", "=");
@@ -318,93 +321,110 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 	}
 	
 	//////////////////////////////////
-	
-	private Set<String> getAllVertexLabels(){
-		return storage.getDatabaseManager().getAllLabels();
+
+	private final void mustNotBeBaseGraph(final Graph graph){
+		if(isBaseGraph(graph)){
+			throw new RuntimeException("Base graph is not materialized as ids");
+		}
 	}
-	
-	private Set<String> getAllEdgeLabels(){
-		final Set<String> allEdgeSymbols = new HashSet<String>();
-		final List<Map<String, Object>> edgeSymbolsPropertyValues = storage.executeQueryForSmallResult(
-				"match ()-[e]->() with distinct e."
-						+ edgeLabelsPropertyName + " as "
-						+ edgeLabelsPropertyName + " return "
-						+ edgeLabelsPropertyName
-				);
-		for(final Map<String, Object> map : edgeSymbolsPropertyValues){
-			final Object object = map.get(edgeLabelsPropertyName); // format of value = '<,a,>(repeat)'
-			if(object != null){ // ignore the null i.e. only exists in base
-				final String edgeSymbolsList = String.valueOf(object);
-				final String[] edgeSymbolsTokens = edgeSymbolsList.split(",");
-				for(final String edgeSymbolsToken : edgeSymbolsTokens){
-					if(!edgeSymbolsToken.isEmpty()){
-						allEdgeSymbols.add(edgeSymbolsToken);
-					}
-				}
-			}
+
+	/**
+	 * Returns the live vertex id set of the graph variable. Created (empty) if not present.
+	 */
+	public final synchronized IdBitmap getVertexIds(final Graph graph){
+		mustNotBeBaseGraph(graph);
+		IdBitmap ids = graphVertexIds.get(graph.name);
+		if(ids == null){
+			ids = new IdBitmap();
+			graphVertexIds.put(graph.name, ids);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the live edge id set of the graph variable. Created (empty) if not present.
+	 */
+	public final synchronized IdBitmap getEdgeIds(final Graph graph){
+		mustNotBeBaseGraph(graph);
+		IdBitmap ids = graphEdgeIds.get(graph.name);
+		if(ids == null){
+			ids = new IdBitmap();
+			graphEdgeIds.put(graph.name, ids);
+		}
+		return ids;
+	}
+
+	public final synchronized void clearGraphIds(final Graph graph){
+		mustNotBeBaseGraph(graph);
+		graphVertexIds.put(graph.name, new IdBitmap());
+		graphEdgeIds.put(graph.name, new IdBitmap());
+	}
+
+	public final synchronized long getGraphIdsMemberCount(){
+		long total = 0;
+		for(final IdBitmap ids : graphVertexIds.values()){
+			total += ids.cardinality();
+		}
+		for(final IdBitmap ids : graphEdgeIds.values()){
+			total += ids.cardinality();
 		}
-		return allEdgeSymbols;
+		return total;
+	}
+
+	private Set<String> getAllVertexLabels(){
+		return storage.getDatabaseManager().getAllLabels();
 	}
 
 	@Override
 	public final void doGarbageCollection(){
-		// Get all non-garbage labels
 		final Set<String> referencedGraphNames = new HashSet<String>();
 		referencedGraphNames.addAll(getCurrentGraphSymbolsStringMap().values());
 
-		final Set<String> nonGarbageNames = new HashSet<String>();
-		nonGarbageNames.addAll(referencedGraphNames); // Don't delete a label if it is reference in the symbol graph map
-		nonGarbageNames.add(getBaseGraph().name); // Don't delete the base vertex label i.e. VERTEX but depends on config
-		nonGarbageNames.add(symbolNodeLabel); // Don't delete the symbol node label used to store symbol info
-		nonGarbageNames.add(remoteSymbolNodeLabel); // Don't delete the remote symbol node label used to store symbol info
-
-		// Get all labels from the storage
-		final Set<String> allLabels = getAllVertexLabels();
-
-		// Collect garbage labels
-		final Set<String> garbageLabels = new HashSet<String>();
-		for(String label : allLabels){ // Collect all labels which have been generated by us
-			if(isSPADEGraphOrSPADEMetadataName(label)){
-				garbageLabels.add(label);
+		final Set<String> garbageGraphNames = new HashSet<String>();
+		synchronized(this){
+			garbageGraphNames.addAll(graphVertexIds.keySet());
+			garbageGraphNames.addAll(graphEdgeIds.keySet());
+			garbageGraphNames.removeAll(referencedGraphNames);
+			for(final String garbageGraphName : garbageGraphNames){
+				graphVertexIds.remove(garbageGraphName);
+				graphEdgeIds.remove(garbageGraphName);
 			}
 		}
-		garbageLabels.removeAll(nonGarbageNames); // Must never remove the non garbage labels
-
-		try{
-			dropVertexLabels(garbageLabels.toArray(new String[]{}));
-		}catch(Throwable t){
-			logger.log(Level.WARNING, "Failed to delete garbage labels from nodes: " + garbageLabels, t);
-		}
 
-		for(final String garbageLabel : garbageLabels){
-			deleteRemoteSymbols(garbageLabel);
+		for(final String garbageGraphName : garbageGraphNames){
+			deleteRemoteSymbols(garbageGraphName);
 		}
+	}
 
-		// Garbage labels dropped from nodes by now
-
-		// Get all symbols from the property
-		final Set<String> allEdgeSymbols = getAllEdgeLabels();
-
-		final Set<String> garbageEdgeSymbols = new HashSet<String>();
-		for(String allEdgeSymbol : allEdgeSymbols){
-			if(isSPADEGraphOrSPADEMetadataName(allEdgeSymbol)){
-				garbageEdgeSymbols.add(allEdgeSymbol);
+	/**
+	 * Graph variables used to be stored as node labels and as a comma-separated relationship property.
+	 * Remove them when the symbol storage is set up in case a database written by an older version is opened.
+	 */
+	private final void dropLegacyGraphLabels(){
+		final Set<String> legacyLabels = new HashSet<String>();
+		for(final String label : getAllVertexLabels()){
+			if(isSPADEGraphOrSPADEMetadataName(label)){
+				legacyLabels.add(label);
 			}
 		}
-		garbageEdgeSymbols.removeAll(referencedGraphNames);
-
-		if(!garbageEdgeSymbols.isEmpty()){
-			for(String garbageEdgeSymbol : garbageEdgeSymbols){
-				try{
-					dropEdgeSymbol(garbageEdgeSymbol);
-					deleteRemoteSymbols(garbageEdgeSymbol);
-				}catch(Throwable t){
-					logger.log(Level.WARNING, "Failed to delete garbage value in '"+edgeLabelsPropertyName+"' key of edges: '" + garbageEdgeSymbol + "'.", t);
-				}
+		legacyLabels.remove(getBaseGraph().name);
+		legacyLabels.remove(symbolNodeLabel);
+		legacyLabels.remove(remoteSymbolNodeLabel);
+
+		if(!legacyLabels.isEmpty()){
+			try{
+				dropVertexLabels(legacyLabels.toArray(new String[]{}));
+				storage.executeQuery("match ()-[e]->() where exists(e.`" + edgeLabelsPropertyName + "`) "
+						+ "remove e.`" + edgeLabelsPropertyName + "`;");
+			}catch(Throwable t){
+				logger.log(Level.WARNING, "Failed to delete legacy graph labels from nodes: " + legacyLabels, t);
+			}
+			for(final String legacyLabel : legacyLabels){
+				deleteRemoteSymbols(legacyLabel);
 			}
 		}
 	}
-	
+
 	public final void dropVertexLabels(String... labels){
 		if(labels != null){
 			String queryLabels = "";
@@ -420,16 +440,4 @@ public class Neo4jQueryEnvironment extends AbstractQueryEnvironment{
 			}
 		}
 	}
-	
-	public final void dropEdgeSymbol(String symbol){
-		if(!HelperFunctions.isNullOrEmpty(symbol)){
-			symbol = symbol.trim();
-			String matchClause = "match ()-[e]->()";
-			String whereClause = "where e." + edgeLabelsPropertyName + " contains ',"+symbol+",'";
-			String setClause = "set e." + edgeLabelsPropertyName + " = replace(e." + edgeLabelsPropertyName+ ", "
-					+ "',"+symbol+",', '');";
-			String query = matchClause + " " + whereClause + " " + setClause;
-			storage.executeQuery(query);
-		}
-	}
 }
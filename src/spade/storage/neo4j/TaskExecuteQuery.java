@@ -20,6 +20,7 @@
 package spade.storage.neo4j;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +32,7 @@ import spade.storage.Neo4j;
 public class TaskExecuteQuery extends StorageTask<List<Map<String, Object>>>{
 
 	private final String cypherQuery;
+	private final Map<String, Object> parameters;
 
 	@Override
 	public String toString(){
@@ -38,15 +40,20 @@ public class TaskExecuteQuery extends StorageTask<List<Map<String, Object>>>{
 	}
 
 	public TaskExecuteQuery(final String cypherQuery){
+		this(cypherQuery, Collections.emptyMap());
+	}
+
+	public TaskExecuteQuery(final String cypherQuery, final Map<String, Object> parameters){
 		super(true, true);
 		this.cypherQuery = cypherQuery;
+		this.parameters = parameters;
 	}
 
 	@Override
 	public final List<Map<String, Object>> execute(final Neo4j storage, final Transaction tx) throws Exception{
 		final List<Map<String, Object>> listOfMaps = new ArrayList<Map<String, Object>>();
 		final long startTime = System.currentTimeMillis();
-		org.neo4j.graphdb.Result result = tx.execute(cypherQuery);
+		org.neo4j.graphdb.Result result = tx.execute(cypherQuery, parameters);
 		final long endTime = System.currentTimeMillis();
 		storage.debug((endTime - startTime) + " millis taken to execute query '" + cypherQuery + "'");
 		while(result.hasNext()){
@@ -19,6 +19,7 @@
  */
 package spade.storage.neo4j;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -33,6 +34,7 @@ public class TaskGetHashToVertexMap extends StorageTask<Map<String, Map<String,
 
 	private final String query;
 	private final String vertexAliasInQuery;
+	private final Map<String, Object> parameters;
 	
 	@Override
 	public String toString(){
@@ -40,9 +42,14 @@ public class TaskGetHashToVertexMap extends StorageTask<Map<String, Map<String,
 	}
 	
 	public TaskGetHashToVertexMap(final String query, final String vertexAliasInQuery){
+		this(query, vertexAliasInQuery, Collections.emptyMap());
+	}
+
+	public TaskGetHashToVertexMap(final String query, final String vertexAliasInQuery, final Map<String, Object> parameters){
 		super(true, true);
 		this.query = query;
 		this.vertexAliasInQuery = vertexAliasInQuery;
+		this.parameters = parameters;
 	}
 
 	@Override
@@ -50,7 +57,7 @@ public class TaskGetHashToVertexMap extends StorageTask<Map<String, Map<String,
 		Map<String, Map<String, String>> hashToVertexAnnotations = new HashMap<String, Map<String, String>>();
 		
 		final long startTime = System.currentTimeMillis();
-		org.neo4j.graphdb.Result result = tx.execute(query);
+		org.neo4j.graphdb.Result result = tx.execute(query, parameters);
 		final long endTime = System.currentTimeMillis();
 		storage.debug((endTime - startTime) + " millis taken to execute query '" + query + "'");
 		
@@ -0,0 +1,81 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2020 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.neo4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Transaction;
+
+import spade.storage.Neo4j;
+
+/**
+ * Reads the given numeric (id) columns of each row as a long array in the order of the column names.
+ * Rows with a NULL in any of the columns are skipped.
+ */
+public class TaskGetIdRows extends StorageTask<List<long[]>>{
+
+	private final String cypherQuery;
+	private final Map<String, Object> parameters;
+	private final String[] columnNames;
+
+	@Override
+	public String toString(){
+		return "TaskGetIdRows [cypherQuery=" + cypherQuery + ", columnNames=" + Arrays.toString(columnNames) + "]";
+	}
+
+	public TaskGetIdRows(final String cypherQuery, final Map<String, Object> parameters, final String... columnNames){
+		super(true, true);
+		this.cypherQuery = cypherQuery;
+		this.parameters = parameters;
+		this.columnNames = columnNames;
+	}
+
+	@Override
+	public final List<long[]> execute(final Neo4j storage, final Transaction tx) throws Exception{
+		final List<long[]> rows = new ArrayList<long[]>();
+		final long startTime = System.currentTimeMillis();
+		org.neo4j.graphdb.Result result = tx.execute(cypherQuery, parameters);
+		final long endTime = System.currentTimeMillis();
+		storage.debug((endTime - startTime) + " millis taken to execute query '" + cypherQuery + "'");
+		while(result.hasNext()){
+			final Map<String, Object> map = result.next();
+			final long[] row = new long[columnNames.length];
+			boolean valid = true;
+			for(int i = 0; i < columnNames.length; i++){
+				final Object value = map.get(columnNames[i]);
+				if(value instanceof Number){
+					row[i] = ((Number)value).longValue();
+				}else{
+					valid = false;
+					break;
+				}
+			}
+			if(valid){
+				rows.add(row);
+			}
+		}
+		result.close();
+		setResult(rows);
+		return rows;
+	}
+}
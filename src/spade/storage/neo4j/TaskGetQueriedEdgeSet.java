@@ -19,6 +19,7 @@
  */
 package spade.storage.neo4j;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -36,6 +37,7 @@ public class TaskGetQueriedEdgeSet extends StorageTask<Set<QueriedEdge>>{
 
 	private final String query;
 	private final String relationshipAliasInQuery;
+	private final Map<String, Object> parameters;
 	
 	@Override
 	public String toString(){
@@ -43,9 +45,14 @@ public class TaskGetQueriedEdgeSet extends StorageTask<Set<QueriedEdge>>{
 	}
 	
 	public TaskGetQueriedEdgeSet(final String query, final String relationshipAliasInQuery){
+		this(query, relationshipAliasInQuery, Collections.emptyMap());
+	}
+
+	public TaskGetQueriedEdgeSet(final String query, final String relationshipAliasInQuery, final Map<String, Object> parameters){
 		super(true, true);
 		this.query = query;
 		this.relationshipAliasInQuery = relationshipAliasInQuery;
+		this.parameters = parameters;
 	}
 
 	@Override
@@ -53,7 +60,7 @@ public class TaskGetQueriedEdgeSet extends StorageTask<Set<QueriedEdge>>{
 		final Set<QueriedEdge> edgeSet = new HashSet<QueriedEdge>();
 		
 		final long startTime = System.currentTimeMillis();
-		org.neo4j.graphdb.Result result = tx.execute(query);
+		org.neo4j.graphdb.Result result = tx.execute(query, parameters);
 		final long endTime = System.currentTimeMillis();
 		storage.debug((endTime - startTime) + " millis taken to execute query '" + query + "'");
 		
@@ -0,0 +1,105 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.storage.Neo4j;
+
+/**
+ * Puts the vertices and edges which are not in the database yet, and returns the ids of all of them along with the
+ * vertices and edges which were put. Done in one transaction.
+ */
+public class TaskUpsertGraph extends StorageTask<TaskUpsertGraph.Result>{
+
+	public static final class Result{
+		public final List<Long> vertexIds = new ArrayList<Long>();
+		public final List<Long> edgeIds = new ArrayList<Long>();
+		public final List<AbstractVertex> putVertices = new ArrayList<AbstractVertex>();
+		public final List<AbstractEdge> putEdges = new ArrayList<AbstractEdge>();
+	}
+
+	private final List<AbstractVertex> vertices;
+	private final List<AbstractEdge> edges;
+
+	@Override
+	public String toString(){
+		return "TaskUpsertGraph [vertices=" + vertices.size() + ", edges=" + edges.size() + "]";
+	}
+
+	public TaskUpsertGraph(final List<AbstractVertex> vertices, final List<AbstractEdge> edges){
+		super(true, true);
+		this.vertices = vertices;
+		this.edges = edges;
+	}
+
+	private final boolean vertexExists(final Neo4j storage, final Transaction tx, final String hashCode){
+		return storage.getCacheManager().vertexCacheGet(hashCode) != null
+				|| storage.getCacheManager().executeTaskGetNodeByHashCode(hashCode, tx) != null;
+	}
+
+	@Override
+	public final Result execute(final Neo4j storage, final Transaction tx) throws Exception{
+		final Result result = new Result();
+		for(final AbstractVertex vertex : vertices){
+			final boolean exists = vertexExists(storage, tx, vertex.bigHashCode());
+			final Node node = new TaskPutVertex(vertex).execute(storage, tx);
+			result.vertexIds.add(node.getId());
+			if(!exists){
+				result.putVertices.add(vertex);
+			}
+		}
+
+		final List<String> existingEdgeHashes = new ArrayList<String>();
+		for(final AbstractEdge edge : edges){
+			final Relationship relationship = new TaskPutEdge(edge).execute(storage, tx);
+			if(relationship == null){
+				existingEdgeHashes.add(edge.bigHashCode());
+			}else{
+				result.edgeIds.add(relationship.getId());
+				result.putEdges.add(edge);
+			}
+		}
+		if(!existingEdgeHashes.isEmpty()){
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			parameters.put("hashes", existingEdgeHashes);
+			final org.neo4j.graphdb.Result existingEdges = tx.execute("match ()-[e]->() where e.`"
+					+ storage.getConfiguration().hashPropertyName + "` in $hashes return id(e) as id;", parameters);
+			while(existingEdges.hasNext()){
+				final Object id = existingEdges.next().get("id");
+				if(id instanceof Number){
+					result.edgeIds.add(((Number)id).longValue());
+				}
+			}
+			existingEdges.close();
+		}
+		setResult(result);
+		return result;
+	}
+}
@@ -24,11 +24,16 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.query.quickgrail.core.BatchIterator;
 import spade.query.quickgrail.core.GraphDescription;
 import spade.query.quickgrail.core.GraphStatistic;
 import spade.query.quickgrail.core.GraphStatistic.Interval;
@@ -64,6 +69,136 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 	private final String vertexAnnotationTableName;
 	private final String edgeAnnotationTableName;
 
+	// Cursor names must be unique in the session since the connection is shared
+	private static final AtomicLong exportCursorCount = new AtomicLong(0);
+
+	/*
+	 * Traversals run server-side as one call per operator instead of one round trip per hop. Each hop joins the
+	 * frontier against the edge table (hash-joinable, unlike 'in (select ...)') and the frontier is analyzed so that
+	 * the planner sees its actual size on the next hop.
+	 */
+	private static final String functionNameLineage = "spade_lineage";
+	private static final String functionNamePath = "spade_path";
+
+	private static final String queryCreateTemporaryTables =
+			"	create temp table if not exists spade_visited(id uuid primary key);\n"
+			+ "	create temp table if not exists spade_frontier(id uuid);\n"
+			+ "	create temp table if not exists spade_level(edge_id uuid, vertex_id uuid);\n"
+			+ "	create temp table if not exists spade_answer_edge(id uuid);\n"
+			+ "	create temp table if not exists spade_subgraph(edge_id uuid, child_id uuid, parent_id uuid, depth int);\n"
+			+ "	truncate spade_visited, spade_frontier, spade_level, spade_answer_edge, spade_subgraph;\n";
+
+	private static final String querySubjectFilter =
+			"	if subject_edge_table is not null then\n"
+			+ "		subject_filter := format(' and exists (select 1 from %s s where s.%s = e.%s)', subject_edge_table, id_column, id_column);\n"
+			+ "	end if;\n";
+
+	// Moves the frontier to the unvisited vertices in spade_level. Exits the enclosing loop if there are none.
+	private static final String queryAdvanceFrontier =
+			"		truncate spade_frontier;\n"
+			+ "		insert into spade_frontier select distinct l.vertex_id from spade_level l"
+			+ " where not exists (select 1 from spade_visited v where v.id = l.vertex_id);\n"
+			+ "		get diagnostics frontier_size = row_count;\n"
+			+ "		exit when frontier_size = 0;\n"
+			+ "		insert into spade_visited select id from spade_frontier;\n"
+			+ "		analyze spade_frontier;\n";
+
+	private static final String queryCreateFunctionLineage =
+			"create or replace function " + functionNameLineage + "(start_vertex_table text, subject_edge_table text,"
+			+ " target_vertex_table text, target_edge_table text, edge_table text,"
+			+ " id_column text, child_column text, parent_column text, max_depth int, ancestors boolean)"
+			+ " returns void as $spade$\n"
+			+ "declare\n"
+			+ "	src_column text := case when ancestors then child_column else parent_column end;\n"
+			+ "	dst_column text := case when ancestors then parent_column else child_column end;\n"
+			+ "	subject_filter text := '';\n"
+			+ "	frontier_size bigint;\n"
+			+ "begin\n"
+			+ querySubjectFilter
+			+ queryCreateTemporaryTables
+			+ "	execute format('insert into spade_visited select %s from %s where %s is not null on conflict do nothing',"
+			+ " id_column, start_vertex_table, id_column);\n"
+			+ "	insert into spade_frontier select id from spade_visited;\n"
+			+ "	analyze spade_frontier;\n"
+			+ "	for hop in 1..max_depth loop\n"
+			+ "		truncate spade_level;\n"
+			+ "		execute format('insert into spade_level select e.%s, e.%I from %s e join spade_frontier f on e.%I = f.id where true%s',"
+			+ " id_column, dst_column, edge_table, src_column, subject_filter);\n"
+			+ "		insert into spade_answer_edge select edge_id from spade_level;\n"
+			+ queryAdvanceFrontier
+			+ "	end loop;\n"
+			+ "	execute format('insert into %s select id from spade_visited', target_vertex_table);\n"
+			+ "	execute format('insert into %s select distinct id from spade_answer_edge', target_edge_table);\n"
+			+ "end;\n"
+			+ "$spade$ language plpgsql";
+
+	/*
+	 * First walks back from the destination vertices recording every edge seen along with its distance from the
+	 * destination. Then walks forward from the source vertices over the recorded edges only, keeping an edge if it
+	 * can still reach a destination within max_depth. With 'undirected' edges are followed both ways, and the result
+	 * gets all edges between the answer vertices.
+	 */
+	private static final String queryCreateFunctionPath =
+			"create or replace function " + functionNamePath + "(src_vertex_table text, dst_vertex_table text,"
+			+ " subject_edge_table text, target_vertex_table text, target_edge_table text, edge_table text,"
+			+ " id_column text, child_column text, parent_column text, max_depth int, undirected boolean)"
+			+ " returns void as $spade$\n"
+			+ "declare\n"
+			+ "	subject_filter text := '';\n"
+			+ "	frontier_size bigint;\n"
+			+ "begin\n"
+			+ querySubjectFilter
+			+ queryCreateTemporaryTables
+			+ "	execute format('insert into spade_visited select %s from %s where %s is not null on conflict do nothing',"
+			+ " id_column, dst_vertex_table, id_column);\n"
+			+ "	insert into spade_frontier select id from spade_visited;\n"
+			+ "	analyze spade_frontier;\n"
+			+ "	for hop in 1..max_depth loop\n"
+			+ "		execute format('insert into spade_subgraph select e.%s, e.%I, e.%I, %s from %s e"
+			+ " join spade_frontier f on e.%I = f.id where true%s',"
+			+ " id_column, child_column, parent_column, hop, edge_table, parent_column, subject_filter);\n"
+			+ "		if undirected then\n"
+			+ "			execute format('insert into spade_subgraph select e.%s, e.%I, e.%I, %s from %s e"
+			+ " join spade_frontier f on e.%I = f.id where true%s',"
+			+ " id_column, child_column, parent_column, hop, edge_table, child_column, subject_filter);\n"
+			+ "		end if;\n"
+			+ "		truncate spade_level;\n"
+			+ "		insert into spade_level select edge_id, child_id from spade_subgraph where depth = hop;\n"
+			+ "		insert into spade_level select edge_id, parent_id from spade_subgraph where depth = hop;\n"
+			+ queryAdvanceFrontier
+			+ "	end loop;\n"
+			+ "	analyze spade_subgraph;\n"
+			+ "	truncate spade_frontier;\n"
+			+ "	execute format('insert into spade_frontier select distinct s.%s from %s s join spade_visited v on v.id = s.%s',"
+			+ " id_column, src_vertex_table, id_column);\n"
+			+ "	truncate spade_visited;\n"
+			+ "	insert into spade_visited select id from spade_frontier;\n"
+			+ "	analyze spade_frontier;\n"
+			+ "	for hop in 0..max_depth - 1 loop\n"
+			+ "		truncate spade_level;\n"
+			+ "		insert into spade_level select g.edge_id, g.parent_id from spade_subgraph g"
+			+ " join spade_frontier f on g.child_id = f.id where g.depth + hop <= max_depth;\n"
+			+ "		if undirected then\n"
+			+ "			insert into spade_level select g.edge_id, g.child_id from spade_subgraph g"
+			+ " join spade_frontier f on g.parent_id = f.id where g.depth + hop <= max_depth;\n"
+			+ "		end if;\n"
+			+ "		insert into spade_answer_edge select edge_id from spade_level;\n"
+			+ queryAdvanceFrontier
+			+ "	end loop;\n"
+			+ "	execute format('insert into %s select id from spade_visited', target_vertex_table);\n"
+			+ "	if undirected then\n"
+			+ "		execute format('insert into %s select e.%s from %s e"
+			+ " where exists (select 1 from spade_visited c where c.id = e.%I)"
+			+ " and exists (select 1 from spade_visited p where p.id = e.%I)%s',"
+			+ " target_edge_table, id_column, edge_table, child_column, parent_column, subject_filter);\n"
+			+ "	else\n"
+			+ "		execute format('insert into %s select distinct id from spade_answer_edge', target_edge_table);\n"
+			+ "	end if;\n"
+			+ "end;\n"
+			+ "$spade$ language plpgsql";
+
+	private boolean traversalFunctionsCreated = false;
+
 	public PostgreSQLInstructionExecutor(PostgreSQL storage, PostgreSQLQueryEnvironment queryEnvironment,
 			String idColumnName, String idChildVertexColumnName, String idParentVertexColumnName,
 			String vertexAnnotationTableName, String edgeAnnotationTableName){
@@ -233,6 +368,18 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		}
 	}
 
+	@Override
+	protected int upsertVertices(final Graph targetGraph, final List<AbstractVertex> vertices,
+			final List<String> unlinkedHashes){
+		return storage.upsertVertices(getVertexTableName(targetGraph), vertices);
+	}
+
+	@Override
+	protected int upsertEdges(final Graph targetGraph, final List<AbstractEdge> edges,
+			final List<String> unlinkedHashes){
+		return storage.upsertEdges(getEdgeTableName(targetGraph), edges);
+	}
+
 	private void createUUIDTable(String tableName, boolean deleteFirst){
 		if(deleteFirst){
 			dropTable(tableName);
@@ -263,6 +410,22 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		executeQueryForResult(dropQuery, false);
 	}
 
+	private synchronized void createTraversalFunctionsIfMissing(){
+		if(!traversalFunctionsCreated){
+			executeQueryForResult(queryCreateFunctionLineage, false);
+			executeQueryForResult(queryCreateFunctionPath, false);
+			traversalFunctionsCreated = true;
+		}
+	}
+
+	private String getSubjectEdgeTableNameOrNullIfBase(final Graph subjectGraph){
+		return queryEnvironment.isBaseGraph(subjectGraph) ? null : getEdgeTableName(subjectGraph);
+	}
+
+	private String formatLiteral(final String value){
+		return value == null ? "null" : "'" + value.replace("'", "''") + "'";
+	}
+
 	@Override
 	public void createEmptyGraph(Graph graph){
 		String vertexTable = getVertexTableName(graph);
@@ -974,83 +1137,21 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 
 	@Override
 	public void getAdjacentVertex(Graph targetGraph, Graph subjectGraph, Graph sourceGraph, GetLineage.Direction directionArg){
-		final List<Direction> directions = new ArrayList<Direction>();
-		if(directionArg == Direction.kBoth){
-			directions.add(Direction.kAncestor);
-			directions.add(Direction.kDescendant);
-		}else{
-			directions.add(directionArg);
-		}
-
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String cursorTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String answerEdgeTable = "m_answer_edge";
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) ? ""
-				: " and " + getEdgeAnnotationTableName() + "." + getIdColumnName() 
-				+ " in (select "+getIdColumnName()+" from "+subjectEdgeTable+")";
-
-		for(final Direction direction : directions){
-			if(direction != Direction.kAncestor && direction != Direction.kDescendant){
-				throw new RuntimeException("Unexpected direction: " + direction);
-			}
-			final String startVertexTable = getVertexTableName(sourceGraph);
-			final String src = direction == Direction.kAncestor ? getIdColumnNameChildVertex() : getIdColumnNameParentVertex();
-			final String dst = direction == Direction.kAncestor ? getIdColumnNameParentVertex() : getIdColumnNameChildVertex();
-			
-			createUUIDTable(cursorTable, true);
-			createUUIDTable(nextTable, true);
-			createUUIDTable(answerTable, true);
-			createUUIDTable(answerEdgeTable, true);
-
-			executeQueryForResult("insert into "+cursorTable+" select "+getIdColumnName()+" from " + startVertexTable + ";", false);
-			executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + cursorTable + ";", false);
-
-			for(int i = 0; i < 1; ++i){
-				createUUIDTable(nextTable, true);
-				executeQueryForResult("insert into " + nextTable + " select \"" + dst + "\" from " + getEdgeAnnotationTableName()
-					+ " where \"" + src + "\" in (select "+getIdColumnName()+" from "+cursorTable+")"
-					+ " " + filter + " group by \"" + dst + "\";", false);
-				executeQueryForResult("insert into " + answerEdgeTable + " select " + getIdColumnName() + " from " + getEdgeAnnotationTableName()
-					+ " where \"" + src + "\" in (select "+getIdColumnName()+" from "+cursorTable+") " + filter + ";", false);
-				createUUIDTable(cursorTable, true);
-				executeQueryForResult("insert into " + cursorTable + " select " + getIdColumnName() + " from " + nextTable
-						+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");", false);
-				executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + cursorTable + ";", 
-						false);
-
-				List<List<String>> countResult = executeQueryForResult("select count(*) from "+cursorTable+";", false);
-				long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-				if(cursorTableCount == 0){
-					break;
-				}
-			}
+		getLineage(targetGraph, subjectGraph, sourceGraph, 1, directionArg);
+	}
 
-			executeQueryForResult("insert into " + targetVertexTable 
-					+ " select " + getIdColumnName() + " from " + answerTable + ";", false);
-			executeQueryForResult("insert into " + targetEdgeTable 
-					+ " select " + getIdColumnName() + " from " + answerEdgeTable + " group by " + getIdColumnName() + ";", false);
-		}
+	private String getExportVerticesQuery(final Graph targetGraph){
+		return "select * from " + getVertexAnnotationTableName() + " where " + getIdColumnName() + " in (select "
+				+ getIdColumnName() + " from " + getVertexTableName(targetGraph) + ")";
+	}
 
-		dropTable(cursorTable);
-		dropTable(nextTable);
-		dropTable(answerEdgeTable);
-		dropTable(answerTable);
+	private String getExportEdgesQuery(final Graph targetGraph){
+		return "select * from " + getEdgeAnnotationTableName() + " where " + getIdColumnName() + " in (select "
+				+ getIdColumnName() + " from " + getEdgeTableName(targetGraph) + ")";
 	}
 
-	@Override
-	public Map<String, Map<String, String>> exportVertices(final Graph targetGraph){
-		String targetVertexTable = getVertexTableName(targetGraph);
-		
-		List<List<String>> verticesListOfList = executeQueryForResult("select * from " + getVertexAnnotationTableName() 
-				+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+targetVertexTable+")", true);
-		
-		List<String> vertexHeader = verticesListOfList.remove(0); // remove the header
-		
+	private Map<String, Map<String, String>> toHashToVertexMap(final List<String> vertexHeader,
+			final List<List<String>> verticesListOfList){
 		Map<String, Map<String, String>> hashToVertexMap = new HashMap<String, Map<String, String>>();
 		
 		for(List<String> vertexList : verticesListOfList){
@@ -1071,16 +1172,8 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		}
 		return hashToVertexMap;
 	}
-	
-	@Override
-	public Set<QueriedEdge> exportEdges(final Graph targetGraph){
-		String targetEdgeTable = getEdgeTableName(targetGraph);
-		
-		List<List<String>> edgesListOfList = executeQueryForResult("select * from " + getEdgeAnnotationTableName() 
-		+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+targetEdgeTable+")", true);
 
-		List<String> edgeHeader = edgesListOfList.remove(0); // remove the header
-		
+	private Set<QueriedEdge> toQueriedEdgeSet(final List<String> edgeHeader, final List<List<String>> edgesListOfList){
 		Set<QueriedEdge> edgeSet = new HashSet<QueriedEdge>();
 		
 		for(List<String> edgeList : edgesListOfList){
@@ -1109,6 +1202,100 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		return edgeSet;
 	}
 
+	@Override
+	public Map<String, Map<String, String>> exportVertices(final Graph targetGraph){
+		List<List<String>> verticesListOfList = executeQueryForResult(getExportVerticesQuery(targetGraph), true);
+		List<String> vertexHeader = verticesListOfList.remove(0); // remove the header
+		return toHashToVertexMap(vertexHeader, verticesListOfList);
+	}
+	
+	@Override
+	public Set<QueriedEdge> exportEdges(final Graph targetGraph){
+		List<List<String>> edgesListOfList = executeQueryForResult(getExportEdgesQuery(targetGraph), true);
+		List<String> edgeHeader = edgesListOfList.remove(0); // remove the header
+		return toQueriedEdgeSet(edgeHeader, edgesListOfList);
+	}
+
+	@Override
+	public BatchIterator<Map<String, Map<String, String>>> exportVerticesInBatches(final Graph targetGraph,
+			final int batchSize){
+		return new CursorBatchIterator<Map<String, Map<String, String>>>(getExportVerticesQuery(targetGraph), batchSize){
+			@Override
+			protected Map<String, Map<String, String>> toBatch(final List<String> header, final List<List<String>> rows){
+				return toHashToVertexMap(header, rows);
+			}
+		};
+	}
+
+	@Override
+	public BatchIterator<Set<QueriedEdge>> exportEdgesInBatches(final Graph targetGraph, final int batchSize){
+		return new CursorBatchIterator<Set<QueriedEdge>>(getExportEdgesQuery(targetGraph), batchSize){
+			@Override
+			protected Set<QueriedEdge> toBatch(final List<String> header, final List<List<String>> rows){
+				return toQueriedEdgeSet(header, rows);
+			}
+		};
+	}
+
+	/*
+	 * Server-side cursor over the result of the query. The cursor is declared 'with hold' since the connection is
+	 * in auto-commit mode. Only one batch of rows is in memory at a time.
+	 */
+	private abstract class CursorBatchIterator<T> extends BatchIterator<T>{
+		private final String cursorName;
+		private List<String> header = null;
+		private List<List<String>> nextRows = null;
+		private boolean exhausted = false;
+		private boolean closed = false;
+
+		private CursorBatchIterator(final String query, final int batchSize){
+			super(batchSize);
+			this.cursorName = "spade_export_cursor_" + exportCursorCount.incrementAndGet();
+			executeQueryForResult("declare " + cursorName + " no scroll cursor with hold for " + query + ";", false);
+		}
+
+		protected abstract T toBatch(final List<String> header, final List<List<String>> rows);
+
+		private void fetchIfNeeded(){
+			if(nextRows == null && !exhausted){
+				final List<List<String>> rows = executeQueryForResult(
+						"fetch forward " + batchSize + " from " + cursorName + ";", true);
+				header = rows.remove(0);
+				if(rows.isEmpty()){
+					exhausted = true;
+					close();
+				}else{
+					nextRows = rows;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNextBatch(){
+			fetchIfNeeded();
+			return nextRows != null;
+		}
+
+		@Override
+		public T nextBatch(){
+			fetchIfNeeded();
+			if(nextRows == null){
+				throw new NoSuchElementException();
+			}
+			final List<List<String>> rows = nextRows;
+			nextRows = null;
+			return toBatch(header, rows);
+		}
+
+		@Override
+		public void close(){
+			if(!closed){
+				closed = true;
+				executeQueryForResult("close " + cursorName + ";", false);
+			}
+		}
+	}
+
 	@Override
 	public void collapseEdge(Graph targetGraph, Graph sourceGraph, ArrayList<String> fields){
 		String sourceVertexTable = getVertexTableName(sourceGraph);
@@ -1304,297 +1491,55 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 			directions.add(directionArg);
 		}
 
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String currentTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String answerEdgeTable = "m_answer_edge";
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) ? ""
-				: " and " + getEdgeAnnotationTableName() + "." + getIdColumnName() 
-				+ " in (select "+getIdColumnName()+" from "+subjectEdgeTable+")";
+		createTraversalFunctionsIfMissing();
 
 		for(final Direction direction : directions){
 			if(direction != Direction.kAncestor && direction != Direction.kDescendant){
 				throw new RuntimeException("Unexpected direction: " + direction);
 			}
-			final String startVertexTable = getVertexTableName(startGraph);
-			final String src = direction == Direction.kAncestor ? getIdColumnNameChildVertex() : getIdColumnNameParentVertex();
-			final String dst = direction == Direction.kAncestor ? getIdColumnNameParentVertex() : getIdColumnNameChildVertex();
-			
-			createUUIDTable(currentTable, true);
-			createUUIDTable(nextTable, true);
-			createUUIDTable(answerTable, true);
-			createUUIDTable(answerEdgeTable, true);
-
-			executeQueryForResult("insert into "+currentTable+" select "+getIdColumnName()+" from " + startVertexTable + ";", false);
-			executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";", false);
-
-			for(int i = 0; i < depth; ++i){
-				createUUIDTable(nextTable, true);
-				executeQueryForResult("insert into " + nextTable + " select \"" + dst + "\" from " + getEdgeAnnotationTableName()
-					+ " where \"" + src + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-					+ " " + filter + " group by \"" + dst + "\";", false);
-				executeQueryForResult("insert into " + answerEdgeTable + " select " + getIdColumnName() + " from " + getEdgeAnnotationTableName()
-					+ " where \"" + src + "\" in (select "+getIdColumnName()+" from "+currentTable+") " + filter + ";", false);
-				createUUIDTable(currentTable, true);
-				executeQueryForResult("insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable
-						+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");", false);
-				executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";", 
-						false);
-
-				List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-				long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-				if(cursorTableCount == 0){
-					break;
-				}
-			}
-
-			executeQueryForResult("insert into " + targetVertexTable 
-					+ " select " + getIdColumnName() + " from " + answerTable + ";", false);
-			executeQueryForResult("insert into " + targetEdgeTable 
-					+ " select " + getIdColumnName() + " from " + answerEdgeTable + " group by " + getIdColumnName() + ";", false);
+			executeQueryForResult("select " + functionNameLineage + "("
+					+ formatLiteral(getVertexTableName(startGraph)) + ", "
+					+ formatLiteral(getSubjectEdgeTableNameOrNullIfBase(subjectGraph)) + ", "
+					+ formatLiteral(getVertexTableName(targetGraph)) + ", "
+					+ formatLiteral(getEdgeTableName(targetGraph)) + ", "
+					+ formatLiteral(getEdgeAnnotationTableName()) + ", "
+					+ formatLiteral(getIdColumnName()) + ", "
+					+ formatLiteral(getIdColumnNameChildVertex()) + ", "
+					+ formatLiteral(getIdColumnNameParentVertex()) + ", "
+					+ depth + ", "
+					+ (direction == Direction.kAncestor) + ");", false);
 		}
-
-		dropTable(currentTable);
-		dropTable(nextTable);
-		dropTable(answerEdgeTable);
-		dropTable(answerTable);
 	}
-	
+
 	@Override
 	public void getSimplePath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		
-		final String depthColumnName = "depth";
-		final String currentTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String currentSubgraphTable = "m_sgconn";
-		
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String dstVertexTable = getVertexTableName(dstGraph);
-		final String srcVertexTable = getVertexTableName(srcGraph);
-		
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		createUUIDTable(answerTable, true);
-		
-		dropTable(currentSubgraphTable);
-		executeQueryForResult("create table " + currentSubgraphTable + "("
-				+ "\""+getIdColumnNameChildVertex()+"\" uuid, "
-				+ "\""+getIdColumnNameParentVertex()+"\" uuid, "
-				+ depthColumnName + " int);", false);
-
-		executeQueryForResult("insert into "+currentTable+" select "+getIdColumnName()+" from " + dstVertexTable, false);
-		executeQueryForResult("insert into "+answerTable+" select "+getIdColumnName()+" from " + currentTable, false);
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) 
-				? "" : " and "+getEdgeAnnotationTableName()+"."+getIdColumnName()+" in (select "+getIdColumnName()+" from " + subjectEdgeTable + ")";
-		
-		final String q0 = "insert into " + currentSubgraphTable + " select \"" + getIdColumnNameChildVertex() + "\", \""
-				+ getIdColumnNameParentVertex() + "\", %s from " + getEdgeAnnotationTableName() + " where \""
-				+ getIdColumnNameParentVertex() + "\" in (select " + getIdColumnName() + " from " + currentTable + ")"
-				+ " " + filter + ";";
-		final String q1 = ""; // createUUIDTable(nextTable, true);
-		final String q2 = "insert into " + nextTable + " select \"" + getIdColumnNameChildVertex() + "\" from "
-				+ getEdgeAnnotationTableName() + " where \"" + getIdColumnNameParentVertex() + "\" in (select "
-				+ getIdColumnName() + " from " + currentTable + ")" + " " + filter + " group by \""
-				+ getIdColumnNameChildVertex() + "\";";
-		final String q3 = ""; // createUUIDTable(cursorTable, true);
-		final String q4 = "insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable
-				+ " where " + getIdColumnName() + " not in (select " + getIdColumnName() + " from " + answerTable
-				+ ");";
-		final String q5 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-		
-		for(int i = 0; i < maxDepth; ++i){
-			final String formattedQ0 = String.format(q0, i+1);
-			
-			executeQueryForResult(formattedQ0, false);
-			createUUIDTable(nextTable, true);
-			executeQueryForResult(q2, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(q4, false);
-			executeQueryForResult(q5, false);
-
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		
-		executeQueryForResult("insert into " + currentTable + " select " + getIdColumnName() + " from " + srcVertexTable
-				+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+answerTable+");", false);
-
-		createUUIDTable(answerTable, true);
-		
-		executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable, false);
-
-		final String qq0 = ""; // createUUIDTable(nextTable, true);
-		final String qq1 = "insert into " + nextTable + " select \"" + getIdColumnNameParentVertex() + "\" from " + currentSubgraphTable
-				+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " and " + depthColumnName + " + %s <= " + maxDepth + " group by \""+getIdColumnNameParentVertex()+"\";";
-		final String qq2 = "insert into " + targetEdgeTable + " select " + getIdColumnName() + " from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameChildVertex()+"\" in (select " + getIdColumnName() + " from " + currentTable + ")"
-				+ " and \""+getIdColumnNameParentVertex()+"\" in (select "+getIdColumnName()+" from "+nextTable+") " + filter + ";";
-		final String qq3 = ""; // createUUIDTable(cursorTable, true);
-		final String qq4 = "insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable 
-				+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");";
-		final String qq5 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-
-		for(int i = 0; i < maxDepth; ++i){
-			createUUIDTable(nextTable, true);
-			final String formattedQq1 = String.format(qq1, i);
-			executeQueryForResult(formattedQq1, false);
-			executeQueryForResult(qq2, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(qq4, false);
-			executeQueryForResult(qq5, false);
-			
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-
-		executeQueryForResult("insert into " + targetVertexTable + " select " + getIdColumnName() + " from " + answerTable, false);
-		dropTable(currentSubgraphTable);
-		dropTable(currentTable);
-		dropTable(nextTable);
-		dropTable(answerTable);
+		getPath(targetGraph, subjectGraph, srcGraph, dstGraph, maxDepth, false);
 	}
-	
+
 	@Override
 	public void getLink(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
 		if(maxDepth <= 0){
 			return;
 		}
-		
-		maxDepth = maxDepth - 1;
-		
-		final String depthColumnName = "depth";
-		final String currentTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String currentSubgraphTable = "m_sgconn";
-		
-		final String dstVertexTable = getVertexTableName(dstGraph);
-		final String srcVertexTable = getVertexTableName(srcGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		createUUIDTable(answerTable, true);
-		
-		dropTable(currentSubgraphTable);
-		executeQueryForResult("create table " + currentSubgraphTable + "("
-				+ "\""+getIdColumnNameChildVertex()+"\" uuid, "
-				+ "\""+getIdColumnNameParentVertex()+"\" uuid, "
-				+ depthColumnName + " int);", false);
-		
-		executeQueryForResult("insert into "+currentTable+" select "+getIdColumnName()+" from " + dstVertexTable, false);
-		executeQueryForResult("insert into "+answerTable+" select "+getIdColumnName()+" from " + currentTable, false);
-		
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) 
-				? "" : " and "+getEdgeAnnotationTableName()+"."+getIdColumnName()+" in (select "+getIdColumnName()+" from " + subjectEdgeTable + ")";
-		final String q0 = "insert into "+currentSubgraphTable+" select \""+getIdColumnNameChildVertex()+"\", \""+getIdColumnNameParentVertex()+"\", %s from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameParentVertex()+"\" in (select "+getIdColumnName()+" from " + currentTable + ")"
-				+ " " + filter + ";";
-		final String q1 = "insert into " + currentSubgraphTable + " select \"" + getIdColumnNameChildVertex() + "\", \"" +getIdColumnNameParentVertex() + "\", %s from " + getEdgeAnnotationTableName()
-				+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " " + filter + ";";
-		final String q2 = ""; // createUUIDTable(nextTable, true);
-		final String q3 = "insert into " + nextTable + " select \"" + getIdColumnNameChildVertex() + "\" from " + getEdgeAnnotationTableName()
-				+ " where \"" + getIdColumnNameParentVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " " + filter + " group by \""+getIdColumnNameChildVertex()+"\";";
-		final String q4 = "insert into " +nextTable + " select \"" + getIdColumnNameParentVertex() + "\" from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameChildVertex()+"\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " " + filter + " group by \""+getIdColumnNameParentVertex()+"\";";
-		final String q5 = ""; // createUUIDTable(cursorTable, true);
-		final String q6 = "insert into " + currentTable + " select " + getIdColumnName() + " from " +nextTable
-				+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");";
-		final String q7 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-		
-		for(int i = 0; i < maxDepth; ++i){
-			final String formattedQ0 = String.format(q0, i+1);
-			final String formattedQ1 = String.format(q1, i+1);
-			
-			executeQueryForResult(formattedQ0, false);
-			executeQueryForResult(formattedQ1, false);
-			createUUIDTable(nextTable, true);
-			executeQueryForResult(q3, false);
-			executeQueryForResult(q4, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(q6, false);
-			executeQueryForResult(q7, false);
-
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-		
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		
-		executeQueryForResult("insert into " + currentTable + " select " + getIdColumnName() + " from " + srcVertexTable
-				+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+answerTable+");", false);
+		getPath(targetGraph, subjectGraph, srcGraph, dstGraph, maxDepth - 1, true);
+	}
 
-		createUUIDTable(answerTable, true);
-		
-		executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable, false);
-
-		final String qq0 = ""; // createUUIDTable(nextTable, true);
-		final String qq1 = "insert into " + nextTable + " select \"" + getIdColumnNameParentVertex() + "\" from " + currentSubgraphTable
-				+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " and " + depthColumnName + " + %s <= " + maxDepth + " group by \""+getIdColumnNameParentVertex()+"\";";
-		final String qq2 = "insert into " + nextTable + " select \"" + getIdColumnNameChildVertex() + "\" from " + currentSubgraphTable
-				+ " where \"" + getIdColumnNameParentVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " and " + depthColumnName + " + %s <= " + maxDepth + " group by \""+getIdColumnNameChildVertex()+"\";";
-		final String qq3 = ""; // createUUIDTable(cursorTable, true);
-		final String qq4 = "insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable 
-				+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");";
-		final String qq5 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-		
-		for(int i = 0; i < maxDepth; ++i){
-			createUUIDTable(nextTable, true);
-			final String formattedQq1 = String.format(qq1, i);
-			final String formattedQq2 = String.format(qq2, i);
-			executeQueryForResult(formattedQq1, false);
-			executeQueryForResult(formattedQq2, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(qq4, false);
-			executeQueryForResult(qq5, false);
-			
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-		
-		executeQueryForResult("insert into " + targetVertexTable + " select "+getIdColumnName()+" from "+answerTable+";", false);
-		executeQueryForResult("insert into " + targetEdgeTable + " select " +getIdColumnName() + " from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameChildVertex()+"\" in (select "+getIdColumnName()+" from "+answerTable+")"
-				+ " and \""+getIdColumnNameParentVertex()+"\" in (select "+getIdColumnName()+" from "+answerTable+")"
-				+ " " + filter + ";", false);
-
-		dropTable(currentSubgraphTable);
-		dropTable(currentTable);
-		dropTable(nextTable);
-		dropTable(answerTable);
+	private void getPath(final Graph targetGraph, final Graph subjectGraph, final Graph srcGraph, final Graph dstGraph,
+			final int maxDepth, final boolean undirected){
+		createTraversalFunctionsIfMissing();
+
+		executeQueryForResult("select " + functionNamePath + "("
+				+ formatLiteral(getVertexTableName(srcGraph)) + ", "
+				+ formatLiteral(getVertexTableName(dstGraph)) + ", "
+				+ formatLiteral(getSubjectEdgeTableNameOrNullIfBase(subjectGraph)) + ", "
+				+ formatLiteral(getVertexTableName(targetGraph)) + ", "
+				+ formatLiteral(getEdgeTableName(targetGraph)) + ", "
+				+ formatLiteral(getEdgeAnnotationTableName()) + ", "
+				+ formatLiteral(getIdColumnName()) + ", "
+				+ formatLiteral(getIdColumnNameChildVertex()) + ", "
+				+ formatLiteral(getIdColumnNameParentVertex()) + ", "
+				+ maxDepth + ", "
+				+ undirected + ");", false);
 	}
 	
 	@Override
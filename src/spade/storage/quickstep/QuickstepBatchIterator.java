@@ -29,7 +29,7 @@ import spade.query.quickgrail.instruction.DescribeGraph.ElementType;
 import spade.query.quickgrail.utility.ResultTable;
 import spade.storage.Quickstep;
 
-public class QuickstepBatchIterator extends BatchIterator{
+public class QuickstepBatchIterator extends BatchIterator<String>{
 	private final String resultTable;
 	private final String batchTable;
 	private final ElementType elementType;
@@ -25,12 +25,15 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import spade.core.AbstractStorage;
+import spade.query.quickgrail.core.BatchIterator;
 import spade.query.quickgrail.core.GraphDescription;
 import spade.query.quickgrail.core.GraphStatistic;
 import spade.query.quickgrail.core.GraphStatistic.Interval;
@@ -1139,6 +1142,95 @@ public class QuickstepInstructionExecutor extends QueryInstructionExecutor{
 		return edges;
 	}
 
+	@Override
+	public BatchIterator<Map<String, Map<String, String>>> exportVerticesInBatches(final Graph targetGraph,
+			final int batchSize){
+		final String targetVertexTable = queryEnvironment.getGraphVertexTableName(targetGraph);
+		return new IdRangeBatchIterator<Map<String, Map<String, String>>>(targetVertexTable, batchSize){
+			@Override
+			protected Map<String, Map<String, String>> readBatch(final String batchTable){
+				return _exportVertices(batchTable);
+			}
+		};
+	}
+
+	@Override
+	public BatchIterator<Set<QueriedEdge>> exportEdgesInBatches(final Graph targetGraph, final int batchSize){
+		final String targetEdgeTable = queryEnvironment.getGraphEdgeTableName(targetGraph);
+		return new IdRangeBatchIterator<Set<QueriedEdge>>(targetEdgeTable, batchSize){
+			@Override
+			protected Set<QueriedEdge> readBatch(final String batchTable){
+				return _exportEdges(null, batchTable);
+			}
+		};
+	}
+
+	private static final AtomicLong exportBatchTableCount = new AtomicLong(0);
+
+	/*
+	 * Reads the elements in pages of 'batchSize' ids in the order of ids, starting after the last id read.
+	 * The ids of the page are copied to a temporary table which is exported like a graph table.
+	 */
+	private abstract class IdRangeBatchIterator<T> extends BatchIterator<T>{
+		private final String targetTable;
+		private final String batchTable = "m_export_batch_" + exportBatchTableCount.incrementAndGet();
+		private Long lastId = null;
+		private boolean lastPage = false;
+		private Boolean hasNext = null;
+		private boolean closed = false;
+
+		private IdRangeBatchIterator(final String targetTable, final int batchSize){
+			super(batchSize);
+			this.targetTable = targetTable;
+			qs.executeQuery("DROP TABLE " + batchTable + ";\n" + "CREATE TABLE " + batchTable + " (id INT);");
+		}
+
+		protected abstract T readBatch(final String batchTable);
+
+		// Fills the batch table with the next page and returns the number of ids in it
+		private long readNextPage(){
+			qs.executeQuery("DROP TABLE " + batchTable + ";\n" + "CREATE TABLE " + batchTable + " (id INT);\n"
+					+ "INSERT INTO " + batchTable + " SELECT id FROM " + targetTable
+					+ (lastId == null ? "" : " WHERE id > " + lastId) + " GROUP BY id ORDER BY id LIMIT " + batchSize
+					+ ";");
+			final long pageSize = qs.executeQueryForLongResult(
+					"COPY SELECT COUNT(*) FROM " + batchTable + " TO stdout;");
+			if(pageSize > 0){
+				lastId = qs.executeQueryForLongResult("COPY SELECT MAX(id) FROM " + batchTable + " TO stdout;");
+			}
+			lastPage = pageSize < batchSize;
+			return pageSize;
+		}
+
+		@Override
+		public boolean hasNextBatch(){
+			if(hasNext == null){
+				hasNext = !closed && !lastPage && readNextPage() > 0;
+				if(!hasNext){
+					close();
+				}
+			}
+			return hasNext;
+		}
+
+		@Override
+		public T nextBatch(){
+			if(!hasNextBatch()){
+				throw new NoSuchElementException();
+			}
+			hasNext = null;
+			return readBatch(batchTable);
+		}
+
+		@Override
+		public void close(){
+			if(!closed){
+				closed = true;
+				qs.executeQuery("DROP TABLE " + batchTable + ";");
+			}
+		}
+	}
+
 	@Override
 	public void getLink(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
 		qs.executeQuery("DROP TABLE m_cur;\n" + "DROP TABLE m_next;\n" + "DROP TABLE m_answer;\n"
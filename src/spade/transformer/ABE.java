@@ -19,15 +19,22 @@ package spade.transformer;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,19 +62,29 @@ public class ABE extends AbstractTransformer
 	private static final String FILE_SEPARATOR = "/";
 	
     private KeyGenerator keyGenerator;
-    private Ciphers cipher;
     private static final String LOW = "low";
     private static final String MEDIUM = "medium";
     private static final String HIGH = "high";
     private static final String BASE_ALGORITHM = "AES";
     private static final String KEYS_DIRECTORY = "keysDirectory";
-    private static final String ENCRYPT_METHOD = "encrypt";
-    private static final String DECRYPT_METHOD = "decrypt";
     private static final String CLASS_PREFIX = "spade.utility.ABEGraph$";
     private File KEYS_DIR;
     private static final String ALGORITHM = "AES/ECB/PKCS5Padding";
     private static final Logger logger = Logger.getLogger(ABE.class.getName());
 
+    // Upper bound on the threads used for encryption and decryption of a graph
+    private static final int MAX_PARALLELISM = 8;
+    // Smaller collections are encrypted and decrypted in the calling thread
+    private static final int MIN_ELEMENTS_FOR_PARALLELISM = 256;
+    private static ForkJoinPool cryptoPool = null;
+
+    // Annotation value class name to the constructor (String)AnnotationValue of that class
+    private static final ConcurrentMap<String, MethodHandle> annotationValueConstructors = new ConcurrentHashMap<>();
+
+    // Ciphers are not thread-safe. Each thread keeps one cipher per level which is only re-initialized
+    // when the key or the mode changes
+    private static final ThreadLocal<Map<String, ThreadCipher>> threadCiphers = ThreadLocal.withInitial(HashMap::new);
+
     private final List<String> lowAnnotations = new ArrayList<>();
     private final List<String> mediumAnnotations = new ArrayList<>();
     private final List<String> highAnnotations = new ArrayList<>();
@@ -87,6 +104,18 @@ public class ABE extends AbstractTransformer
         Cipher high;
     }
 
+    private static class ThreadCipher
+    {
+        final Cipher cipher;
+        SecretKey key;
+        int mode;
+
+        ThreadCipher(Cipher cipher)
+        {
+            this.cipher = cipher;
+        }
+    }
+
     @Override
     public boolean initialize(String arguments)
     {
@@ -100,10 +129,8 @@ public class ABE extends AbstractTransformer
             // create key generator
             this.keyGenerator = KeyGenerator.getInstance(BASE_ALGORITHM);
             this.keyGenerator.init(128);
-            this.cipher = new Ciphers();
-            this.cipher.low = Cipher.getInstance(ALGORITHM);
-            this.cipher.medium = Cipher.getInstance(ALGORITHM);
-            this.cipher.high = Cipher.getInstance(ALGORITHM);
+            // fail early if the cipher is not available
+            Cipher.getInstance(ALGORITHM);
         }
         catch (Exception ex)
         {
@@ -228,7 +255,108 @@ public class ABE extends AbstractTransformer
 
     private SecretKey generateKey()
     {
-        return keyGenerator.generateKey();
+        synchronized (keyGenerator)
+        {
+            return keyGenerator.generateKey();
+        }
+    }
+
+    private static Cipher getThreadCipher(String level, int mode, SecretKey key) throws Exception
+    {
+        if (key == null)
+            return null;
+        Map<String, ThreadCipher> ciphers = threadCiphers.get();
+        ThreadCipher threadCipher = ciphers.get(level);
+        if (threadCipher == null)
+        {
+            threadCipher = new ThreadCipher(Cipher.getInstance(ALGORITHM));
+            ciphers.put(level, threadCipher);
+        }
+        if (threadCipher.key != key || threadCipher.mode != mode)
+        {
+            threadCipher.key = null;
+            threadCipher.cipher.init(mode, key);
+            threadCipher.key = key;
+            threadCipher.mode = mode;
+        }
+        return threadCipher.cipher;
+    }
+
+    // ciphers of the current thread. Null for the levels without a key
+    private static Ciphers getThreadCiphers(int mode, SecretKeys symmetricKeys)
+    {
+        try
+        {
+            Ciphers ciphers = new Ciphers();
+            ciphers.low = getThreadCipher(LOW, mode, symmetricKeys.low);
+            ciphers.medium = getThreadCipher(MEDIUM, mode, symmetricKeys.medium);
+            ciphers.high = getThreadCipher(HIGH, mode, symmetricKeys.high);
+            return ciphers;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException("Unable to initialize ciphers", ex);
+        }
+    }
+
+    private static synchronized ForkJoinPool getCryptoPool()
+    {
+        if (cryptoPool == null)
+        {
+            int parallelism = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARALLELISM));
+            cryptoPool = new ForkJoinPool(parallelism);
+        }
+        return cryptoPool;
+    }
+
+    // elements must be independent since the action is run concurrently
+    private static <T> void forEachElement(Collection<T> elements, Consumer<T> action)
+    {
+        ForkJoinPool pool = getCryptoPool();
+        if (pool.getParallelism() == 1 || elements.size() < MIN_ELEMENTS_FOR_PARALLELISM)
+        {
+            elements.forEach(action);
+            return;
+        }
+        try
+        {
+            // a parallel stream started by a task runs in the pool of that task
+            pool.submit(() -> elements.parallelStream().forEach(action)).get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for annotation encryption or decryption", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException("Failed annotation encryption or decryption", ex.getCause());
+        }
+    }
+
+    private static AnnotationValue newAnnotationValue(String className, String value) throws Exception
+    {
+        MethodHandle constructor = annotationValueConstructors.get(className);
+        if (constructor == null)
+        {
+            Class<?> valueClass = Class.forName(CLASS_PREFIX + className);
+            constructor = MethodHandles.publicLookup()
+                    .findConstructor(valueClass, MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(AnnotationValue.class, String.class));
+            annotationValueConstructors.putIfAbsent(className, constructor);
+        }
+        try
+        {
+            return (AnnotationValue) constructor.invokeExact(value);
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable t)
+        {
+            throw new Exception(t);
+        }
     }
 
     private SecretKeys generateSymmetricKeys()
@@ -278,15 +406,9 @@ public class ABE extends AbstractTransformer
                 {
                     try
                     {
-                        Method method;
-                        className = CLASS_PREFIX + className;
-                        Class<?> decryptionClass = Class.forName(className);
-                        Constructor<?> classConstructor = decryptionClass.getDeclaredConstructor(String.class);
-                        Object decryptionClassObj = classConstructor.newInstance(encryptedValue);
-                        method = decryptionClass.getDeclaredMethod(DECRYPT_METHOD, String.class, String.class,
-                                String.class, Cipher.class);
-                        decryptedValue = (String) method.invoke(decryptionClassObj, key, encryptedValue, level, cipher);
-                        vertex.addAnnotation(key, (AnnotationValue) decryptionClassObj);
+                        AnnotationValue annotationValue = newAnnotationValue(className, encryptedValue);
+                        decryptedValue = annotationValue.decrypt(key, encryptedValue, level, cipher);
+                        vertex.addAnnotation(key, annotationValue);
                     }
                     catch (Exception ex)
                     {
@@ -312,12 +434,10 @@ public class ABE extends AbstractTransformer
         decryptAnnotations(vertex, this.lowAnnotations, ciphers.low, LOW);
     }
 
-    private void decryptVertices(ABEGraph graph, Ciphers ciphers)
+    private void decryptVertices(ABEGraph graph, SecretKeys symmetricKeys)
     {
-        for (AbstractVertex vertex : graph.vertexSet())
-        {
-            decryptVertex((EncryptedVertex) vertex, ciphers);
-        }
+        forEachElement(graph.vertexSet(),
+                vertex -> decryptVertex((EncryptedVertex) vertex, getThreadCiphers(Cipher.DECRYPT_MODE, symmetricKeys)));
     }
 
     private void decryptAnnotations(EncryptedEdge edge, List<String> keys, Cipher cipher, String level)
@@ -333,16 +453,9 @@ public class ABE extends AbstractTransformer
                 {
                     try
                     {
-                        Method method;
-                        className = CLASS_PREFIX + className;
-                        Class<?> decryptionClass = Class.forName(className);
-                        Constructor<?> classConstructor = decryptionClass.getDeclaredConstructor(String.class);
-                        Object decryptionClassObj = classConstructor.newInstance(encryptedValue);
-                        method = decryptionClass.getDeclaredMethod(DECRYPT_METHOD, String.class, String.class,
-                                String.class, Cipher.class);
-                        decryptedValue = (String) method.invoke(decryptionClassObj, key,
-                                encryptedValue, level, cipher);
-                        edge.addAnnotation(key, (AnnotationValue) decryptionClassObj);
+                        AnnotationValue annotationValue = newAnnotationValue(className, encryptedValue);
+                        decryptedValue = annotationValue.decrypt(key, encryptedValue, level, cipher);
+                        edge.addAnnotation(key, annotationValue);
                     }
                     catch (Exception ex)
                     {
@@ -369,12 +482,10 @@ public class ABE extends AbstractTransformer
         decryptAnnotations(edge, this.lowAnnotations, ciphers.low, LOW);
     }
 
-    private void decryptEdges(ABEGraph graph, Ciphers ciphers)
+    private void decryptEdges(ABEGraph graph, SecretKeys symmetricKeys)
     {
-        for (AbstractEdge edge : graph.edgeSet())
-        {
-            decryptEdge((EncryptedEdge) edge, ciphers);
-        }
+        forEachElement(graph.edgeSet(),
+                edge -> decryptEdge((EncryptedEdge) edge, getThreadCiphers(Cipher.DECRYPT_MODE, symmetricKeys)));
     }
 
     private ABEGraph decryptGraph(ABEGraph graph, SecretKeys symmetricKeys)
@@ -383,32 +494,24 @@ public class ABE extends AbstractTransformer
         try
         {
             // initialize ciphers for decryption
-            Ciphers ciphers = new Ciphers();
-            if (symmetricKeys.high != null)
-            {
-                ciphers.high = Cipher.getInstance(ALGORITHM);
-                ciphers.high.init(Cipher.DECRYPT_MODE, symmetricKeys.high);
-            }
-            if (symmetricKeys.medium != null)
-            {
-                ciphers.medium = Cipher.getInstance(ALGORITHM);
-                ciphers.medium.init(Cipher.DECRYPT_MODE, symmetricKeys.medium);
-            }
-            if (symmetricKeys.low != null)
-            {
-                ciphers.low = Cipher.getInstance(ALGORITHM);
-                ciphers.low.init(Cipher.DECRYPT_MODE, symmetricKeys.low);
-            }
-
-            decryptVertices(decryptedGraph, ciphers);
-            decryptEdges(decryptedGraph, ciphers);
-            return decryptedGraph;
+            getThreadCiphers(Cipher.DECRYPT_MODE, symmetricKeys);
         }
         catch (Exception ex)
         {
             logger.log(Level.SEVERE, "Unable to initialize ciphers for decryption!", ex);
             return null;
         }
+        try
+        {
+            decryptVertices(decryptedGraph, symmetricKeys);
+            decryptEdges(decryptedGraph, symmetricKeys);
+            return decryptedGraph;
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.SEVERE, "Unable to decrypt graph!", ex);
+            return null;
+        }
     }
 
     private SecretKey decryptKey(String encryptedKey, String level)
@@ -586,22 +689,14 @@ public class ABE extends AbstractTransformer
                 {
                     try
                     {
-                        Method method;
-                        className = CLASS_PREFIX + className;
-                        Class<?> encryptionClass = Class.forName(className);
-                        Constructor<?> classConstructor = encryptionClass.getDeclaredConstructor(String.class);
-                        Object encryptionClassObj = classConstructor.newInstance(plainValue);
-                        method = encryptionClass.getDeclaredMethod(ENCRYPT_METHOD, String.class, String.class,
-                                String.class, Cipher.class);
-                        encryptedValue = (String) method.invoke(encryptionClassObj, key, plainValue, level, cipher);
-                        vertex.addAnnotation(key, (AnnotationValue) encryptionClassObj);
+                        AnnotationValue annotationValue = newAnnotationValue(className, plainValue);
+                        encryptedValue = annotationValue.encrypt(key, plainValue, level, cipher);
+                        vertex.addAnnotation(key, annotationValue);
                     }
                     catch (Exception ex)
                     {
-                        // In case the encryption class is missing
-                        // Put the plain string and flag
-                        logger.log(Level.SEVERE, "Encryption class not found for key '" + key + "'!", ex);
-                        encryptedValue = plainValue;
+                        // Never leave the plain value in the encrypted graph
+                        throw new RuntimeException("Unable to encrypt value of key '" + key + "'", ex);
                     }
                 }
                 else
@@ -626,22 +721,14 @@ public class ABE extends AbstractTransformer
                 {
                     try
                     {
-                        Method method;
-                        className = CLASS_PREFIX + className;
-                        Class<?> encryptionClass = Class.forName(className);
-                        Constructor<?> classConstructor = encryptionClass.getDeclaredConstructor(String.class);
-                        Object encryptionClassObj = classConstructor.newInstance(plainValue);
-                        method = encryptionClass.getDeclaredMethod(ENCRYPT_METHOD, String.class, String.class,
-                                String.class, Cipher.class);
-                        encryptedValue = (String) method.invoke(encryptionClassObj, key, plainValue, level, cipher);
-                        edge.addAnnotation(key, (AnnotationValue) encryptionClassObj);
+                        AnnotationValue annotationValue = newAnnotationValue(className, plainValue);
+                        encryptedValue = annotationValue.encrypt(key, plainValue, level, cipher);
+                        edge.addAnnotation(key, annotationValue);
                     }
                     catch (Exception ex)
                     {
-                        // In case the encryption class is missing
-                        // Put the plain string and flag
-                        logger.log(Level.SEVERE, "Encryption class not found for key '" + key + "'!", ex);
-                        encryptedValue = plainValue;
+                        // Never leave the plain value in the encrypted graph
+                        throw new RuntimeException("Unable to encrypt value of key '" + key + "'", ex);
                     }
                 }
                 else
@@ -672,52 +759,55 @@ public class ABE extends AbstractTransformer
         }
         try
         {
-            this.cipher.low.init(Cipher.ENCRYPT_MODE, symmetricKeys.low);
-            this.cipher.medium.init(Cipher.ENCRYPT_MODE, symmetricKeys.medium);
-            this.cipher.high.init(Cipher.ENCRYPT_MODE, symmetricKeys.high);
+            // initialize ciphers for encryption
+            getThreadCiphers(Cipher.ENCRYPT_MODE, symmetricKeys);
         }
         catch (Exception ex)
         {
-            logger.log(Level.SEVERE, "Unable to initialize ciphers for encryption!");
+            logger.log(Level.SEVERE, "Unable to initialize ciphers for encryption!", ex);
+            return null;
         }
 
         // encrypt data
-//        encryptVertices(endPoints);
-        encryptVertices(encryptedGraph.vertexSet());
-        encryptEdges(encryptedGraph.edgeSet());
+        try
+        {
+            encryptVertices(encryptedGraph.vertexSet(), symmetricKeys);
+            encryptEdges(encryptedGraph.edgeSet(), symmetricKeys);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.SEVERE, "Unable to encrypt data", ex);
+            return null;
+        }
 
         // encrypt the symmetric keys as per ABE
         encryptSymmetricKeys(symmetricKeys, encryptedGraph);
         return encryptedGraph;
     }
 
-    private void encryptEdge(EncryptedEdge edge)
+    private void encryptEdge(EncryptedEdge edge, Ciphers ciphers)
     {
-        encryptAnnotations(edge, highAnnotations, this.cipher.high, HIGH);
-        encryptAnnotations(edge, mediumAnnotations, this.cipher.medium, MEDIUM);
-        encryptAnnotations(edge, lowAnnotations, this.cipher.low, LOW);
+        encryptAnnotations(edge, highAnnotations, ciphers.high, HIGH);
+        encryptAnnotations(edge, mediumAnnotations, ciphers.medium, MEDIUM);
+        encryptAnnotations(edge, lowAnnotations, ciphers.low, LOW);
     }
 
-    private void encryptEdges(Set<AbstractEdge> edgeSet)
+    private void encryptEdges(Set<AbstractEdge> edgeSet, SecretKeys symmetricKeys)
     {
-        for (AbstractEdge edge : edgeSet)
-        {
-            encryptEdge((EncryptedEdge) edge);
-        }
+        forEachElement(edgeSet,
+                edge -> encryptEdge((EncryptedEdge) edge, getThreadCiphers(Cipher.ENCRYPT_MODE, symmetricKeys)));
     }
 
-    private void encryptVertex(EncryptedVertex vertex)
+    private void encryptVertex(EncryptedVertex vertex, Ciphers ciphers)
     {
-        encryptAnnotations(vertex, this.highAnnotations, this.cipher.high, HIGH);
-        encryptAnnotations(vertex, this.mediumAnnotations, this.cipher.medium, MEDIUM);
-        encryptAnnotations(vertex, this.lowAnnotations, this.cipher.low, LOW);
+        encryptAnnotations(vertex, this.highAnnotations, ciphers.high, HIGH);
+        encryptAnnotations(vertex, this.mediumAnnotations, ciphers.medium, MEDIUM);
+        encryptAnnotations(vertex, this.lowAnnotations, ciphers.low, LOW);
     }
 
-    private void encryptVertices(Set<AbstractVertex> vertexSet)
+    private void encryptVertices(Set<AbstractVertex> vertexSet, SecretKeys symmetricKeys)
     {
-        for (AbstractVertex vertex : vertexSet)
-        {
-            encryptVertex((EncryptedVertex) vertex);
-        }
+        forEachElement(vertexSet,
+                vertex -> encryptVertex((EncryptedVertex) vertex, getThreadCiphers(Cipher.ENCRYPT_MODE, symmetricKeys)));
     }
 }
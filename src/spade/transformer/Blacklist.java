@@ -20,8 +20,10 @@
 package spade.transformer;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -31,12 +33,26 @@ import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
 import spade.core.Settings;
+import spade.query.quickgrail.utility.PredicateCompiler;
 import spade.reporter.audit.OPMConstants;
 import spade.utility.FileUtility;
-
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+
+/**
+ * Removes the edges connected to files whose path matches the regexes in the config file, unless the file is in the
+ * source graph.
+ * 
+ * Arguments format (optional): predicate="<QuickGrail predicate>"
+ * 
+ * Edges connected to vertices (of any type) which match the predicate are removed too, with the same exception.
+ */
 public class Blacklist extends AbstractTransformer{
 
+	private static final String keyPredicate = "predicate";
+
 	private Pattern filesToRemovePattern = null;
+	private Predicate<AbstractVertex> vertexToRemovePredicate = null;
 
 	public boolean initialize(String arguments){
 
@@ -46,6 +62,16 @@ public class Blacklist extends AbstractTransformer{
 			if(filesToRemovePattern == null){
 				throw new Exception("Regex read from file '" + filepath + "' cannot be null");
 			}
+			final Result<HashMap<String, String>> argumentsResult = HelperFunctions.parseKeysValuesInString(
+					arguments == null ? "" : arguments);
+			if(argumentsResult.error){
+				throw new Exception("Invalid arguments: " + argumentsResult.toErrorString());
+			}
+			final String predicate = argumentsResult.result.get(keyPredicate);
+			if(predicate != null){
+				vertexToRemovePredicate = PredicateCompiler.compileVertexPredicate(
+						PredicateCompiler.parsePredicate(predicate));
+			}
 
 			return true;
 		}catch(Exception e){
@@ -64,6 +90,11 @@ public class Blacklist extends AbstractTransformer{
 				);
 	}
 
+	@Override
+	public boolean isEdgeLocal(){
+		return true;
+	}
+
 	@Override
 	public Graph transform(Graph graph, ExecutionContext context){
 		Graph resultGraph = new Graph();
@@ -78,6 +109,10 @@ public class Blacklist extends AbstractTransformer{
 					continue;
 				}
 			}
+			if(isVertexToBeRemoved(edge.getChildVertex(), queriedVertices)
+					|| isVertexToBeRemoved(edge.getParentVertex(), queriedVertices)){
+				continue;
+			}
 			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
 			if(newEdge != null && newEdge.getChildVertex() != null && newEdge.getParentVertex() != null){
 				resultGraph.putVertex(newEdge.getChildVertex());
@@ -97,6 +132,11 @@ public class Blacklist extends AbstractTransformer{
 		return false;
 	}
 
+	private boolean isVertexToBeRemoved(AbstractVertex vertex, Set<AbstractVertex> queriedVertices){
+		return vertexToRemovePredicate != null && vertex != null && vertexToRemovePredicate.test(vertex)
+				&& (queriedVertices == null || !queriedVertices.contains(vertex));
+	}
+
 	private boolean isFileEqualsVertexContainedInSet(String path, Set<AbstractVertex> vertices){
 		if(vertices != null){
 			for(AbstractVertex vertex : vertices){
@@ -34,6 +34,11 @@ public class NoMemory extends AbstractTransformer
 		return new LinkedHashSet<ArgumentName>();
 	}
 
+	@Override
+	public boolean isEdgeLocal(){
+		return true;
+	}
+
 	@Override
 	public Graph transform(Graph graph, ExecutionContext context)
 	{
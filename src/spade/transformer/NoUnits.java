@@ -35,6 +35,11 @@ public class NoUnits extends AbstractTransformer
 		return new LinkedHashSet<ArgumentName>();
 	}
 
+	@Override
+	public boolean isEdgeLocal(){
+		return true;
+	}
+
 	@Override
 	public Graph transform(Graph graph, ExecutionContext context)
 	{
@@ -33,6 +33,11 @@ public class NoVersions extends AbstractTransformer
 		return new LinkedHashSet<ArgumentName>();
 	}
 
+	@Override
+	public boolean isEdgeLocal(){
+		return true;
+	}
+
 	@Override
 	public Graph transform(Graph graph, ExecutionContext context)
 	{
@@ -57,6 +57,11 @@ public class OPM2Prov extends AbstractTransformer{
 		return new LinkedHashSet<ArgumentName>();
 	}
 
+	@Override
+	public boolean isEdgeLocal(){
+		return true;
+	}
+
 	@Override
 	public Graph transform(Graph graph, ExecutionContext context)
 	{
@@ -57,15 +57,13 @@ public class CSVFormatWriter implements AutoCloseable{
 	}
 
 	public void writeLine(final Collection<?> values) throws Exception{
-		String line = "";
 		final Iterator<?> iterator = values.iterator(); 
 		while(iterator.hasNext()){
-			line += formatObject(iterator.next());
+			this.writer.write(formatObject(iterator.next()));
 			if(iterator.hasNext()){
-				line += ",";
+				this.writer.write(',');
 			}
 		}
-		this.writer.write(line);
 		newLine();
 	}
 
@@ -176,16 +174,15 @@ public class CSVFormatWriter implements AutoCloseable{
 	}
 
 	private static String formatArray(final Object[] items, final DecimalFormat decimalFormat){
-		String result = "";
+		final StringBuilder result = new StringBuilder();
 		for(int i = 0; i < items.length; i++){
 			final Object obj = items[i];
 			final String formatted = formatObject(decimalFormat, obj);
-			result += escape(formatted);
+			result.append(escape(formatted));
 			if(i != items.length - 1){
-				result += ",";
+				result.append(',');
 			}
 		}
-		result = quote(result);
-		return result;
+		return quote(result.toString());
 	}
 }
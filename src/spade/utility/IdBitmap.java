@@ -0,0 +1,555 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2020 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.TreeMap;
+
+/**
+ * Compressed set of non-negative long ids.
+ *
+ * Ids are partitioned by their high bits into chunks of 65536 consecutive ids (same layout as roaring bitmaps).
+ * A chunk is kept as a sorted array of low bits while it is sparse and is converted to a plain bitmap once it
+ * holds more than 4096 ids.
+ *
+ * Not thread-safe.
+ */
+public class IdBitmap implements Iterable<Long>{
+
+	private static final int chunkBits = 16;
+	private static final int chunkMask = (1 << chunkBits) - 1;
+	private static final int arrayMaxSize = 4096;
+	private static final int bitmapWords = (1 << chunkBits) / 64;
+
+	private final TreeMap<Long, Chunk> chunks = new TreeMap<Long, Chunk>();
+
+	public IdBitmap(){}
+
+	public IdBitmap(final IdBitmap other){
+		for(final Map.Entry<Long, Chunk> entry : other.chunks.entrySet()){
+			chunks.put(entry.getKey(), entry.getValue().copy());
+		}
+	}
+
+	private static long high(final long id){
+		return id >>> chunkBits;
+	}
+
+	private static int low(final long id){
+		return (int)(id & chunkMask);
+	}
+
+	private static void mustBeValidId(final long id){
+		if(id < 0){
+			throw new IllegalArgumentException("Negative id: " + id);
+		}
+	}
+
+	public final boolean add(final long id){
+		mustBeValidId(id);
+		final long key = high(id);
+		Chunk chunk = chunks.get(key);
+		if(chunk == null){
+			chunk = new Chunk();
+			chunks.put(key, chunk);
+		}
+		return chunk.add(low(id));
+	}
+
+	public final void addAll(final Iterable<? extends Number> ids){
+		for(final Number id : ids){
+			if(id != null){
+				add(id.longValue());
+			}
+		}
+	}
+
+	public final boolean remove(final long id){
+		final long key = high(id);
+		final Chunk chunk = chunks.get(key);
+		if(chunk == null){
+			return false;
+		}
+		final boolean removed = chunk.remove(low(id));
+		if(chunk.cardinality == 0){
+			chunks.remove(key);
+		}
+		return removed;
+	}
+
+	public final boolean contains(final long id){
+		if(id < 0){
+			return false;
+		}
+		final Chunk chunk = chunks.get(high(id));
+		return chunk != null && chunk.contains(low(id));
+	}
+
+	public final long cardinality(){
+		long total = 0;
+		for(final Chunk chunk : chunks.values()){
+			total += chunk.cardinality;
+		}
+		return total;
+	}
+
+	public final boolean isEmpty(){
+		return chunks.isEmpty();
+	}
+
+	public final void clear(){
+		chunks.clear();
+	}
+
+	/**
+	 * In-place union
+	 */
+	public final void or(final IdBitmap other){
+		for(final Map.Entry<Long, Chunk> entry : other.chunks.entrySet()){
+			final Chunk existing = chunks.get(entry.getKey());
+			if(existing == null){
+				chunks.put(entry.getKey(), entry.getValue().copy());
+			}else{
+				existing.or(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * In-place intersection
+	 */
+	public final void and(final IdBitmap other){
+		final Iterator<Map.Entry<Long, Chunk>> iterator = chunks.entrySet().iterator();
+		while(iterator.hasNext()){
+			final Map.Entry<Long, Chunk> entry = iterator.next();
+			final Chunk otherChunk = other.chunks.get(entry.getKey());
+			if(otherChunk == null){
+				iterator.remove();
+			}else{
+				entry.getValue().and(otherChunk);
+				if(entry.getValue().cardinality == 0){
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * In-place difference
+	 */
+	public final void andNot(final IdBitmap other){
+		final Iterator<Map.Entry<Long, Chunk>> iterator = chunks.entrySet().iterator();
+		while(iterator.hasNext()){
+			final Map.Entry<Long, Chunk> entry = iterator.next();
+			final Chunk otherChunk = other.chunks.get(entry.getKey());
+			if(otherChunk != null){
+				entry.getValue().andNot(otherChunk);
+				if(entry.getValue().cardinality == 0){
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	public static IdBitmap or(final IdBitmap a, final IdBitmap b){
+		final IdBitmap result = new IdBitmap(a);
+		result.or(b);
+		return result;
+	}
+
+	public static IdBitmap and(final IdBitmap a, final IdBitmap b){
+		final IdBitmap result = new IdBitmap(a);
+		result.and(b);
+		return result;
+	}
+
+	public static IdBitmap andNot(final IdBitmap a, final IdBitmap b){
+		final IdBitmap result = new IdBitmap(a);
+		result.andNot(b);
+		return result;
+	}
+
+	/**
+	 * Returns the first 'limit' ids in ascending order
+	 */
+	public final IdBitmap head(final long limit){
+		final IdBitmap result = new IdBitmap();
+		final PrimitiveIterator.OfLong iterator = longIterator();
+		long added = 0;
+		while(added < limit && iterator.hasNext()){
+			result.add(iterator.nextLong());
+			added++;
+		}
+		return result;
+	}
+
+	/**
+	 * Boxed ids in ascending order. Suitable for passing as a query parameter.
+	 */
+	public final List<Long> toList(){
+		final long size = cardinality();
+		if(size > Integer.MAX_VALUE){
+			throw new RuntimeException("Too many ids to convert to a list: " + size);
+		}
+		final List<Long> list = new ArrayList<Long>((int)size);
+		final PrimitiveIterator.OfLong iterator = longIterator();
+		while(iterator.hasNext()){
+			list.add(iterator.nextLong());
+		}
+		return list;
+	}
+
+	public final PrimitiveIterator.OfLong longIterator(){
+		final Iterator<Map.Entry<Long, Chunk>> chunkIterator = chunks.entrySet().iterator();
+		return new PrimitiveIterator.OfLong(){
+			private long base;
+			private Chunk chunk;
+			private int position = -1; // index into array or bit index in bitmap
+
+			private boolean advance(){
+				while(true){
+					if(chunk != null){
+						position = chunk.nextPosition(position + 1);
+						if(position >= 0){
+							return true;
+						}
+					}
+					if(!chunkIterator.hasNext()){
+						chunk = null;
+						return false;
+					}
+					final Map.Entry<Long, Chunk> entry = chunkIterator.next();
+					base = entry.getKey() << chunkBits;
+					chunk = entry.getValue();
+					position = -1;
+				}
+			}
+
+			private boolean ready = false;
+			private boolean available = false;
+
+			@Override
+			public boolean hasNext(){
+				if(!ready){
+					available = advance();
+					ready = true;
+				}
+				return available;
+			}
+
+			@Override
+			public long nextLong(){
+				if(!hasNext()){
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return base | chunk.valueAt(position);
+			}
+		};
+	}
+
+	@Override
+	public final Iterator<Long> iterator(){
+		return longIterator();
+	}
+
+	@Override
+	public int hashCode(){
+		return chunks.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj){
+		if(this == obj)
+			return true;
+		if(obj == null)
+			return false;
+		if(getClass() != obj.getClass())
+			return false;
+		final IdBitmap other = (IdBitmap)obj;
+		return chunks.equals(other.chunks);
+	}
+
+	@Override
+	public String toString(){
+		return "IdBitmap [cardinality=" + cardinality() + ", chunks=" + chunks.size() + "]";
+	}
+
+	/**
+	 * Either a sorted array of low bits (when 'words' is null) or a bitmap of 65536 bits
+	 */
+	private static final class Chunk{
+		private char[] array = new char[4];
+		private long[] words = null;
+		private int cardinality = 0;
+
+		private Chunk copy(){
+			final Chunk copy = new Chunk();
+			copy.cardinality = cardinality;
+			if(words != null){
+				copy.array = null;
+				copy.words = Arrays.copyOf(words, words.length);
+			}else{
+				copy.array = Arrays.copyOf(array, Math.max(cardinality, 1));
+			}
+			return copy;
+		}
+
+		private boolean contains(final int value){
+			if(words != null){
+				return (words[value >>> 6] & (1L << value)) != 0;
+			}
+			return Arrays.binarySearch(array, 0, cardinality, (char)value) >= 0;
+		}
+
+		private boolean add(final int value){
+			if(words != null){
+				final long before = words[value >>> 6];
+				final long after = before | (1L << value);
+				words[value >>> 6] = after;
+				if(before != after){
+					cardinality++;
+					return true;
+				}
+				return false;
+			}
+			final int index = Arrays.binarySearch(array, 0, cardinality, (char)value);
+			if(index >= 0){
+				return false;
+			}
+			if(cardinality >= arrayMaxSize){
+				toBitmap();
+				return add(value);
+			}
+			final int insertAt = -index - 1;
+			if(cardinality == array.length){
+				array = Arrays.copyOf(array, Math.min(arrayMaxSize, array.length * 2));
+			}
+			System.arraycopy(array, insertAt, array, insertAt + 1, cardinality - insertAt);
+			array[insertAt] = (char)value;
+			cardinality++;
+			return true;
+		}
+
+		private boolean remove(final int value){
+			if(words != null){
+				final long before = words[value >>> 6];
+				final long after = before & ~(1L << value);
+				words[value >>> 6] = after;
+				if(before != after){
+					cardinality--;
+					if(cardinality <= arrayMaxSize){
+						toArray();
+					}
+					return true;
+				}
+				return false;
+			}
+			final int index = Arrays.binarySearch(array, 0, cardinality, (char)value);
+			if(index < 0){
+				return false;
+			}
+			System.arraycopy(array, index + 1, array, index, cardinality - index - 1);
+			cardinality--;
+			return true;
+		}
+
+		private void toBitmap(){
+			final long[] newWords = new long[bitmapWords];
+			for(int i = 0; i < cardinality; i++){
+				final int value = array[i];
+				newWords[value >>> 6] |= (1L << value);
+			}
+			words = newWords;
+			array = null;
+		}
+
+		private void toArray(){
+			final char[] newArray = new char[Math.max(cardinality, 1)];
+			int j = 0;
+			for(int w = 0; w < words.length; w++){
+				long word = words[w];
+				while(word != 0){
+					newArray[j++] = (char)((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			array = newArray;
+			words = null;
+		}
+
+		private void recount(){
+			int total = 0;
+			for(final long word : words){
+				total += Long.bitCount(word);
+			}
+			cardinality = total;
+			if(cardinality <= arrayMaxSize){
+				toArray();
+			}
+		}
+
+		private long[] asWords(){
+			if(words != null){
+				return words;
+			}
+			final long[] result = new long[bitmapWords];
+			for(int i = 0; i < cardinality; i++){
+				final int value = array[i];
+				result[value >>> 6] |= (1L << value);
+			}
+			return result;
+		}
+
+		private void or(final Chunk other){
+			if(words == null && other.words == null){
+				final char[] merged = new char[cardinality + other.cardinality];
+				int i = 0, j = 0, k = 0;
+				while(i < cardinality && j < other.cardinality){
+					final char a = array[i], b = other.array[j];
+					if(a < b){
+						merged[k++] = a; i++;
+					}else if(a > b){
+						merged[k++] = b; j++;
+					}else{
+						merged[k++] = a; i++; j++;
+					}
+				}
+				while(i < cardinality){
+					merged[k++] = array[i++];
+				}
+				while(j < other.cardinality){
+					merged[k++] = other.array[j++];
+				}
+				array = merged;
+				cardinality = k;
+				if(cardinality > arrayMaxSize){
+					toBitmap();
+				}
+				return;
+			}
+			final long[] mine = asWords();
+			final long[] theirs = other.asWords();
+			for(int w = 0; w < bitmapWords; w++){
+				mine[w] |= theirs[w];
+			}
+			words = mine;
+			array = null;
+			recount();
+		}
+
+		private void and(final Chunk other){
+			if(words == null){
+				int k = 0;
+				for(int i = 0; i < cardinality; i++){
+					if(other.contains(array[i])){
+						array[k++] = array[i];
+					}
+				}
+				cardinality = k;
+				return;
+			}
+			if(other.words == null){
+				final char[] result = new char[Math.max(other.cardinality, 1)];
+				int k = 0;
+				for(int i = 0; i < other.cardinality; i++){
+					if(contains(other.array[i])){
+						result[k++] = other.array[i];
+					}
+				}
+				words = null;
+				array = result;
+				cardinality = k;
+				return;
+			}
+			for(int w = 0; w < bitmapWords; w++){
+				words[w] &= other.words[w];
+			}
+			recount();
+		}
+
+		private void andNot(final Chunk other){
+			if(words == null){
+				int k = 0;
+				for(int i = 0; i < cardinality; i++){
+					if(!other.contains(array[i])){
+						array[k++] = array[i];
+					}
+				}
+				cardinality = k;
+				return;
+			}
+			final long[] theirs = other.asWords();
+			for(int w = 0; w < bitmapWords; w++){
+				words[w] &= ~theirs[w];
+			}
+			recount();
+		}
+
+		/**
+		 * Returns the first position greater than or equal to 'from' which holds a value. -1 if none.
+		 */
+		private int nextPosition(final int from){
+			if(words == null){
+				return from < cardinality ? from : -1;
+			}
+			if(from >= (1 << chunkBits)){
+				return -1;
+			}
+			int w = from >>> 6;
+			long word = words[w] & (-1L << from);
+			while(true){
+				if(word != 0){
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+				if(++w == bitmapWords){
+					return -1;
+				}
+				word = words[w];
+			}
+		}
+
+		private int valueAt(final int position){
+			return words == null ? array[position] : position;
+		}
+
+		@Override
+		public int hashCode(){
+			final long[] all = asWords();
+			return Arrays.hashCode(all);
+		}
+
+		@Override
+		public boolean equals(final Object obj){
+			if(this == obj)
+				return true;
+			if(obj == null || getClass() != obj.getClass())
+				return false;
+			final Chunk other = (Chunk)obj;
+			return cardinality == other.cardinality && Arrays.equals(asWords(), other.asWords());
+		}
+	}
+}
@@ -23,6 +23,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -85,16 +86,25 @@ public final class RemoteSPADEQueryConnection implements Closeable{
 	}
 
 	public final String generateUniqueRemoteSymbolName(){
+		return generateUniqueRemoteSymbolNames(1).get(0);
+	}
+
+	/**
+	 * Names which are not used by any graph on the server. Uses a single round trip for all the names.
+	 */
+	public final java.util.List<String> generateUniqueRemoteSymbolNames(final int count){
 		final spade.query.quickgrail.core.List.GraphList graphList = getGraphList();
+		final java.util.List<String> generatedNames = new ArrayList<String>();
 		int serialNumber = 0;
 		final String generatedNamePrefix = "$remote_lineage_";
-		while(true){
+		while(generatedNames.size() < count){
 			final String generatedName = generatedNamePrefix + serialNumber;
 			serialNumber++;
 			if(!graphList.contains(generatedName)){
-				return generatedName;
+				generatedNames.add(generatedName);
 			}
 		}
+		return generatedNames;
 	}
 
 	public synchronized void connect(final SocketFactory socketFactory, final int timeoutInMillis) throws Exception{
@@ -163,17 +173,10 @@ public final class RemoteSPADEQueryConnection implements Closeable{
 	public synchronized void close() throws IOException{
 		mustBeConnected();
 		
-		if(!generatedSymbols.isEmpty()){
-			String str = "";
-			for(String symbol : generatedSymbols){
-				str += " " + symbol;
-			}
-			try{
-				_executeQuery("erase " + str, false);
-			}catch(Throwable t){
-				logger.log(Level.WARNING, "Failed to execute 'erase' query", t);
-			}
-			generatedSymbols.clear();
+		try{
+			eraseGeneratedSymbols();
+		}catch(Throwable t){
+			logger.log(Level.WARNING, "Failed to execute 'erase' query", t);
 		}
 		
 		try{
@@ -205,6 +208,25 @@ public final class RemoteSPADEQueryConnection implements Closeable{
 		}
 	}
 	
+	/**
+	 * Erases the symbols generated by this connection on the server so that the connection can be reused
+	 */
+	public synchronized void eraseGeneratedSymbols(){
+		mustBeConnected();
+		if(!generatedSymbols.isEmpty()){
+			String str = "";
+			for(String symbol : generatedSymbols){
+				str += " " + symbol;
+			}
+			generatedSymbols.clear();
+			_executeQuery("erase " + str, false);
+		}
+	}
+
+	public synchronized boolean isConnected(){
+		return connected;
+	}
+
 	//////////////////////////////
 	
 	public synchronized boolean isStorageSet(){
@@ -286,6 +308,55 @@ public final class RemoteSPADEQueryConnection implements Closeable{
 		return _executeQuery(query, false);
 	}
 	
+	/**
+	 * Sends all the queries before reading any response so that the server does not wait for a round trip
+	 * between the queries. Responses are in the order of the queries.
+	 * All the responses are read even if a query fails. The first failure is thrown after that.
+	 */
+	public synchronized java.util.List<Query> executeQueries(final java.util.List<Query> queries){
+		storageMustBeSet();
+		mustBeConnected();
+
+		for(final Query query : queries){
+			if(query == null){
+				throw new RuntimeException("NULL query to execute!");
+			}
+		}
+
+		try{
+			for(final Query query : queries){
+				queryWriter.writeObject(query);
+			}
+			queryWriter.flush();
+		}catch(Throwable t){
+			throw new RuntimeException("Failed to send queries to server", t);
+		}
+
+		final java.util.List<Query> responses = new ArrayList<Query>();
+		RuntimeException firstFailure = null;
+		for(int i = 0; i < queries.size(); i++){
+			final Query response;
+			try{
+				response = (Query)queryResponseReader.readObject();
+			}catch(Throwable t){
+				throw new RuntimeException("Failed to read query response from server", t);
+			}
+			if(!response.wasQuerySuccessful() && firstFailure == null){
+				final Object error = response.getError();
+				if(error instanceof Throwable){
+					firstFailure = new RuntimeException("Query failed!", (Throwable)error);
+				}else{
+					firstFailure = new RuntimeException("Query failed! Error: " + String.valueOf(error));
+				}
+			}
+			responses.add(response);
+		}
+		if(firstFailure != null){
+			throw firstFailure;
+		}
+		return responses;
+	}
+
 	///////////////////////////
 	
 	private synchronized String _getVertices(String subgraphSymbol, String predicate){
@@ -0,0 +1,208 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.Kernel;
+
+/**
+ * Idle connections to remote SPADE query servers kept for reuse so that repeated remote queries to the same host
+ * do not pay for the TLS handshake and the storage setup every time.
+ *
+ * A borrowed connection is owned by the borrower till it is given back using {@link #release} or
+ * {@link #invalidate}. Idle connections are closed after the idle timeout.
+ */
+public final class RemoteSPADEQueryConnectionPool{
+
+	private static final Logger logger = Logger.getLogger(RemoteSPADEQueryConnectionPool.class.getName());
+
+	private static final int defaultMaxIdlePerHost = 4;
+	private static final long defaultIdleTimeoutMillis = 30 * 1000;
+	private static final int connectTimeoutMillis = 5 * 1000;
+
+	private static RemoteSPADEQueryConnectionPool defaultInstance = null;
+
+	public static synchronized RemoteSPADEQueryConnectionPool getDefault(){
+		if(defaultInstance == null){
+			defaultInstance = new RemoteSPADEQueryConnectionPool(defaultMaxIdlePerHost, defaultIdleTimeoutMillis);
+		}
+		return defaultInstance;
+	}
+
+	private static final class IdleConnection{
+		private final RemoteSPADEQueryConnection connection;
+		private final long idleSinceMillis;
+
+		private IdleConnection(final RemoteSPADEQueryConnection connection, final long idleSinceMillis){
+			this.connection = connection;
+			this.idleSinceMillis = idleSinceMillis;
+		}
+	}
+
+	private final int maxIdlePerHost;
+	private final long idleTimeoutMillis;
+	private final Map<String, LinkedList<IdleConnection>> idleConnections = new HashMap<String, LinkedList<IdleConnection>>();
+	private final ScheduledExecutorService evictor;
+
+	public RemoteSPADEQueryConnectionPool(final int maxIdlePerHost, final long idleTimeoutMillis){
+		if(maxIdlePerHost < 0){
+			throw new IllegalArgumentException("Negative max idle connections per host: " + maxIdlePerHost);
+		}
+		if(idleTimeoutMillis <= 0){
+			throw new IllegalArgumentException("Idle timeout must be greater than 0. Found: " + idleTimeoutMillis);
+		}
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "RemoteSPADEQueryConnectionPool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.evictor.scheduleWithFixedDelay(this::evictIdleConnections, idleTimeoutMillis, idleTimeoutMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private static String getKey(final String remoteAddress, final int remotePort){
+		return remoteAddress + ":" + remotePort;
+	}
+
+	/**
+	 * Returns an idle connection to the host if there is one, otherwise a new connection.
+	 * The storage is set if the storage name is not null and is different from the storage of the connection.
+	 */
+	public RemoteSPADEQueryConnection borrow(final String remoteAddress, final int remotePort,
+			final String storageName) throws Exception{
+		RemoteSPADEQueryConnection connection = null;
+		synchronized(idleConnections){
+			final LinkedList<IdleConnection> idle = idleConnections.get(getKey(remoteAddress, remotePort));
+			if(idle != null && !idle.isEmpty()){
+				// Most recently used first since it is the least likely to have been closed by the server
+				connection = idle.removeLast().connection;
+			}
+		}
+		if(connection == null){
+			connection = new RemoteSPADEQueryConnection(Kernel.getHostName(), remoteAddress, remotePort);
+			connection.connect(Kernel.getClientSocketFactory(), connectTimeoutMillis);
+		}
+		try{
+			if(storageName != null && !storageName.equals(connection.getStorageName())){
+				connection.setStorage(storageName);
+			}
+		}catch(Exception e){
+			invalidate(connection);
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Gives the connection back for reuse. The symbols generated by the connection are erased.
+	 * The connection is closed if it is not usable or if there are enough idle connections for the host.
+	 */
+	public void release(final RemoteSPADEQueryConnection connection){
+		if(connection == null){
+			return;
+		}
+		if(!connection.isConnected()){
+			return;
+		}
+		try{
+			connection.eraseGeneratedSymbols();
+		}catch(Exception e){
+			invalidate(connection);
+			return;
+		}
+		synchronized(idleConnections){
+			final String key = getKey(connection.serverAddress, connection.queryPort);
+			LinkedList<IdleConnection> idle = idleConnections.get(key);
+			if(idle == null){
+				idle = new LinkedList<IdleConnection>();
+				idleConnections.put(key, idle);
+			}
+			if(idle.size() < maxIdlePerHost){
+				idle.addLast(new IdleConnection(connection, System.currentTimeMillis()));
+				return;
+			}
+		}
+		invalidate(connection);
+	}
+
+	/**
+	 * Closes the connection instead of giving it back. Must be used if the connection failed.
+	 */
+	public void invalidate(final RemoteSPADEQueryConnection connection){
+		if(connection != null && connection.isConnected()){
+			try{
+				connection.close();
+			}catch(Exception e){
+				logger.log(Level.FINE, "Failed to close remote query connection to: " + connection.serverAddress, e);
+			}
+		}
+	}
+
+	private void evictIdleConnections(){
+		final List<RemoteSPADEQueryConnection> expired = new ArrayList<RemoteSPADEQueryConnection>();
+		final long now = System.currentTimeMillis();
+		synchronized(idleConnections){
+			for(final LinkedList<IdleConnection> idle : idleConnections.values()){
+				final Iterator<IdleConnection> iterator = idle.iterator();
+				while(iterator.hasNext()){
+					final IdleConnection idleConnection = iterator.next();
+					if(now - idleConnection.idleSinceMillis >= idleTimeoutMillis){
+						iterator.remove();
+						expired.add(idleConnection.connection);
+					}
+				}
+			}
+		}
+		for(final RemoteSPADEQueryConnection connection : expired){
+			invalidate(connection);
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Borrowed connections are not affected.
+	 */
+	public void clear(){
+		final List<RemoteSPADEQueryConnection> all = new ArrayList<RemoteSPADEQueryConnection>();
+		synchronized(idleConnections){
+			for(final LinkedList<IdleConnection> idle : idleConnections.values()){
+				for(final IdleConnection idleConnection : idle){
+					all.add(idleConnection.connection);
+				}
+			}
+			idleConnections.clear();
+		}
+		for(final RemoteSPADEQueryConnection connection : all){
+			invalidate(connection);
+		}
+	}
+}
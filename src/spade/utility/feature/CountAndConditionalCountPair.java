@@ -23,13 +23,16 @@ import spade.utility.feature.ConditionalCount.Condition;
 
 public class CountAndConditionalCountPair{
 
-	private final Count countFeature;
-	private final ConditionalCount conditionalCountFeature;
+	// Kept as primitives since there are many of these per process and artifact
+	private double count;
+	private double conditionalCount;
+	private final Condition condition;
 
 	public CountAndConditionalCountPair(final double countFeatureInitialValue,
 			final double conditionalCountFeatureInitialValue, final Condition condition){
-		this.countFeature = new Count(countFeatureInitialValue);
-		this.conditionalCountFeature = new ConditionalCount(conditionalCountFeatureInitialValue, condition);
+		this.count = countFeatureInitialValue;
+		this.conditionalCount = conditionalCountFeatureInitialValue;
+		this.condition = condition;
 	}
 
 	public void update(){
@@ -37,15 +40,17 @@ public class CountAndConditionalCountPair{
 	}
 
 	public void update(final double count){
-		this.countFeature.update(count);
-		this.conditionalCountFeature.update(count);
+		this.count += count;
+		if(this.condition.isSatisfied()){
+			this.conditionalCount += count;
+		}
 	}
 
 	public double getCount(){
-		return this.countFeature.get();
+		return this.count;
 	}
 
 	public double getConditionalCount(){
-		return this.conditionalCountFeature.get();
+		return this.conditionalCount;
 	}
 }
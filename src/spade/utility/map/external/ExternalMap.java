@@ -332,6 +332,24 @@ public class ExternalMap<K, V>{
 		return store.getSizeOnDiskInBytes();
 	}
 	
+	/**
+	 * Number of entries currently held in memory by the cache
+	 */
+	public int getCacheCurrentSize(){
+		return cache.getCurrentSize();
+	}
+	
+	/**
+	 * Maximum number of entries held in memory by the cache
+	 */
+	public int getCacheMaximumSize(){
+		return cache.getMaximumSize();
+	}
+	
+	public BigInteger getTotalEvictions(){
+		return totalEvictions;
+	}
+	
 	private void printStats(){
 		printStats("");
 	}
@@ -0,0 +1,352 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility.map.external;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.Settings;
+import spade.utility.FileUtility;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+import spade.utility.map.external.store.db.berkeleydb.BerkeleyDBArgument;
+import spade.utility.map.external.store.db.leveldb.LevelDBArgument;
+
+/**
+ * Bounded state of a filter keyed by string (usually the hash of a vertex).
+ *
+ * Backed by an external map whose arguments are read from the config file of the filter. At most 'cacheArgument'
+ * size entries are kept in memory, the least recently used ones are moved to the store.
+ *
+ * The optional '<mapId>.ttlSeconds' key in the config file drops the entries which have not been used for that long.
+ * The entries are then kept in two generations, each its own external map (the database name/path in the store
+ * argument gets a suffix). Entries are written to the current generation, and moved to it when read from the
+ * previous one. Every ttlSeconds the previous generation is cleared whole and the current one becomes the previous
+ * one. An unused entry is therefore dropped after ttlSeconds to twice that, without a scan of the store. Each
+ * generation has its own cache so up to twice the cache size entries can be in memory.
+ *
+ * Filters whose state numbers the versions of a vertex must not allow ttlSeconds (see
+ * {@link #create(Class, String, boolean)}): an expired vertex would start again from the initial version and its
+ * new versions would have the same hashes as the old ones.
+ *
+ * Values returned by 'get' must be 'put' back after being modified since the entry might have been moved to the
+ * store in the meantime.
+ *
+ * @param <V> value Must be Serializable
+ */
+public class FilterStateMap<V extends Serializable>{
+
+	private static final Logger logger = Logger.getLogger(FilterStateMap.class.getName());
+
+	public static final String keyTTLSeconds = "ttlSeconds";
+
+	// Serialized size of every n-th put entry is measured to estimate the bytes in memory
+	private static final long entrySizeSampleInterval = 1024;
+
+	// All open state maps by owner and map id for accounting
+	private static final Map<String, FilterStateMap<?>> openStateMaps = new ConcurrentHashMap<String, FilterStateMap<?>>();
+
+	public final String owner;
+	public final String mapId;
+	private final long ttlMillis;
+
+	private ExternalMap<String, V> currentMap;
+	// NULL if no ttl
+	private ExternalMap<String, V> previousMap;
+	private long nextRotationMillis;
+
+	private BigInteger totalGenerationsDropped = BigInteger.ZERO;
+
+	private long totalPuts = 0;
+	private long sampledEntries = 0;
+	private long sampledEntryBytes = 0;
+
+	private FilterStateMap(final String owner, final String mapId, final long ttlMillis,
+			final ExternalMap<String, V> currentMap, final ExternalMap<String, V> previousMap){
+		this.owner = owner;
+		this.mapId = mapId;
+		this.ttlMillis = ttlMillis;
+		this.currentMap = currentMap;
+		this.previousMap = previousMap;
+		this.nextRotationMillis = System.currentTimeMillis() + ttlMillis;
+	}
+
+	/**
+	 * Creates the state map using the arguments for the map id in the default config file of the filter class
+	 */
+	public static <V extends Serializable> FilterStateMap<V> create(final Class<?> filterClass, final String mapId)
+			throws Exception{
+		return create(filterClass, mapId, true);
+	}
+
+	/**
+	 * Same as {@link #create(Class, String)} but fails if '<mapId>.ttlSeconds' is set and 'allowTTL' is false
+	 */
+	public static <V extends Serializable> FilterStateMap<V> create(final Class<?> filterClass, final String mapId,
+			final boolean allowTTL) throws Exception{
+		final String configFilePath = Settings.getDefaultConfigFilePath(filterClass);
+		final Result<HashMap<String, String>> configResult = FileUtility.parseKeysValuesInConfigFile(configFilePath);
+		if(configResult.error){
+			throw new Exception("Failed to read config file '" + configFilePath + "': " + configResult.toErrorString());
+		}
+
+		final String ttlSecondsString = configResult.result.get(mapId + "." + keyTTLSeconds);
+		long ttlMillis = 0;
+		if(ttlSecondsString != null){
+			final Result<Long> ttlResult = HelperFunctions.parseLong(ttlSecondsString, 10, 0, Long.MAX_VALUE / 1000);
+			if(ttlResult.error){
+				throw new Exception("Invalid value for '" + mapId + "." + keyTTLSeconds + "': "
+						+ ttlResult.toErrorString());
+			}
+			ttlMillis = ttlResult.result * 1000;
+		}
+		if(ttlMillis > 0 && !allowTTL){
+			throw new Exception("'" + mapId + "." + keyTTLSeconds + "' is not allowed in '" + configFilePath
+					+ "': versions of expired vertices would restart and collide with the old ones");
+		}
+
+		final ExternalMap<String, V> currentMap;
+		final ExternalMap<String, V> previousMap;
+		if(ttlMillis > 0){
+			currentMap = createExternalMap(getGenerationMapId(mapId, 0),
+					getGenerationConfig(configResult.result, mapId, 0), configFilePath);
+			try{
+				previousMap = createExternalMap(getGenerationMapId(mapId, 1),
+						getGenerationConfig(configResult.result, mapId, 1), configFilePath);
+			}catch(Exception e){
+				currentMap.close();
+				throw e;
+			}
+		}else{
+			currentMap = createExternalMap(mapId, configResult.result, configFilePath);
+			previousMap = null;
+		}
+
+		final FilterStateMap<V> stateMap = new FilterStateMap<V>(filterClass.getSimpleName(), mapId, ttlMillis,
+				currentMap, previousMap);
+		openStateMaps.put(stateMap.getName(), stateMap);
+		logger.log(Level.INFO, stateMap.getName() + ": " + keyTTLSeconds + "=" + (ttlMillis / 1000));
+		return stateMap;
+	}
+
+	private static <V extends Serializable> ExternalMap<String, V> createExternalMap(final String mapId,
+			final Map<String, String> config, final String configFilePath) throws Exception{
+		final Result<ExternalMapArgument> argumentResult = ExternalMapManager.parseArgumentFromMap(mapId, config);
+		if(argumentResult.error){
+			throw new Exception("Failed to parse argument for external map '" + mapId + "' in '" + configFilePath + "': "
+					+ argumentResult.toErrorString());
+		}
+		final Result<ExternalMap<String, V>> externalMapResult = ExternalMapManager.create(argumentResult.result);
+		if(externalMapResult.error){
+			throw new Exception("Failed to create external map '" + mapId + "' from arguments: "
+					+ argumentResult.result + ". " + externalMapResult.toErrorString());
+		}
+		logger.log(Level.INFO, mapId + ": " + argumentResult.result);
+		return externalMapResult.result;
+	}
+
+	private static String getGenerationMapId(final String mapId, final int generation){
+		return mapId + "Generation" + generation;
+	}
+
+	/*
+	 * Copy of the arguments of the map id for the generation map id. The database name/path in the store argument
+	 * gets the generation as a suffix so that each generation has its own database which can be cleared whole.
+	 */
+	private static Map<String, String> getGenerationConfig(final Map<String, String> config, final String mapId,
+			final int generation) throws Exception{
+		final String generationMapId = getGenerationMapId(mapId, generation);
+		final Map<String, String> generationConfig = new HashMap<String, String>();
+		for(final Map.Entry<String, String> entry : config.entrySet()){
+			final String key = entry.getKey();
+			if(key != null && key.startsWith(mapId + ".")){
+				generationConfig.put(generationMapId + key.substring(mapId.length()), entry.getValue());
+			}
+		}
+
+		final String storeArgumentKey = generationMapId + "." + ExternalMapArgument.keyStoreArgument;
+		final String storeArgument = generationConfig.get(storeArgumentKey);
+		if(storeArgument != null){
+			final Result<ArrayList<SimpleEntry<String, String>>> entriesResult =
+					HelperFunctions.parseKeyValueEntriesInString(storeArgument);
+			if(entriesResult.error){
+				throw new Exception("Invalid store argument for '" + mapId + "': " + entriesResult.toErrorString());
+			}
+			boolean renamed = false;
+			final StringBuilder generationStoreArgument = new StringBuilder();
+			for(final SimpleEntry<String, String> entry : entriesResult.result){
+				String value = entry.getValue();
+				if(entry.getKey().equals(BerkeleyDBArgument.keyDatabaseName)
+						|| entry.getKey().equals(LevelDBArgument.keyDatabasePath)){
+					value = value + "Generation" + generation;
+					renamed = true;
+				}
+				generationStoreArgument.append(entry.getKey()).append("=\"").append(value).append("\" ");
+			}
+			if(!renamed){
+				throw new Exception("No database name/path in the store argument for '" + mapId + "' to keep the "
+						+ keyTTLSeconds + " generations apart");
+			}
+			generationConfig.put(storeArgumentKey, generationStoreArgument.toString().trim());
+		}
+		return generationConfig;
+	}
+
+	public final String getName(){
+		return owner + "." + mapId;
+	}
+
+	/*
+	 * Drops the previous generation whole and starts a new current one if ttl has passed. Both are dropped if the
+	 * map has not been used for twice the ttl.
+	 */
+	private void rotateGenerations(){
+		if(previousMap == null){
+			return;
+		}
+		final long nowMillis = System.currentTimeMillis();
+		if(nowMillis < nextRotationMillis){
+			return;
+		}
+		previousMap.clear();
+		totalGenerationsDropped = totalGenerationsDropped.add(BigInteger.ONE);
+		if(nowMillis >= nextRotationMillis + ttlMillis){
+			currentMap.clear();
+			totalGenerationsDropped = totalGenerationsDropped.add(BigInteger.ONE);
+		}
+		final ExternalMap<String, V> emptyMap = previousMap;
+		previousMap = currentMap;
+		currentMap = emptyMap;
+		nextRotationMillis = nowMillis + ttlMillis;
+	}
+
+	/**
+	 * Returns null if not present or expired
+	 */
+	public V get(final String key){
+		rotateGenerations();
+		V value = currentMap.get(key);
+		if(value == null && previousMap != null){
+			value = previousMap.get(key);
+			if(value != null){
+				// Used again so kept for another ttl
+				previousMap.remove(key);
+				currentMap.put(key, value);
+			}
+		}
+		return value;
+	}
+
+	public boolean contains(final String key){
+		return get(key) != null;
+	}
+
+	public void put(final String key, final V value){
+		rotateGenerations();
+		// A stale copy in the previous generation is never read since the current one is looked up first
+		currentMap.put(key, value);
+		if(totalPuts++ % entrySizeSampleInterval == 0){
+			sampleEntrySize(key, value);
+		}
+	}
+
+	public void remove(final String key){
+		currentMap.remove(key);
+		if(previousMap != null){
+			previousMap.remove(key);
+		}
+	}
+
+	private void sampleEntrySize(final String key, final V value){
+		try(final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final ObjectOutputStream objects = new ObjectOutputStream(bytes)){
+			objects.writeObject(key);
+			objects.writeObject(value);
+			objects.flush();
+			sampledEntryBytes += bytes.size();
+			sampledEntries++;
+		}catch(Exception e){
+			// Only for accounting
+		}
+	}
+
+	public void close(){
+		openStateMaps.remove(getName(), this);
+		logger.log(Level.INFO, getStats());
+		currentMap.close();
+		if(previousMap != null){
+			previousMap.close();
+		}
+	}
+
+	/**
+	 * Entries in memory (in the caches), and an estimate of their bytes from the serialized size of sampled entries
+	 */
+	public long getInMemoryBytesEstimate(){
+		if(sampledEntries == 0){
+			return 0;
+		}
+		return getInMemoryEntries() * (sampledEntryBytes / sampledEntries);
+	}
+
+	public long getInMemoryEntries(){
+		return currentMap.getCacheCurrentSize() + (previousMap == null ? 0 : previousMap.getCacheCurrentSize());
+	}
+
+	private static String getSizeOnDisk(final ExternalMap<String, ?> externalMap){
+		try{
+			return String.valueOf(externalMap.getSizeOnDiskInBytes());
+		}catch(Exception e){
+			return "unknown";
+		}
+	}
+
+	public String getStats(){
+		final int maximumEntries = currentMap.getCacheMaximumSize()
+				+ (previousMap == null ? 0 : previousMap.getCacheMaximumSize());
+		final BigInteger evictions = previousMap == null ? currentMap.getTotalEvictions()
+				: currentMap.getTotalEvictions().add(previousMap.getTotalEvictions());
+		return getName() + ": inMemoryEntries=" + getInMemoryEntries() + "/" + maximumEntries
+				+ ", inMemoryBytesEstimate=" + getInMemoryBytesEstimate()
+				+ ", onDiskBytes=" + getSizeOnDisk(currentMap)
+				+ (previousMap == null ? "" : "+" + getSizeOnDisk(previousMap))
+				+ ", evictions=" + evictions + ", generationsDropped=" + totalGenerationsDropped;
+	}
+
+	/**
+	 * Stats of all the open state maps
+	 */
+	public static Map<String, String> getAllStats(){
+		final Map<String, String> stats = new HashMap<String, String>();
+		for(final FilterStateMap<?> stateMap : openStateMaps.values()){
+			stats.put(stateMap.getName(), stateMap.getStats());
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2024 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractVertex;
+import spade.core.Query;
+import spade.core.Vertex;
+import spade.query.quickgrail.QuickGrailExecutor;
+import spade.query.quickgrail.core.GraphStatistic;
+import spade.query.quickgrail.core.QueryCache;
+import spade.storage.Memory;
+
+/**
+ * Tests that cached QuickGrail results are not served after the storage changes.
+ */
+class QueryCacheTest{
+
+	private static AbstractVertex newVertex(final String name){
+		final AbstractVertex vertex = new Vertex();
+		vertex.addAnnotation("name", name);
+		return vertex;
+	}
+
+	private static GraphStatistic.Count count(final QuickGrailExecutor executor){
+		final Query query = executor.execute(new Query("local", "local", "stat $base", null));
+		assertTrue(query.wasQuerySuccessful(), String.valueOf(query.getError()));
+		return (GraphStatistic.Count)query.getResult();
+	}
+
+	@Test
+	void writeFollowedBySameQueryMissesCache() throws Exception{
+		final Memory storage = new Memory();
+		assertTrue(storage.initialize(""));
+		try{
+			final QuickGrailExecutor executor = new QuickGrailExecutor(storage.getQueryInstructionExecutor());
+			// Sizes are ignored since the executor created the cache of the storage already
+			final QueryCache queryCache = QueryCache.getStorageCache(storage, 0, 0, 0);
+
+			storage.putVertex(newVertex("a"));
+			assertEquals(1, count(executor).getVertices());
+
+			final long hits = queryCache.getHits();
+			assertEquals(1, count(executor).getVertices());
+			assertEquals(hits + 1, queryCache.getHits());
+
+			storage.putVertex(newVertex("b"));
+			final long misses = queryCache.getMisses();
+			assertEquals(2, count(executor).getVertices());
+			assertEquals(misses + 1, queryCache.getMisses());
+		}finally{
+			storage.shutdown();
+		}
+	}
+}
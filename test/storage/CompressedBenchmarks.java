@@ -54,7 +54,6 @@ public class CompressedBenchmarks
             //System.out.print(count + " ");
             //count ++;
         }
-        storage.benchmarks.println("Time to put all vertices in the annotations Database (ms): " + (System.currentTimeMillis() - aux));
         System.out.println("Time to put all vertices in the annotations Database (ms): " + (System.currentTimeMillis() - aux));
         //count = 0;
         System.out.println("starting putEdge");
@@ -65,7 +64,11 @@ public class CompressedBenchmarks
             //System.out.print(count + " ");
             //count ++;
         }
-        System.out.println(storage.uncompressAncestorsSuccessorsWithLayer(12, true, true).second().second().toString());
+        try {
+			System.out.println(storage.findAllTheSuccessors(12));
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		}
         /*try {
 			System.out.println(storage.getTime(39363, 39011));
 		} catch (UnsupportedEncodingException | DataFormatException e1) {
@@ -91,7 +94,7 @@ public class CompressedBenchmarks
 				query_time += aux_query2 - aux_query1;
 			}
 			System.out.println("Average query time (ns) : " + (query_time/countLines));
-		} catch (FileNotFoundException e1) {
+		} catch (Exception e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
 		}